@@ -0,0 +1,260 @@
+package com.pi.pano;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.pi.pano.annotation.PiFileStitchFlag;
+import com.pi.pano.error.PiErrorCode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连拍、间隔拍照的图像处理。
+ * 图像到达后复制到缓存池并立即关闭，ImageReader的缓冲区不被保存占用，相机可连续出图；
+ * 复制的图像由{@link BurstCapturePipeline}的写入线程保存，保存积压时按{@link PhotoParams#burstBacklogPolicy}处理。
+ * 所有照片结束(保存、失败或丢弃)后回调拍照完成。
+ */
+class BurstImageProcess extends ImageProcess implements BurstCapturePipeline.Writer<BurstImageProcess.Shot>,
+        BurstCapturePipeline.Listener {
+
+    static final class Shot {
+        final BufferArena.Block block;
+        final int width;
+        final int height;
+        final long timestampNs;
+
+        Shot(BufferArena.Block block, int width, int height, long timestampNs) {
+            this.block = block;
+            this.width = width;
+            this.height = height;
+            this.timestampNs = timestampNs;
+        }
+    }
+
+    private final int mCount;
+    private final BufferArena mArena;
+    private final BurstCapturePipeline<Shot> mPipeline;
+    private final AtomicInteger mNextIndex = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+    private volatile int mErrorCode = 0;
+    private volatile File mFirstFile;
+
+    BurstImageProcess(TakePhotoListener takePhotoListener, ImageReader imageReader, PiPano piPano) {
+        super(takePhotoListener, imageReader, false, piPano);
+        mTag = "BurstImageProcess";
+        mCount = mParams.burstCount;
+        // jpeg大小按每像素1字节估计，缓存预算决定等待保存的张数
+        final long frameBytes = (long) imageReader.getWidth() * imageReader.getHeight();
+        final long budget = SystemPropertiesProxy.getLong(Config.PERSIST_DEV_BURST_BUFFER,
+                Config.DEFAULT_BURST_BUFFER_MB) * 1024 * 1024;
+        final int threadCount = Math.max(1, Math.min(Config.BURST_WRITER_COUNT,
+                Runtime.getRuntime().availableProcessors()));
+        final int capacity = HdrMergePipeline.concurrency(budget, frameBytes, frameBytes * threadCount,
+                Config.MAX_BURST_QUEUE);
+        mArena = new BufferArena(budget, 1024 * 1024);
+        mPipeline = new BurstCapturePipeline<>(threadCount, capacity, toPolicy(mParams.burstBacklogPolicy), this,
+                System::nanoTime);
+        mPipeline.setListener(this);
+        Log.d(mTag, "count:" + mCount + ",interval:" + mParams.burstIntervalMs + ",threads:" + threadCount +
+                ",capacity:" + capacity + ",budget:" + budget);
+    }
+
+    @NonNull
+    private static BurstCapturePipeline.Policy toPolicy(int backlogPolicy) {
+        switch (backlogPolicy) {
+            case PhotoParams.BURST_BACKLOG_DROP:
+                return BurstCapturePipeline.Policy.DROP;
+            case PhotoParams.BURST_BACKLOG_DEGRADE:
+                return BurstCapturePipeline.Policy.DEGRADE;
+            default:
+                return BurstCapturePipeline.Policy.BLOCK;
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        while (!mFinished.get()) {
+            Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (null == image) {
+                return;
+            }
+            onShot(image);
+        }
+    }
+
+    private void onShot(Image image) {
+        final int index = mNextIndex.getAndIncrement();
+        if (index >= mCount) {
+            image.close();
+            return;
+        }
+        Shot shot = null;
+        try {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            BufferArena.Block block = allocate(buffer.remaining());
+            if (block != null) {
+                block.put(buffer);
+                shot = new Shot(block, image.getWidth(), image.getHeight(), image.getTimestamp());
+            }
+        } finally {
+            image.close();
+        }
+        if (shot == null) {
+            Log.e(mTag, "onShot no buffer,index:" + index + "," + mArena);
+            mPipeline.drop(index);
+        } else {
+            mPipeline.offer(index, shot);
+        }
+    }
+
+    /**
+     * 分配图像缓存，不丢弃的策略下等待保存中的照片归还缓存
+     */
+    private BufferArena.Block allocate(int size) {
+        BufferArena.Block block = mArena.allocate(size);
+        if (mParams.burstBacklogPolicy == PhotoParams.BURST_BACKLOG_DROP) {
+            return block;
+        }
+        try {
+            // 保存完成归还缓存时唤醒，超时只用于检查是否已结束
+            while (block == null && !mFinished.get() && mPipeline.getPendingCount() > 0) {
+                block = mArena.allocate(size, 100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return block;
+    }
+
+    /**
+     * 一次采集失败，该张以失败结束
+     */
+    void onCaptureFailed(int errorCode) {
+        if (mErrorCode == 0) {
+            mErrorCode = errorCode;
+        }
+        final int index = mNextIndex.getAndIncrement();
+        if (index < mCount) {
+            mPipeline.drop(index);
+        }
+    }
+
+    /**
+     * 停止，丢弃未保存的照片，正在保存的照片结束后以errorCode完成，不等待
+     */
+    void stop(int errorCode) {
+        Log.d(mTag, "stop,errorCode:" + errorCode);
+        if (mErrorCode == 0) {
+            mErrorCode = errorCode;
+        }
+        mPipeline.cancel();
+        finishAsync();
+    }
+
+    boolean isFinished() {
+        return mFinished.get();
+    }
+
+    @NonNull
+    private File getShotFile(int index) {
+        return new File(mParams.unStitchDirPath,
+                mParams.obtainBasicName() + "_" + index + PiFileStitchFlag.unstitch + ".jpg");
+    }
+
+    @Override
+    public int write(int index, @NonNull Shot shot, boolean degraded) throws IOException {
+        File file = getShotFile(index);
+        checkAndCreateParentDir(file);
+        if (degraded) {
+            // 降级时直接保存相机输出的jpeg
+            try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+                ByteBuffer data = shot.block.data();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            return 0;
+        }
+        int ret = directSaveSpatialJpeg(shot.block.data(), shot.width, shot.height, shot.timestampNs,
+                file.getAbsolutePath(), true);
+        return ret == 0 ? 0 : 400;
+    }
+
+    @Override
+    public void recycle(@NonNull Shot shot) {
+        mArena.release(shot.block);
+    }
+
+    @Override
+    public void onShotComplete(int index, int result, int errorCode) {
+        File file = null;
+        if (result == BurstCapturePipeline.RESULT_WRITTEN || result == BurstCapturePipeline.RESULT_DEGRADED) {
+            file = getShotFile(index);
+            if (mFirstFile == null) {
+                mFirstFile = file;
+            }
+        } else if (result == BurstCapturePipeline.RESULT_DROPPED) {
+            errorCode = PiErrorCode.TAKE_PHOTO_DROPPED;
+        } else if (mErrorCode == 0) {
+            mErrorCode = errorCode;
+        }
+        mTakePhotoListener.onBurstShotComplete(index, file, errorCode);
+        mTakePhotoListener.onBurstStats(mPipeline.getShotsPerSecond(), mPipeline.getQueueDepth());
+        if (mCompletedCount.incrementAndGet() >= mCount) {
+            finishAsync();
+        }
+    }
+
+    /**
+     * 结束需等待写入线程，不能在写入线程中进行
+     */
+    private void finishAsync() {
+        Handler handler = mHandler;
+        if (handler == null || !handler.post(this::finish)) {
+            new Thread(this::finish).start();
+        }
+    }
+
+    private void finish() {
+        if (!mFinished.compareAndSet(false, true)) {
+            return;
+        }
+        mPipeline.close();
+        // 取消后到达的图像不再保存，避免之后的拍照取得
+        ImageReader reader = mImageReader;
+        if (reader != null) {
+            try {
+                Image image;
+                while ((image = reader.acquireNextImage()) != null) {
+                    image.close();
+                }
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+        }
+        Log.i(mTag, "finish,errorCode:" + mErrorCode + "," + mPipeline + "," + mArena);
+        if (mFirstFile != null) {
+            mTakePhotoListener.mUnStitchFile = mFirstFile;
+        }
+        mArena.trim();
+        release();
+        notifyTakePhotoComplete(mErrorCode);
+    }
+}
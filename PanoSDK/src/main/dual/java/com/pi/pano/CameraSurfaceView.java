@@ -144,6 +144,8 @@ class CameraSurfaceView extends PanoSurfaceView {
         pano.isCaptureCompleted = false;
         Log.d(TAG, "releaseCamera end");
         mPiPano = null;
+        // 预览停止后不会再录像，释放预先创建的录像编码器
+        MediaRecorderUtil.clearVideoEncoderPool();
         for (CameraToTexture c : mCameraToTexture) {
             c.releaseCamera();
         }
@@ -18,6 +18,7 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
 import android.location.Location;
 import android.location.LocationManager;
 import android.media.ImageReader;
@@ -50,9 +51,13 @@ import com.pi.pano.wrap.timeout.TimeOutWrapWrap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -733,6 +738,7 @@ class CameraToTexture {
         if (mPiPano != null) {
             mPiPano.isCaptureCompleted = false;
         }
+        HdrImageProcess.trimBracketArena();
         Log.i(TAG, "release camera end");
     }
 
@@ -1036,6 +1042,8 @@ class CameraToTexture {
 //                }
 //            }, skipFrame);
             takePhotoForHdrNormal2(listener);
+        } else if (listener.mParams.isBurst()) {
+            takePhotoBurstInner(listener);
         } else {
             takePhotoNorInner(listener);
         }
@@ -1093,9 +1101,8 @@ class CameraToTexture {
                         }
                     }
                     mHdrCount.set(0);
+                    final CompletableFuture<Integer> captured = new CompletableFuture<>();
                     cameraSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
-                        boolean captureFailed = false;
-
                         @Override
                         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
                             super.onCaptureCompleted(session, request, result);
@@ -1110,28 +1117,24 @@ class CameraToTexture {
                         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
                             super.onCaptureFailed(session, request, failure);
                             Log.e(TAG, "onCaptureFailed :" + failure.getReason() + ",," + failure.getFrameNumber() + ",," + failure.getSequenceId());
-                            captureFailed = true;
-                            callTakePhotoError(listener, PiErrorCode.TAKE_PHOTO_CAPTURE_FAILED);
-                            restorePreviewHdr();
+                            captured.complete(PiErrorCode.TAKE_PHOTO_CAPTURE_FAILED);
                         }
 
                         @Override
                         public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session, int sequenceId, long frameNumber) {
                             super.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
                             Log.d(TAG, "onCaptureSequenceCompleted :" + sequenceId + ",," + frameNumber);
-                            handleStackHdr(captureFailed);
+                            captured.complete(0);
                         }
 
                         @Override
                         public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
                             super.onCaptureSequenceAborted(session, sequenceId);
                             Log.d(TAG, "onCaptureSequenceAborted :" + sequenceId);
-                            captureFailed = true;
-                            endCapture();
-                            callTakePhotoError(listener, PiErrorCode.TAKE_PHOTO_CAPTURE_FAILED);
-                            restorePreviewHdr();
+                            captured.complete(PiErrorCode.TAKE_PHOTO_CAPTURE_FAILED);
                         }
                     }, mBackgroundHandler);
+                    startHdrCaptureFlow(captured);
                 } catch (CameraAccessException | IllegalStateException ex) {
                     ex.printStackTrace();
                     int code = PiErrorCode.CAMERA_SESSION_NOT_CREATE;
@@ -1153,17 +1156,57 @@ class CameraToTexture {
                 mHdrImageProcessNor2 = null;
             }
 
-            private void handleStackHdr(boolean hasCaptureFailed) {
-                if (hasCaptureFailed) {
-                    return;
-                }
-                new Thread(() -> {
-                    int errCode = mHdrImageProcessNor2.stackHdrConfigured();
-                    endStackHdr();
-                    listener.onTakePhotoComplete(errCode);
-                    endCapture();
-                }).start();
-                restorePreviewHdr();
+            /**
+             * 连拍结束后依次保存、合成、注入缩略图，连拍成功后同时恢复预览
+             */
+            private void startHdrCaptureFlow(CompletableFuture<Integer> captured) {
+                final HdrImageProcess process = mHdrImageProcessNor2;
+                final Executor executor = r -> new Thread(r, "HdrCaptureFlow").start();
+                final HdrCaptureFlow flow = new HdrCaptureFlow((task, delayMs) -> {
+                    mBackgroundHandler.postDelayed(task, delayMs);
+                    return () -> mBackgroundHandler.removeCallbacks(task);
+                }, System::nanoTime)
+                        .setStage(HdrCaptureFlow.STAGE_CAPTURE, () -> captured, Config.HDR_CAPTURE_TIMEOUT)
+                        .setStage(HdrCaptureFlow.STAGE_SAVE, () -> process.getSaveFuture().thenApply(code -> code),
+                                Config.HDR_SAVE_TIMEOUT)
+                        .setStage(HdrCaptureFlow.STAGE_MERGE, HdrCaptureFlow.blocking(executor, process::mergeHdr),
+                                Config.HDR_MERGE_TIMEOUT)
+                        .setStage(HdrCaptureFlow.STAGE_INJECT,
+                                HdrCaptureFlow.blocking(executor, process::injectHdrMetadata), Config.HDR_INJECT_TIMEOUT);
+                captured.thenAccept(code -> {
+                    if (code == 0) {
+                        restorePreviewHdr();
+                    }
+                });
+                listener.mCompletion.whenComplete((code, t) -> {
+                    if (t instanceof CancellationException) {
+                        flow.cancel();
+                    }
+                });
+                // 超时或取消不会中断native合成，合成返回后才结束拍照
+                flow.start().whenComplete((code, t) -> process.endFlow().thenRun(() -> {
+                    Log.d(TAG, "hdr capture flow end :" + flow);
+                    if (t == null) {
+                        endStackHdr();
+                        listener.notifyTakePhotoComplete(0);
+                        endCapture();
+                        return;
+                    }
+                    HdrCaptureFlow.StageException e = HdrCaptureFlow.getStageException(t);
+                    int errCode = e.reason == HdrCaptureFlow.REASON_TIMEOUT ? PiErrorCode.TIME_OUT :
+                            e.reason == HdrCaptureFlow.REASON_CANCELLED ? PiErrorCode.HDR_PHOTO_CANCELED :
+                                    e.errorCode != 0 ? e.errorCode : PiErrorCode.HDR_PHOTO_STACK_FAILED;
+                    Log.e(TAG, "hdr capture flow error :" + e.getMessage() + ",code:" + errCode);
+                    if (e.stage <= HdrCaptureFlow.STAGE_CAPTURE) {
+                        endCapture();
+                        callTakePhotoError(listener, errCode);
+                        restorePreviewHdr();
+                    } else {
+                        endStackHdr();
+                        listener.notifyTakePhotoComplete(errCode);
+                        endCapture();
+                    }
+                }));
             }
 
             private void restorePreviewHdr() {
@@ -1188,13 +1231,8 @@ class CameraToTexture {
                                 updatePreview(new PiCallback() {
                                     @Override
                                     public void onSuccess() {
-                                        new Thread(() -> {
-                                            while (mPiPano.mSkipFrameWithTakeHdr > 0) {
-                                                SystemClock.sleep(20);
-                                            }
-                                            SystemClock.sleep(500);
-                                            callback.onSuccess();
-                                        }).start();
+                                        mPiPano.waitSkipFrameWithTakeHdr().thenRun(() ->
+                                                mBackgroundHandler.postDelayed(callback::onSuccess, 500));
                                     }
 
                                     @Override
@@ -1278,7 +1316,7 @@ class CameraToTexture {
                         });
                     } else if (mHdrCount.get() == listener.mParams.hdrCount + 1
                             && mHdrImageProcessNor != null) {
-                        listener.onTakePhotoComplete(0);
+                        listener.notifyTakePhotoComplete(0);
                         mHdrCount.set(0);
                         mHdrImageProcessNor = null;
                     }
@@ -1433,6 +1471,8 @@ class CameraToTexture {
                                 if (rawImageProcess.needDng()) {
                                     DngCreator dngCreator = new DngCreator(mCameraCharacteristics, result);
                                     rawImageProcess.setDngCreator(dngCreator);
+                                } else {
+                                    setRawSensorInfo(rawImageProcess);
                                 }
                             }
                         }
@@ -1467,6 +1507,150 @@ class CameraToTexture {
         });
     }
 
+    /**
+     * 连拍、间隔拍照。
+     * 连拍时一次提交所有请求，相机以能达到的速率连续出图；间隔拍照按首张的时间定时提交，间隔不因保存耗时漂移。
+     * 图像由{@link BurstImageProcess}保存，采集不等待前一张保存完成。
+     */
+    private void takePhotoBurstInner(TakePhotoListener listener) {
+        final CameraCaptureSession cameraSession = mCameraSession;
+        final BurstImageProcess process = new BurstImageProcess(listener, mJpegImageReader, mPiPano);
+        final int count = listener.mParams.burstCount;
+        final long intervalMs = Math.max(0, listener.mParams.burstIntervalMs);
+        listener.mCompletion.whenComplete((code, t) -> {
+            if (t instanceof CancellationException) {
+                mBackgroundHandler.post(() -> {
+                    mBackgroundHandler.removeCallbacksAndMessages(process);
+                    process.stop(PiErrorCode.TAKE_PHOTO_CANCELED);
+                    if (intervalMs == 0 && cameraSession != null) {
+                        // 丢弃未完成的连拍请求，会同时停止预览
+                        try {
+                            cameraSession.abortCaptures();
+                        } catch (CameraAccessException | IllegalStateException e) {
+                            e.printStackTrace();
+                        }
+                        updatePreview();
+                    }
+                });
+            }
+        });
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "takePhotoBurstInner count:" + count + ",interval:" + intervalMs);
+                if (cameraSession == null) {
+                    Log.e(TAG, "takePhoto err : mCameraSession is null !");
+                    process.stop(PiErrorCode.CAMERA_SESSION_NOT_CREATE);
+                    return;
+                }
+                final CaptureRequest request;
+                try {
+                    CaptureRequest.Builder stillCapture = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                    stillCapture.set(CaptureRequest.CONTROL_CAPTURE_INTENT, CaptureRequest.CONTROL_CAPTURE_INTENT_STILL_CAPTURE);
+                    setCaptureRequestParam(stillCapture, false);
+                    fillExtInfo(stillCapture, listener.mParams);
+                    stillCapture.set(CaptureRequest.JPEG_QUALITY, (byte) 100);
+                    stillCapture.addTarget(newPreviewSurfaceAndCheck());
+                    stillCapture.addTarget(mJpegImageReader.getSurface());
+                    request = stillCapture.build();
+                } catch (CameraAccessException | IllegalStateException e) {
+                    e.printStackTrace();
+                    process.stop(PiErrorCode.CAMERA_NOT_OPENED);
+                    return;
+                }
+                final CameraCaptureSession.CaptureCallback callback = new CameraCaptureSession.CaptureCallback() {
+                    private int started = 0;
+                    private int ended = 0;
+
+                    @Override
+                    public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+                        super.onCaptureStarted(session, request, timestamp, frameNumber);
+                        if (started > 0) {
+                            listener.onTakePhotoStart(started);
+                        }
+                        started++;
+                    }
+
+                    @Override
+                    public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                        super.onCaptureCompleted(session, request, result);
+                        onCaptureEnd();
+                    }
+
+                    @Override
+                    public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+                        super.onCaptureFailed(session, request, failure);
+                        Log.e(TAG, "takePhotoBurst,onCaptureFailed,reason:" + failure.getReason());
+                        process.onCaptureFailed(PiErrorCode.TAKE_PHOTO_CAPTURE_FAILED);
+                        onCaptureEnd();
+                    }
+
+                    private void onCaptureEnd() {
+                        if (++ended == count) {
+                            listener.onCapturePhotoEnd();
+                        }
+                    }
+                };
+                try {
+                    if (intervalMs == 0) {
+                        cameraSession.captureBurst(new ArrayList<>(Collections.nCopies(count, request)),
+                                callback, mBackgroundHandler);
+                    } else {
+                        scheduleCapture(request, callback, 0, SystemClock.uptimeMillis());
+                    }
+                } catch (CameraAccessException | IllegalStateException ex) {
+                    onCaptureException(ex);
+                }
+                Log.d(TAG, "takePhotoBurstInner capture end.");
+            }
+
+            /**
+             * 间隔拍照，第index张在startUptime + index * intervalMs时提交
+             */
+            private void scheduleCapture(CaptureRequest request, CameraCaptureSession.CaptureCallback callback,
+                                         int index, long startUptime) throws CameraAccessException {
+                if (process.isFinished()) {
+                    return;
+                }
+                cameraSession.capture(request, callback, mBackgroundHandler);
+                if (index + 1 < count) {
+                    mBackgroundHandler.postAtTime(() -> {
+                        try {
+                            scheduleCapture(request, callback, index + 1, startUptime);
+                        } catch (CameraAccessException | IllegalStateException ex) {
+                            onCaptureException(ex);
+                        }
+                    }, process, startUptime + (index + 1) * intervalMs);
+                }
+            }
+
+            private void onCaptureException(Exception ex) {
+                Log.e(TAG, "takePhotoBurst,ex:" + ex);
+                ex.printStackTrace();
+                int code = PiErrorCode.CAMERA_SESSION_NOT_CREATE;
+                String message = "" + ex.getMessage();
+                if (ex instanceof CameraAccessException || message.contains("CameraDevice")) {
+                    code = PiErrorCode.CAMERA_NOT_OPENED;
+                }
+                mBackgroundHandler.removeCallbacksAndMessages(process);
+                process.stop(code);
+            }
+        });
+    }
+
+    /**
+     * raw文件头使用的传感器信息
+     */
+    private void setRawSensorInfo(ImageProcess rawImageProcess) {
+        Integer cfa = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        BlackLevelPattern blackLevel = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        Integer whiteLevel = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        rawImageProcess.setRawSensorInfo(
+                cfa != null && cfa <= DngHeaderBuilder.CFA_BGGR ? cfa : DngHeaderBuilder.CFA_RGGB,
+                blackLevel != null ? blackLevel.getOffsetForIndex(0, 0) : 0,
+                whiteLevel != null ? whiteLevel : 1023);
+    }
+
     private void callTakePhotoError(TakePhotoListener listener, int code) {
         if (listener != null) {
             listener.dispatchTakePhotoComplete(code);
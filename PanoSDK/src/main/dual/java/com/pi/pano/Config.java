@@ -16,6 +16,53 @@ public class Config {
      * 停止录像默认超时时间ms
      */
     static final int MAX_STOP_VIDEO_TIMEOUT = 8000;
+    /**
+     * hdr合成解码缓存的默认内存预算MB
+     */
+    static final int DEFAULT_HDR_MEMORY_BUDGET_MB = 384;
+    /**
+     * hdr拍照各阶段超时时间ms：连拍、保存、合成、注入缩略图
+     */
+    static final int HDR_CAPTURE_TIMEOUT = 15000;
+    static final int HDR_SAVE_TIMEOUT = 5000;
+    static final int HDR_MERGE_TIMEOUT = 60000;
+    static final int HDR_INJECT_TIMEOUT = 10000;
+    /**
+     * hdr曝光图像内存缓存池的默认预算MB
+     */
+    static final int DEFAULT_HDR_BRACKET_ARENA_MB = 256;
+    /**
+     * hdr内存中曝光图像的有效期ms
+     */
+    static final int HDR_BRACKET_TTL = 30000;
+    /**
+     * 连拍图像缓存的默认预算MB
+     */
+    static final int DEFAULT_BURST_BUFFER_MB = 192;
+    /**
+     * 连拍保存线程数
+     */
+    static final int BURST_WRITER_COUNT = 2;
+    /**
+     * 连拍等待保存的最大张数
+     */
+    static final int MAX_BURST_QUEUE = 8;
+    /**
+     * 拼接中提交断点分段的默认间隔ms
+     */
+    static final int DEFAULT_STITCH_CHECKPOINT_INTERVAL = 30000;
+    /**
+     * 录像编码器池默认最多保留的空闲编码器数
+     */
+    static final int DEFAULT_ENCODER_POOL_MAX_IDLE = 2;
+    /**
+     * 录像编码器池空闲编码器的默认像素数之和上限，两个5.7K编码器
+     */
+    static final long DEFAULT_ENCODER_POOL_MAX_PIXELS = 5760L * 2880 * 2;
+    /**
+     * 录像编码器池空闲编码器的默认超时时间ms
+     */
+    static final int DEFAULT_ENCODER_POOL_IDLE_TIMEOUT = 60000;
 
     /**
      * 防抖，默认开。
@@ -44,4 +91,32 @@ public class Config {
      * 调试模式中--停止录像超时时间配置 ms ,默认8000ms
      */
     public static final String PERSIST_DEV_TIMEOUT_STOP_VIDEO = "persist.dev.time_out_stop_video";
+    /**
+     * hdr合成解码缓存的内存预算 MB，决定同时解码的张数，默认384MB
+     */
+    public static final String PERSIST_DEV_HDR_MEMORY_BUDGET = "persist.dev.pano.hdr_memory_budget";
+    /**
+     * hdr曝光图像内存缓存池的预算 MB，默认256MB，0:曝光图像都保存为文件
+     */
+    public static final String PERSIST_DEV_HDR_BRACKET_ARENA = "persist.dev.pano.hdr_bracket_arena";
+    /**
+     * 连拍图像缓存的预算 MB，决定等待保存的张数，默认192MB
+     */
+    public static final String PERSIST_DEV_BURST_BUFFER = "persist.dev.pano.burst_buffer";
+    /**
+     * 拼接中提交断点分段的间隔 ms，默认30000ms，0:只在暂停时提交
+     */
+    public static final String PERSIST_DEV_STITCH_CHECKPOINT_INTERVAL = "persist.dev.pano.stitch_checkpoint_interval";
+    /**
+     * 录像编码器池最多保留的空闲编码器数，默认2，0:不预先创建
+     */
+    public static final String PERSIST_DEV_ENCODER_POOL_MAX_IDLE = "persist.dev.pano.encoder_pool_max_idle";
+    /**
+     * 录像编码器池空闲编码器的像素数之和上限，默认5760*2880*2
+     */
+    public static final String PERSIST_DEV_ENCODER_POOL_MAX_PIXELS = "persist.dev.pano.encoder_pool_max_pixels";
+    /**
+     * 录像编码器池空闲编码器的超时时间 ms，默认60000ms，0:不超时
+     */
+    public static final String PERSIST_DEV_ENCODER_POOL_IDLE_TIMEOUT = "persist.dev.pano.encoder_pool_idle_timeout";
 }
@@ -5,21 +5,23 @@ import android.graphics.BitmapFactory;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.util.Log;
 
 import com.pi.pano.annotation.PiFileStitchFlag;
 import com.pi.pano.annotation.PiResolution;
 import com.pi.pano.error.PiErrorCode;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * hdr拍照处理，
@@ -28,10 +30,28 @@ import java.util.concurrent.atomic.AtomicInteger;
 class HdrImageProcess extends ImageProcess {
     protected int handleImageCount = 0;
 
-    protected final AtomicBoolean saveJpgFinished = new AtomicBoolean(false);
+    /**
+     * 所有图像保存完成
+     */
+    protected final CompletableFuture<Integer> saveJpgFinished = new CompletableFuture<>();
     protected LinkedBlockingDeque<File> hdrFiles = new LinkedBlockingDeque();
     protected int mHdrSourceFileCount;
     protected File mHdrSourceDir;
+    /**
+     * 内存中的曝光图像，为null时图像都保存为文件
+     */
+    private HdrBracketSet mBrackets;
+    private boolean mMergeStarted;
+    /**
+     * 合成进行中，native合成返回后为false
+     */
+    private boolean mMerging;
+    /**
+     * 拍照流程已结束（成功、失败、超时或取消）
+     */
+    private boolean mFlowEnded;
+    private final CompletableFuture<Void> mMergeEnded = new CompletableFuture<>();
+    private static BufferArena sBracketArena;
 
     HdrImageProcess(TakePhotoListener takePhotoListener, ImageReader imageReader, PiPano piPano) {
         super(takePhotoListener, imageReader.getImageFormat(), true, piPano);
@@ -78,37 +98,212 @@ class HdrImageProcess extends ImageProcess {
             mHdrSourceDir = new File(mParams.unStitchDirPath, "." + mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.unstitch + ".hdr");
         }
         // hdr index文件
-        File indexFile = new File(mHdrSourceDir, (mHdrSourceFileCount++) + ".jpg");
-        checkAndCreateParentDir(indexFile);
-        boolean append = mHdrSourceFileCount - 1 == mParams.hdrCount / 2;
-        directSaveSpatialJpeg(image, indexFile.getAbsolutePath(), append);
-        hdrFiles.add(indexFile);
+        final int index = mHdrSourceFileCount++;
+        File indexFile = new File(mHdrSourceDir, index + ".jpg");
+        boolean append = index == mParams.hdrCount / 2;
+        boolean inMemory = saveBracketInMemory(image, index);
+        if (!inMemory || append) {
+            // 中间的图像同时保存为文件，合成时读取其exif，并用于生成缩略图
+            checkAndCreateParentDir(indexFile);
+            directSaveSpatialJpeg(image, indexFile.getAbsolutePath(), append);
+            hdrFiles.add(indexFile);
+            if (!inMemory && mBrackets != null) {
+                mBrackets.addFile(index, image.getTimestamp(), indexFile);
+            }
+        }
         String resolution = mParams.resolution;
         if (append && PiResolution._12K.equals(resolution) && mTakePhotoListener.mParams.createThumb) {
             new Thread(() -> thumbFile[0] = ThumbnailGenerator.createImageThumbFile(indexFile)).start();
         }
         if (mHdrSourceFileCount == mParams.hdrCount) {
-            saveJpgFinished.set(true);
+            saveJpgFinished.complete(0);
         }
     }
 
     final File[] thumbFile = {null};
+    private boolean mHdrSourceFinished;
+
+    /**
+     * 曝光图像保存到内存缓存池，跳过写入文件及合成时读取文件。
+     * 需要保存hdr原文件或缓存池预算为0时不使用内存。
+     *
+     * @return 是否已保存到内存，否则需保存为文件
+     */
+    private boolean saveBracketInMemory(Image image, int index) {
+        if (mParams.isSaveHdrSourceFile()) {
+            return false;
+        }
+        if (null == mBrackets) {
+            BufferArena arena = getBracketArena();
+            if (null == arena) {
+                return false;
+            }
+            mBrackets = new HdrBracketSet(mParams.hdrCount, Config.HDR_BRACKET_TTL * 1000_000L, arena,
+                    System::nanoTime);
+        }
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        BufferArena.Block block = mBrackets.allocate(buffer.remaining());
+        if (null == block) {
+            Log.w(mTag, "saveBracketInMemory arena full,index:" + index + ",size:" + buffer.remaining());
+            return false;
+        }
+        block.put(buffer);
+        if (!mBrackets.addMemory(index, image.getTimestamp(), block)) {
+            getBracketArena().release(block);
+            return false;
+        }
+        return true;
+    }
 
-    public int stackHdrConfigured() {
-        Log.d(mTag, "stackHdrConfigured cur hdr count:" + mHdrSourceFileCount);
-        int count = 0;
-        while (!saveJpgFinished.get()) {
-            if (count >= 50) {
-                Log.e(mTag, "stackHdrConfigured 3s time out ! " + mHdrSourceFileCount);
-                return PiErrorCode.TIME_OUT;
+    /**
+     * 曝光图像的缓存池，多次拍照复用
+     *
+     * @return 预算为0时为null
+     */
+    private static synchronized BufferArena getBracketArena() {
+        if (null == sBracketArena) {
+            long budget = SystemPropertiesProxy.getLong(Config.PERSIST_DEV_HDR_BRACKET_ARENA,
+                    Config.DEFAULT_HDR_BRACKET_ARENA_MB) * 1024 * 1024;
+            if (budget <= 0) {
+                return null;
             }
-            SystemClock.sleep(100);
-            count++;
+            sBracketArena = new BufferArena(budget, 1024 * 1024);
+        }
+        return sBracketArena;
+    }
+
+    /**
+     * 释放缓存池中的空闲缓存
+     */
+    static synchronized void trimBracketArena() {
+        if (null != sBracketArena) {
+            sBracketArena.trim();
+        }
+    }
+
+    /**
+     * 归还曝光图像的缓存
+     *
+     * @param force false:合成已开始时由合成结束后归还
+     */
+    private synchronized void releaseBrackets(boolean force) {
+        if (null != mBrackets && (force || !mMergeStarted)) {
+            mBrackets.release();
         }
-        return stackHdrFile();
     }
 
-    private int stackHdrFile() {
+    @Override
+    void aborted() {
+        releaseBrackets(false);
+        super.aborted();
+    }
+
+    /**
+     * 所有图像保存完成的结果，用于{@link HdrCaptureFlow#STAGE_SAVE}
+     */
+    CompletableFuture<Integer> getSaveFuture() {
+        return saveJpgFinished;
+    }
+
+    /**
+     * 合成hdr，用于{@link HdrCaptureFlow#STAGE_MERGE}，失败时处理源文件
+     *
+     * @return 0:成功
+     */
+    int mergeHdr() {
+        Log.d(mTag, "mergeHdr cur hdr count:" + mHdrSourceFileCount);
+        synchronized (this) {
+            if (mFlowEnded) {
+                return PiErrorCode.HDR_PHOTO_CANCELED;
+            }
+            mMergeStarted = true;
+            mMerging = true;
+        }
+        int errorCode = PiErrorCode.HDR_PHOTO_STACK_FAILED;
+        try {
+            errorCode = null != mBrackets ? mergeHdrBrackets() : mergeHdrFile();
+        } finally {
+            boolean flowEnded;
+            synchronized (this) {
+                mMerging = false;
+                flowEnded = mFlowEnded;
+            }
+            // 失败，或流程已因超时、取消结束时不会再注入元数据
+            if (errorCode != 0 || flowEnded) {
+                finishHdrSource();
+            }
+            mMergeEnded.complete(null);
+        }
+        return errorCode;
+    }
+
+    /**
+     * 拍照流程结束，之后不再开始合成。
+     * 合成已结束时处理源文件，合成进行中时由合成返回后处理。
+     *
+     * @return 合成未开始或已结束时为已完成，否则在native合成返回后完成
+     */
+    synchronized CompletableFuture<Void> endFlow() {
+        mFlowEnded = true;
+        if (mMerging) {
+            return mMergeEnded;
+        }
+        if (mMergeStarted) {
+            finishHdrSource();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 注入缩略图，用于{@link HdrCaptureFlow#STAGE_INJECT}，之后处理源文件
+     *
+     * @return 0:成功
+     */
+    int injectHdrMetadata() {
+        try {
+            File unstitchFile = mTakePhotoListener.mUnStitchFile;
+            Log.i(mTag, "injectHdrMetadata ==>" + mParams.resolution + ",thumb :" + thumbFile[0]);
+            if (PiResolution._12K.equals(mParams.resolution)) {
+                if (thumbFile[0] != null) {
+                    int code = PiPanoUtils.injectThumbnail(unstitchFile.getAbsoluteFile(),
+                            thumbFile[0].getAbsoluteFile());
+                    deleteFile(thumbFile[0]);
+                    if (code != 0) {
+                        Log.e(mTag, "injectThumbnail error :" + code);
+                    }
+                }
+            } else {
+                ThumbnailGenerator.injectExifThumbnailForImage(unstitchFile);
+            }
+            return 0;
+        } finally {
+            finishHdrSource();
+        }
+    }
+
+    /**
+     * 合成内存中的曝光图像
+     */
+    private int mergeHdrBrackets() {
+        List<HdrBracketSet.Bracket> brackets = mBrackets.ordered();
+        Log.d(mTag, "mergeHdrBrackets :" + mBrackets);
+        if (brackets.size() != mParams.hdrCount) {
+            return PiErrorCode.HDR_PHOTO_LOSE;
+        }
+        File middleFile = new File(mHdrSourceDir, (mParams.hdrCount / 2) + ".jpg");
+        if (!middleFile.exists()) {
+            return PiErrorCode.HDR_PHOTO_LOSE;
+        }
+        List<BracketSource> sources = new ArrayList<>(brackets.size());
+        for (HdrBracketSet.Bracket bracket : brackets) {
+            final BufferArena.Block block = bracket.block;
+            final File file = bracket.file;
+            sources.add(null != block ? block::openStream : () -> openFile(file));
+        }
+        return stackHdrImages(sources, middleFile);
+    }
+
+    private int mergeHdrFile() {
         int errorCode = -1;
         if (null != mHdrSourceDir) {
             File[] list = mHdrSourceDir.listFiles();
@@ -119,54 +314,68 @@ class HdrImageProcess extends ImageProcess {
                     return PiErrorCode.HDR_PHOTO_LOSE;
                 }
                 Arrays.sort(list);
-                File unstitchFile = new File(mParams.unStitchDirPath,
-                        mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.unstitch + "_hdr" + ".jpg");
-                checkAndCreateParentDir(unstitchFile);
-                mTakePhotoListener.mUnStitchFile = unstitchFile;
-                int width;
-                int height;
-                List<File> hdrList = new ArrayList<>();
+                List<BracketSource> sources = new ArrayList<>();
                 for (File file : list) {
                     if (!file.exists() || file.getName().startsWith(".t.")) {
                         continue;
                     }
                     Log.d(mTag, "stackHdrFile,>>>>file:" + file);
-                    hdrList.add(file);
+                    sources.add(() -> openFile(file));
                 }
-                if (hdrList.size() != mParams.hdrCount) {
+                if (sources.size() != mParams.hdrCount) {
                     return PiErrorCode.HDR_PHOTO_STACK_BITMAP;
                 }
-                int[] mSize = new int[]{0, 0};
-                errorCode = addHdrImage(hdrList, mSize);
-                width = mSize[0];
-                height = mSize[1];
-                if (errorCode == 0 && width > 0) {
-                    // 合成hdr
-                    File middleFile = list[list.length / 2];
-                    int result = PiPano.nativeHdrCalculate(unstitchFile.getAbsolutePath(),
-                            middleFile.getAbsolutePath(), width, height, width);
-                    if (result != 0) {
-                        Log.e(mTag, "stackHdrFile, nativeHdrCalculate err : " + result);
-                        return result;
-                    }
-                    Log.i(mTag, "nativeHdrCalculate result ：" + result + "==>" + mParams.resolution
-                            + ",thumb :" + thumbFile[0]);
-                    if (PiResolution._12K.equals(mParams.resolution)) {
-                        if (thumbFile[0] != null) {
-                            int code = PiPanoUtils.injectThumbnail(unstitchFile.getAbsoluteFile(),
-                                    thumbFile[0].getAbsoluteFile());
-                            deleteFile(thumbFile[0]);
-                            if (code != 0) {
-                                Log.e(mTag, "injectThumbnail error :" + code);
-                            }
-                        }
-                    } else {
-                        ThumbnailGenerator.injectExifThumbnailForImage(unstitchFile);
-                    }
-                } else {
-                    PiPano.clearImageList();
-                }
+                errorCode = stackHdrImages(sources, list[list.length / 2]);
             }
+        }
+        return errorCode;
+    }
+
+    /**
+     * 解码各曝光图像送入合成，再以中间图像的exif合成hdr
+     */
+    private int stackHdrImages(List<BracketSource> sources, File middleFile) {
+        File unstitchFile = new File(mParams.unStitchDirPath,
+                mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.unstitch + "_hdr" + ".jpg");
+        checkAndCreateParentDir(unstitchFile);
+        mTakePhotoListener.mUnStitchFile = unstitchFile;
+        int[] mSize = new int[]{0, 0};
+        int errorCode = addHdrImage(sources, mSize);
+        int width = mSize[0];
+        int height = mSize[1];
+        if (errorCode == 0 && width > 0) {
+            // 合成hdr
+            int result = PiPano.nativeHdrCalculate(unstitchFile.getAbsolutePath(),
+                    middleFile.getAbsolutePath(), width, height, width);
+            if (result != 0) {
+                Log.e(mTag, "stackHdrFile, nativeHdrCalculate err : " + result);
+                return result;
+            }
+            Log.i(mTag, "nativeHdrCalculate result ：" + result + "==>" + mParams.resolution);
+        } else {
+            PiPano.clearImageList();
+        }
+        return errorCode;
+    }
+
+    /**
+     * 曝光图像的数据来源
+     */
+    private interface BracketSource {
+        InputStream open() throws IOException;
+    }
+
+    private static InputStream openFile(File file) throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * 归还内存中的曝光图像，保留或删除hdr源文件，只处理一次
+     */
+    private synchronized void finishHdrSource() {
+        releaseBrackets(true);
+        if (null != mHdrSourceDir && !mHdrSourceFinished) {
+            mHdrSourceFinished = true;
             if (mParams.isSaveHdrSourceFile()) {
                 File hdr = new File(mHdrSourceDir.getParentFile(), mHdrSourceDir.getName().substring(1));
                 mHdrSourceDir.renameTo(hdr);
@@ -176,7 +385,6 @@ class HdrImageProcess extends ImageProcess {
                 mHdrSourceDir = null;
             }
         }
-        return errorCode;
     }
 
     static void deleteFile(File file) {
@@ -194,68 +402,67 @@ class HdrImageProcess extends ImageProcess {
         file.delete();
     }
 
-    private int addHdrImage(List<File> hdrList, int[] mSize) {
-        List<Bitmap> bitmapList = new ArrayList<>(mParams.hdrCount);
-        bitmapList.add(null);
-        bitmapList.add(null);
-        bitmapList.add(null);
-        AtomicInteger success = new AtomicInteger();
-        Thread thread = new Thread(() -> {
-            final Object lock = new Object();
-            for (int i = 0; i < hdrList.size(); i++) {
-                final int localIndex = i;
-                new Thread(() -> {
-                    File file = hdrList.get(localIndex);
-                    Log.d(mTag, "decodeFile ==>" + localIndex + ",," + file);
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), null);
-                    success.incrementAndGet();
-                    if (bitmap == null) {
-                        Log.e(mTag, "stackHdrFile,decodeFile null,file:" + file);
-                        return;
-                    }
-                    int width = bitmap.getWidth();
-                    int height = bitmap.getHeight();
-                    mSize[0] = width;
-                    mSize[1] = height;
-                    bitmapList.set(localIndex, bitmap);
-                    if (success.get() >= mParams.hdrCount) {
-                        synchronized (lock) {
-                            lock.notifyAll();
-                        }
-                    }
-                }).start();
-            }
-            try {
-                synchronized (lock) {
-                    lock.wait();
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        });
-        thread.start();
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
+    /**
+     * 流式解码并送入hdr合成，同时解码的张数由内存预算决定，解码复用Bitmap
+     */
+    private int addHdrImage(List<BracketSource> hdrList, int[] mSize) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = hdrList.get(0).open()) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(mSize[0] * mSize[1] * 4);
-        for (int i = 0; i < bitmapList.size(); i++) {
-            Bitmap bitmap = bitmapList.get(i);
-            if (bitmap == null) {
-                bitmapList.clear();
-                return PiErrorCode.HDR_PHOTO_STACK_BITMAP;
+        final int width = bounds.outWidth;
+        final int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) {
+            Log.e(mTag, "stackHdrFile,decode bounds error");
+            return PiErrorCode.HDR_PHOTO_STACK_BITMAP;
+        }
+        mSize[0] = width;
+        mSize[1] = height;
+        final long imageBytes = (long) width * height * 4;
+        final long budget = SystemPropertiesProxy.getLong(Config.PERSIST_DEV_HDR_MEMORY_BUDGET,
+                Config.DEFAULT_HDR_MEMORY_BUDGET_MB) * 1024 * 1024;
+        final int concurrency = HdrMergePipeline.concurrency(budget, imageBytes, imageBytes,
+                Math.min(hdrList.size(), Runtime.getRuntime().availableProcessors()));
+        Log.d(mTag, "addHdrImage " + width + "x" + height + ",count:" + hdrList.size() + ",concurrency:" + concurrency);
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect((int) imageBytes);
+        HdrMergePipeline.SlotPool<Bitmap> pool = new HdrMergePipeline.SlotPool<>(concurrency,
+                () -> Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+        HdrMergePipeline<Bitmap> pipeline = new HdrMergePipeline<>(pool, concurrency, (index, bitmap) -> {
+            Log.d(mTag, "decode ==>" + index);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            options.inBitmap = bitmap;
+            Bitmap decoded;
+            try (InputStream in = hdrList.get(index).open()) {
+                decoded = BitmapFactory.decodeStream(in, null, options);
             }
+            if (decoded != bitmap) {
+                Log.e(mTag, "stackHdrFile,decode error,index:" + index);
+                if (decoded != null) {
+                    decoded.recycle();
+                }
+                return false;
+            }
+            return true;
+        }, (index, bitmap) -> {
             bitmap.copyPixelsToBuffer(byteBuffer);
-            bitmap.recycle();
-            int ret = PiPano.nativeHdrAddImage(byteBuffer, null, mSize[0], mSize[1], mSize[0]);
-            Log.d(mTag, "nativeHdrAddImage result :" + ret + ",," + Arrays.toString(mSize));
+            int ret = PiPano.nativeHdrAddImage(byteBuffer, null, width, height, width);
+            Log.d(mTag, "nativeHdrAddImage result :" + ret + ",," + index);
             byteBuffer.clear();
-            if (ret != 0) {
+            return ret;
+        });
+        int result = pipeline.run(hdrList.size());
+        pool.clear(Bitmap::recycle);
+        switch (result) {
+            case HdrMergePipeline.RESULT_SUCCESS:
+                return 0;
+            case HdrMergePipeline.RESULT_DECODE_FAILED:
+                return PiErrorCode.HDR_PHOTO_STACK_BITMAP;
+            default:
                 return PiErrorCode.HDR_PHOTO_STACK_FAILED;
-            }
         }
-        bitmapList.clear();
-        return 0;
     }
 }
@@ -13,9 +13,8 @@ import com.pi.pano.error.PiError;
 import com.pi.pano.error.PiErrorCode;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * hdr拍照处理，一张一张拍摄。
@@ -25,6 +24,10 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
     private boolean finished = false;
     private int mErrorCode = -1;
     private boolean mHasAborted = false;
+    /**
+     * 逐张拼接，按曝光序号取得拼接结果
+     */
+    private final OrderedTaskExecutor<File> mStitchExecutor;
 
     HdrImageProcessNor(TakePhotoListener takePhotoListener,
                        ImageReader imageReader, PiCallback callback, Handler handler, PiPano piPano) {
@@ -33,10 +36,25 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
             throw new RuntimeException("TakePhoto isn't hdr");
         }
         this.callback = callback;
+        mStitchExecutor = createStitchExecutor();
         prepare(imageReader);
         new Thread(this).start();
     }
 
+    /**
+     * 同时拼接的张数由处理器核数及内存预算决定，拼接时源图像与拼接结果同时存在
+     */
+    private OrderedTaskExecutor<File> createStitchExecutor() {
+        ResolutionSize size = ResolutionSize.parseSize(mParams.resolution);
+        long taskBytes = (long) size.width * size.height * 4 * 2;
+        long budget = SystemPropertiesProxy.getLong(Config.PERSIST_DEV_HDR_MEMORY_BUDGET,
+                Config.DEFAULT_HDR_MEMORY_BUDGET_MB) * 1024 * 1024;
+        int concurrency = HdrMergePipeline.concurrency(budget, taskBytes, 0,
+                Math.min(mParams.hdrCount, Runtime.getRuntime().availableProcessors()));
+        Log.d(mTag, "createStitchExecutor " + size + ",concurrency:" + concurrency);
+        return new OrderedTaskExecutor<>("HdrStitch", mParams.hdrCount, concurrency, System::nanoTime);
+    }
+
     @Override
     public void onImageAvailable(ImageReader reader) {
         Image image = reader.acquireLatestImage();
@@ -56,6 +74,7 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
 
     public void onCaptureError(PiError error) {
         finished = true;
+        mStitchExecutor.cancel(new IllegalStateException("capture error"));
         if (callback != null) {
             callback.onError(error);
         }
@@ -68,6 +87,7 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
         if (!finished) {
             finished = true;
         }
+        mStitchExecutor.cancel(new IllegalStateException("aborted"));
         if (null != mHandler) {
             mHandler.postDelayed(this::releaseImpl, 100);
         } else {
@@ -89,12 +109,13 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
                     "." + mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.unstitch + ".hdr");
         }
         // hdr index文件
-        File indexFile = new File(mHdrSourceDir, (mHdrSourceFileCount++) + ".jpg");
+        final int index = mHdrSourceFileCount++;
+        File indexFile = new File(mHdrSourceDir, index + ".jpg");
         checkAndCreateParentDir(indexFile);
-        boolean append = mHdrSourceFileCount - 1 == mParams.hdrCount / 2;
+        boolean append = index == mParams.hdrCount / 2;
         Log.i(mTag, "saveJpg :" + indexFile + "," + append);
         directSaveSpatialJpeg(image, indexFile.getAbsolutePath(), append);
-        new Thread(() -> {
+        boolean submitted = mStitchExecutor.submit(index, () -> {
             String resolution = mParams.resolution;
             ResolutionSize size = ResolutionSize.parseSize(resolution);
             Log.w(mTag, "=======hdr run ==" + indexFile + ",,resolution ==> " + resolution + ",," + size);
@@ -102,16 +123,19 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
             StitchingOpticalFlow.stitchJpegFile(indexFile.getAbsolutePath(), stitchTempFile.getAbsolutePath(), true, false,
                     99, size.width, size.height);
             Log.d(mTag, "stitch finish" + stitchTempFile + "===>" + stitchTempFile.exists());
-            if (stitchTempFile.exists()) {
-                hdrFiles.add(stitchTempFile);
-            }
             if (append && PiResolution._12K.equals(resolution) && mTakePhotoListener.mParams.createThumb) {
-                File finalMiddleFile = indexFile;
-                new Thread(() -> thumbFile[0] = ThumbnailGenerator.createImageThumbFile(finalMiddleFile)).start();
+                new Thread(() -> thumbFile[0] = ThumbnailGenerator.createImageThumbFile(indexFile)).start();
             }
-        }).start();
+            if (!stitchTempFile.exists()) {
+                throw new IOException("stitch failed:" + indexFile);
+            }
+            return stitchTempFile;
+        });
+        if (!submitted) {
+            Log.e(mTag, "saveJpg stitch not submitted :" + index);
+        }
         if (mHdrSourceFileCount == mParams.hdrCount) {
-            saveJpgFinished.set(true);
+            saveJpgFinished.complete(0);
         }
     }
 
@@ -126,61 +150,57 @@ class HdrImageProcessNor extends HdrImageProcess implements Runnable {
         File middleFile = null;
         mErrorCode = -1;
         boolean takeThumb = mTakePhotoListener.mParams.createThumb;
-        List<File> stitchList = new ArrayList<>();
-        while (!finished) {
-            File file = null;
+        // 按曝光序号取拼接结果，取得一张即送入合成，与后续的拼接并行
+        for (int i = 0; i < mParams.hdrCount && !finished; i++) {
+            File file;
             try {
-                if (stitchList.size() >= mParams.hdrCount) {
-                    finished = true;
-                    break;
-                }
-                file = hdrFiles.takeFirst();
+                file = mStitchExecutor.await(i, 0);
             } catch (Exception e) {
                 e.printStackTrace();
+                mErrorCode = PiErrorCode.HDR_PHOTO_LOSE;
+                finished = true;
+                break;
             }
-            if (file == null || finished) {
+            Log.i(mTag, "takeFirst :" + file + "===>" + middleFile + "," + file.exists());
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), null);
+            if (bitmap == null) {
+                Log.e(mTag, "stackHdrFile,decodeFile null,file:" + file);
+                mErrorCode = PiErrorCode.HDR_PHOTO_STACK_BITMAP;
                 finished = true;
                 break;
             }
-            stitchList.add(file);
-        }
-        if (stitchList.size() == mParams.hdrCount) {
-            for (int i = 0; i < stitchList.size(); i++) {
-                File file = stitchList.get(i);
-                Log.i(mTag, "takeFirst :" + file + "===>" + middleFile + "," + file.exists());
-                Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), null);
-                if (bitmap == null) {
-                    Log.e(mTag, "stackHdrFile,decodeFile null,file:" + file);
-                    mErrorCode = PiErrorCode.HDR_PHOTO_STACK_BITMAP;
-                    finished = true;
-                    break;
-                }
-                if (bitmapCount == 0) {
-                    width = bitmap.getWidth();
-                    height = bitmap.getHeight();
-                    byteBuffer = ByteBuffer.allocateDirect(width * height * 4);
-                }
-                bitmap.copyPixelsToBuffer(byteBuffer);
-                bitmap.recycle();
-                int ret = PiPano.nativeHdrAddImage(byteBuffer, null, width, height, width);
-                Log.d(mTag, "nativeHdrAddImage result:" + ret + ", " + bitmapCount + ",," + mParams.hdrCount);
-                if (ret != 0) {
-                    finished = true;
-                    Log.d(mTag, "nativeHdrAddImage error finished=true :" + ret + ", " + bitmapCount + ",," + mParams.hdrCount);
-                    mErrorCode = PiErrorCode.HDR_PHOTO_STACK_FAILED;
-                    break;
-                }
-                if (bitmapCount == mParams.hdrCount / 2) {
-                    middleFile = file;
-                }
-                byteBuffer.clear();
-                bitmapCount++;
-                if (bitmapCount == mParams.hdrCount) {
-                    mErrorCode = 0;
-                    byteBuffer = null;
-                }
+            if (bitmapCount == 0) {
+                width = bitmap.getWidth();
+                height = bitmap.getHeight();
+                byteBuffer = ByteBuffer.allocateDirect(width * height * 4);
+            }
+            bitmap.copyPixelsToBuffer(byteBuffer);
+            bitmap.recycle();
+            int ret = PiPano.nativeHdrAddImage(byteBuffer, null, width, height, width);
+            Log.d(mTag, "nativeHdrAddImage result:" + ret + ", " + bitmapCount + ",," + mParams.hdrCount);
+            if (ret != 0) {
+                finished = true;
+                Log.d(mTag, "nativeHdrAddImage error finished=true :" + ret + ", " + bitmapCount + ",," + mParams.hdrCount);
+                mErrorCode = PiErrorCode.HDR_PHOTO_STACK_FAILED;
+                break;
             }
+            if (bitmapCount == mParams.hdrCount / 2) {
+                middleFile = file;
+            }
+            byteBuffer.clear();
+            bitmapCount++;
+            if (bitmapCount == mParams.hdrCount) {
+                mErrorCode = 0;
+                byteBuffer = null;
+            }
+        }
+        finished = true;
+        if (mErrorCode != 0) {
+            mStitchExecutor.cancel(new IllegalStateException("merge failed:" + mErrorCode));
+        } else {
+            mStitchExecutor.shutdown();
         }
+        Log.d(mTag, "stitch latency :" + mStitchExecutor);
         if (mErrorCode == 0 && width > 0) {
             File unstitchFile = new File(mParams.unStitchDirPath,
                     mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.stitch + "_hdr" + ".jpg");
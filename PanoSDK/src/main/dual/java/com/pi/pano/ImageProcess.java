@@ -6,6 +6,7 @@ import android.hardware.camera2.DngCreator;
 import android.media.ExifInterface;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
@@ -14,7 +15,6 @@ import android.util.Log;
 import com.pi.pano.annotation.PiFileStitchFlag;
 import com.pi.pano.annotation.PiPhotoFileFormat;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -37,6 +37,12 @@ class ImageProcess implements ImageReader.OnImageAvailableListener {
      */
     protected final int mImageFormat;
     protected DngCreator mDngCreator;
+    /**
+     * 传感器的CFA排列及黑白电平，用于raw文件头
+     */
+    protected int mCfaArrangement = DngHeaderBuilder.CFA_RGGB;
+    protected int mBlackLevel = 0;
+    protected int mWhiteLevel = 1023;
 
     private PiPano mPiPano;
 
@@ -44,6 +50,16 @@ class ImageProcess implements ImageReader.OnImageAvailableListener {
         mDngCreator = dngCreator;
     }
 
+    /**
+     * 设置传感器信息，见CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT、SENSOR_BLACK_LEVEL_PATTERN、
+     * SENSOR_INFO_WHITE_LEVEL
+     */
+    public void setRawSensorInfo(int cfaArrangement, int blackLevel, int whiteLevel) {
+        mCfaArrangement = cfaArrangement;
+        mBlackLevel = blackLevel;
+        mWhiteLevel = whiteLevel;
+    }
+
     /**
      * 生成dng格式
      */
@@ -210,33 +226,51 @@ class ImageProcess implements ImageReader.OnImageAvailableListener {
                 errorCode = 400;
             }
         } else {
-            errorCode = 400;
+            // 没有拍摄结果时使用基本的文件头
+            Log.w(mTag, "saveDng no DngCreator,use basic header");
+            errorCode = writeRawFile(image, unStitchFile);
         }
         Log.d(mTag, "saveDng unStitchFile:" + unStitchFile + ",errorCode:" + errorCode);
         notifyTakePhotoComplete(errorCode);
     }
 
     /**
-     * 保存为raw格式
+     * 保存为raw格式，带dng文件头
      */
     protected void saveRaw(Image image) {
-        int errorCode = 0;
         File unStitchFile = new File(mParams.unStitchDirPath, mTakePhotoListener.mParams.obtainBasicName() + PiFileStitchFlag.unstitch + ".raw");
         checkAndCreateParentDir(unStitchFile);
         mTakePhotoListener.mUnStitchFile = unStitchFile;
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        try (BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(unStitchFile))) {
-            byte[] byteBuffer = new byte[buffer.remaining()];
-            buffer.get(byteBuffer);
-            output.write(byteBuffer);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            errorCode = 400;
-        }
+        int errorCode = writeRawFile(image, unStitchFile);
         Log.d(mTag, "saveRaw unStitchFile:" + unStitchFile + ",errorCode:" + errorCode);
         notifyTakePhotoComplete(errorCode);
     }
 
+    /**
+     * 从图像缓冲区直接写入带dng文件头的raw数据，去除行尾填充，fsync在后台进行
+     *
+     * @return 0:成功
+     */
+    protected int writeRawFile(Image image, File file) {
+        Image.Plane plane = image.getPlanes()[0];
+        DngHeaderBuilder header = new DngHeaderBuilder(image.getWidth(), image.getHeight())
+                .setCfaArrangement(mCfaArrangement)
+                .setLevels(mBlackLevel, mWhiteLevel)
+                .setCamera(Build.MANUFACTURER, Build.MODEL, mParams.software != null ? mParams.software : "");
+        try {
+            RawFileWriter.write(file, header.build(), plane.getBuffer(), header.getRowBytes(),
+                    plane.getRowStride(), image.getHeight(), true).whenComplete((length, t) -> {
+                if (t != null) {
+                    Log.e(mTag, "writeRawFile sync error:" + file + "," + t);
+                }
+            });
+            return 0;
+        } catch (IOException | IllegalArgumentException ex) {
+            ex.printStackTrace();
+            return 400;
+        }
+    }
+
     /**
      * 保存为jpg格式
      */
@@ -264,8 +298,21 @@ class ImageProcess implements ImageReader.OnImageAvailableListener {
      * @return 0:成功
      */
     protected int directSaveSpatialJpeg(Image image, String filename, boolean appendExif) {
-        int ret = mPiPano.spatialJpeg(filename, image.getPlanes()[0].getBuffer(), image.getWidth(), image.getHeight(), mParams.heading,
-                (System.currentTimeMillis() - SystemClock.elapsedRealtime()) * 1000 + image.getTimestamp() / 1000);
+        return directSaveSpatialJpeg(image.getPlanes()[0].getBuffer(), image.getWidth(), image.getHeight(),
+                image.getTimestamp(), filename, appendExif);
+    }
+
+    /**
+     * 保存全景照片文件
+     *
+     * @param data        jpeg数据
+     * @param timestampNs 图像时间戳，见{@link Image#getTimestamp()}
+     * @return 0:成功
+     */
+    protected int directSaveSpatialJpeg(ByteBuffer data, int width, int height, long timestampNs,
+                                        String filename, boolean appendExif) {
+        int ret = mPiPano.spatialJpeg(filename, data, width, height, mParams.heading,
+                (System.currentTimeMillis() - SystemClock.elapsedRealtime()) * 1000 + timestampNs / 1000);
         if (appendExif) {
             appendExif(filename);
         }
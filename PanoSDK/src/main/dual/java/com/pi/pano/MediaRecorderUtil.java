@@ -20,6 +20,9 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.MediaRecorder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
@@ -27,6 +30,7 @@ import android.view.Surface;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.pi.pano.annotation.PiFileStitchFlag;
 import com.pi.pano.error.PiError;
 import com.pi.pano.error.PiErrorCode;
 import com.pi.pano.ext.IAudioEncoderExt;
@@ -36,8 +40,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -56,10 +61,79 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
     private List<IAudioEncoderExt> mAudioEncoderExtList;
     private IAudioRecordExt mAudioRecordExt;
 
-    private MediaMuxer mMediaMuxer;
-    private VideoThread mVideoThread;
+    /**
+     * 第一个轨道注册后等待其余轨道的最长时间
+     */
+    private static final long MUXER_START_TIMEOUT_MS = 3000;
+    /**
+     * 封装器启动前最多缓存的样本字节数
+     */
+    private static final long MUXER_MAX_PENDING_BYTES = 32 * 1024 * 1024;
+    /**
+     * 封装器写入队列中最多的样本数，30fps视频加音频约1秒
+     */
+    private static final int MUXER_QUEUE_CAPACITY = 80;
+    /**
+     * 写入camm轨道时队列额外的样本数。
+     * camm每个数据包是一个样本，加速度计与陀螺仪以SENSOR_DELAY_FASTEST采样时每秒共约400~1000个样本，
+     * 样本只有十几字节，按1秒预留
+     */
+    private static final int MUXER_CAMM_QUEUE_CAPACITY = 1024;
+    /**
+     * 封装器写入队列满时的处理策略
+     */
+    private static final MuxerWriteBehind.Policy MUXER_QUEUE_POLICY = MuxerWriteBehind.Policy.SIGNAL_BITRATE;
+
+    /**
+     * 不分段时的封装器
+     */
+    private SegmentRollover.Target<MediaFormat> mMuxer;
+    /**
+     * 分片MP4的分片间隔，小于等于0使用MediaMuxer
+     */
+    private long mFragmentDurationMs;
+    /**
+     * 分片MP4每个分片写入后同步到存储
+     */
+    private static final boolean FRAGMENT_SYNC = true;
+    private MuxerWriteBehind<MediaFormat> mMuxerWriteBehind;
+    private MuxerCoordinator<MediaFormat> mMuxerCoordinator;
+
+    /**
+     * 分段录像条件，均小于等于0时不分段
+     */
+    private long mSegmentMaxDurationMs;
+    private long mSegmentMaxBytes;
+    private long mSegmentMinFreeBytes;
+    private IRecordSegmentListener mSegmentListener;
+    private SegmentRollover<MediaFormat> mSegmentRollover;
+    /**
+     * 已结束写入的分段序号与第一帧时间戳
+     */
+    private final Map<Integer, Long> mFinishedSegments = new TreeMap<>();
+    /**
+     * 停止时等待编码器输出剩余样本的最长时间
+     */
+    private static final long ENCODER_DRAIN_TIMEOUT_MS = 1000;
+    /**
+     * 音频采集缓冲的数据块数，48k双声道约1.4秒
+     */
+    private static final int AUDIO_CAPTURE_SLOT_COUNT = 64;
+
+    /**
+     * 编码器回调线程，视频、音频编码器共用
+     */
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private VideoEncoder mVideoEncoder;
     private AudioThread mAudioThread;
 
+    private static EncoderPool<VideoEncoderKey, PooledVideoEncoder> sVideoEncoderPool;
+    /**
+     * 池中编码器配置时的回调线程，异步模式需在配置前指定回调；取出时改为录制自己的回调线程
+     */
+    private static Handler sPoolCallbackHandler;
+
     private volatile boolean mRun;
 
     public MediaRecorderUtil() {
@@ -80,6 +154,104 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
         mAudioRecordExt = audioRecordExt;
     }
 
+    @Override
+    public void setSegmentParams(long maxDurationMs, long maxBytes, long minFreeBytes,
+                                 @Nullable IRecordSegmentListener listener) {
+        mSegmentMaxDurationMs = maxDurationMs;
+        mSegmentMaxBytes = maxBytes;
+        mSegmentMinFreeBytes = minFreeBytes;
+        mSegmentListener = listener;
+    }
+
+    @Override
+    public void setFragmentedMp4(long fragmentDurationMs) {
+        mFragmentDurationMs = fragmentDurationMs;
+    }
+
+    @Override
+    void reduceVideoBitrate() {
+        VideoEncoder videoEncoder = mVideoEncoder;
+        if (videoEncoder != null) {
+            videoEncoder.reduceBitrate("storage write slow");
+        }
+    }
+
+    private boolean isSegmentEnabled() {
+        return mSegmentMaxDurationMs > 0 || mSegmentMaxBytes > 0 || mSegmentMinFreeBytes > 0;
+    }
+
+    /**
+     * 分段文件路径，第0个分段为录像文件，之后在拼接标识前加入序号，如：name_s.mp4 -> name_1_s.mp4
+     */
+    @NonNull
+    private String getSegmentFilename(int index) {
+        if (index == 0) {
+            return mFilename;
+        }
+        int end = mFilename.toLowerCase().endsWith(".mp4") ? mFilename.length() - 4 : mFilename.length();
+        if (mFilename.startsWith(PiFileStitchFlag.stitch, end - PiFileStitchFlag.stitch.length())) {
+            end -= PiFileStitchFlag.stitch.length();
+        }
+        return String.format(Locale.US, "%s_%d%s", mFilename.substring(0, end), index, mFilename.substring(end));
+    }
+
+    @NonNull
+    private SegmentRollover.Target<MediaFormat> createSegmentTarget(int index) throws IOException {
+        String filename = getSegmentFilename(index);
+        File f = new File(filename);
+        if (index > 0 && f.exists()) {
+            f.delete();
+        }
+        return createMuxer(filename);
+    }
+
+    @NonNull
+    private SegmentRollover.Target<MediaFormat> createMuxer(@NonNull String filename) throws IOException {
+        if (mFragmentDurationMs > 0) {
+            return new FragmentedMp4Adapter(new FragmentedMp4Writer(filename, mFragmentDurationMs * 1000, FRAGMENT_SYNC));
+        }
+        return new MediaMuxerAdapter(new MediaMuxer(filename, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4), filename);
+    }
+
+    /**
+     * 分段录像：后台准备下一个分段，切换时请求关键帧
+     */
+    private final SegmentRollover.Listener mSegmentRolloverListener = new SegmentRollover.Listener() {
+        @Override
+        public void onRequestSyncFrame(@NonNull SegmentRollover.Reason reason) {
+            Log.d(TAG, "segment rollover requested:" + reason);
+            VideoEncoder videoEncoder = mVideoEncoder;
+            if (videoEncoder != null) {
+                videoEncoder.requestSyncFrame();
+            }
+        }
+
+        @Override
+        public void onSegmentFinished(int index, long firstPtsUs, long bytes, boolean success) {
+            String filename = getSegmentFilename(index);
+            Log.d(TAG, "segment finished:" + filename + ",bytes:" + bytes + ",success:" + success);
+            if (!success) {
+                return;
+            }
+            synchronized (mFinishedSegments) {
+                mFinishedSegments.put(index, firstPtsUs);
+            }
+            IRecordSegmentListener listener = mSegmentListener;
+            if (listener != null) {
+                listener.onSegmentFinished(filename, index);
+            }
+        }
+
+        @Override
+        public void onStorageLow(long freeBytes) {
+            Log.w(TAG, "storage low:" + freeBytes);
+            IRecordSegmentListener listener = mSegmentListener;
+            if (listener != null) {
+                listener.onStorageLow(freeBytes);
+            }
+        }
+    };
+
     @Override
     @Nullable
     public Surface startRecord(Context context, @NonNull String filename,
@@ -97,15 +269,39 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             }
         }
         mFilename = filename;
+        final long startNs = System.nanoTime();
         try {
-            mMediaMuxer = new MediaMuxer(filename, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            MuxerCoordinator.Muxer<MediaFormat> muxer;
+            if (isSegmentEnabled()) {
+                final File dir = new File(filename).getAbsoluteFile().getParentFile();
+                mFinishedSegments.clear();
+                mSegmentRollover = new SegmentRollover<>(this::createSegmentTarget,
+                        new SegmentRollover.Policy(mSegmentMaxBytes, mSegmentMaxDurationMs * 1000,
+                                mSegmentMinFreeBytes, dir == null ? null : dir::getUsableSpace),
+                        mSegmentRolloverListener);
+                muxer = mSegmentRollover;
+            } else {
+                mMuxer = createMuxer(filename);
+                muxer = mMuxer;
+            }
+            mMuxerWriteBehind = new MuxerWriteBehind<>(muxer, useForGoogleMap ?
+                    MUXER_QUEUE_CAPACITY + MUXER_CAMM_QUEUE_CAPACITY : MUXER_QUEUE_CAPACITY, MUXER_QUEUE_POLICY);
+            mMuxerCoordinator = new MuxerCoordinator<>(mMuxerWriteBehind,
+                    MUXER_START_TIMEOUT_MS, MUXER_MAX_PENDING_BYTES);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
+        final long muxerNs = System.nanoTime();
         mRun = true;
+        mCallbackThread = new HandlerThread("MediaRecorderCallback-" + sCount.get());
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
         try {
-            mVideoThread = new VideoThread(context, useForGoogleMap, memomotionRatio);
+            mVideoEncoder = new VideoEncoder(context, useForGoogleMap, memomotionRatio);
+            mMuxerWriteBehind.setListener(mVideoEncoder::reduceBitrate);
+            mMuxerWriteBehind.setTelemetry(mTelemetry);
+            mMuxerWriteBehind.setStorageMonitor(mStorageMonitor);
             final boolean needAudio = !useForGoogleMap && memomotionRatio == 0 && channelCount > 0;
             if (needAudio) {
                 if (null == mAudioRecordExt) {
@@ -114,15 +310,21 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
                 mAudioThread = new AudioThread(mAudioRecordExt, mAudioEncoderExtList);
                 mAudioThread.prepare(AUDIO_SAMPLE_RATE, channelCount, AUDIO_BITRATE);
             }
-            Surface surface = mVideoThread.prepare(mime, width, height, fps, bitRate, previewFps);
-            mVideoThread.start();
+            final long audioNs = System.nanoTime();
+            Surface surface = mVideoEncoder.prepare(mime, width, height, fps, bitRate, previewFps);
             if (needAudio) {
                 mAudioThread.start();
             }
+            final long endNs = System.nanoTime();
+            Log.i(TAG, "start record latency(us):muxer=" + (muxerNs - startNs) / 1000 +
+                    ",audio=" + (audioNs - muxerNs) / 1000 + ",video=" + (endNs - audioNs) / 1000 +
+                    "(acquire=" + mVideoEncoder.mAcquireUs + "),total=" + (endNs - startNs) / 1000 +
+                    "," + getVideoEncoderPool());
             return surface;
         } catch (Exception ex) {
             Log.e(TAG, "start record error:" + ex);
             ex.printStackTrace();
+            mCallbackThread.quitSafely();
         }
         return null;
     }
@@ -132,12 +334,8 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
     public String stopRecord(boolean injectPanoMetadata, boolean isPano, String firmware, String artist, long firstRecordSensorTimestamp) {
         Log.d(TAG, "stop record...");
         mRun = false;
-        long firstVideoFrameTimestamp = mVideoThread.getFirstFrameTimestamp();
-        try {
-            mVideoThread.join();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        }
+        long firstVideoFrameTimestamp = mVideoEncoder.getFirstFrameTimestamp();
+        mVideoEncoder.stop();
         releaseSurface();
         if (mAudioThread != null) {
             try {
@@ -146,21 +344,46 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
                 ex.printStackTrace();
             }
         }
-        if (mMediaMuxer != null) {
+        mCallbackThread.quitSafely();
+        if (mMuxer != null || mSegmentRollover != null) {
             try {
-                mMediaMuxer.stop();
-                mMediaMuxer.release();
+                mMuxerCoordinator.finish();
+                Log.d(TAG, "media muxer coordinator:" + mMuxerCoordinator);
+                mMuxerWriteBehind.close();
+                Log.d(TAG, "media muxer write behind:" + mMuxerWriteBehind);
+                if (mSegmentRollover != null) {
+                    mSegmentRollover.close();
+                    Log.d(TAG, "media muxer " + mSegmentRollover);
+                } else {
+                    mMuxer.stop();
+                    Log.d(TAG, "media muxer " + mMuxer);
+                }
                 Log.d(TAG, "media muxer stop.");
             } catch (Exception ex) {
                 Log.e(TAG, "media muxer stop error:" + ex);
                 ex.printStackTrace();
             }
         }
-        if (injectPanoMetadata) {
-            PiPano.spatialMediaImpl(mFilename, isPano, false, firmware, artist, mVideoThread.getMemomotionTimeMultiple());
-        }
-        if (firstVideoFrameTimestamp > 0) {
-            PiPano.injectFirstFrameTimestamp(mFilename, firstVideoFrameTimestamp * 1000);
+        if (mSegmentRollover != null) {
+            // 各分段分别写入全景信息与第一帧时间戳
+            synchronized (mFinishedSegments) {
+                for (Map.Entry<Integer, Long> entry : mFinishedSegments.entrySet()) {
+                    String filename = getSegmentFilename(entry.getKey());
+                    if (injectPanoMetadata) {
+                        PiPano.spatialMediaImpl(filename, isPano, false, firmware, artist, mVideoEncoder.getMemomotionTimeMultiple());
+                    }
+                    if (entry.getValue() > 0) {
+                        PiPano.injectFirstFrameTimestamp(filename, entry.getValue() * 1000);
+                    }
+                }
+            }
+        } else {
+            if (injectPanoMetadata) {
+                PiPano.spatialMediaImpl(mFilename, isPano, false, firmware, artist, mVideoEncoder.getMemomotionTimeMultiple());
+            }
+            if (firstVideoFrameTimestamp > 0) {
+                PiPano.injectFirstFrameTimestamp(mFilename, firstVideoFrameTimestamp * 1000);
+            }
         }
         Log.d(TAG, "stop record end.");
         mCallback = null;
@@ -168,39 +391,22 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
     }
 
     @NonNull
-    private static MediaCodec createVideoEncoder(@NonNull String mime, int width, int height,
+    private static MediaFormat createVideoFormat(@NonNull String mime, int width, int height,
                                                  int fps, int bitrate,
                                                  boolean useForGoogleMap, long memomotionRatio,
-                                                 int previewFps) throws IOException {
+                                                 int previewFps) {
         MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
         setVideoFormatParams(format, width, height, fps, bitrate, useForGoogleMap, memomotionRatio, previewFps);
-        MediaCodec codec = MediaCodec.createEncoderByType(mime);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        return codec;
+        return format;
     }
 
-    private static MediaCodec createAudioEncoder(int sampleRate, int channelCount, int bitrate) throws IOException {
+    @NonNull
+    private static MediaFormat createAudioFormat(int sampleRate, int channelCount, int bitrate) {
         MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
-
-        MediaCodec codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-        codec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        return codec;
-    }
-
-    private void waitAddAudioTrackAndMuxerStart() {
-        if (mAudioThread != null) {
-            int waitTime = 30;
-            while (mAudioThread.mAudioEncoderTrack == -1 && waitTime > 0) {
-                Log.d(TAG, "video wait for audio track to be added.");
-                SystemClock.sleep(100);
-                waitTime--;
-            }
-        }
-        mMediaMuxer.start();
-        Log.d(TAG, "media muxer start...");
+        return audioFormat;
     }
 
     private void requestAddAudioFrame(long firstFrameTimestamp) {
@@ -211,10 +417,464 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
 
     @Override
     public Surface getSurface() {
-        return mVideoThread == null ? null : mSurface;
+        return mVideoEncoder == null ? null : mSurface;
+    }
+
+    private static final class MediaMuxerAdapter implements SegmentRollover.Target<MediaFormat> {
+        private final MediaMuxer mMuxer;
+        private final String mFilename;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+        MediaMuxerAdapter(MediaMuxer muxer, String filename) {
+            mMuxer = muxer;
+            mFilename = filename;
+        }
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+            Log.d("MediaMuxerAdapter", "media muxer start...");
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            // 视频、音频线程会同时写入
+            synchronized (mBufferInfo) {
+                mBufferInfo.set(offset, size, presentationTimeUs, flags);
+                mMuxer.writeSampleData(track, buffer, mBufferInfo);
+            }
+        }
+
+        @Override
+        public void stop() {
+            try {
+                mMuxer.stop();
+            } finally {
+                mMuxer.release();
+            }
+        }
+
+        @Override
+        public void abort() {
+            try {
+                mMuxer.stop();
+            } catch (Exception ignored) {
+                // 未写入样本时停止会出错
+            }
+            mMuxer.release();
+            new File(mFilename).delete();
+        }
+    }
+
+    /**
+     * 分片MP4写入，转换MediaFormat
+     */
+    private static final class FragmentedMp4Adapter implements SegmentRollover.Target<MediaFormat> {
+        private final FragmentedMp4Writer mWriter;
+
+        FragmentedMp4Adapter(FragmentedMp4Writer writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            Mp4TrackFormat trackFormat;
+            if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+                trackFormat = Mp4TrackFormat.audio(
+                        format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                        format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : AUDIO_BITRATE,
+                        getCsd(format, "csd-0"));
+            } else if (Mp4TrackFormat.MIME_CAMM.equals(mime)) {
+                trackFormat = Mp4TrackFormat.camm();
+            } else {
+                trackFormat = Mp4TrackFormat.video(mime,
+                        format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                        getCsd(format, "csd-0"), getCsd(format, "csd-1"));
+            }
+            return mWriter.addTrack(trackFormat);
+        }
+
+        @NonNull
+        private static byte[] getCsd(@NonNull MediaFormat format, @NonNull String name) {
+            ByteBuffer buffer = format.containsKey(name) ? format.getByteBuffer(name) : null;
+            if (buffer == null) {
+                return new byte[0];
+            }
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            return data;
+        }
+
+        @Override
+        public void start() {
+            mWriter.start();
+            Log.d("FragmentedMp4Adapter", "fragmented mp4 start...");
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            mWriter.writeSampleData(track, buffer, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void stop() {
+            mWriter.stop();
+        }
+
+        @Override
+        public void abort() {
+            mWriter.abort();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mWriter.toString();
+        }
+    }
+
+    /**
+     * MediaCodec以回调方式接入编码流水线
+     */
+    private static final class MediaCodecAdapter extends MediaCodec.Callback implements EncoderPipeline.Codec {
+        final MediaCodec codec;
+        final EncoderPipeline<MediaFormat> pipeline;
+        /**
+         * 从编码器池取出时不为null，释放时归还
+         */
+        @Nullable
+        final PooledVideoEncoder pooled;
+        @Nullable
+        final VideoEncoderKey poolKey;
+
+        MediaCodecAdapter(@NonNull String name, @NonNull MediaCodec codec, boolean surfaceInput) {
+            this(name, codec, surfaceInput, null, null);
+        }
+
+        MediaCodecAdapter(@NonNull String name, @NonNull MediaCodec codec, boolean surfaceInput,
+                          @Nullable PooledVideoEncoder pooled, @Nullable VideoEncoderKey poolKey) {
+            this.codec = codec;
+            this.pipeline = new EncoderPipeline<>(name, this, surfaceInput);
+            this.pooled = pooled;
+            this.poolKey = poolKey;
+        }
+
+        @Override
+        public void start() {
+            codec.start();
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            codec.signalEndOfInputStream();
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return codec.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void stop() {
+            codec.stop();
+        }
+
+        @Override
+        public void release() {
+            if (pooled != null && poolKey != null) {
+                getVideoEncoderPool().recycle(poolKey, pooled);
+            } else {
+                codec.release();
+            }
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            pipeline.onInputBufferAvailable(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            ByteBuffer buffer = null;
+            try {
+                buffer = codec.getOutputBuffer(index);
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            pipeline.onOutputBufferAvailable(index, buffer, info.offset, info.size, info.presentationTimeUs, info.flags);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            pipeline.onError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            pipeline.onOutputFormatChanged(format);
+        }
+    }
+
+    /**
+     * 创建编码器，回调在录制的回调线程执行
+     */
+    @NonNull
+    private MediaCodecAdapter createEncoder(@NonNull String name, @NonNull MediaFormat format, boolean surfaceInput) throws IOException {
+        MediaCodec codec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        MediaCodecAdapter adapter = new MediaCodecAdapter(name, codec, surfaceInput);
+        try {
+            codec.setCallback(adapter, mCallbackHandler);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (Exception ex) {
+            codec.release();
+            throw ex;
+        }
+        return adapter;
+    }
+
+    /**
+     * 视频编码器池的参数，与{@link #createVideoFormat}的参数一致
+     */
+    private static final class VideoEncoderKey {
+        final String mime;
+        final int width;
+        final int height;
+        final int fps;
+        final int bitRate;
+        final boolean useForGoogleMap;
+        final long memomotionRatio;
+        final int previewFps;
+
+        VideoEncoderKey(@NonNull String mime, int width, int height, int fps, int bitRate,
+                        boolean useForGoogleMap, long memomotionRatio, int previewFps) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.bitRate = bitRate;
+            this.useForGoogleMap = useForGoogleMap;
+            this.memomotionRatio = memomotionRatio;
+            this.previewFps = previewFps;
+        }
+
+        @NonNull
+        MediaFormat createFormat() {
+            return createVideoFormat(mime, width, height, fps, bitRate, useForGoogleMap, memomotionRatio, previewFps);
+        }
+
+        long getPixels() {
+            return (long) width * height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof VideoEncoderKey)) {
+                return false;
+            }
+            VideoEncoderKey key = (VideoEncoderKey) o;
+            return width == key.width && height == key.height && fps == key.fps && bitRate == key.bitRate &&
+                    useForGoogleMap == key.useForGoogleMap && memomotionRatio == key.memomotionRatio &&
+                    previewFps == key.previewFps && mime.equals(key.mime);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mime.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + fps;
+            result = 31 * result + bitRate;
+            result = 31 * result + (useForGoogleMap ? 1 : 0);
+            result = 31 * result + (int) (memomotionRatio ^ (memomotionRatio >>> 32));
+            result = 31 * result + previewFps;
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mime + " " + width + "x" + height + "@" + fps + "," + bitRate;
+        }
+    }
+
+    /**
+     * 池中已配置、已创建输入表面的视频编码器。
+     * 配置前需指定回调，此时编码器未启动，不会有回调；取出后回调改为使用者。
+     */
+    private static final class PooledVideoEncoder extends MediaCodec.Callback {
+        final MediaCodec codec;
+        Surface surface;
+
+        PooledVideoEncoder(@NonNull MediaCodec codec) {
+            this.codec = codec;
+        }
+
+        void configure(@NonNull VideoEncoderKey key) {
+            codec.setCallback(this, sPoolCallbackHandler);
+            codec.configure(key.createFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = codec.createInputSurface();
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.w("EncoderPool", "pooled encoder error:" + e.getMessage());
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        }
+    }
+
+    @NonNull
+    private static synchronized EncoderPool<VideoEncoderKey, PooledVideoEncoder> getVideoEncoderPool() {
+        if (sVideoEncoderPool == null) {
+            HandlerThread thread = new HandlerThread("EncoderPoolCallback");
+            thread.start();
+            sPoolCallbackHandler = new Handler(thread.getLooper());
+            sVideoEncoderPool = new EncoderPool<>(new EncoderPool.Factory<VideoEncoderKey, PooledVideoEncoder>() {
+                @NonNull
+                @Override
+                public PooledVideoEncoder create(@NonNull VideoEncoderKey key) throws Exception {
+                    MediaCodec codec = MediaCodec.createEncoderByType(key.mime);
+                    PooledVideoEncoder pooled = new PooledVideoEncoder(codec);
+                    try {
+                        pooled.configure(key);
+                    } catch (Exception ex) {
+                        codec.release();
+                        throw ex;
+                    }
+                    return pooled;
+                }
+
+                @Override
+                public boolean reset(@NonNull VideoEncoderKey key, @NonNull PooledVideoEncoder pooled) {
+                    try {
+                        // 已停止的编码器回到未配置状态，可重新配置
+                        pooled.configure(key);
+                        return true;
+                    } catch (Exception ex) {
+                        Log.w("EncoderPool", "reset encoder failed:" + ex.getMessage());
+                        return false;
+                    }
+                }
+
+                @Override
+                public void release(@NonNull PooledVideoEncoder pooled) {
+                    pooled.codec.release();
+                    if (pooled.surface != null) {
+                        pooled.surface.release();
+                    }
+                }
+            }, SystemPropertiesProxy.getInt(Config.PERSIST_DEV_ENCODER_POOL_MAX_IDLE, Config.DEFAULT_ENCODER_POOL_MAX_IDLE),
+                    SystemPropertiesProxy.getLong(Config.PERSIST_DEV_ENCODER_POOL_MAX_PIXELS, Config.DEFAULT_ENCODER_POOL_MAX_PIXELS),
+                    VideoEncoderKey::getPixels);
+            sVideoEncoderPool.setIdleTimeout(SystemPropertiesProxy.getLong(Config.PERSIST_DEV_ENCODER_POOL_IDLE_TIMEOUT,
+                    Config.DEFAULT_ENCODER_POOL_IDLE_TIMEOUT));
+        }
+        return sVideoEncoderPool;
+    }
+
+    /**
+     * 设置视频编码器池的预算，超出的空闲编码器立即释放
+     *
+     * @param maxIdle   最多保留的空闲编码器数，0:不保留
+     * @param maxPixels 空闲编码器的像素数之和上限
+     */
+    static void setVideoEncoderPoolBudget(int maxIdle, long maxPixels) {
+        getVideoEncoderPool().setBudget(maxIdle, maxPixels);
+    }
+
+    /**
+     * 设置视频编码器池的空闲超时
+     *
+     * @param timeoutMs 小于等于0:不超时
+     */
+    static void setVideoEncoderPoolIdleTimeout(long timeoutMs) {
+        getVideoEncoderPool().setIdleTimeout(timeoutMs);
+    }
+
+    /**
+     * 在后台预先创建视频编码器，参数与之后{@link #startRecord}的参数一致时直接使用
+     *
+     * @param count 同时录制的文件数
+     */
+    static void prewarmVideoEncoder(@NonNull String mime, int width, int height, int fps, int bitRate,
+                                    boolean useForGoogleMap, int memomotionRatio, int previewFps, int count) {
+        VideoEncoderKey key = new VideoEncoderKey(mime, width, height, fps, bitRate, useForGoogleMap, memomotionRatio, previewFps);
+        int created = getVideoEncoderPool().prewarm(key, count);
+        Log.d("EncoderPool", "prewarm " + key + ",count:" + count + ",created:" + created);
     }
 
-    private class VideoThread extends Thread {
+    /**
+     * 释放编码器池中的空闲编码器
+     */
+    static void clearVideoEncoderPool() {
+        EncoderPool<VideoEncoderKey, PooledVideoEncoder> pool;
+        synchronized (MediaRecorderUtil.class) {
+            pool = sVideoEncoderPool;
+        }
+        if (pool != null) {
+            pool.clear();
+            Log.d("EncoderPool", "clear " + pool);
+        }
+    }
+
+    /**
+     * 从编码器池取出视频编码器，回调改为在录制的回调线程直接调用编码流水线，
+     * 多个录制同时进行时互不阻塞
+     */
+    @NonNull
+    private static MediaCodecAdapter acquireVideoEncoder(@NonNull String name, @NonNull VideoEncoderKey key,
+                                                         @NonNull Handler callbackHandler) throws Exception {
+        EncoderPool<VideoEncoderKey, PooledVideoEncoder> pool = getVideoEncoderPool();
+        PooledVideoEncoder pooled = pool.acquire(key);
+        MediaCodecAdapter adapter = new MediaCodecAdapter(name, pooled.codec, true, pooled, key);
+        try {
+            // 已配置未启动的编码器可以重新设置回调
+            pooled.codec.setCallback(adapter, callbackHandler);
+        } catch (Exception ex) {
+            pooled.codec.release();
+            if (pooled.surface != null) {
+                pooled.surface.release();
+            }
+            throw ex;
+        }
+        return adapter;
+    }
+
+    private class VideoEncoder implements EncoderPipeline.Sink<MediaFormat> {
         private final Context context;
         private final boolean useForGoogleMap;
         private final long memomotionRatio;
@@ -224,14 +884,30 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
          */
         private float mMemomotionTimeMultiple = -1;
 
-        private MediaCodec mVideoEncoder;
-        private int mVideoEncoderTrack = -1;
-        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private MediaCodecAdapter mCodec;
+        /**
+         * 取出编码器的耗时
+         */
+        private long mAcquireUs;
+        private final EncoderPipeline.StatsSink<MediaFormat> mStats = new EncoderPipeline.StatsSink<>();
+        /**
+         * 编码器初始码率与当前码率，写入队列满时降低码率
+         */
+        private int mInitBitRate;
+        private volatile int mBitRate;
+        private long mLastReduceBitrateTime;
+        /**
+         * 视频轨道在封装协调器中的槽位
+         */
+        private final int mVideoTrackSlot;
 
-        private int mCammEncoderTrack = -1;
-        private final MediaCodec.BufferInfo mCammBufferInfo = new MediaCodec.BufferInfo();
+        /**
+         * camm轨道在封装协调器中的槽位,-1:不写入camm
+         */
+        private final int mCammTrackSlot;
         private IMUDataCollector mIMUDataCollector;
-        private final ByteBuffer mCammBuffer = ByteBuffer.allocate(64);
+        private final ImuRingBuffer.Sample mImuSample = new ImuRingBuffer.Sample();
+        private final CammTrackWriter mCammTrackWriter;
 
         /**
          * 第一帧时间戳
@@ -245,18 +921,21 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             return 1;
         }
 
-        VideoThread(Context context, boolean useForGoogleMap, long memomotionRatio) {
-            super("VideoThread-" + sCount.get());
+        VideoEncoder(Context context, boolean useForGoogleMap, long memomotionRatio) {
             this.context = context;
             this.useForGoogleMap = useForGoogleMap;
             this.memomotionRatio = memomotionRatio;
+            mVideoTrackSlot = mMuxerCoordinator.declareTrack("video");
+            mCammTrackSlot = useForGoogleMap ? mMuxerCoordinator.declareTrack("camm") : -1;
+            mCammTrackWriter = new CammTrackWriter((buffer, size, presentationTimeUs) ->
+                    mMuxerCoordinator.writeSample(mCammTrackSlot, buffer, 0, size, presentationTimeUs, 0));
         }
 
         long getFirstFrameTimestamp() {
             return mFirstFrameTimestamp;
         }
 
-        Surface prepare(@NonNull String mime, int width, int height, int fps, int bitRate, int previewFps) throws IOException {
+        Surface prepare(@NonNull String mime, int width, int height, int fps, int bitRate, int previewFps) throws Exception {
             try {
                 // 计算放大倍数，延时摄影、慢动作按30fps编码，需修改时间戳；街景视频无需改变时间戳
                 if (!useForGoogleMap && memomotionRatio != 0) {
@@ -269,10 +948,19 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
                     mIMUDataCollector = new IMUDataCollector(context);
                     mIMUDataCollector.register();
                 }
-                mVideoEncoder = createVideoEncoder(mime, width, height, fps, bitRate, useForGoogleMap, memomotionRatio, previewFps);
-                Surface surface = mVideoEncoder.createInputSurface();
-                mVideoEncoder.start();
+                long acquireBegin = System.nanoTime();
+                mCodec = acquireVideoEncoder("VideoEncoder-" + sCount.get(), new VideoEncoderKey(mime, width, height,
+                        fps, bitRate, useForGoogleMap, memomotionRatio, previewFps), mCallbackHandler);
+                mAcquireUs = (System.nanoTime() - acquireBegin) / 1000;
+                mCodec.pipeline.addSink(this);
+                mCodec.pipeline.addSink(mStats);
+                mCodec.pipeline.setErrorListener(this::onError);
+                mInitBitRate = bitRate;
+                mBitRate = bitRate;
+                Surface surface = mCodec.pooled.surface;
+                mCodec.pipeline.start();
                 mSurface = surface;
+                Log.d(TAG, "video encoder start...");
                 return surface;
             } catch (Exception ex) {
                 release();
@@ -280,38 +968,87 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             }
         }
 
-        @Override
-        public void run() {
-            Log.d(TAG, "video encoder thread start...");
-            try {
-                while (mRun) {
-                    encodeVideoFrame();
-                }
-            } catch (IllegalStateException e) {
-                e.printStackTrace();
-                String message = e.getMessage();
-                Log.e(TAG, "encodeVideoFrame error ：" + message);
-                if (message != null && message.contains("writeSampleData returned an error") && mCallback != null) {
-                    new Thread(() -> {
-                        if (mCallback != null) {
-                            mCallback.onError(new PiError(PiErrorCode.RECORD_WRITE_FILE_ERROR, message));
-                        }
-                    }).start();
+        /**
+         * 结束输入，等待编码器输出剩余的帧后释放
+         */
+        void stop() {
+            if (mCodec != null) {
+                mCodec.pipeline.drain(0);
+                if (!mCodec.pipeline.awaitEndOfStream(ENCODER_DRAIN_TIMEOUT_MS)) {
+                    Log.w(TAG, "video encoder drain timeout:" + mCodec.pipeline);
                 }
+                Log.d(TAG, "video encoder " + mStats);
             }
             release();
-            Log.d(TAG, "video encoder thread exit.");
+            Log.d(TAG, "video encoder stop.");
+        }
+
+        private void onError(@NonNull Throwable e) {
+            e.printStackTrace();
+            String message = e.getMessage();
+            Log.e(TAG, "encodeVideoFrame error ：" + message);
+            if (message != null && message.contains("writeSampleData returned an error") && mCallback != null) {
+                new Thread(() -> {
+                    if (mCallback != null) {
+                        mCallback.onError(new PiError(PiErrorCode.RECORD_WRITE_FILE_ERROR, message));
+                    }
+                }).start();
+            }
+        }
+
+        /**
+         * 请求编码器尽快输出关键帧，分段录像切换时使用
+         */
+        void requestSyncFrame() {
+            MediaCodecAdapter codec = mCodec;
+            if (codec == null) {
+                return;
+            }
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                codec.codec.setParameters(params);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * 封装器写入队列满时降低码率
+         */
+        private void reduceBitrate(int depth) {
+            reduceBitrate("muxer queue full(" + depth + ")");
+        }
+
+        /**
+         * 降低码率，每次降低20%，最低为初始码率的一半
+         */
+        private synchronized void reduceBitrate(@NonNull String reason) {
+            MediaCodecAdapter codec = mCodec;
+            long now = SystemClock.elapsedRealtime();
+            if (codec == null || now - mLastReduceBitrateTime < 2000) {
+                return;
+            }
+            int bitRate = Math.max(mInitBitRate / 2, mBitRate * 4 / 5);
+            if (bitRate >= mBitRate) {
+                return;
+            }
+            mLastReduceBitrateTime = now;
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+                codec.codec.setParameters(params);
+                mBitRate = bitRate;
+                Log.w(TAG, reason + ",reduce video bitrate:" + bitRate);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
 
         private void release() {
-            if (null != mVideoEncoder) {
-                try {
-                    mVideoEncoder.stop();
-                    mVideoEncoder.release();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                mVideoEncoder = null;
+            if (null != mCodec) {
+                mCodec.pipeline.release();
+                mCodec = null;
             }
             if (null != mIMUDataCollector) {
                 mIMUDataCollector.unregister();
@@ -319,122 +1056,100 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             }
         }
 
-        private void encodeVideoFrame() {
-            int outputIndex = mVideoEncoder.dequeueOutputBuffer(mBufferInfo, 100_000);
-            if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat format = mVideoEncoder.getOutputFormat();
-                mVideoEncoderTrack = mMediaMuxer.addTrack(format);
-                Log.d(TAG, "video track added.");
-
-                waitAddAudioTrackAndMuxerStart();
-
-                outputIndex = mVideoEncoder.dequeueOutputBuffer(mBufferInfo, 0);
+        @Override
+        public void onFormatChanged(@NonNull MediaFormat format) {
+            int track = mMuxerCoordinator.registerTrack(mVideoTrackSlot, format);
+            Log.d(TAG, "video track added:" + track);
+            if (track >= 0) {
+                mMuxerWriteBehind.setDroppable(track, true);
+                if (mSegmentRollover != null) {
+                    mSegmentRollover.setSyncTrack(track);
+                }
             }
+        }
 
-            if (outputIndex >= 0) {
-                ByteBuffer buffer = mVideoEncoder.getOutputBuffer(outputIndex);
-                if (buffer != null && mBufferInfo.size > 0) {
-                    if (mBufferInfo.presentationTimeUs > 0) {
-                        if (mFirstFrameTimestamp > -1) { // 非首帧
-                            if (mMemomotionTimeMultiple > 0) {
-                                // 重新计算时间戳
-                                long deltaTime = mBufferInfo.presentationTimeUs - mFirstFrameTimestamp;
-                                mBufferInfo.presentationTimeUs = mFirstFrameTimestamp + (long) (deltaTime * mMemomotionTimeMultiple);
-                            }
-                        }
-                        mMediaMuxer.writeSampleData(mVideoEncoderTrack, buffer, mBufferInfo);
+        @Override
+        public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+            if (presentationTimeUs > 0) {
+                RecordTelemetry telemetry = mTelemetry;
+                if (telemetry != null) {
+                    // 时间戳为编码表面的帧时间戳
+                    telemetry.recordEncodeLatency(presentationTimeUs);
+                    telemetry.recordFrameOut(RecordTelemetry.TRACK_VIDEO, size);
+                }
+                if (mFirstFrameTimestamp > -1) { // 非首帧
+                    if (mMemomotionTimeMultiple > 0) {
+                        // 重新计算时间戳
+                        long deltaTime = presentationTimeUs - mFirstFrameTimestamp;
+                        presentationTimeUs = mFirstFrameTimestamp + (long) (deltaTime * mMemomotionTimeMultiple);
+                    }
+                }
+                if (!mMuxerCoordinator.writeSample(mVideoTrackSlot, buffer, offset, size, presentationTimeUs, flags) &&
+                        telemetry != null) {
+                    telemetry.recordDrop(RecordTelemetry.TRACK_VIDEO, 1);
+                }
 
-                        if (mFirstFrameTimestamp < 0) {
-                            mFirstFrameTimestamp = mBufferInfo.presentationTimeUs;
-                            Log.d(TAG, "video first frame timestamp:" + mFirstFrameTimestamp);
+                if (mFirstFrameTimestamp < 0) {
+                    mFirstFrameTimestamp = presentationTimeUs;
+                    Log.d(TAG, "video first frame timestamp:" + mFirstFrameTimestamp);
 
-                            // 音频需等视频一帧编码后再加入
-                            requestAddAudioFrame(mFirstFrameTimestamp);
-                        }
+                    // 音频需等视频一帧编码后再加入
+                    requestAddAudioFrame(mFirstFrameTimestamp);
+                }
 
-                        if (mCammEncoderTrack >= 0) {
-                            encodeCammFrame();
-                        }
-                    } else {
-                        Log.e(TAG, "video sample time must > 0.");
-                    }
+                if (mCammTrackSlot >= 0) {
+                    encodeCammFrame(presentationTimeUs);
                 }
-                mVideoEncoder.releaseOutputBuffer(outputIndex, false);
+            } else {
+                Log.e(TAG, "video sample time must > 0.");
             }
         }
 
+        @Override
+        public void onEndOfStream() {
+            Log.d(TAG, "video encoder end of stream.");
+        }
+
         /**
          * 编入一帧camm数据
          */
-        private void encodeCammFrame() {
+        private void encodeCammFrame(long videoTimeUs) {
             //GPS信息
             synchronized (sLocationLock) {
                 if (sLocation != null) {
-                    writeGpsData(sLocation);
+                    writeGpsData(sLocation, videoTimeUs);
                 }
                 sLocation = null;
             }
             final long cameraTimestamp = (SystemClock.elapsedRealtime() - 420) * 1000000;
-            //加速度
-            SimpleSensorEvent accelerometerEvent = mIMUDataCollector.findAccelerometerEvent(cameraTimestamp);
-            if (accelerometerEvent != null) {
-                writeAccelerometerData(3, accelerometerEvent);
-            }
-            //陀螺仪
-            SimpleSensorEvent gyroscopeEvent = mIMUDataCollector.findGyroscopeEvent(cameraTimestamp);
-            if (null != gyroscopeEvent) {
-                writeAccelerometerData(2, gyroscopeEvent);
-            }
+            //按时间戳交错写入上一帧到当前帧之间的所有imu数据,时间戳按与当前帧的差值换算
+            mIMUDataCollector.writeTo(mCammTrackWriter, cameraTimestamp, videoTimeUs, mImuSample);
         }
 
-        private final byte[] mBitToLittleShortBuffer = new byte[2];
-        private final byte[] mBitToLittleIntBuffer = new byte[4];
-        private final byte[] mBitToLittleFloatBuffer = new byte[4];
-        private final byte[] mBitToLittleDoubleBuffer = new byte[8];
-
         // 最后的有效访方位信息
         private float mLastBearing = -1;
 
-        private void writeGpsData(@NonNull Location location) {
-            mCammBuffer.clear();
-            mCammBuffer.putShort((short) 0);
-            mCammBuffer.put(BitToLittleShort((short) 6, mBitToLittleShortBuffer));
+        private void writeGpsData(@NonNull Location location, long videoTimeUs) {
             //计算gps时间
             double timeGpsEpoch =
                     (System.currentTimeMillis() - SystemClock.elapsedRealtime()) / 1000.0 //系统启动时间UTC
                             + location.getElapsedRealtimeNanos() / 1000000000.0   //上次定位的时间
                             - 315964800 //UTC时间和GPS时间的转换
                             + 18;   //UTC时间和GPS时间的转换
-            mCammBuffer.put(BitToLittleDouble(timeGpsEpoch, mBitToLittleDoubleBuffer));
-            mCammBuffer.put(BitToLittleInt(3, mBitToLittleIntBuffer));
-            mCammBuffer.put(BitToLittleDouble(location.getLatitude(), mBitToLittleDoubleBuffer));
-            mCammBuffer.put(BitToLittleDouble(location.getLongitude(), mBitToLittleDoubleBuffer));
-            mCammBuffer.put(BitToLittleFloat((float) location.getAltitude(), mBitToLittleFloatBuffer));
-            mCammBuffer.put(BitToLittleFloat(location.getAccuracy(), mBitToLittleFloatBuffer));
-            mCammBuffer.put(BitToLittleFloat(location.getAccuracy(), mBitToLittleFloatBuffer));//mLocation.getVerticalAccuracyMeters() 需要level26
             float speed = location.getSpeed();
             //上一次记录的location方位信息,如果这一次location不包含方位信息,就用上一次的
             if (location.hasBearing()) {
                 // 更新方位信息
                 mLastBearing = location.getBearing() / 180.0f * 3.1415927f;
             }
-            mCammBuffer.put(BitToLittleFloat(mLastBearing >= 0 ? speed * (float) Math.sin(mLastBearing) : 0, mBitToLittleFloatBuffer));  //velocity_east
-            mCammBuffer.put(BitToLittleFloat(mLastBearing >= 0 ? speed * (float) Math.cos(mLastBearing) : 0, mBitToLittleFloatBuffer)); //velocity_north
-            mCammBuffer.put(BitToLittleFloat(0, mBitToLittleFloatBuffer)); //velocity_up
-            mCammBuffer.put(BitToLittleFloat(0, mBitToLittleFloatBuffer));//mLocation.getSpeedAccuracyMetersPerSecond() 需要level26
-            mCammBufferInfo.set(0, mCammBuffer.position(), mBufferInfo.presentationTimeUs, 0);
-            mMediaMuxer.writeSampleData(mCammEncoderTrack, mCammBuffer, mCammBufferInfo);
-        }
-
-        private void writeAccelerometerData(int type, @NonNull SimpleSensorEvent accelerometerEvent) {
-            mCammBuffer.clear();
-            mCammBuffer.putShort((short) 0);
-            mCammBuffer.put(BitToLittleShort((short) type, mBitToLittleShortBuffer));
-            mCammBuffer.put(BitToLittleFloat(accelerometerEvent.x, mBitToLittleFloatBuffer));
-            mCammBuffer.put(BitToLittleFloat(-accelerometerEvent.z, mBitToLittleFloatBuffer));
-            mCammBuffer.put(BitToLittleFloat(accelerometerEvent.y, mBitToLittleFloatBuffer));
-            mCammBufferInfo.set(0, mCammBuffer.position(), mBufferInfo.presentationTimeUs, 0);
-            mMediaMuxer.writeSampleData(mCammEncoderTrack, mCammBuffer, mCammBufferInfo);
+            mCammTrackWriter.writeGps(videoTimeUs, timeGpsEpoch, 3,
+                    location.getLatitude(), location.getLongitude(), (float) location.getAltitude(),
+                    location.getAccuracy(),
+                    location.getAccuracy(), //mLocation.getVerticalAccuracyMeters() 需要level26
+                    mLastBearing >= 0 ? speed * (float) Math.sin(mLastBearing) : 0, //velocity_east
+                    mLastBearing >= 0 ? speed * (float) Math.cos(mLastBearing) : 0, //velocity_north
+                    0, //velocity_up
+                    0); //mLocation.getSpeedAccuracyMetersPerSecond() 需要level26
         }
 
         /**
@@ -443,19 +1158,7 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
         private void addCommTrack() {
             MediaFormat format = new MediaFormat();
             format.setString(MediaFormat.KEY_MIME, "application/camm");
-            mCammEncoderTrack = mMediaMuxer.addTrack(format);
-        }
-    }
-
-    private static class SimpleSensorEvent {
-        long timestamp;
-        float x, y, z;
-
-        SimpleSensorEvent(long t, float x, float y, float z) {
-            timestamp = t;
-            this.x = x;
-            this.y = y;
-            this.z = z;
+            mMuxerCoordinator.registerTrack(mCammTrackSlot, format);
         }
     }
 
@@ -463,21 +1166,23 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
      * imu 数据采集（加速度、陀螺仪）
      */
     private final static class IMUDataCollector {
+        /**
+         * 缓冲容量，最高采样率下约可保存4秒的数据
+         */
+        private static final int BUFFER_CAPACITY = 4096;
         private final SensorManager mSensorManager;
-        private final ConcurrentLinkedQueue<SimpleSensorEvent> mAccelerometerEventQueue = new ConcurrentLinkedQueue<>();
-        private final ConcurrentLinkedQueue<SimpleSensorEvent> mGyroscopeEventQueue = new ConcurrentLinkedQueue<>();
+        private final ImuRingBuffer mAccelerometerBuffer = new ImuRingBuffer(BUFFER_CAPACITY);
+        private final ImuRingBuffer mGyroscopeBuffer = new ImuRingBuffer(BUFFER_CAPACITY);
 
         private final SensorEventListener mSensorEventListener = new SensorEventListener() {
             @Override
             public void onSensorChanged(SensorEvent event) {
                 switch (event.sensor.getType()) {
                     case Sensor.TYPE_ACCELEROMETER:
-                        mAccelerometerEventQueue.offer(new SimpleSensorEvent(
-                                event.timestamp, event.values[0], event.values[1], event.values[2]));
+                        mAccelerometerBuffer.put(event.timestamp, event.values[0], event.values[1], event.values[2]);
                         break;
                     case Sensor.TYPE_GYROSCOPE:
-                        mGyroscopeEventQueue.offer(new SimpleSensorEvent(
-                                event.timestamp, event.values[0], event.values[1], event.values[2]));
+                        mGyroscopeBuffer.put(event.timestamp, event.values[0], event.values[1], event.values[2]);
                         break;
                 }
             }
@@ -500,50 +1205,42 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
 
         void unregister() {
             mSensorManager.unregisterListener(mSensorEventListener);
+            Log.d("IMUDataCollector", "imu overflow accelerometer:" + mAccelerometerBuffer.getOverflowCount() +
+                    ",gyroscope:" + mGyroscopeBuffer.getOverflowCount());
         }
 
-        @Nullable
-        private SimpleSensorEvent findAccelerometerEvent(long cameraTimestamp) {
-            return getSensorEventByTime(mAccelerometerEventQueue, cameraTimestamp);
-        }
-
-        @Nullable
-        private SimpleSensorEvent findGyroscopeEvent(long cameraTimestamp) {
-            return getSensorEventByTime(mGyroscopeEventQueue, cameraTimestamp);
-        }
-
-        @Nullable
-        private SimpleSensorEvent getSensorEventByTime(Queue<SimpleSensorEvent> queue, long timeStamp) {
-            SimpleSensorEvent lastEvent = queue.poll();
-            if (lastEvent == null) {
-                return null;
-            }
-            while (true) {
-                SimpleSensorEvent event = queue.poll();
-                if (event == null) {
-                    return lastEvent;
-                }
-                if (lastEvent.timestamp >= timeStamp) {
-                    return lastEvent;
-                } else if (event.timestamp > timeStamp) {
-                    return Math.abs(lastEvent.timestamp - timeStamp) <
-                            Math.abs(event.timestamp - timeStamp) ? lastEvent : event;
-                }
-                lastEvent = event;
-            }
+        /**
+         * 写入时间戳不大于cameraTimestamp的加速度与陀螺仪数据
+         */
+        private void writeTo(@NonNull CammTrackWriter writer, long cameraTimestamp, long videoTimeUs,
+                             @NonNull ImuRingBuffer.Sample sample) {
+            writer.writeImu(mAccelerometerBuffer, mGyroscopeBuffer, cameraTimestamp, videoTimeUs, sample);
         }
     }
 
-    private class AudioThread extends Thread {
+    private class AudioThread extends Thread implements EncoderPipeline.Sink<MediaFormat> {
         private IAudioRecordExt audioRecordExt;
         private List<IAudioEncoderExt> audioEncoderExtList;
 
-        private byte[] mAudioRecordBuffer;
-        private byte[] mAudioEncoderBufferExt;
+        /**
+         * 独立线程读取的pcm数据
+         */
+        private PcmCaptureRing mCapture;
+        private final PcmCaptureRing.Chunk mChunk = new PcmCaptureRing.Chunk();
+        /**
+         * 已计入统计的采集缓冲满丢弃次数
+         */
+        private long mLastOverrunCount;
+        /**
+         * 音频额外编码处理链，没有额外处理器时为null
+         */
+        private AudioEncoderExtChain mAudioEncoderExtChain;
 
-        private volatile int mAudioEncoderTrack = -1;
-        private MediaCodec mAudioEncoder;
-        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        /**
+         * 音频轨道在封装协调器中的槽位
+         */
+        private final int mAudioTrackSlot;
+        private MediaCodecAdapter mCodec;
 
         /**
          * 第一帧时间戳
@@ -559,6 +1256,7 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             super("AudioThread-" + sCount.get());
             this.audioEncoderExtList = audioEncoderExtList;
             this.audioRecordExt = audioRecordExt;
+            mAudioTrackSlot = mMuxerCoordinator.declareTrack("audio");
         }
 
         void prepare(int sampleRate, int channelCount, int bitrate) throws IOException {
@@ -567,20 +1265,27 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
                 final int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
                 final int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioEncoding);
 
-                mAudioRecordBuffer = new byte[AUDIO_BUFFER_SIZE];
                 audioRecordExt.configure(MediaRecorder.AudioSource.MIC,
-                        sampleRate, channelConfig, audioEncoding, Math.max(minBufferSize, mAudioRecordBuffer.length));
+                        sampleRate, channelConfig, audioEncoding, Math.max(minBufferSize, AUDIO_BUFFER_SIZE));
+                final IAudioRecordExt source = audioRecordExt;
+                // 与视频时间戳同为System.nanoTime时钟
+                mCapture = new PcmCaptureRing(source::read, AUDIO_BUFFER_SIZE, AUDIO_CAPTURE_SLOT_COUNT,
+                        sampleRate, channelCount * 2, () -> System.nanoTime() / 1000);
 
                 if (audioEncoderExtList != null) {
-                    mAudioEncoderBufferExt = new byte[mAudioRecordBuffer.length];
+                    mAudioEncoderExtChain = new AudioEncoderExtChain(audioEncoderExtList, AUDIO_BUFFER_SIZE);
                     for (IAudioEncoderExt encoderExt : audioEncoderExtList) {
                         encoderExt.configure(sampleRate, channelCount, audioEncoding);
                     }
                 }
 
-                mAudioEncoder = createAudioEncoder(sampleRate, channelCount, bitrate);
+                mCodec = createEncoder("AudioEncoder-" + sCount.get(),
+                        createAudioFormat(sampleRate, channelCount, bitrate), false);
+                mCodec.pipeline.addSink(this);
+                mCodec.pipeline.setErrorListener(e -> Log.e(TAG, "audio encoder error:" + e));
                 audioRecordExt.startRecording();
-                mAudioEncoder.start();
+                mCodec.pipeline.start();
+                mCapture.start();
             } catch (Exception ex) {
                 release();
                 throw ex;
@@ -594,9 +1299,17 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
         @Override
         public void run() {
             Log.d(TAG, "audio encoder thread start...");
-            while (mRun) {
+            while (mRun && mCodec.pipeline.getState() == EncoderPipeline.State.STARTED) {
                 encodeAudioFrame();
             }
+            mCodec.pipeline.drain(ENCODER_DRAIN_TIMEOUT_MS);
+            if (!mCodec.pipeline.awaitEndOfStream(ENCODER_DRAIN_TIMEOUT_MS)) {
+                Log.w(TAG, "audio encoder drain timeout:" + mCodec.pipeline);
+            }
+            Log.d(TAG, "audio capture:" + mCapture);
+            if (mAudioEncoderExtChain != null) {
+                Log.d(TAG, "audio encoder ext:" + mAudioEncoderExtChain);
+            }
 
             release();
 
@@ -604,6 +1317,9 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
         }
 
         private void release() {
+            if (mCapture != null) {
+                mCapture.stop();
+            }
             if (audioRecordExt != null) {
                 try {
                     audioRecordExt.stop();
@@ -613,14 +1329,9 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
                 }
                 audioRecordExt = null;
             }
-            if (null != mAudioEncoder) {
-                try {
-                    mAudioEncoder.stop();
-                    mAudioEncoder.release();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                mAudioEncoder = null;
+            if (null != mCodec) {
+                mCodec.pipeline.release();
+                mCodec = null;
             }
             if (audioEncoderExtList != null) {
                 for (IAudioEncoderExt ext : audioEncoderExtList) {
@@ -634,70 +1345,80 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
             }
         }
 
+        /**
+         * 取出一块采集的音频送入编码器，编码输出在回调线程处理
+         */
         private void encodeAudioFrame() {
-            int inputIndex = mAudioEncoder.dequeueInputBuffer(0);
-            if (inputIndex >= 0) {
-                final long pts = System.nanoTime() / 1000;
-                // 读取音频数据
-                int readCount = audioRecordExt.read(mAudioRecordBuffer, 0, mAudioRecordBuffer.length); // read audio raw data
-                if (readCount < 0) {
-                    return;
-                }
-                ByteBuffer inputBuffer = mAudioEncoder.getInputBuffer(inputIndex);
-                if (audioEncoderExtList != null) {
-                    // 使用外部编码器预先对数据处理，如降噪sdk、全景音sdk
-                    byte[] in = mAudioRecordBuffer;
-                    byte[] out = mAudioEncoderBufferExt;
-                    byte[] dst = in; // 处理的后结果引用
-                    for (IAudioEncoderExt encoderExt : audioEncoderExtList) {
-                        int count = encoderExt.encodeProcess(in, readCount, out);
-                        if (count != -1) { // 成功处理，out有效
-                            readCount = count;
-                            dst = out;
-                            // 交换输入、输出指向，进行下轮处理
-                            out = in;
-                            in = dst;
-                        }
-                    }
-                    inputBuffer.put(dst, 0, readCount);
-                } else {
-                    inputBuffer.put(mAudioRecordBuffer);
-                }
-                mAudioEncoder.queueInputBuffer(inputIndex, 0, readCount, pts, 0);
+            if (!mCapture.peek(mChunk, 100)) {
+                return;
             }
-
-            int outputIndex = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, 100_000);
-            if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat format = mAudioEncoder.getOutputFormat();
-                mAudioEncoderTrack = mMediaMuxer.addTrack(format);
-                Log.d(TAG, "audio track added.");
-
-                outputIndex = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, 0);
+            int inputIndex = mCodec.pipeline.dequeueInputBuffer(100);
+            if (inputIndex < 0) {
+                // 数据保留在采集缓冲中，下次再送入
+                return;
+            }
+            ByteBuffer inputBuffer = mCodec.pipeline.getInputBuffer(inputIndex);
+            if (inputBuffer == null) {
+                mCodec.pipeline.queueInputBuffer(inputIndex, 0, 0, mChunk.presentationTimeUs);
+                return;
+            }
+            int readCount = mChunk.size;
+            if (mAudioEncoderExtChain != null) {
+                // 使用外部编码器预先对数据处理，如降噪sdk、全景音sdk，结果直接写入编码器输入缓冲
+                readCount = mAudioEncoderExtChain.process(mChunk.data, readCount, inputBuffer);
+            } else {
+                inputBuffer.put(mChunk.data, 0, readCount);
+            }
+            mCodec.pipeline.queueInputBuffer(inputIndex, 0, readCount, mChunk.presentationTimeUs);
+            mCapture.release();
+            RecordTelemetry telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.recordFrameIn(RecordTelemetry.TRACK_AUDIO);
+                long overrun = mCapture.getOverrunCount();
+                if (overrun != mLastOverrunCount) {
+                    telemetry.recordDrop(RecordTelemetry.TRACK_AUDIO, overrun - mLastOverrunCount);
+                    mLastOverrunCount = overrun;
+                }
             }
+        }
 
-            if (outputIndex >= 0) {
-                ByteBuffer buffer = mAudioEncoder.getOutputBuffer(outputIndex);
-                if (buffer != null) {
-                    if (mBufferInfo.presentationTimeUs > 0) {
-                        if (mBufferInfo.presentationTimeUs >= mLastPresentationTimeUs) {
-                            mMediaMuxer.writeSampleData(mAudioEncoderTrack, buffer, mBufferInfo);
-                            mLastPresentationTimeUs = mBufferInfo.presentationTimeUs;
+        @Override
+        public void onFormatChanged(@NonNull MediaFormat format) {
+            int track = mMuxerCoordinator.registerTrack(mAudioTrackSlot, format);
+            Log.d(TAG, "audio track added:" + track);
+        }
 
-                            if (mFirstFrameTimestamp < 0) {
-                                mFirstFrameTimestamp = mBufferInfo.presentationTimeUs;
-                                Log.d(TAG, "audio first frame timestamp:" + mFirstFrameTimestamp);
-                            }
-                        } else {
-                            // 等候视频帧，或音频时间非递增，忽略此数据
-                            Log.d(TAG, "audio wait for video first frame to be added or time is not incremental,throw data.");
+        @Override
+        public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+            if (presentationTimeUs > 0) {
+                if (presentationTimeUs >= mLastPresentationTimeUs) {
+                    boolean written = mMuxerCoordinator.writeSample(mAudioTrackSlot, buffer, offset, size, presentationTimeUs, flags);
+                    mLastPresentationTimeUs = presentationTimeUs;
+                    RecordTelemetry telemetry = mTelemetry;
+                    if (telemetry != null) {
+                        telemetry.recordFrameOut(RecordTelemetry.TRACK_AUDIO, size);
+                        if (!written) {
+                            telemetry.recordDrop(RecordTelemetry.TRACK_AUDIO, 1);
                         }
-                    } else {
-                        Log.e(TAG, "audio sample time must > 0.");
                     }
+
+                    if (mFirstFrameTimestamp < 0) {
+                        mFirstFrameTimestamp = presentationTimeUs;
+                        Log.d(TAG, "audio first frame timestamp:" + mFirstFrameTimestamp);
+                    }
+                } else {
+                    // 等候视频帧，或音频时间非递增，忽略此数据
+                    Log.d(TAG, "audio wait for video first frame to be added or time is not incremental,throw data.");
                 }
-                mAudioEncoder.releaseOutputBuffer(outputIndex, false);
+            } else {
+                Log.e(TAG, "audio sample time must > 0.");
             }
         }
+
+        @Override
+        public void onEndOfStream() {
+            Log.d(TAG, "audio encoder end of stream.");
+        }
     }
 
     /**
@@ -764,41 +1485,4 @@ public class MediaRecorderUtil extends MediaRecorderUtilBase {
         videoFormat.setInteger("vendor.qti-ext-enc-intra-period.n-bframes", 0);
         videoFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
     }
-
-
-    private static byte[] BitToLittleShort(short s, byte[] bytes) {
-        bytes[1] = (byte) (s >> 8);
-        bytes[0] = (byte) (s);
-        return bytes;
-    }
-
-    private static byte[] BitToLittleInt(int i, byte[] bytes) {
-        bytes[3] = (byte) (i >> 24);
-        bytes[2] = (byte) (i >> 16);
-        bytes[1] = (byte) (i >> 8);
-        bytes[0] = (byte) (i);
-        return bytes;
-    }
-
-    private static byte[] BitToLittleFloat(float f, byte[] bytes) {
-        int n = Float.floatToIntBits(f);
-        bytes[3] = (byte) (n >> 24);
-        bytes[2] = (byte) (n >> 16);
-        bytes[1] = (byte) (n >> 8);
-        bytes[0] = (byte) (n);
-        return bytes;
-    }
-
-    private static byte[] BitToLittleDouble(double f, byte[] bytes) {
-        long n = Double.doubleToLongBits(f);
-        bytes[7] = (byte) (n >> 56);
-        bytes[6] = (byte) (n >> 48);
-        bytes[5] = (byte) (n >> 40);
-        bytes[4] = (byte) (n >> 32);
-        bytes[3] = (byte) (n >> 24);
-        bytes[2] = (byte) (n >> 16);
-        bytes[1] = (byte) (n >> 8);
-        bytes[0] = (byte) (n);
-        return bytes;
-    }
 }
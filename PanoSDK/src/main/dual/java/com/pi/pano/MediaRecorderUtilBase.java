@@ -6,6 +6,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.pi.pano.ext.IAudioEncoderExt;
 import com.pi.pano.ext.IAudioRecordExt;
@@ -32,6 +33,16 @@ public abstract class MediaRecorderUtilBase {
     protected String mFilename;
     protected PiCallback mCallback;
     protected Surface mSurface;
+    /**
+     * 录像状态统计，null:不统计
+     */
+    @Nullable
+    RecordTelemetry mTelemetry;
+    /**
+     * 存储监测，null:不监测
+     */
+    @Nullable
+    StorageMonitor mStorageMonitor;
 
     /**
      * 设置gps信息,gps信息将用于写入视频
@@ -50,6 +61,46 @@ public abstract class MediaRecorderUtilBase {
         this.mCallback = callback;
     }
 
+    /**
+     * 设置录像状态统计，应在开始录像前设置，不支持时忽略
+     */
+    void setTelemetry(@Nullable RecordTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * 设置存储监测，应在开始录像前设置，不支持时忽略
+     */
+    void setStorageMonitor(@Nullable StorageMonitor monitor) {
+        mStorageMonitor = monitor;
+    }
+
+    /**
+     * 存储写入速度不足时降低视频码率，不支持时忽略
+     */
+    void reduceVideoBitrate() {
+    }
+
+    /**
+     * 设置分段录像，应在开始录像前设置，不支持时忽略。
+     *
+     * @param maxDurationMs 单个分段的最长时长，小于等于0不按时长分段
+     * @param maxBytes      单个分段的最大字节数，小于等于0不按大小分段
+     * @param minFreeBytes  剩余存储空间低于该值时结束当前分段，小于等于0不检查
+     */
+    public void setSegmentParams(long maxDurationMs, long maxBytes, long minFreeBytes,
+                                 @Nullable IRecordSegmentListener listener) {
+    }
+
+    /**
+     * 设置使用分片MP4写入，应在开始录像前设置，不支持时忽略。
+     * 录制中崩溃、断电或存储写满时，已写入的分片仍可播放。
+     *
+     * @param fragmentDurationMs 分片间隔，小于等于0使用MediaMuxer
+     */
+    public void setFragmentedMp4(long fragmentDurationMs) {
+    }
+
     public abstract Surface startRecord(Context context, @NonNull String filename,
                                         @NonNull String mime, int width, int height, int fps, int bitRate,
                                         int channelCount,
@@ -102,6 +102,9 @@ public class OpenGLThread extends PiPano implements SurfaceTexture.OnFrameAvaila
         if (mSkipFrameWithTakeHdr > 0) {
             Log.w(TAG, "skipFrameWithTakeHdr:" + mSkipFrameWithTakeHdr);
             mSkipFrameWithTakeHdr--;
+            if (mSkipFrameWithTakeHdr == 0) {
+                onSkipFrameWithTakeHdrEnd();
+            }
             return;
         }
         if (!mPanoEnabled || !isCaptureCompleted) {
@@ -134,6 +137,10 @@ public class OpenGLThread extends PiPano implements SurfaceTexture.OnFrameAvaila
         mLastLensDrawTimestamp = timestamp;
         mPiPanoListener.onPiPanoEncoderSurfaceUpdate(this, timestamp, isFrameSync);
         mEncodeFrameCount++;
+        RecordTelemetry telemetry = RecordTelemetry.getCurrent();
+        if (telemetry != null) {
+            telemetry.recordFrameIn(RecordTelemetry.TRACK_VIDEO);
+        }
     }
 
     @SuppressLint("Recycle")
@@ -8,6 +8,8 @@ import android.location.Location;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
@@ -32,6 +34,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
 /**
@@ -68,6 +71,7 @@ class PilotSDK {
      */
     public PilotSDK(ViewGroup parentView, int openCameraCount, boolean lensProtectedEnable, PanoSDKListener panoSDKListener) {
         mContext = parentView.getContext();
+        MediaInfoLoader.attachDiskStore(mContext);
         mPanoSDKListener = panoSDKListener;
         parentView.removeAllViews();// 移除已有的 cameraSurfaceView,
         mCameraSurfaceView = new CameraSurfaceView(mContext, openCameraCount);
@@ -211,11 +215,26 @@ class PilotSDK {
      * @param listener 拍照回调事件
      */
     public static void takePhoto(@NonNull TakePhotoListener listener) {
+        takePhotoAsync(listener);
+    }
+
+    /**
+     * 拍照，回调与{@link #takePhoto}相同。
+     * hdr拍照时，取消返回的结果将取消进行中的合成流程，回调以{@link PiErrorCode#HDR_PHOTO_CANCELED}完成。
+     * 连拍、间隔拍照({@link PhotoParams#isBurst()})时，每张照片回调{@link TakePhotoListener#onBurstShotComplete}，
+     * 全部结束后回调完成；取消返回的结果将停止拍照，回调以{@link PiErrorCode#TAKE_PHOTO_CANCELED}完成。
+     *
+     * @param listener 拍照回调事件，每次拍照使用新的实例
+     * @return 拍照完成的错误码，0:成功
+     */
+    @NonNull
+    public static CompletableFuture<Integer> takePhotoAsync(@NonNull TakePhotoListener listener) {
         if (checkPanoSDKNotInit()) {
             listener.dispatchTakePhotoComplete(PiErrorCode.NOT_INIT);
-            return;
+            return listener.mCompletion;
         }
         mSingle.mCameraSurfaceView.takePhoto(listener);
+        return listener.mCompletion;
     }
 
     /**
@@ -412,6 +431,32 @@ class PilotSDK {
 
     private static MediaRecorderUtil mMediaRecorderForThumb;
 
+    /**
+     * 当前或最近一次录像的状态统计
+     */
+    private static RecordTelemetry mRecordTelemetry;
+    private static IRecordTelemetryListener mRecordTelemetryListener;
+    /**
+     * 当前录像的存储监测
+     */
+    private static StorageMonitor mStorageMonitor;
+    private static long mRecordTelemetryIntervalMs;
+    private static Handler mRecordTelemetryHandler;
+    private static final Runnable mRecordTelemetryTask = new Runnable() {
+        @Override
+        public void run() {
+            IRecordTelemetryListener listener = mRecordTelemetryListener;
+            if (listener == null) {
+                return;
+            }
+            RecordTelemetry telemetry = RecordTelemetry.getCurrent();
+            if (telemetry != null) {
+                listener.onRecordTelemetry(telemetry.snapshot());
+            }
+            mRecordTelemetryHandler.postDelayed(this, mRecordTelemetryIntervalMs);
+        }
+    };
+
     /**
      * 获取当前镜头设置帧率
      */
@@ -481,8 +526,7 @@ class PilotSDK {
             return;
         }
         boolean isLargePreviewSize = cameraSurfaceView.isLargePreviewSize();
-        boolean isStitched = (params.screenVideo) ||
-                (isLargePreviewSize && (params.memomotionRatio == 0 || params.useForGoogleMap));
+        boolean isStitched = isRecordStitched(params, isLargePreviewSize);
         if (isStitched) {
             File file = new File(params.getDirPath(), params.getBasicName() + PiFileStitchFlag.stitch + ".mp4");
             createDir(file.getParentFile());
@@ -495,11 +539,7 @@ class PilotSDK {
         }
         mVideoParams = params;
         params.fillValue();
-        int previewFps = cameraSurfaceView.getPreviewFps();
-        if (previewFps == params.fps && params.cSize != null && params.cSize.length >= 3) {
-            //fix 慢动作视频
-            previewFps = params.cSize[2];
-        }
+        int previewFps = getRecordPreviewFps(cameraSurfaceView, params);
         if (params.fps < 1) {
             params.fps = previewFps;
         }
@@ -518,16 +558,27 @@ class PilotSDK {
         if (!params.useForGoogleMap && !isVlog) {
             cameraSurfaceView.mPiPano.setParamReCaliEnable(0, false);
         }
+        RecordTelemetry telemetry = new RecordTelemetry();
+        mRecordTelemetry = telemetry;
+        RecordTelemetry.setCurrent(telemetry);
+        StorageMonitor storageMonitor = createStorageMonitor(params);
+        mStorageMonitor = storageMonitor;
         mMediaRecorders = new MediaRecorderUtilBase[recorderCount];
         Surface[] surfaces = new Surface[recorderCount];
         for (int i = 0; i < recorderCount; ++i) {
-            MediaRecorderUtilBase recorder = createMediaRecorderUtil(params.screenVideo ||
-                    isLargePreviewSize || params.memomotionRatio != 0 || params.useForGoogleMap);
+            MediaRecorderUtilBase recorder = createMediaRecorderUtil(isRecordByPano(params, isLargePreviewSize));
             recorder.setAudioEncoderExt(params.audioEncoderExtList);
             recorder.setAudioRecordExt(params.audioRecordExt);
             if (i == 0) {
                 recorder.setCallback(callback);
             }
+            recorder.setTelemetry(telemetry);
+            recorder.setStorageMonitor(storageMonitor);
+            recorder.setFragmentedMp4(params.fragmentDurationMs);
+            if (isStitched) {
+                recorder.setSegmentParams(params.segmentDurationMs, params.segmentMaxBytes,
+                        params.segmentMinFreeBytes, params.segmentListener);
+            }
             String filename = isStitched ? params.mCurrentVideoFilename : params.mCurrentVideoFilename + "/" + i + ".mp4";
             Surface surface = recorder.startRecord(mSingle.mContext, filename,
                     EncodeConverter.convertVideoMime(params.encode),
@@ -541,6 +592,9 @@ class PilotSDK {
             mMediaRecorders[i] = recorder;
             surfaces[i] = surface;
         }
+        if (storageMonitor != null) {
+            storageMonitor.start();
+        }
         params.saveConfig(cameraSurfaceView.mLensProtected, cameraSurfaceView.getFov());
         //录鱼眼时,保存preview.mp4
         Surface thumbSurface = null;
@@ -584,6 +638,167 @@ class PilotSDK {
         }
     }
 
+    /**
+     * 创建存储监测，回调与策略都未设置时不监测
+     */
+    @Nullable
+    private static StorageMonitor createStorageMonitor(@NonNull VideoParams params) {
+        final IStorageMonitorListener listener = params.storageMonitorListener;
+        if (listener == null && params.storagePolicy == null) {
+            return null;
+        }
+        StoragePolicy policy = params.storagePolicy != null ? params.storagePolicy : new StoragePolicy();
+        return new StorageMonitor(new File(params.getDirPath()), policy, (action, status) -> {
+            Log.w(TAG, "storage action:" + action + "," + status);
+            switch (action) {
+                case StorageMonitor.ACTION_REDUCE_BITRATE:
+                    MediaRecorderUtilBase[] recorders = mMediaRecorders;
+                    if (recorders != null) {
+                        for (MediaRecorderUtilBase recorder : recorders) {
+                            if (recorder != null) {
+                                recorder.reduceVideoBitrate();
+                            }
+                        }
+                    }
+                    if (listener != null) {
+                        listener.onStorageBitrateReduced(status);
+                    }
+                    break;
+                case StorageMonitor.ACTION_STOP:
+                    // 不依赖监听者，直接停止录像以保证文件完整；停止时会关闭监测线程，需在新线程停止
+                    new Thread(() -> {
+                        if (mVideoParams == params) {
+                            stopRecord(true, false);
+                        }
+                    }, "StorageStopRecord").start();
+                    if (listener != null) {
+                        listener.onStorageStopRequired(status);
+                    }
+                    break;
+                default:
+                    if (listener != null) {
+                        listener.onStorageWarning(status);
+                    }
+                    break;
+            }
+        });
+    }
+
+    /**
+     * 获取当前录像的存储状态
+     *
+     * @return null:未在录像或未开启存储监测
+     */
+    @Nullable
+    public static StorageStatus getStorageStatus() {
+        StorageMonitor monitor = mStorageMonitor;
+        return monitor == null ? null : monitor.getStatus();
+    }
+
+    /**
+     * 获取当前录像的状态统计，未在录像时为最近一次录像的统计
+     *
+     * @return null:未录像过
+     */
+    @Nullable
+    public static RecordTelemetrySnapshot getRecordTelemetry() {
+        RecordTelemetry telemetry = mRecordTelemetry;
+        return telemetry == null ? null : telemetry.snapshot();
+    }
+
+    /**
+     * 设置录像状态统计的定时回调，录像中按周期在主线程回调
+     *
+     * @param listener   回调，null:取消
+     * @param intervalMs 回调周期
+     */
+    public static synchronized void setRecordTelemetryListener(@Nullable IRecordTelemetryListener listener, long intervalMs) {
+        if (mRecordTelemetryHandler == null) {
+            mRecordTelemetryHandler = new Handler(Looper.getMainLooper());
+        }
+        mRecordTelemetryHandler.removeCallbacks(mRecordTelemetryTask);
+        mRecordTelemetryListener = listener;
+        mRecordTelemetryIntervalMs = Math.max(100, intervalMs);
+        if (listener != null) {
+            mRecordTelemetryHandler.postDelayed(mRecordTelemetryTask, mRecordTelemetryIntervalMs);
+        }
+    }
+
+    /**
+     * 预先创建录像的视频编码器，缩短开始录像的耗时。
+     * 应在录像参数确定后（如切换到录像分辨率后）调用，参数与之后{@link #startVideo}的参数一致时生效，
+     * 空闲的编码器受数量、分辨率预算限制，不再录像时可调用{@link #releaseVideoEncoders()}释放。
+     *
+     * @param params 录像参数
+     */
+    public static void prepareVideo(@NonNull VideoParams params) {
+        if (checkPanoSDKNotInit()) {
+            return;
+        }
+        final CameraSurfaceView cameraSurfaceView = mSingle.mCameraSurfaceView;
+        int recorderCount = cameraSurfaceView.getCameraToTextureCount();
+        if (recorderCount == 0) {
+            return;
+        }
+        boolean isLargePreviewSize = cameraSurfaceView.isLargePreviewSize();
+        boolean isStitched = isRecordStitched(params, isLargePreviewSize);
+        if (isStitched) {
+            recorderCount = 1;
+        }
+        params.fillValue();
+        int previewFps = getRecordPreviewFps(cameraSurfaceView, params);
+        int fps = params.fps < 1 ? previewFps : params.fps;
+        if (isRecordByPano(params, isLargePreviewSize) ||
+                SystemPropertiesProxy.getInt(Config.PERSIST_DEV_PANO_MEDIACODE_WAY, -1) == 1) {
+            MediaRecorderUtil.prewarmVideoEncoder(EncodeConverter.convertVideoMime(params.encode),
+                    params.videoWidth, params.videoHeight, fps, params.bitRate,
+                    params.useForGoogleMap, params.memomotionRatio, previewFps, recorderCount);
+        }
+        if (!isStitched && previewFps < 100 && fps < 100) {
+            // preview.mp4
+            MediaRecorderUtil.prewarmVideoEncoder(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 320, fps, 640 * 320 * 2,
+                    false, params.memomotionRatio, previewFps, 1);
+        }
+    }
+
+    /**
+     * 释放预先创建的录像编码器
+     */
+    public static void releaseVideoEncoders() {
+        MediaRecorderUtil.clearVideoEncoderPool();
+    }
+
+    /**
+     * 设置预先创建的录像编码器的预算，超出的空闲编码器立即释放。
+     * 默认值可由{@link Config#PERSIST_DEV_ENCODER_POOL_MAX_IDLE}等属性配置。
+     *
+     * @param maxIdle       最多保留的空闲编码器数，0:不保留
+     * @param maxPixels     空闲编码器的像素数（宽*高）之和上限
+     * @param idleTimeoutMs 空闲编码器超时释放的时间，小于等于0:不超时
+     */
+    public static void setVideoEncoderPoolBudget(int maxIdle, long maxPixels, long idleTimeoutMs) {
+        MediaRecorderUtil.setVideoEncoderPoolBudget(maxIdle, maxPixels);
+        MediaRecorderUtil.setVideoEncoderPoolIdleTimeout(idleTimeoutMs);
+    }
+
+    private static boolean isRecordStitched(@NonNull VideoParams params, boolean isLargePreviewSize) {
+        return (params.screenVideo) ||
+                (isLargePreviewSize && (params.memomotionRatio == 0 || params.useForGoogleMap));
+    }
+
+    private static boolean isRecordByPano(@NonNull VideoParams params, boolean isLargePreviewSize) {
+        return params.screenVideo || isLargePreviewSize || params.memomotionRatio != 0 || params.useForGoogleMap;
+    }
+
+    private static int getRecordPreviewFps(@NonNull CameraSurfaceView cameraSurfaceView, @NonNull VideoParams params) {
+        int previewFps = cameraSurfaceView.getPreviewFps();
+        if (previewFps == params.fps && params.cSize != null && params.cSize.length >= 3) {
+            //fix 慢动作视频
+            previewFps = params.cSize[2];
+        }
+        return previewFps;
+    }
+
     @NonNull
     private static MediaRecorderUtilBase createMediaRecorderUtil(boolean byPano) {
         if (byPano) {
@@ -649,6 +864,8 @@ class PilotSDK {
             }
             mMediaRecorders = null;
         }
+        RecordTelemetry.setCurrent(null);
+        stopStorageMonitor();
         if (isStitched) {
             cameraSurfaceView.mPiPano.setStabilizationFile(null);
         }
@@ -658,6 +875,15 @@ class PilotSDK {
         mVideoParams = null;
     }
 
+    private static void stopStorageMonitor() {
+        StorageMonitor monitor = mStorageMonitor;
+        if (monitor != null) {
+            monitor.stop();
+            Log.i(TAG, "record " + monitor);
+            mStorageMonitor = null;
+        }
+    }
+
     private static void createDir(File file) {
         if (!file.exists()) {
             file.mkdirs();
@@ -760,6 +986,12 @@ class PilotSDK {
                         mMediaRecorders[i] = null;
                     }
                 }
+                RecordTelemetry telemetry = RecordTelemetry.getCurrent();
+                if (telemetry != null) {
+                    RecordTelemetry.setCurrent(null);
+                    Log.i(TAG, "record " + telemetry);
+                }
+                stopStorageMonitor();
                 if (mMediaRecorderForThumb != null) {
                     String thumbFilepath = mMediaRecorderForThumb.stopRecord(false, isPano, versionName, artist, 0);
                     PiPano.spatialMediaFromOldMp4(filename, thumbFilepath, isPano);
@@ -1106,6 +1338,7 @@ class PilotSDK {
         }
         mSingle.mCameraSurfaceView.setOnPanoModeChangeListener(null);
         mSingle.mPanoSDKListener = null;
+        MediaRecorderUtil.clearVideoEncoderPool();
         mSingle.mCameraSurfaceView.release(callback);
     }
 
@@ -0,0 +1,170 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import com.pi.pano.ext.IAudioBufferEncoderExt;
+import com.pi.pano.ext.IAudioEncoderExt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * 音频编码扩展处理链。
+ * byte[]处理器在byte[]之间交替处理，与原处理方式一致；
+ * 末尾连续的基于缓冲的处理器({@link IAudioBufferEncoderExt})直接在编码器输入缓冲上原地处理，输出到缓冲时与预分配的直接内存交替。
+ * 之后还有byte[]处理器的基于缓冲的处理器仍按byte[]方式调用，来回切换需复制两次，不少于转换调用的一次。
+ * 只在切换到缓冲处理以及最后写入编码器输入缓冲时复制，复制次数不多于原处理方式，处理结果与原处理方式逐字节一致。
+ * 缓冲均在创建时分配。
+ * <p>
+ * 本类不依赖Android。
+ */
+class AudioEncoderExtChain {
+    private final IAudioEncoderExt[] mStages;
+    /**
+     * 末尾连续的基于缓冲的处理器的起始序号，之前的处理器均按byte[]方式调用
+     */
+    private final int mBufferFrom;
+    private final int mMaxSize;
+    /**
+     * byte[]处理器的交替缓冲
+     */
+    private final byte[] mArray0;
+    private final byte[] mArray1;
+    /**
+     * 基于缓冲处理器的输出缓冲
+     */
+    private final ByteBuffer mBuffer0;
+    private final ByteBuffer mBuffer1;
+
+    private long mFrameCount;
+    private long mCopyCount;
+    private long mCopyBytes;
+
+    /**
+     * @param maxSize 单次处理的最大字节数
+     */
+    AudioEncoderExtChain(@NonNull List<IAudioEncoderExt> stages, int maxSize) {
+        mStages = stages.toArray(new IAudioEncoderExt[0]);
+        mMaxSize = maxSize;
+        int bufferFrom = mStages.length;
+        while (bufferFrom > 0 && mStages[bufferFrom - 1] instanceof IAudioBufferEncoderExt) {
+            bufferFrom--;
+        }
+        mBufferFrom = bufferFrom;
+        boolean hasArrayStage = bufferFrom > 0;
+        boolean hasBufferStage = bufferFrom < mStages.length;
+        mArray0 = hasArrayStage ? new byte[maxSize] : null;
+        mArray1 = hasArrayStage ? new byte[maxSize] : null;
+        mBuffer0 = hasBufferStage ? ByteBuffer.allocateDirect(maxSize).order(ByteOrder.LITTLE_ENDIAN) : null;
+        mBuffer1 = hasBufferStage ? ByteBuffer.allocateDirect(maxSize).order(ByteOrder.LITTLE_ENDIAN) : null;
+    }
+
+    /**
+     * 处理一帧pcm数据并写入编码器输入缓冲
+     *
+     * @param data   输入数据，可能被修改
+     * @param size   输入长度
+     * @param target 编码器输入缓冲，从position写入，容量不小于处理结果；字节序会被设为小端
+     * @return 写入target的字节数
+     */
+    int process(@NonNull byte[] data, int size, @NonNull ByteBuffer target) {
+        mFrameCount++;
+        final int base = target.position();
+        final int limit = target.limit();
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] array = data;
+        for (int i = 0; i < mBufferFrom; i++) {
+            byte[] out = array == mArray0 ? mArray1 : mArray0;
+            int count = mStages[i].encodeProcess(array, size, out);
+            if (count != -1) { // 成功处理，out有效
+                size = count;
+                array = out;
+            }
+        }
+        // 当前数据所在：array不为null时在array[0,size)，否则在buffer[position,position+size)
+        ByteBuffer buffer = null;
+        if (mBufferFrom < mStages.length) {
+            // 复制到编码器输入缓冲，之后原地处理
+            target.limit(target.capacity());
+            target.position(base);
+            target.put(array, 0, size);
+            target.position(base);
+            buffer = target;
+            array = null;
+            countCopy(size);
+        }
+        for (int i = mBufferFrom; i < mStages.length; i++) {
+            final int position = buffer.position();
+            buffer.limit(position + size);
+            ByteBuffer out = buffer == mBuffer0 ? mBuffer1 : mBuffer0;
+            out.clear();
+            ByteBuffer result = ((IAudioBufferEncoderExt) mStages[i]).encodeProcess(buffer, out);
+            if (result == out) {
+                buffer = out;
+            } else if (result != buffer) {
+                // 未处理，恢复范围
+                buffer.limit(position + size);
+                buffer.position(position);
+            }
+            size = buffer.remaining();
+        }
+        if (array != null) {
+            target.limit(limit);
+            target.position(base);
+            target.put(array, 0, size);
+            countCopy(size);
+        } else if (buffer != target) {
+            target.limit(limit);
+            target.position(base);
+            target.put(buffer);
+            countCopy(size);
+        } else {
+            int start = buffer.position();
+            if (start != base) {
+                // 原地处理后数据不在起始处，移到起始处
+                target.limit(start + size);
+                ByteBuffer src = target.slice();
+                target.limit(limit);
+                target.position(base);
+                target.put(src);
+                countCopy(size);
+            } else {
+                target.limit(limit);
+                target.position(base + size);
+            }
+        }
+        return size;
+    }
+
+    private void countCopy(int size) {
+        mCopyCount++;
+        mCopyBytes += size;
+    }
+
+    int getMaxSize() {
+        return mMaxSize;
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 累计复制次数，不含处理器内部以及按byte[]方式调用基于缓冲的处理器时的复制
+     */
+    long getCopyCount() {
+        return mCopyCount;
+    }
+
+    long getCopyBytes() {
+        return mCopyBytes;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "AudioEncoderExtChain{stages=" + mStages.length + ",frames=" + mFrameCount + ",copies=" + mCopyCount +
+                ",copyBytes=" + mCopyBytes + "}";
+    }
+}
@@ -0,0 +1,246 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可复用的直接内存缓存池。
+ * 缓存按粒度向上取整分配，归还后按容量保留，之后分配时复用不小于所需大小的最小缓存(不超过所需的2倍)；
+ * 总分配量不超过预算，超出时先释放空闲缓存，仍不足则分配失败，由调用方选择其他方式，或等待使用中的缓存归还。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class BufferArena {
+    private static final String TAG = "BufferArena";
+
+    /**
+     * 从池中分配的缓存，使用后需{@link #release(Block)}
+     */
+    static final class Block {
+        private final ByteBuffer mBuffer;
+        private int mSize;
+        private boolean mReleased;
+
+        private Block(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        int capacity() {
+            return mBuffer.capacity();
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * 写入数据，超出容量时截断
+         *
+         * @return 写入的字节数
+         */
+        int put(@NonNull ByteBuffer src) {
+            ByteBuffer data = src.duplicate();
+            if (data.remaining() > mBuffer.capacity()) {
+                data.limit(data.position() + mBuffer.capacity());
+            }
+            mBuffer.clear();
+            mBuffer.put(data);
+            mSize = mBuffer.position();
+            return mSize;
+        }
+
+        /**
+         * 已写入的数据，position为0，limit为数据大小
+         */
+        @NonNull
+        ByteBuffer data() {
+            ByteBuffer data = mBuffer.duplicate();
+            data.clear();
+            data.limit(mSize);
+            return data;
+        }
+
+        /**
+         * 以输入流读取已写入的数据
+         */
+        @NonNull
+        InputStream openStream() {
+            final ByteBuffer data = data();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return data.hasRemaining() ? data.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(@NonNull byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!data.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, data.remaining());
+                    data.get(b, off, len);
+                    return len;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int count = (int) Math.max(0, Math.min(n, data.remaining()));
+                    data.position(data.position() + count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return data.remaining();
+                }
+            };
+        }
+    }
+
+    private final long mBudgetBytes;
+    private final int mGranularity;
+    /**
+     * 空闲缓存，按容量
+     */
+    private final TreeMap<Integer, ArrayDeque<ByteBuffer>> mFree = new TreeMap<>();
+    private long mAllocatedBytes;
+    private long mFreeBytes;
+
+    /**
+     * @param budgetBytes 总分配量上限
+     * @param granularity 分配粒度
+     */
+    BufferArena(long budgetBytes, int granularity) {
+        mBudgetBytes = budgetBytes;
+        mGranularity = Math.max(1, granularity);
+    }
+
+    /**
+     * 分配至少size字节的缓存
+     *
+     * @return 超出预算时为null
+     */
+    @Nullable
+    synchronized Block allocate(int size) {
+        final long rounded = round(size);
+        if (rounded > Integer.MAX_VALUE || rounded > mBudgetBytes) {
+            return null;
+        }
+        // 复用的缓存不超过所需的2倍，避免小数据占用大缓存
+        Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = mFree.ceilingEntry(size);
+        if (entry != null && entry.getKey() <= rounded * 2) {
+            ByteBuffer buffer = entry.getValue().pollFirst();
+            if (entry.getValue().isEmpty()) {
+                mFree.remove(entry.getKey());
+            }
+            mFreeBytes -= buffer.capacity();
+            return new Block(buffer);
+        }
+        // 释放空闲缓存腾出预算，从大到小
+        while (mAllocatedBytes + rounded > mBudgetBytes && !mFree.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> last = mFree.lastEntry();
+            ByteBuffer buffer = last.getValue().pollFirst();
+            if (last.getValue().isEmpty()) {
+                mFree.remove(last.getKey());
+            }
+            mFreeBytes -= buffer.capacity();
+            mAllocatedBytes -= buffer.capacity();
+        }
+        if (mAllocatedBytes + rounded > mBudgetBytes) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) rounded);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        }
+        mAllocatedBytes += rounded;
+        return new Block(buffer);
+    }
+
+    /**
+     * 分配至少size字节的缓存，超出预算时等待使用中的缓存归还
+     *
+     * @param timeoutMs 最长等待时间
+     * @return 超时、没有使用中的缓存或单个缓存超出预算时为null
+     * @throws InterruptedException 等待被中断
+     */
+    @Nullable
+    synchronized Block allocate(int size, long timeoutMs) throws InterruptedException {
+        if (round(size) > mBudgetBytes) {
+            return null;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Block block;
+        while ((block = allocate(size)) == null && mAllocatedBytes > mFreeBytes) {
+            final long remainingNs = deadline - System.nanoTime();
+            if (remainingNs <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+        }
+        return block;
+    }
+
+    private long round(int size) {
+        return ((long) Math.max(1, size) + mGranularity - 1) / mGranularity * mGranularity;
+    }
+
+    /**
+     * 归还缓存，重复归还忽略，唤醒等待分配的线程
+     */
+    synchronized void release(@Nullable Block block) {
+        if (block == null || block.mReleased) {
+            return;
+        }
+        block.mReleased = true;
+        block.mSize = 0;
+        ByteBuffer buffer = block.mBuffer;
+        ArrayDeque<ByteBuffer> list = mFree.get(buffer.capacity());
+        if (list == null) {
+            list = new ArrayDeque<>();
+            mFree.put(buffer.capacity(), list);
+        }
+        list.addFirst(buffer);
+        mFreeBytes += buffer.capacity();
+        notifyAll();
+    }
+
+    /**
+     * 释放所有空闲缓存
+     */
+    synchronized void trim() {
+        mAllocatedBytes -= mFreeBytes;
+        mFreeBytes = 0;
+        mFree.clear();
+    }
+
+    /**
+     * 已分配的字节数，包括空闲缓存
+     */
+    synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return TAG + "{allocated=" + mAllocatedBytes + ",free=" + mFreeBytes + ",budget=" + mBudgetBytes + "}";
+    }
+}
@@ -0,0 +1,356 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 连拍、间隔拍照的图像保存。
+ * 采集到的图像放入有界队列，由固定数量的写入线程保存，下一张的采集不等待前一张保存完成。
+ * 队列满时按{@link Policy}处理：阻塞采集线程、丢弃该张、或在队列积压时降级保存(队列满时仍阻塞)。
+ * 每张图像以保存、降级保存、失败或丢弃之一结束，并统计持续拍摄速率(张/秒)与队列深度。
+ * <p>
+ * 本类不依赖Android。
+ *
+ * @param <I> 图像
+ */
+final class BurstCapturePipeline<I> {
+    private static final String TAG = "BurstCapturePipeline";
+
+    /**
+     * 队列满时的处理策略
+     */
+    enum Policy {
+        /**
+         * 阻塞采集线程，不丢弃
+         */
+        BLOCK,
+        /**
+         * 丢弃该张
+         */
+        DROP,
+        /**
+         * 队列积压过半时降级保存，队列满时阻塞
+         */
+        DEGRADE,
+    }
+
+    static final int RESULT_WRITTEN = 0;
+    static final int RESULT_DEGRADED = 1;
+    static final int RESULT_DROPPED = 2;
+    static final int RESULT_FAILED = 3;
+
+    interface Writer<I> {
+        /**
+         * 在写入线程保存图像
+         *
+         * @param degraded 是否降级保存
+         * @return 0:成功，其他为错误码
+         */
+        int write(int index, @NonNull I image, boolean degraded) throws Exception;
+
+        /**
+         * 图像保存或丢弃后回收，每张图像回调一次
+         */
+        void recycle(@NonNull I image);
+    }
+
+    interface Listener {
+        /**
+         * 一张图像结束，在写入或丢弃的线程回调
+         *
+         * @param result    {@link #RESULT_WRITTEN}、{@link #RESULT_DEGRADED}、{@link #RESULT_DROPPED}或{@link #RESULT_FAILED}
+         * @param errorCode 保存失败时的错误码
+         */
+        void onShotComplete(int index, int result, int errorCode);
+    }
+
+    private static final class Shot<I> {
+        final int index;
+        final I image;
+        final boolean degraded;
+        final long enqueueNs;
+
+        Shot(int index, I image, boolean degraded, long enqueueNs) {
+            this.index = index;
+            this.image = image;
+            this.degraded = degraded;
+            this.enqueueNs = enqueueNs;
+        }
+    }
+
+    private final Policy mPolicy;
+    private final Writer<I> mWriter;
+    private final LongSupplier mClockNs;
+    private final ArrayBlockingQueue<Shot<I>> mQueue;
+    private final int mDegradeDepth;
+    private final Thread[] mThreads;
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram("burstWrite");
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram("burstQueue");
+    @Nullable
+    private volatile Listener mListener;
+    private volatile boolean mClosed;
+    private volatile boolean mCancelled;
+    private volatile int mMaxDepth;
+    private int mOfferCount;
+    private int mWrittenCount;
+    private int mDegradedCount;
+    private int mDroppedCount;
+    /**
+     * 已放入后被丢弃的张数
+     */
+    private int mOfferDroppedCount;
+    private int mFailedCount;
+    private long mBlockedNs;
+    private long mFirstOfferNs = -1;
+    private long mLastCompleteNs = -1;
+
+    /**
+     * @param threadCount 写入线程数
+     * @param capacity    队列中最多等待保存的张数，不含写入线程正在保存的
+     */
+    BurstCapturePipeline(int threadCount, int capacity, @NonNull Policy policy, @NonNull Writer<I> writer,
+                         @NonNull LongSupplier clockNs) {
+        mPolicy = policy;
+        mWriter = writer;
+        mClockNs = clockNs;
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        mDegradeDepth = Math.max(1, Math.max(1, capacity) / 2);
+        mThreads = new Thread[Math.max(1, threadCount)];
+        for (int i = 0; i < mThreads.length; i++) {
+            mThreads[i] = new Thread(this::writeLoop, "BurstWriter-" + i);
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 放入采集到的图像，{@link Policy#BLOCK}、{@link Policy#DEGRADE}时队列满则阻塞
+     *
+     * @return 是否放入队列，未放入时图像已回收并以{@link #RESULT_DROPPED}结束
+     */
+    boolean offer(int index, @NonNull I image) {
+        final long now = mClockNs.getAsLong();
+        synchronized (this) {
+            mOfferCount++;
+            if (mFirstOfferNs < 0) {
+                mFirstOfferNs = now;
+            }
+        }
+        if (mClosed) {
+            drop(index, image);
+            return false;
+        }
+        Shot<I> shot = new Shot<>(index, image,
+                mPolicy == Policy.DEGRADE && mQueue.size() >= mDegradeDepth, now);
+        if (mPolicy == Policy.DROP) {
+            if (!mQueue.offer(shot)) {
+                drop(index, image);
+                return false;
+            }
+        } else {
+            try {
+                while (!mQueue.offer(shot, 20, TimeUnit.MILLISECONDS)) {
+                    if (mClosed) {
+                        drop(index, image);
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drop(index, image);
+                return false;
+            }
+            synchronized (this) {
+                mBlockedNs += mClockNs.getAsLong() - now;
+            }
+        }
+        int depth = mQueue.size();
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        return true;
+    }
+
+    /**
+     * 记录未能放入的一张，如采集失败、没有缓存
+     */
+    void drop(int index) {
+        synchronized (this) {
+            mDroppedCount++;
+            mLastCompleteNs = mClockNs.getAsLong();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onShotComplete(index, RESULT_DROPPED, 0);
+        }
+    }
+
+    private void drop(int index, I image) {
+        try {
+            mWriter.recycle(image);
+        } finally {
+            synchronized (this) {
+                mOfferDroppedCount++;
+            }
+            drop(index);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Shot<I> shot;
+            try {
+                shot = mQueue.poll(20, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (shot == null) {
+                if (mClosed) {
+                    return;
+                }
+                continue;
+            }
+            if (mCancelled) {
+                drop(shot.index, shot.image);
+                continue;
+            }
+            final long begin = mClockNs.getAsLong();
+            mQueueLatency.recordNs(begin - shot.enqueueNs);
+            int errorCode;
+            try {
+                errorCode = mWriter.write(shot.index, shot.image, shot.degraded);
+            } catch (Throwable t) {
+                t.printStackTrace();
+                errorCode = -1;
+            } finally {
+                mWriter.recycle(shot.image);
+            }
+            final long end = mClockNs.getAsLong();
+            mWriteLatency.recordNs(end - begin);
+            final int result = errorCode != 0 ? RESULT_FAILED : shot.degraded ? RESULT_DEGRADED : RESULT_WRITTEN;
+            synchronized (this) {
+                if (result == RESULT_FAILED) {
+                    mFailedCount++;
+                } else if (result == RESULT_DEGRADED) {
+                    mDegradedCount++;
+                } else {
+                    mWrittenCount++;
+                }
+                mLastCompleteNs = end;
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onShotComplete(shot.index, result, errorCode);
+            }
+        }
+    }
+
+    /**
+     * 保存队列中剩余的图像并结束写入线程，不能在写入线程中调用
+     */
+    void close() {
+        mClosed = true;
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // 关闭时仍在放入的图像
+        Shot<I> shot;
+        while ((shot = mQueue.poll()) != null) {
+            drop(shot.index, shot.image);
+        }
+    }
+
+    /**
+     * 丢弃队列中未保存的图像，正在保存的继续完成，不等待写入线程结束
+     */
+    void cancel() {
+        mCancelled = true;
+        mClosed = true;
+        Shot<I> shot;
+        while ((shot = mQueue.poll()) != null) {
+            drop(shot.index, shot.image);
+        }
+    }
+
+    /**
+     * 已放入、未结束的张数，含写入线程正在保存的
+     */
+    synchronized int getPendingCount() {
+        return mOfferCount - mWrittenCount - mDegradedCount - mFailedCount - mOfferDroppedCount;
+    }
+
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    synchronized int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    synchronized int getDegradedCount() {
+        return mDegradedCount;
+    }
+
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * 持续拍摄速率：从第一张放入到最近一张结束，已保存(含降级)的张数每秒
+     */
+    synchronized float getShotsPerSecond() {
+        final int saved = mWrittenCount + mDegradedCount;
+        final long elapsedNs = mLastCompleteNs - mFirstOfferNs;
+        if (saved == 0 || mFirstOfferNs < 0 || elapsedNs <= 0) {
+            return 0;
+        }
+        return saved * 1e9f / elapsedNs;
+    }
+
+    /**
+     * 单张保存耗时
+     */
+    @NonNull
+    LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * 图像在队列中等待保存的时间
+     */
+    @NonNull
+    LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return TAG + "{policy=" + mPolicy + ",threads=" + mThreads.length + ",depth=" + getQueueDepth() +
+                ",maxDepth=" + mMaxDepth + ",offer=" + mOfferCount + ",written=" + mWrittenCount +
+                ",degraded=" + mDegradedCount + ",dropped=" + mDroppedCount + ",failed=" + mFailedCount +
+                ",blocked=" + mBlockedNs / 1000_000 + "ms,rate=" + getShotsPerSecond() + "/s," +
+                mWriteLatency + "," + mQueueLatency + "}";
+    }
+}
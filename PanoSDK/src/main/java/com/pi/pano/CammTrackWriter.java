@@ -0,0 +1,179 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * camm(Camera Motion Metadata)轨道数据写入。
+ * 每个数据包为 [uint16 保留][uint16 类型][数据]，全部为小端序，直接写入复用的缓冲，不分配临时对象。
+ * 同一轨道内样本时间戳保证不递减。
+ * <p>
+ * 本类不依赖Android，写入目标通过{@link Sink}注入。
+ */
+class CammTrackWriter {
+    static final int TYPE_ANGLE_AXIS = 0;
+    static final int TYPE_EXPOSURE = 1;
+    static final int TYPE_GYRO = 2;
+    static final int TYPE_ACCELERATION = 3;
+    static final int TYPE_POSITION = 4;
+    static final int TYPE_LAT_LON_ALT = 5;
+    static final int TYPE_GPS = 6;
+    static final int TYPE_MAGNETIC_FIELD = 7;
+
+    /**
+     * 各类型数据包的字节数(含4字节包头)
+     */
+    static final int SIZE_VECTOR = 4 + 3 * 4;
+    static final int SIZE_EXPOSURE = 4 + 2 * 4;
+    static final int SIZE_LAT_LON_ALT = 4 + 3 * 8;
+    static final int SIZE_GPS = 4 + 8 + 4 + 8 + 8 + 7 * 4;
+
+    /**
+     * 数据包写入目标，对应MediaMuxer的camm轨道
+     */
+    interface Sink {
+        /**
+         * @param buffer 数据从0开始,长度为size
+         */
+        void writeSample(@NonNull ByteBuffer buffer, int size, long presentationTimeUs);
+    }
+
+    private final Sink mSink;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+    private long mLastTimeUs = Long.MIN_VALUE;
+    private long mPacketCount;
+    private long mByteCount;
+
+    CammTrackWriter(@NonNull Sink sink) {
+        mSink = sink;
+    }
+
+    long getPacketCount() {
+        return mPacketCount;
+    }
+
+    long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 陀螺仪，单位rad/s
+     */
+    void writeGyro(long timeUs, float x, float y, float z) {
+        writeVector(TYPE_GYRO, timeUs, x, y, z);
+    }
+
+    /**
+     * 加速度，单位m/s^2
+     */
+    void writeAcceleration(long timeUs, float x, float y, float z) {
+        writeVector(TYPE_ACCELERATION, timeUs, x, y, z);
+    }
+
+    /**
+     * 磁场，单位uT
+     */
+    void writeMagneticField(long timeUs, float x, float y, float z) {
+        writeVector(TYPE_MAGNETIC_FIELD, timeUs, x, y, z);
+    }
+
+    void writeAngleAxis(long timeUs, float x, float y, float z) {
+        writeVector(TYPE_ANGLE_AXIS, timeUs, x, y, z);
+    }
+
+    void writePosition(long timeUs, float x, float y, float z) {
+        writeVector(TYPE_POSITION, timeUs, x, y, z);
+    }
+
+    /**
+     * 曝光时间与卷帘快门偏移，单位ns
+     */
+    void writeExposure(long timeUs, int pixelExposureTimeNs, int rollingShutterSkewTimeNs) {
+        begin(TYPE_EXPOSURE);
+        mBuffer.putInt(pixelExposureTimeNs);
+        mBuffer.putInt(rollingShutterSkewTimeNs);
+        end(timeUs);
+    }
+
+    void writeLatLonAlt(long timeUs, double latitude, double longitude, double altitude) {
+        begin(TYPE_LAT_LON_ALT);
+        mBuffer.putDouble(latitude);
+        mBuffer.putDouble(longitude);
+        mBuffer.putDouble(altitude);
+        end(timeUs);
+    }
+
+    /**
+     * 完整的gps信息
+     *
+     * @param timeGpsEpoch GPS时间(s)
+     * @param fixType      0:无定位 2:2D定位 3:3D定位
+     */
+    void writeGps(long timeUs, double timeGpsEpoch, int fixType, double latitude, double longitude,
+                  float altitude, float horizontalAccuracy, float verticalAccuracy,
+                  float velocityEast, float velocityNorth, float velocityUp, float speedAccuracy) {
+        begin(TYPE_GPS);
+        mBuffer.putDouble(timeGpsEpoch);
+        mBuffer.putInt(fixType);
+        mBuffer.putDouble(latitude);
+        mBuffer.putDouble(longitude);
+        mBuffer.putFloat(altitude);
+        mBuffer.putFloat(horizontalAccuracy);
+        mBuffer.putFloat(verticalAccuracy);
+        mBuffer.putFloat(velocityEast);
+        mBuffer.putFloat(velocityNorth);
+        mBuffer.putFloat(velocityUp);
+        mBuffer.putFloat(speedAccuracy);
+        end(timeUs);
+    }
+
+    /**
+     * 按传感器时间戳交错写入加速度与陀螺仪样本，取出两个缓冲中时间戳不大于refTimestampNs的所有样本。
+     * 样本时间按与参考点的差值换算为refTimeUs - (refTimestampNs - timestamp) / 1000；
+     * 传感器坐标(x, y, z)写为(x, -z, y)。
+     *
+     * @param sample 复用的样本
+     * @return 写入的样本数
+     */
+    int writeImu(@NonNull ImuRingBuffer accelerometer, @NonNull ImuRingBuffer gyroscope,
+                 long refTimestampNs, long refTimeUs, @NonNull ImuRingBuffer.Sample sample) {
+        int count = 0;
+        while (true) {
+            // 时间戳相同时先写加速度
+            final boolean acceleration = accelerometer.peekTimestamp() <= gyroscope.peekTimestamp();
+            if (!(acceleration ? accelerometer : gyroscope).poll(refTimestampNs, sample)) {
+                return count;
+            }
+            writeVector(acceleration ? TYPE_ACCELERATION : TYPE_GYRO,
+                    refTimeUs - (refTimestampNs - sample.timestamp) / 1000, sample.x, -sample.z, sample.y);
+            count++;
+        }
+    }
+
+    private void writeVector(int type, long timeUs, float x, float y, float z) {
+        begin(type);
+        mBuffer.putFloat(x);
+        mBuffer.putFloat(y);
+        mBuffer.putFloat(z);
+        end(timeUs);
+    }
+
+    private void begin(int type) {
+        mBuffer.clear();
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) type);
+    }
+
+    private void end(long timeUs) {
+        if (timeUs < mLastTimeUs) {
+            timeUs = mLastTimeUs;
+        }
+        mLastTimeUs = timeUs;
+        int size = mBuffer.position();
+        mSink.writeSample(mBuffer, size, timeUs);
+        mPacketCount++;
+        mByteCount += size;
+    }
+}
@@ -0,0 +1,293 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * RAW图像的DNG(TIFF)文件头。
+ * 小端序，单个IFD，图像为未压缩的16位CFA数据，作为单个条带紧接在文件头之后；
+ * 文件头与按行紧密排列的RAW数据拼接即为可被通用工具读取的DNG文件。
+ * 仅包含描述图像所需的最少标签，颜色矩阵等未设置时使用默认值。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class DngHeaderBuilder {
+    /**
+     * CFA排列，与CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_*一致
+     */
+    static final int CFA_RGGB = 0;
+    static final int CFA_GRBG = 1;
+    static final int CFA_GBRG = 2;
+    static final int CFA_BGGR = 3;
+
+    /**
+     * 每个样本的字节数
+     */
+    static final int BYTES_PER_SAMPLE = 2;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_SRATIONAL = 10;
+
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC = 262;
+    private static final int TAG_MAKE = 271;
+    private static final int TAG_MODEL = 272;
+    private static final int TAG_STRIP_OFFSETS = 273;
+    private static final int TAG_ORIENTATION = 274;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_SOFTWARE = 305;
+    private static final int TAG_CFA_REPEAT_PATTERN_DIM = 33421;
+    private static final int TAG_CFA_PATTERN = 33422;
+    private static final int TAG_DNG_VERSION = 50706;
+    private static final int TAG_DNG_BACKWARD_VERSION = 50707;
+    private static final int TAG_UNIQUE_CAMERA_MODEL = 50708;
+    private static final int TAG_BLACK_LEVEL = 50714;
+    private static final int TAG_WHITE_LEVEL = 50717;
+    private static final int TAG_COLOR_MATRIX_1 = 50721;
+    private static final int TAG_AS_SHOT_NEUTRAL = 50728;
+    private static final int TAG_CALIBRATION_ILLUMINANT_1 = 50778;
+
+    private static final int PHOTOMETRIC_CFA = 32803;
+    private static final int ILLUMINANT_D65 = 21;
+    private static final int RATIONAL_DENOMINATOR = 10000;
+    /**
+     * 数据开始位置的对齐
+     */
+    private static final int DATA_ALIGNMENT = 16;
+
+    private static final class Entry {
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(int type, int count, byte[] value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private int mCfaArrangement = CFA_RGGB;
+    private int mBlackLevel = 0;
+    private int mWhiteLevel = 1023;
+    private String mMake = "Pilot";
+    private String mModel = "Pano";
+    private String mSoftware = "";
+    private float[] mColorMatrix = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+    private float[] mAsShotNeutral = {1, 1, 1};
+
+    DngHeaderBuilder(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("size:" + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * @param arrangement {@link #CFA_RGGB}、{@link #CFA_GRBG}、{@link #CFA_GBRG}或{@link #CFA_BGGR}
+     */
+    @NonNull
+    DngHeaderBuilder setCfaArrangement(int arrangement) {
+        if (arrangement < CFA_RGGB || arrangement > CFA_BGGR) {
+            throw new IllegalArgumentException("cfa arrangement:" + arrangement);
+        }
+        mCfaArrangement = arrangement;
+        return this;
+    }
+
+    @NonNull
+    DngHeaderBuilder setLevels(int blackLevel, int whiteLevel) {
+        mBlackLevel = blackLevel;
+        mWhiteLevel = whiteLevel;
+        return this;
+    }
+
+    @NonNull
+    DngHeaderBuilder setCamera(@NonNull String make, @NonNull String model, @NonNull String software) {
+        mMake = make;
+        mModel = model;
+        mSoftware = software;
+        return this;
+    }
+
+    /**
+     * @param matrix XYZ到相机色彩空间的3x3矩阵，按行排列
+     */
+    @NonNull
+    DngHeaderBuilder setColorMatrix(@NonNull float[] matrix) {
+        if (matrix.length != 9) {
+            throw new IllegalArgumentException("color matrix length:" + matrix.length);
+        }
+        mColorMatrix = matrix.clone();
+        return this;
+    }
+
+    /**
+     * @param neutral 拍摄时白点的相机RGB值
+     */
+    @NonNull
+    DngHeaderBuilder setAsShotNeutral(@NonNull float[] neutral) {
+        if (neutral.length != 3) {
+            throw new IllegalArgumentException("neutral length:" + neutral.length);
+        }
+        mAsShotNeutral = neutral.clone();
+        return this;
+    }
+
+    /**
+     * 图像数据的字节数，每行{@link #getRowBytes()}，行之间没有填充
+     */
+    long getDataBytes() {
+        return (long) getRowBytes() * mHeight;
+    }
+
+    int getRowBytes() {
+        return mWidth * BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * 生成文件头，图像数据从文件头的结束位置开始
+     *
+     * @return 小端序，position为0，limit为文件头长度
+     */
+    @NonNull
+    ByteBuffer build() {
+        final long dataBytes = getDataBytes();
+        if (dataBytes > 0xffffffffL) {
+            throw new IllegalArgumentException("data too large:" + dataBytes);
+        }
+        TreeMap<Integer, Entry> entries = new TreeMap<>();
+        putLong(entries, TAG_NEW_SUBFILE_TYPE, 0);
+        putLong(entries, TAG_IMAGE_WIDTH, mWidth);
+        putLong(entries, TAG_IMAGE_LENGTH, mHeight);
+        putShort(entries, TAG_BITS_PER_SAMPLE, 16);
+        putShort(entries, TAG_COMPRESSION, 1);
+        putShort(entries, TAG_PHOTOMETRIC, PHOTOMETRIC_CFA);
+        putAscii(entries, TAG_MAKE, mMake);
+        putAscii(entries, TAG_MODEL, mModel);
+        // 条带位置在确定文件头长度后填写
+        putLong(entries, TAG_STRIP_OFFSETS, 0);
+        putShort(entries, TAG_ORIENTATION, 1);
+        putShort(entries, TAG_SAMPLES_PER_PIXEL, 1);
+        putLong(entries, TAG_ROWS_PER_STRIP, mHeight);
+        putLong(entries, TAG_STRIP_BYTE_COUNTS, (int) dataBytes);
+        putShort(entries, TAG_PLANAR_CONFIGURATION, 1);
+        putAscii(entries, TAG_SOFTWARE, mSoftware);
+        entries.put(TAG_CFA_REPEAT_PATTERN_DIM, new Entry(TYPE_SHORT, 2, order(ByteBuffer.allocate(4))
+                .putShort((short) 2).putShort((short) 2).array()));
+        entries.put(TAG_CFA_PATTERN, new Entry(TYPE_BYTE, 4, cfaPattern(mCfaArrangement)));
+        entries.put(TAG_DNG_VERSION, new Entry(TYPE_BYTE, 4, new byte[]{1, 4, 0, 0}));
+        entries.put(TAG_DNG_BACKWARD_VERSION, new Entry(TYPE_BYTE, 4, new byte[]{1, 1, 0, 0}));
+        putAscii(entries, TAG_UNIQUE_CAMERA_MODEL, mMake + " " + mModel);
+        putLong(entries, TAG_BLACK_LEVEL, mBlackLevel);
+        putLong(entries, TAG_WHITE_LEVEL, mWhiteLevel);
+        entries.put(TAG_COLOR_MATRIX_1, rationals(TYPE_SRATIONAL, mColorMatrix));
+        entries.put(TAG_AS_SHOT_NEUTRAL, rationals(TYPE_RATIONAL, mAsShotNeutral));
+        putShort(entries, TAG_CALIBRATION_ILLUMINANT_1, ILLUMINANT_D65);
+
+        // 文件头 + IFD + 超过4字节的值
+        final int ifdOffset = 8;
+        int extraOffset = ifdOffset + 2 + entries.size() * 12 + 4;
+        int length = extraOffset;
+        for (Entry entry : entries.values()) {
+            if (entry.value.length > 4) {
+                length = align(length, 2) + entry.value.length;
+            }
+        }
+        final int dataOffset = align(length, DATA_ALIGNMENT);
+        entries.put(TAG_STRIP_OFFSETS, new Entry(TYPE_LONG, 1,
+                order(ByteBuffer.allocate(4)).putInt(dataOffset).array()));
+
+        ByteBuffer buffer = order(ByteBuffer.allocate(dataOffset));
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+        buffer.putShort((short) entries.size());
+        int valueOffset = extraOffset;
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            buffer.putShort((short) (int) e.getKey()).putShort((short) entry.type).putInt(entry.count);
+            if (entry.value.length <= 4) {
+                buffer.put(entry.value);
+                for (int i = entry.value.length; i < 4; i++) {
+                    buffer.put((byte) 0);
+                }
+            } else {
+                valueOffset = align(valueOffset, 2);
+                buffer.putInt(valueOffset);
+                ByteBuffer value = buffer.duplicate();
+                value.position(valueOffset);
+                value.put(entry.value);
+                valueOffset += entry.value.length;
+            }
+        }
+        // 没有下一个IFD
+        buffer.putInt(0);
+        buffer.clear();
+        return buffer;
+    }
+
+    @NonNull
+    private static byte[] cfaPattern(int arrangement) {
+        // 0:红，1:绿，2:蓝
+        switch (arrangement) {
+            case CFA_GRBG:
+                return new byte[]{1, 0, 2, 1};
+            case CFA_GBRG:
+                return new byte[]{1, 2, 0, 1};
+            case CFA_BGGR:
+                return new byte[]{2, 1, 1, 0};
+            default:
+                return new byte[]{0, 1, 1, 2};
+        }
+    }
+
+    private static void putShort(TreeMap<Integer, Entry> entries, int tag, int value) {
+        entries.put(tag, new Entry(TYPE_SHORT, 1, order(ByteBuffer.allocate(2)).putShort((short) value).array()));
+    }
+
+    private static void putLong(TreeMap<Integer, Entry> entries, int tag, int value) {
+        entries.put(tag, new Entry(TYPE_LONG, 1, order(ByteBuffer.allocate(4)).putInt(value).array()));
+    }
+
+    private static void putAscii(TreeMap<Integer, Entry> entries, int tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        byte[] terminated = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+        entries.put(tag, new Entry(TYPE_ASCII, terminated.length, terminated));
+    }
+
+    @NonNull
+    private static Entry rationals(int type, float[] values) {
+        ByteBuffer buffer = order(ByteBuffer.allocate(values.length * 8));
+        for (float value : values) {
+            buffer.putInt(Math.round(value * RATIONAL_DENOMINATOR)).putInt(RATIONAL_DENOMINATOR);
+        }
+        return new Entry(type, values.length, buffer.array());
+    }
+
+    private static ByteBuffer order(ByteBuffer buffer) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,453 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码器异步回调流水线。
+ * 编码器以回调方式工作，不再由线程轮询dequeueOutputBuffer；输出样本依次分发给各{@link Sink}(封装、推流、统计)后归还编码器。
+ * 状态：{@link State#CONFIGURED} -> {@link State#STARTED} -> {@link State#DRAINING} -> {@link State#EOS} -> {@link State#RELEASED}，
+ * 出错时直接进入{@link State#EOS}并记录错误。
+ * 回调接收者时不持有锁，接收者阻塞(如封装队列满)时不影响其他线程查询状态或结束编码；
+ * {@link #release()}会等待正在分发的样本处理完，再停止编码器。
+ * <p>
+ * 本类不依赖Android，编码器通过{@link Codec}注入，回调方法由编码器回调线程调用。
+ *
+ * @param <F> 输出格式类型
+ */
+class EncoderPipeline<F> {
+    /**
+     * 结束标记，与MediaCodec.BUFFER_FLAG_END_OF_STREAM一致
+     */
+    static final int FLAG_END_OF_STREAM = 4;
+
+    enum State {
+        /**
+         * 已配置，未启动
+         */
+        CONFIGURED,
+        /**
+         * 编码中
+         */
+        STARTED,
+        /**
+         * 已请求结束，等待编码器输出剩余的样本
+         */
+        DRAINING,
+        /**
+         * 编码器已输出结束标记，或出错
+         */
+        EOS,
+        /**
+         * 编码器已释放
+         */
+        RELEASED,
+    }
+
+    /**
+     * 编码器，对应MediaCodec
+     */
+    interface Codec {
+        void start();
+
+        /**
+         * 表面输入时结束输入
+         */
+        void signalEndOfInputStream();
+
+        /**
+         * @return 输入缓冲，表面输入时为null
+         */
+        @Nullable
+        ByteBuffer getInputBuffer(int index);
+
+        void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+        void releaseOutputBuffer(int index);
+
+        void stop();
+
+        void release();
+    }
+
+    /**
+     * 输出样本的接收者
+     */
+    interface Sink<F> {
+        void onFormatChanged(@NonNull F format);
+
+        /**
+         * 样本只在回调期间有效，需保留时应复制
+         */
+        void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags);
+
+        void onEndOfStream();
+    }
+
+    interface ErrorListener {
+        /**
+         * 编码器或接收者出错，在编码器回调线程回调
+         */
+        void onError(@NonNull Throwable e);
+    }
+
+    /**
+     * 输出统计
+     */
+    static final class StatsSink<F> implements Sink<F> {
+        private long mSampleCount;
+        private long mKeyFrameCount;
+        private long mByteCount;
+        private long mFirstPtsUs = -1;
+        private long mLastPtsUs = -1;
+        private long mMaxGapUs;
+
+        @Override
+        public void onFormatChanged(@NonNull F format) {
+        }
+
+        @Override
+        public synchronized void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+            mSampleCount++;
+            mByteCount += size;
+            if ((flags & MuxerWriteBehind.FLAG_KEY_FRAME) != 0) {
+                mKeyFrameCount++;
+            }
+            if (mFirstPtsUs < 0) {
+                mFirstPtsUs = presentationTimeUs;
+            } else {
+                mMaxGapUs = Math.max(mMaxGapUs, presentationTimeUs - mLastPtsUs);
+            }
+            mLastPtsUs = presentationTimeUs;
+        }
+
+        @Override
+        public void onEndOfStream() {
+        }
+
+        synchronized long getSampleCount() {
+            return mSampleCount;
+        }
+
+        synchronized long getByteCount() {
+            return mByteCount;
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            long durationUs = mLastPtsUs - mFirstPtsUs;
+            return "Stats{samples=" + mSampleCount + ",keyFrames=" + mKeyFrameCount + ",bytes=" + mByteCount +
+                    ",duration=" + durationUs / 1000 + "ms,bitrate=" +
+                    (durationUs > 0 ? mByteCount * 8_000_000 / durationUs : 0) + ",maxGap=" + mMaxGapUs / 1000 + "ms}";
+        }
+    }
+
+    private final String mName;
+    private final Codec mCodec;
+    private final boolean mSurfaceInput;
+    private final List<Sink<F>> mSinks = new CopyOnWriteArrayList<>();
+    /**
+     * 可用的输入缓冲序号
+     */
+    private final LinkedBlockingQueue<Integer> mInputIndexes = new LinkedBlockingQueue<>();
+    private final Object mLock = new Object();
+    private State mState = State.CONFIGURED;
+    /**
+     * 正在分发样本的回调线程，null:未在分发
+     */
+    private Thread mDispatchThread;
+    private ErrorListener mErrorListener;
+    private volatile Throwable mError;
+    private long mLastInputPtsUs;
+
+    /**
+     * @param surfaceInput true:表面输入，结束时调用{@link Codec#signalEndOfInputStream()};
+     *                     false:缓冲输入，结束时送入带结束标记的空缓冲
+     */
+    EncoderPipeline(@NonNull String name, @NonNull Codec codec, boolean surfaceInput) {
+        mName = name;
+        mCodec = codec;
+        mSurfaceInput = surfaceInput;
+    }
+
+    void addSink(@NonNull Sink<F> sink) {
+        mSinks.add(sink);
+    }
+
+    void removeSink(@NonNull Sink<F> sink) {
+        mSinks.remove(sink);
+    }
+
+    void setErrorListener(@Nullable ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    @NonNull
+    State getState() {
+        synchronized (mLock) {
+            return mState;
+        }
+    }
+
+    @Nullable
+    Throwable getError() {
+        return mError;
+    }
+
+    void start() {
+        synchronized (mLock) {
+            checkState(State.CONFIGURED);
+            mCodec.start();
+            mState = State.STARTED;
+        }
+    }
+
+    /**
+     * 取一个可用的输入缓冲，只用于缓冲输入
+     *
+     * @return 输入缓冲序号，-1:超时或已不在编码中
+     */
+    int dequeueInputBuffer(long timeoutMs) {
+        if (getState() != State.STARTED) {
+            return -1;
+        }
+        try {
+            Integer index = mInputIndexes.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            return index == null ? -1 : index;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    @Nullable
+    ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs) {
+        synchronized (mLock) {
+            if (mState != State.STARTED) {
+                return;
+            }
+            mLastInputPtsUs = presentationTimeUs;
+            mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, 0);
+        }
+    }
+
+    /**
+     * 结束输入，编码器输出剩余的样本后进入{@link State#EOS}
+     *
+     * @param timeoutMs 缓冲输入时等待可用输入缓冲的最长时间
+     */
+    void drain(long timeoutMs) {
+        synchronized (mLock) {
+            if (mState != State.STARTED) {
+                return;
+            }
+            mState = State.DRAINING;
+        }
+        try {
+            if (mSurfaceInput) {
+                mCodec.signalEndOfInputStream();
+                return;
+            }
+            Integer index = mInputIndexes.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (index == null) {
+                onError(new IllegalStateException(mName + " no input buffer for end of stream"));
+                return;
+            }
+            synchronized (mLock) {
+                if (mState == State.DRAINING) {
+                    mCodec.queueInputBuffer(index, 0, 0, mLastInputPtsUs, FLAG_END_OF_STREAM);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    /**
+     * 等待进入{@link State#EOS}
+     *
+     * @return false:超时
+     */
+    boolean awaitEndOfStream(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (mState == State.STARTED || mState == State.DRAINING) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    mLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 停止并释放编码器，可在任意状态调用。
+     * 其他线程调用时等待正在分发的样本处理完；在接收者回调中调用时不等待
+     */
+    void release() {
+        synchronized (mLock) {
+            if (mState == State.RELEASED) {
+                return;
+            }
+            boolean started = mState != State.CONFIGURED;
+            mState = State.RELEASED;
+            mLock.notifyAll();
+            mInputIndexes.clear();
+            while (mDispatchThread != null && mDispatchThread != Thread.currentThread()) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            try {
+                if (started) {
+                    mCodec.stop();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            try {
+                mCodec.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 编码器回调：输入缓冲可用
+     */
+    void onInputBufferAvailable(int index) {
+        State state = getState();
+        if (state == State.STARTED || state == State.DRAINING) {
+            mInputIndexes.offer(index);
+        }
+    }
+
+    /**
+     * 编码器回调：输出格式变化
+     */
+    void onOutputFormatChanged(@NonNull F format) {
+        if (!isRunning()) {
+            return;
+        }
+        try {
+            for (Sink<F> sink : mSinks) {
+                sink.onFormatChanged(format);
+            }
+        } catch (RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    /**
+     * 编码器回调：输出样本可用，分发后归还编码器
+     */
+    void onOutputBufferAvailable(int index, @Nullable ByteBuffer buffer, int offset, int size,
+                                 long presentationTimeUs, int flags) {
+        final boolean deliver;
+        synchronized (mLock) {
+            if (mState == State.RELEASED) {
+                return;
+            }
+            deliver = buffer != null && size > 0 && (mState == State.STARTED || mState == State.DRAINING);
+            mDispatchThread = Thread.currentThread();
+        }
+        RuntimeException error = null;
+        if (deliver) {
+            try {
+                for (Sink<F> sink : mSinks) {
+                    sink.onSample(buffer, offset, size, presentationTimeUs, flags);
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+        boolean eos = false;
+        synchronized (mLock) {
+            mDispatchThread = null;
+            mLock.notifyAll();
+            if (mState == State.RELEASED) {
+                // 分发期间已释放，缓冲随编码器一起释放
+                return;
+            }
+            try {
+                mCodec.releaseOutputBuffer(index);
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            if (error == null && (flags & FLAG_END_OF_STREAM) != 0 &&
+                    (mState == State.STARTED || mState == State.DRAINING)) {
+                mState = State.EOS;
+                mLock.notifyAll();
+                eos = true;
+            }
+        }
+        if (error != null) {
+            onError(error);
+        } else if (eos) {
+            for (Sink<F> sink : mSinks) {
+                sink.onEndOfStream();
+            }
+        }
+    }
+
+    /**
+     * 编码器回调：出错。出错后不再分发样本
+     */
+    void onError(@NonNull Throwable e) {
+        synchronized (mLock) {
+            if (mError != null || mState == State.RELEASED) {
+                return;
+            }
+            mError = e;
+            mState = State.EOS;
+            mLock.notifyAll();
+        }
+        ErrorListener listener = mErrorListener;
+        if (listener != null) {
+            listener.onError(e);
+        }
+    }
+
+    private boolean isRunning() {
+        State state = getState();
+        return state == State.STARTED || state == State.DRAINING;
+    }
+
+    private void checkState(State expected) {
+        if (mState != expected) {
+            throw new IllegalStateException(mName + " state " + mState + ", expected " + expected);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mName + "{state=" + getState() + (mError != null ? ",error=" + mError : "") + "}";
+    }
+}
@@ -0,0 +1,448 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 编码器池。
+ * 按编码参数(key)预先在后台创建并配置编码器，开始录像时直接取出，停止后重新配置并放回，缩短开始录像的耗时。
+ * 空闲(含正在创建)的编码器受数量与开销预算限制，超出时释放最久未使用的；设置空闲超时后，超时未取出的编码器也被释放。
+ * 取出时有空闲编码器即命中；预先创建未完成时等待其完成；没有时先释放其他参数的空闲编码器再同步创建，
+ * 避免硬件编码器实例不足时创建失败。
+ * <p>
+ * 本类不依赖Android，编码器的创建与释放通过{@link Factory}注入。
+ *
+ * @param <K> 编码参数，需实现equals、hashCode
+ * @param <C> 编码器
+ */
+class EncoderPool<K, C> {
+    private static final String TAG = "EncoderPool";
+
+    interface Factory<K, C> {
+        /**
+         * 创建并配置编码器，在后台线程或取出的线程调用
+         */
+        @NonNull
+        C create(@NonNull K key) throws Exception;
+
+        /**
+         * 已停止的编码器重新配置，在后台线程调用
+         *
+         * @return false:不能复用
+         */
+        boolean reset(@NonNull K key, @NonNull C codec);
+
+        void release(@NonNull C codec);
+    }
+
+    private final class Entry implements Runnable {
+        final K key;
+        final long cost;
+        C codec;
+        boolean done;
+        /**
+         * 进入空闲列表或最近一次被预热的时间
+         */
+        long idleSinceNs;
+        /**
+         * 已被淘汰，完成后直接释放
+         */
+        boolean evicted;
+
+        Entry(K key, C codec) {
+            this.key = key;
+            this.cost = mCost.applyAsLong(key);
+            this.codec = codec;
+            this.done = codec != null;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            C c = null;
+            Exception e = null;
+            try {
+                c = mFactory.create(key);
+                mCreateLatency.recordNs(System.nanoTime() - begin);
+            } catch (Exception ex) {
+                e = ex;
+            }
+            boolean release;
+            synchronized (EncoderPool.this) {
+                codec = c;
+                done = true;
+                release = evicted && c != null;
+                EncoderPool.this.notifyAll();
+            }
+            if (e != null) {
+                e.printStackTrace();
+            }
+            if (release) {
+                releaseCodec(c);
+            }
+        }
+    }
+
+    private final Factory<K, C> mFactory;
+    private int mMaxIdle;
+    private long mMaxCost;
+    private final ToLongFunction<K> mCost;
+    private final LongSupplier mClockNs;
+    private final ScheduledExecutorService mExecutor;
+    /**
+     * 空闲超时，小于等于0:不超时
+     */
+    private long mIdleTimeoutNs;
+    private boolean mTrimScheduled;
+    /**
+     * 空闲与正在创建的编码器，按使用时间排列，最近的在末尾
+     */
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+    private long mIdleCost;
+
+    private long mHitCount;
+    private long mWaitCount;
+    private long mMissCount;
+    private long mEvictCount;
+    private long mRecycleCount;
+    private final LatencyHistogram mAcquireLatency = new LatencyHistogram("acquire");
+    private final LatencyHistogram mCreateLatency = new LatencyHistogram("create");
+    private final LatencyHistogram mResetLatency = new LatencyHistogram("reset");
+
+    /**
+     * @param maxIdle 最多保留的空闲编码器数
+     * @param maxCost 空闲编码器的开销之和上限
+     * @param cost    编码参数对应的开销，如：像素数
+     */
+    EncoderPool(@NonNull Factory<K, C> factory, int maxIdle, long maxCost, @NonNull ToLongFunction<K> cost) {
+        this(factory, maxIdle, maxCost, cost, System::nanoTime);
+    }
+
+    EncoderPool(@NonNull Factory<K, C> factory, int maxIdle, long maxCost, @NonNull ToLongFunction<K> cost,
+                @NonNull LongSupplier clockNs) {
+        mFactory = factory;
+        mMaxIdle = maxIdle;
+        mMaxCost = maxCost;
+        mCost = cost;
+        mClockNs = clockNs;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 修改预算，超出新预算的空闲编码器立即释放
+     */
+    void setBudget(int maxIdle, long maxCost) {
+        List<C> released = new ArrayList<>();
+        synchronized (this) {
+            mMaxIdle = maxIdle;
+            mMaxCost = maxCost;
+            while (!mIdle.isEmpty() && (mIdle.size() > mMaxIdle || mIdleCost > mMaxCost)) {
+                Entry e = mIdle.removeFirst();
+                mIdleCost -= e.cost;
+                evictLocked(e, released);
+            }
+        }
+        releaseAll(released);
+    }
+
+    /**
+     * 设置空闲超时，超时未取出的编码器在后台释放
+     *
+     * @param timeoutMs 小于等于0:不超时
+     */
+    void setIdleTimeout(long timeoutMs) {
+        synchronized (this) {
+            mIdleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+            scheduleTrimLocked();
+        }
+    }
+
+    /**
+     * 释放空闲超时的编码器
+     *
+     * @return 释放的数量
+     */
+    int trimIdle() {
+        List<C> released = new ArrayList<>();
+        int count = 0;
+        synchronized (this) {
+            mTrimScheduled = false;
+            if (mIdleTimeoutNs > 0) {
+                final long now = mClockNs.getAsLong();
+                for (Iterator<Entry> it = mIdle.iterator(); it.hasNext(); ) {
+                    Entry e = it.next();
+                    if (now - e.idleSinceNs >= mIdleTimeoutNs) {
+                        it.remove();
+                        mIdleCost -= e.cost;
+                        evictLocked(e, released);
+                        count++;
+                    }
+                }
+            }
+            scheduleTrimLocked();
+        }
+        releaseAll(released);
+        return count;
+    }
+
+    private void scheduleTrimLocked() {
+        if (mTrimScheduled || mIdleTimeoutNs <= 0 || mIdle.isEmpty()) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Entry e : mIdle) {
+            oldest = Math.min(oldest, e.idleSinceNs);
+        }
+        long delayNs = Math.max(0, oldest + mIdleTimeoutNs - mClockNs.getAsLong());
+        mTrimScheduled = true;
+        mExecutor.schedule(this::trimIdle, delayNs, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 在后台预先创建编码器，使相同参数的空闲编码器达到指定数量
+     *
+     * @param count 需要的数量，如：同时录制的文件数
+     * @return 新创建的数量，已有或超出预算时不创建
+     */
+    int prewarm(@NonNull K key, int count) {
+        List<Entry> created = new ArrayList<>();
+        synchronized (this) {
+            List<Entry> existing = new ArrayList<>();
+            for (Entry e : mIdle) {
+                if (e.key.equals(key)) {
+                    existing.add(e);
+                }
+            }
+            for (Entry e : existing) {
+                touch(e);
+            }
+            // 不超出预算，避免淘汰本次创建的编码器
+            long cost = mCost.applyAsLong(key);
+            if (cost > 0) {
+                count = (int) Math.min(count, mMaxCost / cost);
+            }
+            count = Math.min(count, mMaxIdle);
+            for (int i = existing.size(); i < count; i++) {
+                Entry entry = new Entry(key, null);
+                if (!addLocked(entry)) {
+                    break;
+                }
+                created.add(entry);
+            }
+        }
+        for (Entry entry : created) {
+            mExecutor.execute(entry);
+        }
+        return created.size();
+    }
+
+    /**
+     * 取出编码器，没有空闲编码器时释放其他参数的空闲编码器后同步创建
+     */
+    @NonNull
+    C acquire(@NonNull K key) throws Exception {
+        long begin = System.nanoTime();
+        Entry entry = null;
+        synchronized (this) {
+            for (Iterator<Entry> it = mIdle.iterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if (e.key.equals(key)) {
+                    it.remove();
+                    mIdleCost -= e.cost;
+                    entry = e;
+                    break;
+                }
+            }
+            if (entry != null) {
+                if (!entry.done) {
+                    mWaitCount++;
+                    while (!entry.done) {
+                        wait();
+                    }
+                } else if (entry.codec != null) {
+                    mHitCount++;
+                }
+            }
+        }
+        C codec = entry == null ? null : entry.codec;
+        if (codec == null) {
+            List<C> released = new ArrayList<>();
+            synchronized (this) {
+                mMissCount++;
+                for (Iterator<Entry> it = mIdle.iterator(); it.hasNext(); ) {
+                    Entry e = it.next();
+                    if (!e.key.equals(key)) {
+                        it.remove();
+                        mIdleCost -= e.cost;
+                        evictLocked(e, released);
+                    }
+                }
+            }
+            // 在创建前释放，硬件编码器实例有限
+            releaseAll(released);
+            long createBegin = System.nanoTime();
+            codec = mFactory.create(key);
+            mCreateLatency.recordNs(System.nanoTime() - createBegin);
+        }
+        mAcquireLatency.recordNs(System.nanoTime() - begin);
+        return codec;
+    }
+
+    /**
+     * 归还已停止的编码器，在后台重新配置后放回，不能复用或超出预算时释放
+     */
+    void recycle(@NonNull K key, @NonNull C codec) {
+        mExecutor.execute(() -> {
+            long begin = System.nanoTime();
+            if (!mFactory.reset(key, codec)) {
+                releaseCodec(codec);
+                return;
+            }
+            mResetLatency.recordNs(System.nanoTime() - begin);
+            boolean added;
+            synchronized (this) {
+                added = addLocked(new Entry(key, codec));
+                if (added) {
+                    mRecycleCount++;
+                }
+            }
+            if (!added) {
+                releaseCodec(codec);
+            }
+        });
+    }
+
+    /**
+     * 释放所有空闲编码器
+     */
+    void clear() {
+        List<C> released = new ArrayList<>();
+        synchronized (this) {
+            for (Entry e : mIdle) {
+                evictLocked(e, released);
+            }
+            mIdle.clear();
+            mIdleCost = 0;
+        }
+        releaseAll(released);
+    }
+
+    private void releaseAll(List<C> released) {
+        for (C c : released) {
+            releaseCodec(c);
+        }
+    }
+
+    /**
+     * 加入空闲列表，超出预算时淘汰最久未使用的
+     *
+     * @return false:单个开销即超出预算
+     */
+    private boolean addLocked(Entry entry) {
+        if (mMaxIdle <= 0 || entry.cost > mMaxCost) {
+            return false;
+        }
+        List<C> released = new ArrayList<>();
+        while (!mIdle.isEmpty() && (mIdle.size() + 1 > mMaxIdle || mIdleCost + entry.cost > mMaxCost)) {
+            Entry e = mIdle.removeFirst();
+            mIdleCost -= e.cost;
+            evictLocked(e, released);
+        }
+        entry.idleSinceNs = mClockNs.getAsLong();
+        mIdle.addLast(entry);
+        mIdleCost += entry.cost;
+        scheduleTrimLocked();
+        if (!released.isEmpty()) {
+            mExecutor.execute(() -> {
+                for (C c : released) {
+                    releaseCodec(c);
+                }
+            });
+        }
+        return true;
+    }
+
+    private void evictLocked(Entry e, List<C> released) {
+        mEvictCount++;
+        if (e.done) {
+            if (e.codec != null) {
+                released.add(e.codec);
+                e.codec = null;
+            }
+        } else {
+            e.evicted = true;
+        }
+    }
+
+    private void touch(Entry e) {
+        mIdle.remove(e);
+        e.idleSinceNs = mClockNs.getAsLong();
+        mIdle.addLast(e);
+    }
+
+    private void releaseCodec(C codec) {
+        try {
+            mFactory.release(codec);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 取出时预先创建未完成而等待的次数
+     */
+    synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictCount() {
+        return mEvictCount;
+    }
+
+    synchronized long getRecycleCount() {
+        return mRecycleCount;
+    }
+
+    @NonNull
+    LatencyHistogram getAcquireLatency() {
+        return mAcquireLatency;
+    }
+
+    @NonNull
+    LatencyHistogram getCreateLatency() {
+        return mCreateLatency;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return TAG + "{idle=" + mIdle.size() + ",cost=" + mIdleCost + ",hit=" + mHitCount + ",wait=" + mWaitCount +
+                ",miss=" + mMissCount + ",evict=" + mEvictCount + ",recycle=" + mRecycleCount +
+                "," + mAcquireLatency + "," + mCreateLatency + "," + mResetLatency + "}";
+    }
+}
@@ -0,0 +1,486 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 分片MP4(fMP4)写入。
+ * 启动时写入ftyp与不含样本表的moov(含mvex)，之后在同步轨道(视频)的关键帧处按间隔把缓存的样本写为一个moof+mdat分片。
+ * MediaMuxer只在stop时写入moov，录制中崩溃、断电或存储写满时文件不可播放；本类写入的文件中已写完的分片均可播放。
+ * 支持H.264/HEVC视频(Annex-B转为4字节长度前缀)、AAC音频与camm轨道。
+ * 分片使用default-base-is-moof，文件中没有绝对偏移，之后改写moov(如写入全景信息)不影响分片。
+ * 样本按到达顺序解码，不支持B帧；同一轨道时间戳不递增时按上一个样本加1个时间单位处理。
+ * <p>
+ * 本类不依赖Android，与{@link SegmentRollover}配合时可作为分段的封装器。
+ */
+class FragmentedMp4Writer implements SegmentRollover.Target<Mp4TrackFormat> {
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int CAMM_TIMESCALE = 1000_000;
+    /**
+     * 缓存的样本超过该值时不等关键帧，立即写入分片
+     */
+    private static final int MAX_FRAGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final class Track {
+        final int id;
+        final Mp4TrackFormat format;
+        final int timescale;
+        /**
+         * 当前分片的样本数据，发送后保留尚未确定时长的最后一个样本
+         */
+        ByteBuffer data = ByteBuffer.allocate(256 * 1024);
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        long[] ticks = new long[64];
+        int count;
+        /**
+         * 最后一个样本的时间与时长，时长在下一个样本到达时确定
+         */
+        long lastTicks = -1;
+        long lastDuration;
+
+        Track(int id, Mp4TrackFormat format) {
+            this.id = id;
+            this.format = format;
+            if (format.isVideo()) {
+                timescale = VIDEO_TIMESCALE;
+            } else if (format.isAudio()) {
+                timescale = format.sampleRate;
+            } else {
+                timescale = CAMM_TIMESCALE;
+            }
+        }
+
+        long toTicks(long timeUs) {
+            return timeUs * timescale / 1000_000;
+        }
+
+        /**
+         * 第i个样本的时长，最后一个样本在下一个样本到达前使用上一个时长
+         */
+        long duration(int i) {
+            return i + 1 < count ? ticks[i + 1] - ticks[i] : lastDuration;
+        }
+
+        void ensureSample(int size) {
+            if (count == sizes.length) {
+                int length = sizes.length * 2;
+                sizes = Arrays.copyOf(sizes, length);
+                flags = Arrays.copyOf(flags, length);
+                ticks = Arrays.copyOf(ticks, length);
+            }
+            data = Mp4BoxBuilder.ensure(data, size);
+        }
+    }
+
+    private final String mFilename;
+    private final FileOutputStream mOutput;
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final boolean mSyncOnFragment;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final ByteBuffer[] mWriteBuffers;
+    private final Mp4BoxBuilder mBox = new Mp4BoxBuilder(64 * 1024);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+    /**
+     * 同步轨道，在其关键帧处分片，-1:没有视频轨道时以第0个轨道为准
+     */
+    private int mSyncTrack = -1;
+    private boolean mStarted;
+    private boolean mClosed;
+    private long mBasePtsUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mPendingBytes;
+    private int mSequence;
+    private long mBytesWritten;
+
+    /**
+     * @param fragmentDurationUs 分片间隔，在此之后的第一个关键帧处分片
+     * @param syncOnFragment     每个分片写入后是否同步到存储，断电时不丢失已写入的分片
+     */
+    FragmentedMp4Writer(@NonNull String filename, long fragmentDurationUs, boolean syncOnFragment) throws IOException {
+        mFilename = filename;
+        mOutput = new FileOutputStream(filename);
+        mChannel = mOutput.getChannel();
+        mFragmentDurationUs = fragmentDurationUs;
+        mSyncOnFragment = syncOnFragment;
+        mWriteBuffers = new ByteBuffer[8];
+    }
+
+    @Override
+    public synchronized int addTrack(@NonNull Mp4TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("add track after start");
+        }
+        if (mTracks.size() + 2 > mWriteBuffers.length) {
+            throw new IllegalStateException("too many tracks");
+        }
+        if (format.isVideo() && mSyncTrack < 0) {
+            mSyncTrack = mTracks.size();
+        }
+        mTracks.add(new Track(mTracks.size() + 1, format));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track");
+        }
+        if (mSyncTrack < 0) {
+            mSyncTrack = 0;
+        }
+        mBox.clear();
+        writeFtyp();
+        writeMoov();
+        write(mBox.flip());
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                             long presentationTimeUs, int flags) {
+        if (!mStarted || mClosed) {
+            throw new IllegalStateException("write sample when not started");
+        }
+        if ((flags & MuxerWriteBehind.FLAG_CODEC_CONFIG) != 0 || size <= 0) {
+            return;
+        }
+        if (mBasePtsUs < 0) {
+            mBasePtsUs = presentationTimeUs;
+            mFragmentStartUs = presentationTimeUs;
+        }
+        Track t = mTracks.get(track);
+        long ticks = t.toTicks(Math.max(0, presentationTimeUs - mBasePtsUs));
+        if (t.lastTicks >= 0) {
+            if (ticks <= t.lastTicks) {
+                ticks = t.lastTicks + 1;
+            }
+            t.lastDuration = ticks - t.lastTicks;
+        }
+        boolean key = (flags & MuxerWriteBehind.FLAG_KEY_FRAME) != 0;
+        if ((track == mSyncTrack && (key || !t.format.isVideo()) &&
+                presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) ||
+                mPendingBytes + size > MAX_FRAGMENT_BYTES) {
+            // 同步轨道在此样本前的样本时长均已确定
+            writeFragment(track, false);
+            mFragmentStartUs = presentationTimeUs;
+        }
+        appendSample(t, buffer, offset, size, ticks,
+                !t.format.isVideo() || key ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+    }
+
+    /**
+     * 写入剩余的样本并关闭文件
+     */
+    @Override
+    public synchronized void stop() {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mStarted) {
+                writeFragment(-1, true);
+                if (!mSyncOnFragment) {
+                    mChannel.force(false);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mClosed = true;
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public synchronized void abort() {
+        mClosed = true;
+        closeQuietly();
+        new File(mFilename).delete();
+    }
+
+    synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    synchronized int getFragmentCount() {
+        return mSequence;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "FragmentedMp4Writer{" + mFilename + ",tracks=" + mTracks.size() + ",fragments=" + mSequence +
+                ",bytes=" + mBytesWritten + '}';
+    }
+
+    private void closeQuietly() {
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void appendSample(Track t, ByteBuffer buffer, int offset, int size, long ticks, int sampleFlags) {
+        t.ensureSample(size + 64);
+        int start = t.data.position();
+        if (t.format.isVideo()) {
+            appendNalUnits(t, buffer, offset, size);
+        } else {
+            copy(buffer, offset, size, t.data);
+        }
+        int written = t.data.position() - start;
+        t.sizes[t.count] = written;
+        t.flags[t.count] = sampleFlags;
+        t.ticks[t.count] = ticks;
+        t.lastTicks = ticks;
+        t.count++;
+        mPendingBytes += written;
+    }
+
+    /**
+     * Annex-B的起始码替换为4字节长度
+     */
+    private static void appendNalUnits(Track t, ByteBuffer buffer, int offset, int size) {
+        int end = offset + size;
+        int nal = Mp4BoxBuilder.findStartCode(buffer, offset, end);
+        if (nal < 0) {
+            // 已是单个NAL
+            t.data.putInt(size);
+            copy(buffer, offset, size, t.data);
+            return;
+        }
+        nal += 3;
+        while (nal < end) {
+            int next = Mp4BoxBuilder.findStartCode(buffer, nal, end);
+            int nalEnd = next < 0 ? end : next;
+            while (nalEnd > nal && buffer.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nal) {
+                t.data = Mp4BoxBuilder.ensure(t.data, nalEnd - nal + 4);
+                t.data.putInt(nalEnd - nal);
+                copy(buffer, nal, nalEnd - nal, t.data);
+            }
+            if (next < 0) {
+                break;
+            }
+            nal = next + 3;
+        }
+    }
+
+    /**
+     * 复制buffer中的数据，不改变buffer的位置
+     */
+    private static void copy(ByteBuffer buffer, int offset, int size, ByteBuffer dst) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        dst.put(buffer);
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+    /**
+     * 写入一个分片
+     *
+     * @param syncTrack 在该轨道的关键帧处分片，其样本全部写入；-1:无
+     * @param all       写入全部样本(结束时)，否则其余轨道保留尚未确定时长的最后一个样本
+     */
+    private void writeFragment(int syncTrack, boolean all) {
+        int trackCount = mTracks.size();
+        int[] counts = new int[trackCount];
+        boolean empty = true;
+        for (int i = 0; i < trackCount; i++) {
+            Track t = mTracks.get(i);
+            counts[i] = all || i == syncTrack ? t.count : Math.max(0, t.count - 1);
+            empty &= counts[i] == 0;
+        }
+        if (empty) {
+            return;
+        }
+        mBox.clear();
+        int moof = mBox.begin("moof");
+        int mfhd = mBox.fullBox("mfhd", 0, 0);
+        mBox.putInt(++mSequence);
+        mBox.end(mfhd);
+        int[] dataOffsetPositions = new int[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            Track t = mTracks.get(i);
+            int n = counts[i];
+            if (n == 0) {
+                continue;
+            }
+            mBox.ensure(64 + n * 12);
+            int traf = mBox.begin("traf");
+            int tfhd = mBox.fullBox("tfhd", 0, 0x020000);
+            mBox.putInt(t.id);
+            mBox.end(tfhd);
+            int tfdt = mBox.fullBox("tfdt", 1, 0);
+            mBox.putLong(t.ticks[0]);
+            mBox.end(tfdt);
+            int trun = mBox.fullBox("trun", 0, TRUN_FLAGS);
+            mBox.putInt(n);
+            dataOffsetPositions[i] = mBox.position();
+            mBox.putInt(0);
+            for (int s = 0; s < n; s++) {
+                mBox.putInt((int) Math.max(0, t.duration(s)));
+                mBox.putInt(t.sizes[s]);
+                mBox.putInt(t.flags[s]);
+            }
+            mBox.end(trun);
+            mBox.end(traf);
+        }
+        mBox.end(moof);
+        int moofSize = mBox.position();
+        long mdatSize = 8;
+        int buffers = 1;
+        mWriteBuffers[buffers++] = mMdatHeader;
+        for (int i = 0; i < trackCount; i++) {
+            int n = counts[i];
+            if (n == 0) {
+                continue;
+            }
+            Track t = mTracks.get(i);
+            mBox.putInt(dataOffsetPositions[i], (int) (moofSize + mdatSize));
+            int bytes = 0;
+            for (int s = 0; s < n; s++) {
+                bytes += t.sizes[s];
+            }
+            ByteBuffer data = t.data.duplicate();
+            data.flip();
+            data.limit(bytes);
+            mWriteBuffers[buffers++] = data;
+            mdatSize += bytes;
+        }
+        mWriteBuffers[0] = mBox.flip();
+        mMdatHeader.clear();
+        mMdatHeader.putInt((int) mdatSize);
+        mMdatHeader.put(Mp4BoxBuilder.fourcc("mdat"));
+        mMdatHeader.flip();
+        try {
+            long remaining = moofSize + mdatSize;
+            while (remaining > 0) {
+                remaining -= mChannel.write(mWriteBuffers, 0, buffers);
+            }
+            if (mSyncOnFragment) {
+                mChannel.force(false);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mBytesWritten += moofSize + mdatSize;
+        for (int i = 0; i < buffers; i++) {
+            mWriteBuffers[i] = null;
+        }
+        for (int i = 0; i < trackCount; i++) {
+            removeSamples(mTracks.get(i), counts[i]);
+        }
+    }
+
+    /**
+     * 移除已写入的前n个样本，保留的样本移到缓冲开始
+     */
+    private void removeSamples(Track t, int n) {
+        if (n == 0) {
+            return;
+        }
+        int bytes = 0;
+        for (int s = 0; s < n; s++) {
+            bytes += t.sizes[s];
+        }
+        mPendingBytes -= bytes;
+        t.data.flip();
+        t.data.position(bytes);
+        t.data.compact();
+        int remain = t.count - n;
+        System.arraycopy(t.sizes, n, t.sizes, 0, remain);
+        System.arraycopy(t.flags, n, t.flags, 0, remain);
+        System.arraycopy(t.ticks, n, t.ticks, 0, remain);
+        t.count = remain;
+    }
+
+    private void writeFtyp() {
+        int ftyp = mBox.begin("ftyp");
+        mBox.put(Mp4BoxBuilder.fourcc("isom"));
+        mBox.putInt(0x200);
+        mBox.put(Mp4BoxBuilder.fourcc("isom"));
+        mBox.put(Mp4BoxBuilder.fourcc("iso5"));
+        mBox.put(Mp4BoxBuilder.fourcc("iso6"));
+        mBox.put(Mp4BoxBuilder.fourcc("mp41"));
+        mBox.end(ftyp);
+    }
+
+    /**
+     * 不含样本表的moov，样本在分片中描述
+     */
+    private void writeMoov() {
+        int moov = mBox.begin("moov");
+        mBox.writeMvhd(MOVIE_TIMESCALE, 0, mTracks.size() + 1);
+        for (Track t : mTracks) {
+            int trak = mBox.begin("trak");
+            mBox.writeTkhd(t.id, 0, t.format);
+            int mdia = mBox.begin("mdia");
+            mBox.writeMdhd(t.timescale, 0);
+            mBox.writeHdlr(t.format);
+            int minf = mBox.begin("minf");
+            mBox.writeMediaHeaderAndDinf(t.format);
+            int stbl = mBox.begin("stbl");
+            mBox.writeStsd(t.format, t.id);
+            for (String type : new String[]{"stts", "stsc", "stco"}) {
+                int box = mBox.fullBox(type, 0, 0);
+                mBox.putInt(0);
+                mBox.end(box);
+            }
+            int stsz = mBox.fullBox("stsz", 0, 0);
+            mBox.putInt(0);
+            mBox.putInt(0);
+            mBox.end(stsz);
+            mBox.end(stbl);
+            mBox.end(minf);
+            mBox.end(mdia);
+            mBox.end(trak);
+        }
+        int mvex = mBox.begin("mvex");
+        for (Track t : mTracks) {
+            int trex = mBox.fullBox("trex", 0, 0);
+            mBox.putInt(t.id);
+            mBox.putInt(1); // default_sample_description_index
+            mBox.putInt(0);
+            mBox.putInt(0);
+            mBox.putInt(0);
+            mBox.end(trex);
+        }
+        mBox.end(mvex);
+        mBox.end(moov);
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mBytesWritten += mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
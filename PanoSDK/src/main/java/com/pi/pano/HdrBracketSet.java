@@ -0,0 +1,197 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * 一次hdr连拍的各曝光图像。
+ * 图像按曝光序号保存在内存缓存池中，缓存池不足时由调用方保存为文件后以文件记录；
+ * 同一序号重复加入时替换旧的图像，超过有效期的图像被丢弃并归还缓存，避免未完成的连拍长期占用内存。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class HdrBracketSet {
+    private static final String TAG = "HdrBracketSet";
+
+    /**
+     * 一张曝光图像，数据在内存或文件中
+     */
+    static final class Bracket {
+        /**
+         * 曝光序号
+         */
+        final int index;
+        /**
+         * 图像时间戳(ns)
+         */
+        final long timestampNs;
+        @Nullable
+        final BufferArena.Block block;
+        @Nullable
+        final File file;
+        /**
+         * 加入时间(ns)
+         */
+        final long addedNs;
+
+        private Bracket(int index, long timestampNs, @Nullable BufferArena.Block block, @Nullable File file,
+                        long addedNs) {
+            this.index = index;
+            this.timestampNs = timestampNs;
+            this.block = block;
+            this.file = file;
+            this.addedNs = addedNs;
+        }
+
+        boolean inMemory() {
+            return block != null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Bracket{" + index + "," + (block != null ? "memory:" + block.size() : "file:" + file) + "}";
+        }
+    }
+
+    private final int mCount;
+    private final long mTtlNs;
+    private final BufferArena mArena;
+    private final LongSupplier mClockNs;
+    private final Bracket[] mBrackets;
+    private boolean mReleased;
+
+    /**
+     * @param count 曝光张数
+     * @param ttlNs 图像有效期，0:不过期
+     */
+    HdrBracketSet(int count, long ttlNs, @NonNull BufferArena arena, @NonNull LongSupplier clockNs) {
+        mCount = count;
+        mTtlNs = ttlNs;
+        mArena = arena;
+        mClockNs = clockNs;
+        mBrackets = new Bracket[count];
+    }
+
+    /**
+     * 从缓存池分配缓存，加入失败或不再使用时需{@link BufferArena#release}
+     *
+     * @return 缓存池不足时为null
+     */
+    @Nullable
+    BufferArena.Block allocate(int size) {
+        expire();
+        return mArena.allocate(size);
+    }
+
+    /**
+     * 加入内存中的图像，成功后缓存由本类管理，失败时由调用方归还
+     *
+     * @return 序号无效或已释放时返回false
+     */
+    synchronized boolean addMemory(int index, long timestampNs, @NonNull BufferArena.Block block) {
+        return add(new Bracket(index, timestampNs, block, null, mClockNs.getAsLong()));
+    }
+
+    /**
+     * 加入已保存为文件的图像
+     */
+    synchronized boolean addFile(int index, long timestampNs, @NonNull File file) {
+        return add(new Bracket(index, timestampNs, null, file, mClockNs.getAsLong()));
+    }
+
+    private boolean add(@NonNull Bracket bracket) {
+        if (mReleased || bracket.index < 0 || bracket.index >= mCount) {
+            return false;
+        }
+        Bracket old = mBrackets[bracket.index];
+        if (old != null) {
+            mArena.release(old.block);
+        }
+        mBrackets[bracket.index] = bracket;
+        return true;
+    }
+
+    /**
+     * 丢弃超过有效期的图像
+     *
+     * @return 丢弃的张数
+     */
+    synchronized int expire() {
+        if (mTtlNs <= 0) {
+            return 0;
+        }
+        final long now = mClockNs.getAsLong();
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            Bracket bracket = mBrackets[i];
+            if (bracket != null && now - bracket.addedNs > mTtlNs) {
+                mArena.release(bracket.block);
+                mBrackets[i] = null;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 已有的张数，不含过期的图像
+     */
+    synchronized int size() {
+        expire();
+        int size = 0;
+        for (Bracket bracket : mBrackets) {
+            if (bracket != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    synchronized boolean isComplete() {
+        return size() == mCount;
+    }
+
+    /**
+     * 按曝光序号排列的图像，不完整时为空
+     */
+    @NonNull
+    synchronized List<Bracket> ordered() {
+        List<Bracket> list = new ArrayList<>(mCount);
+        if (!isComplete()) {
+            return list;
+        }
+        for (Bracket bracket : mBrackets) {
+            list.add(bracket);
+        }
+        return list;
+    }
+
+    /**
+     * 归还所有缓存，之后不能再加入
+     */
+    synchronized void release() {
+        mReleased = true;
+        for (int i = 0; i < mCount; i++) {
+            if (mBrackets[i] != null) {
+                mArena.release(mBrackets[i].block);
+                mBrackets[i] = null;
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(TAG).append('{');
+        for (Bracket bracket : mBrackets) {
+            sb.append(bracket).append(',');
+        }
+        return sb.append(mArena).append('}').toString();
+    }
+}
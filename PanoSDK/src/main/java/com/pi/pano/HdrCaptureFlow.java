@@ -0,0 +1,281 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * hdr拍照流程编排。
+ * 拍摄→保存→合成→拼接→注入元数据，每个阶段为一个返回错误码的{@link CompletableFuture}，前一阶段成功后开始下一阶段，
+ * 未设置的阶段跳过。每个阶段有独立的超时并记录耗时，任一阶段失败、超时或流程被取消时结束流程，
+ * 结果以{@link StageException}异常完成。超时或取消不会中断阶段已开始的工作，只是不再等待。
+ * <p>
+ * 本类不依赖Android，调度与时钟可替换，可使用虚拟时钟。
+ */
+final class HdrCaptureFlow {
+    private static final String TAG = "HdrCaptureFlow";
+
+    static final int STAGE_CAPTURE = 0;
+    static final int STAGE_SAVE = 1;
+    static final int STAGE_MERGE = 2;
+    static final int STAGE_STITCH = 3;
+    static final int STAGE_INJECT = 4;
+    static final int STAGE_COUNT = 5;
+    private static final String[] STAGE_NAMES = {"capture", "save", "merge", "stitch", "inject"};
+
+    /**
+     * 阶段返回非0错误码或异常完成
+     */
+    static final int REASON_FAILED = 0;
+    static final int REASON_TIMEOUT = 1;
+    static final int REASON_CANCELLED = 2;
+
+    interface Stage {
+        /**
+         * 开始阶段
+         *
+         * @return 阶段结果，0:成功，其他为错误码
+         */
+        @NonNull
+        CompletableFuture<Integer> start() throws Exception;
+    }
+
+    interface Scheduler {
+        /**
+         * 延时执行
+         *
+         * @return 取消执行的操作
+         */
+        @NonNull
+        Runnable schedule(@NonNull Runnable task, long delayMs);
+    }
+
+    /**
+     * 流程结束的原因
+     */
+    static final class StageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int stage;
+        final int reason;
+        /**
+         * 阶段返回的错误码，仅{@link #REASON_FAILED}有效
+         */
+        final int errorCode;
+
+        StageException(int stage, int reason, int errorCode, @Nullable Throwable cause) {
+            super(stageName(stage) + (reason == REASON_TIMEOUT ? " timeout" :
+                    reason == REASON_CANCELLED ? " cancelled" : " failed:" + errorCode), cause);
+            this.stage = stage;
+            this.reason = reason;
+            this.errorCode = errorCode;
+        }
+    }
+
+    private final Stage[] mStages = new Stage[STAGE_COUNT];
+    private final long[] mTimeoutMs = new long[STAGE_COUNT];
+    private final long[] mLatencyNs = new long[STAGE_COUNT];
+    private final Scheduler mScheduler;
+    private final LongSupplier mClockNs;
+    private final CompletableFuture<Integer> mResult = new CompletableFuture<>();
+    private int mCurrentStage = -1;
+    @Nullable
+    private CompletableFuture<Integer> mCurrent;
+    private boolean mStarted;
+
+    HdrCaptureFlow(@NonNull Scheduler scheduler, @NonNull LongSupplier clockNs) {
+        mScheduler = scheduler;
+        mClockNs = clockNs;
+        Arrays.fill(mLatencyNs, -1);
+    }
+
+    /**
+     * 使用ScheduledExecutorService超时
+     */
+    @NonNull
+    static Scheduler scheduler(@NonNull ScheduledExecutorService executor) {
+        return (task, delayMs) -> {
+            ScheduledFuture<?> future = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return () -> future.cancel(false);
+        };
+    }
+
+    /**
+     * 在executor中执行阻塞的阶段
+     */
+    @NonNull
+    static Stage blocking(@NonNull Executor executor, @NonNull Callable<Integer> task) {
+        return () -> {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+            return future;
+        };
+    }
+
+    /**
+     * 设置阶段，需在{@link #start()}前调用
+     *
+     * @param timeoutMs 阶段超时，从阶段开始计时，0:不超时
+     */
+    @NonNull
+    HdrCaptureFlow setStage(int stage, @Nullable Stage impl, long timeoutMs) {
+        mStages[stage] = impl;
+        mTimeoutMs[stage] = timeoutMs;
+        return this;
+    }
+
+    /**
+     * 开始流程，多次调用返回同一结果
+     *
+     * @return 所有阶段成功时完成为0，否则以{@link StageException}异常完成；取消该结果即取消流程
+     */
+    @NonNull
+    CompletableFuture<Integer> start() {
+        synchronized (this) {
+            if (mStarted) {
+                return mResult;
+            }
+            mStarted = true;
+        }
+        mResult.whenComplete((result, t) -> {
+            if (t instanceof CancellationException) {
+                cancelCurrent();
+            }
+        });
+        runStage(0);
+        return mResult;
+    }
+
+    /**
+     * 取消流程，当前阶段以{@link #REASON_CANCELLED}结束
+     */
+    void cancel() {
+        StageException e;
+        synchronized (this) {
+            e = new StageException(mCurrentStage, REASON_CANCELLED, 0, null);
+        }
+        if (mResult.completeExceptionally(e)) {
+            cancelCurrent();
+        }
+    }
+
+    /**
+     * 阶段耗时，-1:未结束
+     */
+    long getLatencyMs(int stage) {
+        synchronized (mLatencyNs) {
+            return mLatencyNs[stage] < 0 ? -1 : mLatencyNs[stage] / 1000_000;
+        }
+    }
+
+    /**
+     * 从流程结果的异常中取得结束原因
+     */
+    @NonNull
+    static StageException getStageException(@NonNull Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof StageException) {
+            return (StageException) t;
+        }
+        return new StageException(-1, t instanceof CancellationException ? REASON_CANCELLED : REASON_FAILED,
+                0, t);
+    }
+
+    @NonNull
+    static String stageName(int stage) {
+        return stage >= 0 && stage < STAGE_COUNT ? STAGE_NAMES[stage] : "none";
+    }
+
+    private void runStage(int stage) {
+        while (stage < STAGE_COUNT && mStages[stage] == null) {
+            stage++;
+        }
+        if (stage >= STAGE_COUNT) {
+            mResult.complete(0);
+            return;
+        }
+        final int index = stage;
+        final long begin = mClockNs.getAsLong();
+        CompletableFuture<Integer> started;
+        synchronized (this) {
+            if (mResult.isDone()) {
+                return;
+            }
+            mCurrentStage = index;
+            try {
+                started = mStages[index].start();
+            } catch (Exception e) {
+                started = new CompletableFuture<>();
+                started.completeExceptionally(e);
+            }
+            mCurrent = started;
+        }
+        final CompletableFuture<Integer> future = started;
+        final Runnable cancelTimeout = mTimeoutMs[index] > 0 ? mScheduler.schedule(() ->
+                        future.completeExceptionally(new StageException(index, REASON_TIMEOUT, 0, null)),
+                mTimeoutMs[index]) : null;
+        future.whenComplete((code, t) -> {
+            if (cancelTimeout != null) {
+                cancelTimeout.run();
+            }
+            synchronized (mLatencyNs) {
+                mLatencyNs[index] = mClockNs.getAsLong() - begin;
+            }
+            if (t != null) {
+                StageException e = getStageException(t);
+                mResult.completeExceptionally(e.stage == index ? e :
+                        new StageException(index, e.reason, e.errorCode, t));
+            } else if (code == null || code != 0) {
+                mResult.completeExceptionally(new StageException(index, REASON_FAILED,
+                        code == null ? -1 : code, null));
+            } else {
+                runStage(index + 1);
+            }
+        });
+    }
+
+    private void cancelCurrent() {
+        CompletableFuture<Integer> current;
+        int stage;
+        synchronized (this) {
+            current = mCurrent;
+            stage = mCurrentStage;
+        }
+        if (current != null) {
+            current.completeExceptionally(new StageException(stage, REASON_CANCELLED, 0, null));
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(TAG).append('{');
+        synchronized (mLatencyNs) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                if (mLatencyNs[i] >= 0) {
+                    sb.append(STAGE_NAMES[i]).append('=').append(mLatencyNs[i] / 1000_000).append("ms,");
+                }
+            }
+        }
+        return sb.append("result=").append(mResult).append('}').toString();
+    }
+}
@@ -0,0 +1,224 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * hdr多张图像的流式合成。
+ * 解码线程把图像解码到缓存池中可复用的像素缓存，合成在调用线程按序号顺序进行，合成后归还缓存并开始解码下一张。
+ * 同时存在的像素缓存不超过缓存池容量，峰值内存由容量决定而与张数无关；容量由内存预算计算，见{@link #concurrency}。
+ * 缓存按序号顺序分配，下一张待合成的图像总已分配到缓存，不会因缓存被后面的图像占满而死锁。
+ * <p>
+ * 本类不依赖Android。
+ *
+ * @param <S> 像素缓存
+ */
+final class HdrMergePipeline<S> {
+    private static final String TAG = "HdrMergePipeline";
+
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_DECODE_FAILED = 1;
+    static final int RESULT_MERGE_FAILED = 2;
+
+    interface Decoder<S> {
+        /**
+         * 在解码线程解码第index张图像到缓存
+         *
+         * @return 是否成功
+         */
+        boolean decode(int index, @NonNull S slot) throws Exception;
+    }
+
+    interface Merger<S> {
+        /**
+         * 按顺序在调用{@link #run}的线程送入合成器
+         *
+         * @return 0:成功
+         */
+        int merge(int index, @NonNull S slot) throws Exception;
+    }
+
+    /**
+     * 容量固定的缓存池，缓存在首次需要时创建，之后复用
+     */
+    static final class SlotPool<S> {
+        private final int mCapacity;
+        private final Supplier<S> mFactory;
+        private final ArrayDeque<S> mFree = new ArrayDeque<>();
+        private final List<S> mAll = new ArrayList<>();
+
+        SlotPool(int capacity, @NonNull Supplier<S> factory) {
+            mCapacity = Math.max(1, capacity);
+            mFactory = factory;
+        }
+
+        /**
+         * 获取缓存，没有空闲且已达到容量时等待归还
+         */
+        @NonNull
+        synchronized S acquire() throws InterruptedException {
+            while (mFree.isEmpty() && mAll.size() >= mCapacity) {
+                wait();
+            }
+            S slot = mFree.pollFirst();
+            if (slot == null) {
+                slot = mFactory.get();
+                mAll.add(slot);
+            }
+            return slot;
+        }
+
+        synchronized void release(@NonNull S slot) {
+            mFree.addFirst(slot);
+            notifyAll();
+        }
+
+        int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * 已创建的缓存数
+         */
+        synchronized int getCreatedCount() {
+            return mAll.size();
+        }
+
+        /**
+         * 释放所有缓存，需在不再使用后调用
+         */
+        synchronized void clear(@NonNull Consumer<S> recycler) {
+            for (S slot : mAll) {
+                recycler.accept(slot);
+            }
+            mAll.clear();
+            mFree.clear();
+        }
+    }
+
+    private final SlotPool<S> mPool;
+    private final int mThreadCount;
+    private final Decoder<S> mDecoder;
+    private final Merger<S> mMerger;
+
+    /**
+     * @param threadCount 解码线程数，不超过缓存池容量
+     */
+    HdrMergePipeline(@NonNull SlotPool<S> pool, int threadCount, @NonNull Decoder<S> decoder,
+                     @NonNull Merger<S> merger) {
+        mPool = pool;
+        mThreadCount = Math.max(1, Math.min(threadCount, pool.getCapacity()));
+        mDecoder = decoder;
+        mMerger = merger;
+    }
+
+    /**
+     * 按内存预算计算同时解码的张数
+     *
+     * @param memoryBudgetBytes 内存预算
+     * @param slotBytes         单个像素缓存的字节数
+     * @param fixedBytes        与张数无关的内存，如合成使用的缓存
+     * @param maxConcurrency    最大张数，如图像张数、处理器核数
+     * @return 至少为1
+     */
+    static int concurrency(long memoryBudgetBytes, long slotBytes, long fixedBytes, int maxConcurrency) {
+        long count = slotBytes <= 0 ? maxConcurrency : (memoryBudgetBytes - fixedBytes) / slotBytes;
+        return (int) Math.max(1, Math.min(count, maxConcurrency));
+    }
+
+    /**
+     * 解码并合成count张图像，返回时所有缓存已归还
+     *
+     * @return {@link #RESULT_SUCCESS}、{@link #RESULT_DECODE_FAILED}或{@link #RESULT_MERGE_FAILED}
+     */
+    int run(int count) {
+        final AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(mThreadCount,
+                r -> new Thread(r, TAG + "-" + threadIndex.getAndIncrement()));
+        List<Future<Boolean>> futures = new ArrayList<>(count);
+        List<S> slots = new ArrayList<>(count);
+        int merged = 0;
+        int result = RESULT_SUCCESS;
+        try {
+            while (futures.size() < count && futures.size() < mPool.getCapacity()) {
+                dispatch(executor, futures, slots);
+            }
+            for (; merged < count; merged++) {
+                final S slot = slots.get(merged);
+                boolean decoded;
+                try {
+                    decoded = futures.get(merged).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    decoded = false;
+                }
+                if (!decoded) {
+                    result = RESULT_DECODE_FAILED;
+                    break;
+                }
+                int ret;
+                try {
+                    ret = mMerger.merge(merged, slot);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    ret = -1;
+                }
+                mPool.release(slot);
+                slots.set(merged, null);
+                if (ret != 0) {
+                    result = RESULT_MERGE_FAILED;
+                    merged++;
+                    break;
+                }
+                if (futures.size() < count) {
+                    dispatch(executor, futures, slots);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = RESULT_MERGE_FAILED;
+        } finally {
+            // 等待已开始的解码结束后归还缓存，被中断时也需等待，解码中的缓存不能被复用或释放
+            boolean interrupted = Thread.interrupted();
+            for (int i = merged; i < futures.size(); i++) {
+                while (true) {
+                    try {
+                        futures.get(i).get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (Exception ignored) {
+                        break;
+                    }
+                }
+                S slot = slots.get(i);
+                if (slot != null) {
+                    mPool.release(slot);
+                }
+            }
+            executor.shutdown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return result;
+    }
+
+    private void dispatch(ExecutorService executor, List<Future<Boolean>> futures, List<S> slots)
+            throws InterruptedException {
+        final int index = futures.size();
+        final S slot = mPool.acquire();
+        slots.add(slot);
+        futures.add(executor.submit(() -> mDecoder.decode(index, slot)));
+    }
+}
@@ -0,0 +1,22 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 分段录像回调，在后台线程回调
+ */
+public interface IRecordSegmentListener {
+    /**
+     * 一个分段结束写入，文件已可播放。
+     * 全景信息在停止录像时统一写入各分段。
+     *
+     * @param filename 分段文件路径
+     * @param index    分段序号，从0开始，第0个分段即录像文件名称
+     */
+    void onSegmentFinished(@NonNull String filename, int index);
+
+    /**
+     * 剩余存储空间低于设置值，当前分段将在下一个关键帧处结束，每次录像只回调一次
+     */
+    void onStorageLow(long freeBytes);
+}
@@ -0,0 +1,13 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 录像状态统计的定时回调
+ */
+public interface IRecordTelemetryListener {
+    /**
+     * 录像中定时回调，在主线程回调
+     */
+    void onRecordTelemetry(@NonNull RecordTelemetrySnapshot snapshot);
+}
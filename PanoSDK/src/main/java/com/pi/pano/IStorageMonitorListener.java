@@ -0,0 +1,24 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 录像存储监测回调，在后台线程回调，触发条件见{@link StoragePolicy}
+ */
+public interface IStorageMonitorListener {
+    /**
+     * 写入余量不足、同步耗时过长或预计剩余可录时长不足
+     */
+    void onStorageWarning(@NonNull StorageStatus status);
+
+    /**
+     * 写入余量持续不足，已降低视频码率
+     */
+    void onStorageBitrateReduced(@NonNull StorageStatus status);
+
+    /**
+     * 剩余空间将耗尽或写入能力持续低于录像数据速率，SDK已开始停止录像(同{@link PilotSDK#stopRecord(boolean, boolean)})
+     * 以保证文件完整，无需再调用停止，每次录像只回调一次
+     */
+    void onStorageStopRequired(@NonNull StorageStatus status);
+}
@@ -0,0 +1,216 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * imu数据环形缓冲。
+ * 单生产者(传感器回调)单消费者(编码线程)，时间戳与xyz分别保存在基本类型数组中，写入时不分配对象。
+ * 缓冲满时覆盖最旧的数据并计数，消费者读取后校验数据未被覆盖。
+ * 时间戳需单调递增，查找时二分，可在相邻两个样本之间线性插值。
+ * <p>
+ * 本类不依赖Android。
+ */
+class ImuRingBuffer {
+
+    /**
+     * 查找结果，由调用者复用
+     */
+    static final class Sample {
+        long timestamp = -1;
+        float x, y, z;
+    }
+
+    private final int mMask;
+    private final long[] mTimestamps;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    /**
+     * 下一个写入的序号，只由生产者修改
+     */
+    private volatile long mHead;
+    /**
+     * 最旧的有效序号，只由消费者修改
+     */
+    private volatile long mTail;
+    private volatile long mOverflowCount;
+
+    /**
+     * @param capacity 最少可读的样本数，槽位数向上取整为2的幂
+     */
+    ImuRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity)) << 1;
+        mMask = size - 1;
+        mTimestamps = new long[size];
+        mX = new float[size];
+        mY = new float[size];
+        mZ = new float[size];
+    }
+
+    /**
+     * 可读的样本数，比槽位数少一个，序号head的槽位留给正在写入的样本
+     */
+    int capacity() {
+        return mMask;
+    }
+
+    /**
+     * 写入一个样本，只能在生产者线程调用
+     */
+    void put(long timestamp, float x, float y, float z) {
+        long head = mHead;
+        // 与oldest()的可读窗口一致，写入后序号head-mMask的样本不再可读
+        if (head - mTail >= mMask) {
+            mOverflowCount++;
+        }
+        int index = (int) (head & mMask);
+        mTimestamps[index] = timestamp;
+        mX[index] = x;
+        mY[index] = y;
+        mZ[index] = z;
+        // volatile写,保证消费者看到序号时数据已写入
+        mHead = head + 1;
+    }
+
+    /**
+     * 因消费不及时被覆盖的样本数
+     */
+    long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /**
+     * 当前可读的样本数
+     */
+    int size() {
+        long head = mHead;
+        return (int) (head - oldest(head));
+    }
+
+    /**
+     * 丢弃所有样本，只能在消费者线程调用
+     */
+    void clear() {
+        mTail = mHead;
+    }
+
+    /**
+     * 最旧的可读序号，序号head的槽位可能正在被写入，不可读
+     */
+    private long oldest(long head) {
+        return Math.max(mTail, head - mMask);
+    }
+
+    /**
+     * 查找与时间戳最接近的样本，并丢弃更早的样本，只能在消费者线程调用。
+     * 时间戳早于所有样本时返回最旧的样本，晚于所有样本时返回最新的样本。
+     *
+     * @param interpolate true:在前后两个样本之间线性插值;false:取最接近的样本
+     * @return false:没有样本
+     */
+    boolean find(long timestamp, boolean interpolate, @NonNull Sample out) {
+        while (true) {
+            long head = mHead;
+            long lo = oldest(head);
+            if (lo >= head) {
+                return false;
+            }
+            // 第一个时间戳不小于timestamp的序号
+            long left = lo;
+            long right = head;
+            while (left < right) {
+                long mid = (left + right) >>> 1;
+                if (mTimestamps[(int) (mid & mMask)] < timestamp) {
+                    left = mid + 1;
+                } else {
+                    right = mid;
+                }
+            }
+            long keep;
+            if (left == lo) {
+                read(lo, out);
+                keep = lo;
+            } else if (left == head) {
+                read(head - 1, out);
+                keep = head - 1;
+            } else {
+                long prev = left - 1;
+                int i0 = (int) (prev & mMask);
+                int i1 = (int) (left & mMask);
+                long t0 = mTimestamps[i0];
+                long t1 = mTimestamps[i1];
+                if (interpolate && t1 > t0) {
+                    float ratio = (float) (timestamp - t0) / (t1 - t0);
+                    out.timestamp = timestamp;
+                    out.x = mX[i0] + (mX[i1] - mX[i0]) * ratio;
+                    out.y = mY[i0] + (mY[i1] - mY[i0]) * ratio;
+                    out.z = mZ[i0] + (mZ[i1] - mZ[i0]) * ratio;
+                } else if (timestamp - t0 < t1 - timestamp) {
+                    read(prev, out);
+                } else {
+                    read(left, out);
+                }
+                keep = prev;
+            }
+            // 读取期间数据可能已被生产者覆盖,重新查找
+            if (mHead - keep > mMask) {
+                continue;
+            }
+            mTail = keep;
+            return true;
+        }
+    }
+
+    /**
+     * 按顺序取出最旧的样本，只能在消费者线程调用
+     *
+     * @param maxTimestamp 只取时间戳不大于此值的样本
+     * @return false:没有满足条件的样本
+     */
+    boolean poll(long maxTimestamp, @NonNull Sample out) {
+        while (true) {
+            long head = mHead;
+            long lo = oldest(head);
+            if (lo >= head) {
+                return false;
+            }
+            read(lo, out);
+            if (mHead - lo > mMask) {
+                continue;
+            }
+            if (out.timestamp > maxTimestamp) {
+                return false;
+            }
+            mTail = lo + 1;
+            return true;
+        }
+    }
+
+    /**
+     * 最旧样本的时间戳，不取出，只能在消费者线程调用
+     *
+     * @return 没有样本时为Long.MAX_VALUE
+     */
+    long peekTimestamp() {
+        while (true) {
+            long head = mHead;
+            long lo = oldest(head);
+            if (lo >= head) {
+                return Long.MAX_VALUE;
+            }
+            long timestamp = mTimestamps[(int) (lo & mMask)];
+            if (mHead - lo > mMask) {
+                continue;
+            }
+            return timestamp;
+        }
+    }
+
+    private void read(long seq, Sample out) {
+        int index = (int) (seq & mMask);
+        out.timestamp = mTimestamps[index];
+        out.x = mX[index];
+        out.y = mY[index];
+        out.z = mZ[index];
+    }
+}
@@ -0,0 +1,155 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 耗时直方图。
+ * 按微秒分桶(与HdrHistogram相同的方式)：小于16微秒每微秒一个桶，之后每个2的幂区间再均分为8个桶，
+ * 记录不分配对象，百分位取所在桶的上界，误差不超过1/8。
+ * <p>
+ * 本类不依赖Android。
+ */
+class LatencyHistogram {
+    /**
+     * 每个2的幂区间的桶数为2^SUB_BITS
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * 小于该值时每微秒一个桶
+     */
+    private static final int LINEAR_COUNT = SUB_COUNT * 2;
+    /**
+     * 最大区间为[2^39, 2^40)微秒，约12天
+     */
+    private static final int MAX_MAGNITUDE = 39;
+    private static final int BUCKET_COUNT = LINEAR_COUNT + (MAX_MAGNITUDE - SUB_BITS) * SUB_COUNT;
+
+    private final String mName;
+    /**
+     * 各桶的次数，桶的范围见{@link #bucketOf(long)}、{@link #upperOf(int)}
+     */
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSumUs;
+    private long mMaxUs;
+
+    LatencyHistogram(@NonNull String name) {
+        mName = name;
+    }
+
+    @NonNull
+    String getName() {
+        return mName;
+    }
+
+    synchronized void recordNs(long ns) {
+        recordUs(ns / 1000);
+    }
+
+    synchronized void recordUs(long us) {
+        if (us < 0) {
+            us = 0;
+        }
+        mBuckets[bucketOf(us)]++;
+        mCount++;
+        mSumUs += us;
+        if (us > mMaxUs) {
+            mMaxUs = us;
+        }
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    synchronized long getMeanUs() {
+        return mCount == 0 ? 0 : mSumUs / mCount;
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 微秒，没有数据时为0
+     */
+    synchronized long getPercentileUs(float percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= Math.max(1, target)) {
+                return Math.min(mMaxUs, upperOf(i));
+            }
+        }
+        return mMaxUs;
+    }
+
+    private static int bucketOf(long us) {
+        if (us < LINEAR_COUNT) {
+            return (int) us;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(us);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (us >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+        return LINEAR_COUNT + (magnitude - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    private static long upperOf(int bucket) {
+        if (bucket < LINEAR_COUNT) {
+            return bucket;
+        }
+        int magnitude = (bucket - LINEAR_COUNT) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (bucket - LINEAR_COUNT) % SUB_COUNT;
+        long unit = 1L << (magnitude - SUB_BITS);
+        return (SUB_COUNT + sub) * unit + unit - 1;
+    }
+
+    /**
+     * 合并另一个直方图的数据
+     */
+    void merge(@NonNull LatencyHistogram other) {
+        long[] buckets;
+        long count, sum, max;
+        synchronized (other) {
+            buckets = other.mBuckets.clone();
+            count = other.mCount;
+            sum = other.mSumUs;
+            max = other.mMaxUs;
+        }
+        synchronized (this) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] += buckets[i];
+            }
+            mCount += count;
+            mSumUs += sum;
+            mMaxUs = Math.max(mMaxUs, max);
+        }
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSumUs = 0;
+        mMaxUs = 0;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return mName + "{count=" + mCount + ",mean=" + getMeanUs() + "us,p50=" + getPercentileUs(50) +
+                "us,p95=" + getPercentileUs(95) + "us,p99=" + getPercentileUs(99) + "us,max=" + mMaxUs + "us}";
+    }
+}
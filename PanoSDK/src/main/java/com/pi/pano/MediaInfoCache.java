@@ -0,0 +1,378 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * 媒体信息缓存。
+ * 以文件路径为键，文件大小和修改时间作为校验，文件变化后缓存自动失效。
+ * 内存中为LRU，可选持久化到磁盘，下次启动时不必重新解析。
+ * 变更累计到一定数量后在后台线程写入磁盘，写入时只在复制条目时持有缓存的锁，不阻塞查询。
+ * <p>
+ * 磁盘格式：[int 魔数][int 版本][int 条数]，之后每条为
+ * [UTF 路径][long 大小][long 修改时间][long 时长us][int 宽][int 高][float 帧率][int 轨道数][boolean 有音频]。
+ * <p>
+ * 本类不依赖Android，实际解析由{@link Loader}完成。
+ */
+public class MediaInfoCache {
+    private static final int MAGIC = 0x504d4931; // "PMI1"
+    private static final int VERSION = 1;
+    /**
+     * 所有缓存共用的后台写入线程
+     */
+    private static final Executor sSaveExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MediaInfoCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 媒体信息，不可变，缓存中的同一对象可直接返回给所有调用方
+     */
+    public static final class Info {
+        @NonNull
+        final String path;
+        final long size;
+        final long lastModified;
+        /**
+         * 时长(us)
+         */
+        public final long durationUs;
+        public final int width;
+        public final int height;
+        public final float fps;
+        public final int trackCount;
+        public final boolean hasAudio;
+
+        public Info(@NonNull File file, long durationUs, int width, int height, float fps,
+                    int trackCount, boolean hasAudio) {
+            this(file.getAbsolutePath(), file.length(), file.lastModified(),
+                    durationUs, width, height, fps, trackCount, hasAudio);
+        }
+
+        Info(@NonNull String path, long size, long lastModified, long durationUs, int width, int height,
+             float fps, int trackCount, boolean hasAudio) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.durationUs = durationUs;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.trackCount = trackCount;
+            this.hasAudio = hasAudio;
+        }
+
+        /**
+         * 缓存的信息是否仍与文件一致
+         */
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Info{" + path + ",duration=" + durationUs + ",size=" + width + "x" + height +
+                    ",fps=" + fps + ",tracks=" + trackCount + ",audio=" + hasAudio + "}";
+        }
+    }
+
+    /**
+     * 解析媒体信息
+     */
+    public interface Loader {
+        /**
+         * @return null:解析失败
+         */
+        @Nullable
+        Info load(@NonNull File file);
+    }
+
+    private final int mMaxEntries;
+    private final Loader mLoader;
+    private final LinkedHashMap<String, Info> mEntries;
+    private final Executor mSaveExecutor;
+    /**
+     * 写入磁盘的互斥，按复制条目的顺序写入；先获取此锁再获取缓存的锁
+     */
+    private final Object mWriteLock = new Object();
+    private File mDiskFile;
+    /**
+     * 未写入磁盘的变更数
+     */
+    private int mDirtyCount;
+    private boolean mSaveScheduled;
+    private int mSaveThreshold = 32;
+    private long mHitCount;
+    private long mMissCount;
+
+    public MediaInfoCache(int maxEntries, @NonNull Loader loader) {
+        this(maxEntries, loader, sSaveExecutor);
+    }
+
+    /**
+     * @param saveExecutor 自动写入磁盘的执行线程
+     */
+    MediaInfoCache(int maxEntries, @NonNull Loader loader, @NonNull Executor saveExecutor) {
+        mMaxEntries = Math.max(1, maxEntries);
+        mLoader = loader;
+        mSaveExecutor = saveExecutor;
+        mEntries = new LinkedHashMap<String, Info>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Info> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * 设置磁盘存储文件并读取其中的缓存
+     */
+    public void setDiskStore(@Nullable File file) {
+        List<Info> infos = null;
+        if (file != null && file.exists()) {
+            try {
+                infos = read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        synchronized (this) {
+            mDiskFile = file;
+            if (infos != null) {
+                for (Info info : infos) {
+                    mEntries.put(info.path, info);
+                }
+            }
+        }
+    }
+
+    /**
+     * 变更数达到此值后在后台写入磁盘
+     */
+    synchronized void setSaveThreshold(int count) {
+        mSaveThreshold = Math.max(1, count);
+    }
+
+    /**
+     * 获取媒体信息，缓存未命中或文件已变化时重新解析
+     *
+     * @return null:文件不存在或解析失败
+     */
+    @Nullable
+    public Info get(@NonNull File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Info info = mEntries.get(path);
+            if (info != null) {
+                if (info.matches(size, lastModified)) {
+                    mHitCount++;
+                    return info;
+                }
+                mEntries.remove(path);
+                mDirtyCount++;
+            }
+            mMissCount++;
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        // 解析较慢,不持有锁
+        Info info = mLoader.load(file);
+        if (info != null) {
+            synchronized (this) {
+                mEntries.put(path, info);
+                if (++mDirtyCount >= mSaveThreshold && mDiskFile != null && !mSaveScheduled) {
+                    mSaveScheduled = true;
+                    mSaveExecutor.execute(this::flush);
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * 只查询缓存，不解析
+     */
+    @Nullable
+    public synchronized Info peek(@NonNull File file) {
+        Info info = mEntries.get(file.getAbsolutePath());
+        if (info != null && info.matches(file.length(), file.lastModified())) {
+            return info;
+        }
+        return null;
+    }
+
+    /**
+     * 文件被修改或删除后使其缓存失效
+     */
+    public synchronized void invalidate(@NonNull File file) {
+        if (mEntries.remove(file.getAbsolutePath()) != null) {
+            mDirtyCount++;
+        }
+    }
+
+    /**
+     * 使某个目录下所有文件的缓存失效
+     */
+    public synchronized void invalidateDir(@NonNull File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+                mDirtyCount++;
+            }
+        }
+    }
+
+    /**
+     * 批量预取，用于列出目录时提前解析
+     *
+     * @return 新解析的文件数
+     */
+    public int prefetch(@NonNull Collection<File> files) {
+        int count = 0;
+        for (File file : files) {
+            if (peek(file) == null && get(file) != null) {
+                count++;
+            }
+        }
+        flush();
+        return count;
+    }
+
+    /**
+     * 预取目录下的文件
+     *
+     * @param filter 文件过滤,null:全部文件
+     */
+    public int prefetchDir(@NonNull File dir, @Nullable FileFilter filter) {
+        File[] files = dir.listFiles(filter);
+        if (files == null) {
+            return 0;
+        }
+        List<File> list = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.isFile()) {
+                list.add(file);
+            }
+        }
+        return prefetch(list);
+    }
+
+    /**
+     * 将变更写入磁盘，在调用线程写入
+     */
+    public void flush() {
+        synchronized (mWriteLock) {
+            File file;
+            List<Info> infos;
+            int dirtyCount;
+            synchronized (this) {
+                mSaveScheduled = false;
+                if (mDiskFile == null || mDirtyCount == 0) {
+                    return;
+                }
+                file = mDiskFile;
+                infos = new ArrayList<>(mEntries.values());
+                dirtyCount = mDirtyCount;
+                mDirtyCount = 0;
+            }
+            try {
+                write(file, infos);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    mDirtyCount += dirtyCount;
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 写入磁盘，先写临时文件再重命名
+     */
+    static void write(@NonNull File file, @NonNull Collection<Info> infos) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(infos.size());
+            for (Info info : infos) {
+                out.writeUTF(info.path);
+                out.writeLong(info.size);
+                out.writeLong(info.lastModified);
+                out.writeLong(info.durationUs);
+                out.writeInt(info.width);
+                out.writeInt(info.height);
+                out.writeFloat(info.fps);
+                out.writeInt(info.trackCount);
+                out.writeBoolean(info.hasAudio);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename failed:" + tmp);
+        }
+    }
+
+    /**
+     * 从磁盘读取
+     */
+    @NonNull
+    static List<Info> read(@NonNull File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown format:" + file);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad count:" + count);
+            }
+            List<Info> infos = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                infos.add(new Info(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readInt(), in.readInt(), in.readFloat(), in.readInt(), in.readBoolean()));
+            }
+            return infos;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.pi.pano;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * 使用MediaExtractor解析媒体信息，并提供全局共用的{@link MediaInfoCache}。
+ */
+public class MediaInfoLoader implements MediaInfoCache.Loader {
+    private static final String TAG = "MediaInfoLoader";
+    private static final String DISK_STORE_NAME = "media_info_cache.bin";
+
+    private static final MediaInfoCache sCache = new MediaInfoCache(256, new MediaInfoLoader());
+    private static volatile boolean sDiskStoreAttached;
+
+    @NonNull
+    public static MediaInfoCache getCache() {
+        return sCache;
+    }
+
+    /**
+     * 使用应用缓存目录持久化媒体信息，SDK初始化时调用，重复调用无影响
+     */
+    public static void attachDiskStore(@NonNull Context context) {
+        if (sDiskStoreAttached) {
+            return;
+        }
+        synchronized (MediaInfoLoader.class) {
+            if (!sDiskStoreAttached) {
+                sCache.setDiskStore(new File(context.getCacheDir(), DISK_STORE_NAME));
+                sDiskStoreAttached = true;
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public MediaInfoCache.Info load(@NonNull File file) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            int trackCount = extractor.getTrackCount();
+            long durationUs = 0;
+            int width = 0;
+            int height = 0;
+            float fps = 0;
+            boolean hasAudio = false;
+            for (int i = 0; i < trackCount; i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION));
+                }
+                if (mime == null) {
+                    continue;
+                }
+                if (mime.startsWith("audio/")) {
+                    hasAudio = true;
+                } else if (mime.startsWith("video/") && width == 0) {
+                    width = format.getInteger(MediaFormat.KEY_WIDTH);
+                    height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                    if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                        try {
+                            fps = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                        } catch (ClassCastException e) {
+                            fps = format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                        }
+                    }
+                }
+            }
+            return new MediaInfoCache.Info(file, durationUs, width, height, fps, trackCount, hasAudio);
+        } catch (Exception e) {
+            Log.w(TAG, "load " + file + ",ex:" + e);
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+}
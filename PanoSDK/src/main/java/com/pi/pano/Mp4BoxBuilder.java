@@ -0,0 +1,563 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MP4 box写入，写入时自动扩容；以及moov中与样本表无关的公共box(mvhd、tkhd、mdhd、hdlr、stsd等)。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class Mp4BoxBuilder {
+    private ByteBuffer mBuffer;
+
+    Mp4BoxBuilder(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    void clear() {
+        mBuffer.clear();
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * 已写入的数据，从0到当前位置，与本对象共享内容
+     */
+    @NonNull
+    ByteBuffer flip() {
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    /**
+     * 开始一个box，之后以{@link #end(int)}结束
+     *
+     * @return box的开始位置
+     */
+    int begin(@NonNull String type) {
+        int position = mBuffer.position();
+        putInt(0);
+        put(fourcc(type));
+        return position;
+    }
+
+    int fullBox(@NonNull String type, int version, int flags) {
+        int position = begin(type);
+        putInt(version << 24 | flags);
+        return position;
+    }
+
+    void end(int position) {
+        mBuffer.putInt(position, mBuffer.position() - position);
+    }
+
+    void put(byte value) {
+        ensure(1);
+        mBuffer.put(value);
+    }
+
+    void put(@NonNull byte[] value) {
+        ensure(value.length);
+        mBuffer.put(value);
+    }
+
+    void putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+    }
+
+    void putInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+    }
+
+    void ensure(int size) {
+        mBuffer = ensure(mBuffer, size);
+    }
+
+    /**
+     * 保证缓冲剩余空间，不足时按倍数扩容
+     */
+    @NonNull
+    static ByteBuffer ensure(@NonNull ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        int capacity = Math.max(16, buffer.capacity());
+        while (capacity - buffer.position() < size) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    @NonNull
+    static byte[] fourcc(@NonNull String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    void writeMvhd(int timescale, long duration, int nextTrackId) {
+        int mvhd = fullBox("mvhd", 0, 0);
+        putInt(0); // creation_time
+        putInt(0); // modification_time
+        putInt(timescale);
+        putInt((int) duration);
+        putInt(0x00010000); // rate
+        putShort(0x0100); // volume
+        putZeros(10);
+        putMatrix();
+        putZeros(24);
+        putInt(nextTrackId);
+        end(mvhd);
+    }
+
+    void writeTkhd(int trackId, long duration, @NonNull Mp4TrackFormat format) {
+        int tkhd = fullBox("tkhd", 0, 0x000003);
+        putInt(0);
+        putInt(0);
+        putInt(trackId);
+        putInt(0);
+        putInt((int) duration);
+        putZeros(8);
+        putShort(0); // layer
+        putShort(0); // alternate_group
+        putShort(format.isAudio() ? 0x0100 : 0);
+        putShort(0);
+        putMatrix();
+        putInt(format.width << 16);
+        putInt(format.height << 16);
+        end(tkhd);
+    }
+
+    void writeMdhd(int timescale, long duration) {
+        int mdhd = fullBox("mdhd", 0, 0);
+        putInt(0);
+        putInt(0);
+        putInt(timescale);
+        putInt((int) duration);
+        putShort(0x55C4); // und
+        putShort(0);
+        end(mdhd);
+    }
+
+    void writeHdlr(@NonNull Mp4TrackFormat format) {
+        int hdlr = fullBox("hdlr", 0, 0);
+        putInt(0);
+        put(fourcc(format.isVideo() ? "vide" : format.isAudio() ? "soun" : "meta"));
+        putZeros(12);
+        put((format.isVideo() ? "VideoHandle" : format.isAudio() ? "SoundHandle" : "MetaHandle")
+                .getBytes(StandardCharsets.US_ASCII));
+        put((byte) 0);
+        end(hdlr);
+    }
+
+    /**
+     * vmhd、smhd或nmhd，以及dinf
+     */
+    void writeMediaHeaderAndDinf(@NonNull Mp4TrackFormat format) {
+        if (format.isVideo()) {
+            int vmhd = fullBox("vmhd", 0, 1);
+            putZeros(8);
+            end(vmhd);
+        } else if (format.isAudio()) {
+            int smhd = fullBox("smhd", 0, 0);
+            putInt(0);
+            end(smhd);
+        } else {
+            end(fullBox("nmhd", 0, 0));
+        }
+        int dinf = begin("dinf");
+        int dref = fullBox("dref", 0, 0);
+        putInt(1);
+        end(fullBox("url ", 0, 1));
+        end(dref);
+        end(dinf);
+    }
+
+    void writeStsd(@NonNull Mp4TrackFormat format, int trackId) {
+        int stsd = fullBox("stsd", 0, 0);
+        putInt(1);
+        if (format.sampleEntry != null) {
+            put(format.sampleEntry);
+        } else if (format.isVideo()) {
+            writeVisualSampleEntry(format);
+        } else if (format.isAudio()) {
+            writeAudioSampleEntry(format, trackId);
+        } else {
+            int camm = begin("camm");
+            putZeros(6);
+            putShort(1);
+            end(camm);
+        }
+        end(stsd);
+    }
+
+    private void putMatrix() {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            putInt(value);
+        }
+    }
+
+    private void writeVisualSampleEntry(Mp4TrackFormat format) {
+        List<byte[]> nalUnits = new ArrayList<>();
+        for (byte[] csd : format.csd) {
+            splitNalUnits(csd, nalUnits);
+        }
+        int entry = begin(format.isHevc() ? "hvc1" : "avc1");
+        putZeros(6);
+        putShort(1); // data_reference_index
+        putZeros(16);
+        putShort(format.width);
+        putShort(format.height);
+        putInt(0x00480000);
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1); // frame_count
+        putZeros(32); // compressorname
+        putShort(0x0018);
+        putShort(-1);
+        if (format.isHevc()) {
+            writeHvcC(nalUnits);
+        } else {
+            writeAvcC(nalUnits);
+        }
+        end(entry);
+    }
+
+    private void writeAvcC(List<byte[]> nalUnits) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : nalUnits) {
+            int type = nal[0] & 0x1F;
+            if (type == 7) {
+                sps.add(nal);
+            } else if (type == 8) {
+                pps.add(nal);
+            }
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4 || pps.isEmpty()) {
+            throw new IllegalArgumentException("avc csd without sps/pps");
+        }
+        byte[] first = sps.get(0);
+        int avcC = begin("avcC");
+        put((byte) 1);
+        put(first[1]); // profile_idc
+        put(first[2]); // constraint flags
+        put(first[3]); // level_idc
+        put((byte) 0xFF); // lengthSizeMinusOne = 3
+        put((byte) (0xE0 | sps.size()));
+        for (byte[] nal : sps) {
+            putShort(nal.length);
+            put(nal);
+        }
+        put((byte) pps.size());
+        for (byte[] nal : pps) {
+            putShort(nal.length);
+            put(nal);
+        }
+        end(avcC);
+    }
+
+    private void writeHvcC(List<byte[]> nalUnits) {
+        byte[] sps = null;
+        int[] types = {32, 33, 34}; // VPS、SPS、PPS
+        int arrays = 0;
+        for (int type : types) {
+            boolean found = false;
+            for (byte[] nal : nalUnits) {
+                if (hevcNalType(nal[0]) == type) {
+                    found = true;
+                    if (type == 33 && sps == null) {
+                        sps = nal;
+                    }
+                }
+            }
+            if (found) {
+                arrays++;
+            }
+        }
+        if (sps == null) {
+            throw new IllegalArgumentException("hevc csd without sps");
+        }
+        HevcSpsInfo info = HevcSpsInfo.parse(sps);
+        int hvcC = begin("hvcC");
+        put((byte) 1);
+        put(info.profileTierLevel); // 12字节general_profile_tier_level
+        putShort(0xF000); // min_spatial_segmentation_idc
+        put((byte) 0xFC); // parallelismType
+        put((byte) (0xFC | info.chromaFormat));
+        put((byte) (0xF8 | info.bitDepthLumaMinus8));
+        put((byte) (0xF8 | info.bitDepthChromaMinus8));
+        putShort(0); // avgFrameRate
+        put((byte) (info.temporalLayers << 3 | (info.temporalIdNested ? 1 << 2 : 0) | 3));
+        put((byte) arrays);
+        for (int type : types) {
+            int count = 0;
+            for (byte[] nal : nalUnits) {
+                if (hevcNalType(nal[0]) == type) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            put((byte) (0x80 | type));
+            putShort(count);
+            for (byte[] nal : nalUnits) {
+                if (hevcNalType(nal[0]) == type) {
+                    putShort(nal.length);
+                    put(nal);
+                }
+            }
+        }
+        end(hvcC);
+    }
+
+    private void writeAudioSampleEntry(Mp4TrackFormat format, int trackId) {
+        byte[] asc = format.csd.length > 0 ? format.csd[0] : new byte[0];
+        int mp4a = begin("mp4a");
+        putZeros(6);
+        putShort(1);
+        putZeros(8);
+        putShort(format.channelCount);
+        putShort(16); // samplesize
+        putInt(0);
+        putInt(format.sampleRate << 16);
+        int esds = fullBox("esds", 0, 0);
+        // ES_Descriptor
+        put((byte) 0x03);
+        putDescriptorLength(3 + 5 + 13 + 5 + asc.length + 5 + 1);
+        putShort(trackId);
+        put((byte) 0);
+        // DecoderConfigDescriptor
+        put((byte) 0x04);
+        putDescriptorLength(13 + 5 + asc.length);
+        put((byte) 0x40); // Audio ISO/IEC 14496-3
+        put((byte) 0x15); // AudioStream
+        put((byte) 0);
+        putShort(0); // bufferSizeDB
+        putInt(format.bitrate); // maxBitrate
+        putInt(format.bitrate); // avgBitrate
+        // DecoderSpecificInfo
+        put((byte) 0x05);
+        putDescriptorLength(asc.length);
+        put(asc);
+        // SLConfigDescriptor
+        put((byte) 0x06);
+        putDescriptorLength(1);
+        put((byte) 0x02);
+        end(esds);
+        end(mp4a);
+    }
+
+    private void putDescriptorLength(int length) {
+        put((byte) (0x80 | (length >> 21) & 0x7F));
+        put((byte) (0x80 | (length >> 14) & 0x7F));
+        put((byte) (0x80 | (length >> 7) & 0x7F));
+        put((byte) (length & 0x7F));
+    }
+
+    static int avcNalType(byte header) {
+        return header & 0x1F;
+    }
+
+    static int hevcNalType(byte header) {
+        return (header >> 1) & 0x3F;
+    }
+
+    /**
+     * @return 起始码00 00 01的位置，-1:没有
+     */
+    static int findStartCode(@NonNull ByteBuffer buffer, int from, int end) {
+        int i = from;
+        while (i + 2 < end) {
+            byte b = buffer.get(i + 2);
+            if (b > 1 || b < 0) {
+                i += 3;
+            } else if (b == 1 && buffer.get(i + 1) == 0 && buffer.get(i) == 0) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按起始码拆分参数集
+     */
+    static void splitNalUnits(@NonNull byte[] data, @NonNull List<byte[]> out) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int nal = findStartCode(buffer, 0, data.length);
+        if (nal < 0) {
+            if (data.length > 0) {
+                out.add(data);
+            }
+            return;
+        }
+        nal += 3;
+        while (nal < data.length) {
+            int next = findStartCode(buffer, nal, data.length);
+            int end = next < 0 ? data.length : next;
+            while (end > nal && data[end - 1] == 0) {
+                end--;
+            }
+            if (end > nal) {
+                out.add(Arrays.copyOfRange(data, nal, end));
+            }
+            if (next < 0) {
+                break;
+            }
+            nal = next + 3;
+        }
+    }
+
+    /**
+     * hvcC需要的HEVC SPS信息
+     */
+    private static final class HevcSpsInfo {
+        final byte[] profileTierLevel = new byte[12];
+        int temporalLayers = 1;
+        boolean temporalIdNested;
+        int chromaFormat = 1;
+        int bitDepthLumaMinus8;
+        int bitDepthChromaMinus8;
+
+        @NonNull
+        static HevcSpsInfo parse(@NonNull byte[] sps) {
+            byte[] rbsp = unescape(sps);
+            HevcSpsInfo info = new HevcSpsInfo();
+            if (rbsp.length < 15) {
+                throw new IllegalArgumentException("hevc sps too short");
+            }
+            // [0,2)NAL头，[2]vps_id(4)、max_sub_layers_minus1(3)、temporal_id_nesting(1)，[3,15)general_profile_tier_level
+            int maxSubLayersMinus1 = (rbsp[2] >> 1) & 0x07;
+            info.temporalLayers = maxSubLayersMinus1 + 1;
+            info.temporalIdNested = (rbsp[2] & 0x01) != 0;
+            System.arraycopy(rbsp, 3, info.profileTierLevel, 0, 12);
+            try {
+                BitReader reader = new BitReader(rbsp, 15);
+                boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+                boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+                for (int i = 0; i < maxSubLayersMinus1; i++) {
+                    profilePresent[i] = reader.read(1) != 0;
+                    levelPresent[i] = reader.read(1) != 0;
+                }
+                if (maxSubLayersMinus1 > 0) {
+                    for (int i = maxSubLayersMinus1; i < 8; i++) {
+                        reader.read(2);
+                    }
+                }
+                for (int i = 0; i < maxSubLayersMinus1; i++) {
+                    if (profilePresent[i]) {
+                        reader.skip(88);
+                    }
+                    if (levelPresent[i]) {
+                        reader.skip(8);
+                    }
+                }
+                reader.readUe(); // sps_seq_parameter_set_id
+                info.chromaFormat = reader.readUe();
+                if (info.chromaFormat == 3) {
+                    reader.read(1);
+                }
+                reader.readUe(); // width
+                reader.readUe(); // height
+                if (reader.read(1) != 0) {
+                    for (int i = 0; i < 4; i++) {
+                        reader.readUe();
+                    }
+                }
+                info.bitDepthLumaMinus8 = reader.readUe();
+                info.bitDepthChromaMinus8 = reader.readUe();
+            } catch (IndexOutOfBoundsException e) {
+                // 按8位4:2:0处理
+                info.chromaFormat = 1;
+                info.bitDepthLumaMinus8 = 0;
+                info.bitDepthChromaMinus8 = 0;
+            }
+            return info;
+        }
+
+        /**
+         * 去除防竞争字节00 00 03中的03
+         */
+        @NonNull
+        private static byte[] unescape(@NonNull byte[] nal) {
+            byte[] out = new byte[nal.length];
+            int length = 0;
+            int zeros = 0;
+            for (byte b : nal) {
+                if (zeros >= 2 && b == 3) {
+                    zeros = 0;
+                    continue;
+                }
+                out[length++] = b;
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return Arrays.copyOf(out, length);
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] mData;
+        private int mBit;
+
+        BitReader(@NonNull byte[] data, int byteOffset) {
+            mData = data;
+            mBit = byteOffset * 8;
+        }
+
+        int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                int b = mData[mBit >> 3] >> (7 - (mBit & 7)) & 1;
+                value = value << 1 | b;
+                mBit++;
+            }
+            return value;
+        }
+
+        void skip(int bits) {
+            mBit += bits;
+        }
+
+        int readUe() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                zeros++;
+                if (zeros > 31) {
+                    throw new IndexOutOfBoundsException("invalid exp-golomb");
+                }
+            }
+            return (1 << zeros) - 1 + read(zeros);
+        }
+    }
+}
@@ -0,0 +1,1133 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 中断录像(MediaMuxer、MediaRecorder写入的文件缺少moov)的恢复。
+ * 以只读内存映射扫描mdat：视频按4字节长度前缀的NAL识别并组成帧，视频之间的数据按配置识别为camm数据包或AAC帧，
+ * 重建样本表后写入moov。moov能放入mdat前的free空间时写入该处，否则追加到文件末尾；被截断的最后一帧丢弃。
+ * <p>
+ * 帧时间按帧率、AAC每帧1024个采样推算；camm数据包的时间在所在位置之前的视频块时间范围内均分。
+ * AAC裸帧没有同步字，帧边界按帧结束标记(ID_END与字节对齐)、下一帧的声道元素与平均帧大小估计。
+ * 编码配置(SPS、PPS、AudioSpecificConfig等)取自同一设备录制的完整文件(如同一录像的其他分段)，
+ * 或按录像参数生成，此时视频参数集从mdat中查找。
+ * <p>
+ * 本类不依赖Android，可在任意线程调用，耗时与文件大小成正比。
+ */
+public final class Mp4Recovery {
+    /**
+     * 恢复成功
+     */
+    public static final int STATE_RECOVERED = 0;
+    /**
+     * 文件完整，不需要恢复
+     */
+    public static final int STATE_NOT_NEEDED = 1;
+    public static final int STATE_FAILED = 2;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int CAMM_TIMESCALE = 1000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final long MAX_NAL_SIZE = 64 * 1024 * 1024;
+    /**
+     * 单个非视频数据块的最大长度，超出时认为是无法识别的数据
+     */
+    private static final int MAX_GAP_SIZE = 16 * 1024 * 1024;
+    private static final long PROGRESS_STEP = 8 * 1024 * 1024;
+
+    private static final long NOT_VIDEO = -1;
+    private static final long INCOMPLETE = -2;
+
+    private static final int NAL_INVALID = 0;
+    private static final int NAL_VCL = 1;
+    private static final int NAL_VCL_FIRST = 2;
+    private static final int NAL_PARAMETER_SET = 3;
+    private static final int NAL_PREFIX = 4;
+    private static final int NAL_SUFFIX = 5;
+
+    public interface ProgressListener {
+        /**
+         * 扫描进度，在调用恢复的线程回调
+         */
+        void onProgress(long scannedBytes, long totalBytes);
+    }
+
+    /**
+     * 恢复使用的编码配置
+     */
+    public static final class Config {
+        @Nullable
+        final Mp4TrackFormat video;
+        @Nullable
+        final Mp4TrackFormat audio;
+        @Nullable
+        final Mp4TrackFormat camm;
+        final int videoTimescale;
+        final int videoSampleDelta;
+        /**
+         * 平均AAC帧字节数
+         */
+        final int audioFrameBytes;
+
+        private Config(@Nullable Mp4TrackFormat video, @Nullable Mp4TrackFormat audio, @Nullable Mp4TrackFormat camm,
+                       int videoTimescale, int videoSampleDelta, int audioFrameBytes) {
+            this.video = video;
+            this.audio = audio;
+            this.camm = camm;
+            this.videoTimescale = videoTimescale;
+            this.videoSampleDelta = videoSampleDelta;
+            this.audioFrameBytes = Math.max(16, audioFrameBytes);
+        }
+
+        /**
+         * 按录像参数生成，视频参数集(SPS、PPS)从被恢复文件的mdat中查找，找不到时恢复失败
+         *
+         * @param videoMime         video/avc或video/hevc
+         * @param audioChannelCount 音频声道数，0:无音频
+         * @param camm              是否有camm轨道(街景录像)
+         */
+        @NonNull
+        public static Config create(@NonNull String videoMime, int width, int height, int fps,
+                                    int audioChannelCount, boolean camm) {
+            Mp4TrackFormat audio = null;
+            if (audioChannelCount > 0) {
+                // AAC-LC，与录像一致为48kHz
+                byte[] asc = {(byte) (2 << 3 | 3 >> 1), (byte) ((3 & 1) << 7 | audioChannelCount << 3)};
+                audio = Mp4TrackFormat.audio(48000, audioChannelCount, 128000, asc);
+            }
+            return new Config(Mp4TrackFormat.video(videoMime, width, height), audio,
+                    camm ? Mp4TrackFormat.camm() : null,
+                    Math.max(1, fps) * 1000, 1000, 128000 / 8 * AAC_FRAME_SAMPLES / 48000);
+        }
+
+        /**
+         * 从完整的参考文件读取各轨道的样本描述、视频帧率与平均音频帧大小
+         */
+        @NonNull
+        public static Config fromReference(@NonNull String filename) throws IOException {
+            byte[] moov = readTopLevelBox(filename, "moov");
+            if (moov == null) {
+                throw new IOException("no moov in reference:" + filename);
+            }
+            Mp4TrackFormat video = null;
+            Mp4TrackFormat audio = null;
+            Mp4TrackFormat camm = null;
+            int videoTimescale = 30000;
+            int videoDelta = 1000;
+            int audioFrameBytes = 128000 / 8 * AAC_FRAME_SAMPLES / 48000;
+            for (int trak = findBox(moov, 8, moov.length, "trak"); trak >= 0;
+                 trak = findBox(moov, trak + u32(moov, trak), moov.length, "trak")) {
+                int trakEnd = trak + u32(moov, trak);
+                int tkhd = findBox(moov, trak + 8, trakEnd, "tkhd");
+                int mdia = findBox(moov, trak + 8, trakEnd, "mdia");
+                if (tkhd < 0 || mdia < 0) {
+                    continue;
+                }
+                int mdiaEnd = mdia + u32(moov, mdia);
+                int mdhd = findBox(moov, mdia + 8, mdiaEnd, "mdhd");
+                int minf = findBox(moov, mdia + 8, mdiaEnd, "minf");
+                int stbl = minf < 0 ? -1 : findBox(moov, minf + 8, minf + u32(moov, minf), "stbl");
+                if (mdhd < 0 || stbl < 0) {
+                    continue;
+                }
+                int stblEnd = stbl + u32(moov, stbl);
+                int stsd = findBox(moov, stbl + 8, stblEnd, "stsd");
+                if (stsd < 0) {
+                    continue;
+                }
+                int entry = stsd + 16;
+                byte[] sampleEntry = Arrays.copyOfRange(moov, entry, entry + u32(moov, entry));
+                String type = new String(moov, entry + 4, 4, "US-ASCII");
+                int timescale = u32(moov, mdhd + (moov[mdhd + 8] == 1 ? 28 : 20));
+                int widthOffset = tkhd + (moov[tkhd + 8] == 1 ? 96 : 84);
+                int width = u32(moov, widthOffset) >>> 16;
+                int height = u32(moov, widthOffset + 4) >>> 16;
+                int stts = findBox(moov, stbl + 8, stblEnd, "stts");
+                int stsz = findBox(moov, stbl + 8, stblEnd, "stsz");
+                if ("avc1".equals(type) || "avc3".equals(type) || "hvc1".equals(type) || "hev1".equals(type)) {
+                    video = Mp4TrackFormat.withSampleEntry(type.startsWith("avc") ? Mp4TrackFormat.MIME_AVC :
+                            Mp4TrackFormat.MIME_HEVC, width, height, 0, 0, 0, sampleEntry);
+                    videoTimescale = timescale;
+                    if (stts >= 0 && u32(moov, stts + 12) > 0) {
+                        videoDelta = u32(moov, stts + 20);
+                    } else {
+                        videoDelta = Math.max(1, timescale / 30);
+                    }
+                } else if ("mp4a".equals(type)) {
+                    int channelCount = (moov[entry + 24] & 0xFF) << 8 | (moov[entry + 25] & 0xFF);
+                    int sampleRate = u32(moov, entry + 32) >>> 16;
+                    audio = Mp4TrackFormat.withSampleEntry(Mp4TrackFormat.MIME_AAC, 0, 0, sampleRate,
+                            channelCount, 0, sampleEntry);
+                    if (stsz >= 0) {
+                        audioFrameBytes = averageSampleSize(moov, stsz, audioFrameBytes);
+                    }
+                } else if ("camm".equals(type)) {
+                    camm = Mp4TrackFormat.withSampleEntry(Mp4TrackFormat.MIME_CAMM, 0, 0, 0, 0, 0, sampleEntry);
+                }
+            }
+            if (video == null) {
+                throw new IOException("no video track in reference:" + filename);
+            }
+            return new Config(video, audio, camm, videoTimescale, videoDelta, audioFrameBytes);
+        }
+
+        private static int averageSampleSize(byte[] moov, int stsz, int defaultSize) {
+            int fixed = u32(moov, stsz + 12);
+            int count = u32(moov, stsz + 16);
+            if (fixed > 0) {
+                return fixed;
+            }
+            if (count <= 0 || stsz + 20 + count * 4L > moov.length) {
+                return defaultSize;
+            }
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += u32(moov, stsz + 20 + i * 4) & 0xFFFFFFFFL;
+            }
+            return (int) (sum / count);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Config{video=" + video + ",audio=" + audio + ",camm=" + (camm != null) +
+                    ",videoTimescale=" + videoTimescale + ",videoSampleDelta=" + videoSampleDelta +
+                    ",audioFrameBytes=" + audioFrameBytes + '}';
+        }
+    }
+
+    public static final class Result {
+        public final int state;
+        @Nullable
+        public final String message;
+        public final int videoFrames;
+        public final int audioFrames;
+        public final int cammPackets;
+        public final long durationMs;
+        /**
+         * 恢复的样本数据字节数
+         */
+        public final long recoveredBytes;
+        /**
+         * mdat中无法识别、被截断或超时未扫描而丢弃的字节数
+         */
+        public final long discardedBytes;
+        /**
+         * 超出时间限制，只恢复了文件前面的部分
+         */
+        public final boolean timeout;
+
+        Result(int state, @Nullable String message, int videoFrames, int audioFrames, int cammPackets,
+               long durationMs, long recoveredBytes, long discardedBytes, boolean timeout) {
+            this.state = state;
+            this.message = message;
+            this.videoFrames = videoFrames;
+            this.audioFrames = audioFrames;
+            this.cammPackets = cammPackets;
+            this.durationMs = durationMs;
+            this.recoveredBytes = recoveredBytes;
+            this.discardedBytes = discardedBytes;
+            this.timeout = timeout;
+        }
+
+        static Result of(int state, @Nullable String message) {
+            return new Result(state, message, 0, 0, 0, 0, 0, 0, false);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Result{state=" + state + (message != null ? ",message=" + message : "") +
+                    ",video=" + videoFrames + ",audio=" + audioFrames + ",camm=" + cammPackets +
+                    ",duration=" + durationMs + "ms,recovered=" + recoveredBytes +
+                    ",discarded=" + discardedBytes + (timeout ? ",timeout" : "") + '}';
+        }
+    }
+
+    /**
+     * 恢复文件
+     *
+     * @param outputFilename 输出文件，null或与输入相同时原地恢复(只修改mdat头并写入moov，不复制样本数据)
+     * @param timeLimitMs    扫描的最长时间，超出时以已扫描的部分生成文件，小于等于0不限制
+     */
+    @NonNull
+    public static Result recover(@NonNull String filename, @Nullable String outputFilename, @NonNull Config config,
+                                 long timeLimitMs, @Nullable ProgressListener listener) {
+        File input = new File(filename);
+        boolean inPlace = outputFilename == null || new File(outputFilename).getAbsoluteFile().equals(input.getAbsoluteFile());
+        try (RandomAccessFile file = new RandomAccessFile(input, inPlace ? "rw" : "r")) {
+            Mp4Recovery recovery = new Mp4Recovery(config, file.getChannel());
+            Result result = recovery.scan(timeLimitMs, listener);
+            if (result != null) {
+                return result;
+            }
+            if (inPlace) {
+                return recovery.finish(file.getChannel());
+            }
+            try (RandomAccessFile output = new RandomAccessFile(outputFilename, "rw")) {
+                output.setLength(0);
+                FileChannel channel = output.getChannel();
+                long copied = 0;
+                while (copied < recovery.mDataEnd) {
+                    copied += file.getChannel().transferTo(copied, recovery.mDataEnd - copied, channel);
+                }
+                return recovery.finish(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return Result.of(STATE_FAILED, e.toString());
+        }
+    }
+
+    /**
+     * 一个轨道恢复出的样本
+     */
+    private static final class SampleTable {
+        long[] offsets = new long[1024];
+        int[] sizes = new int[1024];
+        /**
+         * 仅camm使用，样本时间
+         */
+        long[] times;
+        int count;
+        long bytes;
+        final List<Integer> syncSamples = new ArrayList<>();
+        /**
+         * 各块的第一个样本序号
+         */
+        final List<Integer> chunkFirstSamples = new ArrayList<>();
+        long lastEnd = -1;
+
+        void add(long offset, int size, boolean newChunk) {
+            if (count == sizes.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                if (times != null) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+            }
+            if (newChunk || offset != lastEnd) {
+                chunkFirstSamples.add(count);
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            count++;
+            bytes += size;
+            lastEnd = offset + size;
+        }
+    }
+
+    private final Config mConfig;
+    private final MappedReader mReader;
+    private final boolean mHevc;
+    private final SampleTable mVideo = new SampleTable();
+    private final SampleTable mAudio = new SampleTable();
+    private final SampleTable mCamm = new SampleTable();
+    /**
+     * 从mdat中找到的视频参数集，配置中没有样本描述时使用
+     */
+    private final List<byte[]> mParameterSets = new ArrayList<>();
+    private long mFreeStart = -1;
+    private long mFreeSize;
+    private long mMdatStart = -1;
+    private int mMdatHeaderSize;
+    private long mDataStart;
+    private long mScanEnd;
+    private long mDataEnd;
+    private boolean mTimeout;
+    /**
+     * 最近一次查找视频块时第一个被截断的视频帧位置
+     */
+    private long mTruncatedVideoStart = -1;
+    /**
+     * 最近的视频块开始的帧序号，用于camm数据包时间
+     */
+    private int mVideoChunkStart;
+    private long mLastCammTime;
+
+    private Mp4Recovery(@NonNull Config config, @NonNull FileChannel channel) throws IOException {
+        mConfig = config;
+        mReader = new MappedReader(channel);
+        mHevc = config.video != null && config.video.isHevc();
+        mCamm.times = new long[1024];
+    }
+
+    /**
+     * 查找mdat并扫描样本
+     *
+     * @return 非null:不需要恢复或失败
+     */
+    @Nullable
+    private Result scan(long timeLimitMs, @Nullable ProgressListener listener) throws IOException {
+        long size = mReader.size;
+        long pos = 0;
+        while (pos + 8 <= size) {
+            long boxSize = mReader.u32(pos) & 0xFFFFFFFFL;
+            String type = mReader.fourcc(pos + 4);
+            int headerSize = 8;
+            if (boxSize == 1 && pos + 16 <= size) {
+                boxSize = mReader.u64(pos + 8);
+                headerSize = 16;
+            }
+            if ("mdat".equals(type)) {
+                mMdatStart = pos;
+                mMdatHeaderSize = headerSize;
+                mDataStart = pos + headerSize;
+                // 未结束的文件中mdat的大小还未写入
+                mScanEnd = boxSize >= headerSize && pos + boxSize <= size ? pos + boxSize : size;
+                if (mScanEnd < size && findMoovAfter(mScanEnd)) {
+                    return Result.of(STATE_NOT_NEEDED, "moov exists");
+                }
+                break;
+            }
+            if ("moov".equals(type) && boxSize >= 8 && pos + boxSize <= size) {
+                return Result.of(STATE_NOT_NEEDED, "moov exists");
+            }
+            if (boxSize < 8 || pos + boxSize > size) {
+                return Result.of(STATE_FAILED, "invalid box " + type + " at " + pos);
+            }
+            if ("free".equals(type) || "skip".equals(type)) {
+                mFreeStart = pos;
+                mFreeSize = boxSize;
+            }
+            pos += boxSize;
+        }
+        if (mMdatStart < 0) {
+            return Result.of(STATE_FAILED, "no mdat");
+        }
+        if (mConfig.video == null) {
+            return Result.of(STATE_FAILED, "no video config");
+        }
+        final long deadline = timeLimitMs > 0 ? System.nanoTime() + timeLimitMs * 1000_000 : Long.MAX_VALUE;
+        final long total = mScanEnd - mDataStart;
+        long nextProgress = mDataStart + PROGRESS_STEP;
+        pos = mDataStart;
+        int iterations = 0;
+        while (pos < mScanEnd) {
+            if ((++iterations & 63) == 0 && System.nanoTime() > deadline) {
+                mTimeout = true;
+                break;
+            }
+            if (listener != null && pos >= nextProgress) {
+                listener.onProgress(pos - mDataStart, total);
+                nextProgress = pos + PROGRESS_STEP;
+            }
+            if (mConfig.camm != null) {
+                // camm数据包头(00 00 0t 00)也可以解析为较短的NAL，以后面紧接视频帧的连续数据包优先
+                long cammEnd = cammRunEnd(pos, mScanEnd);
+                if (cammEnd > pos && (cammEnd + 7 > mScanEnd || parseAccessUnit(cammEnd, mScanEnd) != NOT_VIDEO)) {
+                    splitCamm(pos, cammEnd);
+                    mVideoChunkStart = mVideo.count;
+                    pos = cammEnd;
+                    continue;
+                }
+            }
+            long end = parseAccessUnit(pos, mScanEnd);
+            if (end > 0) {
+                addVideoSample(pos, (int) (end - pos));
+                pos = end;
+                continue;
+            }
+            // 非视频数据，直到下一个视频帧；之后没有视频帧时到被截断的视频帧或文件末尾
+            long next = findNextVideo(pos, mScanEnd);
+            boolean tail = next < 0;
+            long gapEnd = tail ? (mTruncatedVideoStart >= 0 ? mTruncatedVideoStart : mScanEnd) : next;
+            if (gapEnd - pos <= MAX_GAP_SIZE) {
+                if (mConfig.camm != null) {
+                    splitCamm(pos, gapEnd);
+                } else if (mConfig.audio != null) {
+                    splitAudio(pos, gapEnd, tail);
+                }
+            }
+            mVideoChunkStart = mVideo.count;
+            pos = tail ? mScanEnd : gapEnd;
+        }
+        if (listener != null) {
+            listener.onProgress(Math.min(pos, mScanEnd) - mDataStart, total);
+        }
+        if (mVideo.count == 0) {
+            return Result.of(STATE_FAILED, "no video frame found");
+        }
+        mDataEnd = Math.max(mVideo.lastEnd, Math.max(mAudio.lastEnd, mCamm.lastEnd));
+        return null;
+    }
+
+    private boolean findMoovAfter(long pos) throws IOException {
+        while (pos + 8 <= mReader.size) {
+            long boxSize = mReader.u32(pos) & 0xFFFFFFFFL;
+            if ("moov".equals(mReader.fourcc(pos + 4))) {
+                return pos + boxSize <= mReader.size;
+            }
+            if (boxSize < 8) {
+                return false;
+            }
+            pos += boxSize;
+        }
+        return false;
+    }
+
+    /**
+     * 解析一帧视频，由一个或多个长度前缀的NAL组成
+     *
+     * @return 结束位置；NOT_VIDEO:不是视频帧的开始；INCOMPLETE:帧被截断
+     */
+    private long parseAccessUnit(long pos, long end) throws IOException {
+        long p = pos;
+        boolean vcl = false;
+        int nalCount = 0;
+        while (p + 4 < end) {
+            if (vcl && mConfig.camm != null && cammPacketSize(p, end) > 0) {
+                break;
+            }
+            long length = mReader.u32(p) & 0xFFFFFFFFL;
+            if (length < 2 || length > MAX_NAL_SIZE || p + 7 > end) {
+                break;
+            }
+            int kind = classifyNal(p + 4);
+            if (kind == NAL_INVALID) {
+                break;
+            }
+            boolean startsFrame = kind == NAL_VCL_FIRST || kind == NAL_PARAMETER_SET || kind == NAL_PREFIX;
+            if (nalCount == 0 && !startsFrame) {
+                return NOT_VIDEO;
+            }
+            if (vcl && startsFrame) {
+                break;
+            }
+            if (p + 4 + length > end) {
+                // 已有图像数据时可能是之后的音频数据，帧在此结束
+                if (vcl) {
+                    break;
+                }
+                return INCOMPLETE;
+            }
+            vcl |= kind == NAL_VCL || kind == NAL_VCL_FIRST;
+            nalCount++;
+            p += 4 + length;
+        }
+        if (nalCount == 0) {
+            // 末尾不足7字节时，以0开始的可能是被截断的NAL长度
+            return p + 7 > end && p < end && mReader.get(p) == 0 ? INCOMPLETE : NOT_VIDEO;
+        }
+        if (!vcl) {
+            return p + 7 > end ? INCOMPLETE : NOT_VIDEO;
+        }
+        return p;
+    }
+
+    private int classifyNal(long header) throws IOException {
+        int h0 = mReader.get(header);
+        if ((h0 & 0x80) != 0) {
+            return NAL_INVALID;
+        }
+        if (mHevc) {
+            int h1 = mReader.get(header + 1);
+            if ((h0 & 1) != 0 || (h1 >> 3) != 0 || (h1 & 7) == 0) {
+                return NAL_INVALID;
+            }
+            int type = (h0 >> 1) & 0x3F;
+            if (type <= 9 || (type >= 16 && type <= 21)) {
+                return (mReader.get(header + 2) & 0x80) != 0 ? NAL_VCL_FIRST : NAL_VCL;
+            }
+            if (type >= 32 && type <= 34) {
+                return NAL_PARAMETER_SET;
+            }
+            if (type == 35 || type == 39) {
+                return NAL_PREFIX;
+            }
+            if (type >= 36 && type <= 40) {
+                return NAL_SUFFIX;
+            }
+            return NAL_INVALID;
+        }
+        int type = h0 & 0x1F;
+        int refIdc = (h0 >> 5) & 3;
+        switch (type) {
+            case 1:
+            case 5:
+                // IDR必须是参考帧
+                if (type == 5 && refIdc == 0) {
+                    return NAL_INVALID;
+                }
+                // first_mb_in_slice为0时ue(v)编码为1
+                return (mReader.get(header + 1) & 0x80) != 0 ? NAL_VCL_FIRST : NAL_VCL;
+            case 7:
+            case 8:
+                return NAL_PARAMETER_SET;
+            case 6:
+            case 9:
+                return NAL_PREFIX;
+            case 10:
+            case 11:
+            case 12:
+                return NAL_SUFFIX;
+            default:
+                return NAL_INVALID;
+        }
+    }
+
+    private boolean isSyncNal(long header) throws IOException {
+        int h0 = mReader.get(header);
+        if (mHevc) {
+            int type = (h0 >> 1) & 0x3F;
+            return type >= 16 && type <= 21;
+        }
+        return (h0 & 0x1F) == 5;
+    }
+
+    /**
+     * 查找下一个视频块的开始：连续两帧、一帧到文件末尾，或一帧之后是其他轨道的数据。
+     * 被截断的帧不能确认是视频，只记录第一个位置作为没有后续视频时数据的结束；
+     * 末尾不足7字节时只能是被截断的帧
+     *
+     * @return -1:没有
+     */
+    private long findNextVideo(long from, long end) throws IOException {
+        mTruncatedVideoStart = -1;
+        for (long p = from; p < end; p++) {
+            if (mReader.get(p) != 0) {
+                continue;
+            }
+            long frameEnd = parseAccessUnit(p, end);
+            if (frameEnd == NOT_VIDEO) {
+                continue;
+            }
+            if (frameEnd == INCOMPLETE) {
+                if (mTruncatedVideoStart < 0) {
+                    mTruncatedVideoStart = p;
+                }
+                continue;
+            }
+            if (frameEnd >= end) {
+                return p;
+            }
+            if (parseAccessUnit(frameEnd, end) != NOT_VIDEO || isOtherTrackStart(frameEnd, end)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * pos处是否为camm数据包或AAC帧的开始，用于确认只有一帧的视频块
+     */
+    private boolean isOtherTrackStart(long pos, long end) throws IOException {
+        if (mConfig.camm != null) {
+            return cammPacketSize(pos, end) > 0;
+        }
+        if (mConfig.audio != null) {
+            return mReader.get(pos) >> 1 == (mConfig.audio.channelCount == 2 ? 0x10 : 0x00);
+        }
+        return false;
+    }
+
+    private void addVideoSample(long pos, int size) throws IOException {
+        boolean sync = false;
+        boolean needParameterSets = mConfig.video.sampleEntry == null && mConfig.video.csd.length == 0;
+        for (long p = pos; p < pos + size; ) {
+            int length = mReader.u32(p);
+            if (isSyncNal(p + 4)) {
+                sync = true;
+            }
+            if (needParameterSets && classifyNal(p + 4) == NAL_PARAMETER_SET && mParameterSets.size() < 8) {
+                byte[] nal = mReader.read(p + 4, length);
+                boolean exists = false;
+                for (byte[] ps : mParameterSets) {
+                    exists |= Arrays.equals(ps, nal);
+                }
+                if (!exists) {
+                    mParameterSets.add(nal);
+                }
+            }
+            p += 4 + length;
+        }
+        if (sync) {
+            mVideo.syncSamples.add(mVideo.count + 1);
+        }
+        mVideo.add(pos, size, false);
+    }
+
+    /**
+     * @return 从pos开始的连续camm数据包的结束位置
+     */
+    private long cammRunEnd(long pos, long end) throws IOException {
+        int size;
+        while ((size = cammPacketSize(pos, end)) > 0) {
+            pos += size;
+        }
+        return pos;
+    }
+
+    /**
+     * camm数据包：[uint16 保留][uint16 类型][数据]，小端序，大小由类型决定
+     *
+     * @return 不是完整的数据包时返回-1
+     */
+    private int cammPacketSize(long pos, long end) throws IOException {
+        if (pos + 4 > end) {
+            return -1;
+        }
+        int reserved = mReader.get(pos) | mReader.get(pos + 1) << 8;
+        int type = mReader.get(pos + 2) | mReader.get(pos + 3) << 8;
+        int size = cammPacketSize(type);
+        return reserved != 0 || size <= 0 || pos + size > end ? -1 : size;
+    }
+
+    private void splitCamm(long pos, long end) throws IOException {
+        int first = mCamm.count;
+        boolean newChunk = true;
+        int size;
+        while ((size = cammPacketSize(pos, end)) > 0) {
+            mCamm.add(pos, size, newChunk);
+            newChunk = false;
+            pos += size;
+        }
+        // 在之前的视频块时间范围内均分
+        int count = mCamm.count - first;
+        long start = (long) mVideoChunkStart * mConfig.videoSampleDelta * CAMM_TIMESCALE / mConfig.videoTimescale;
+        long span = (long) (mVideo.count - mVideoChunkStart) * mConfig.videoSampleDelta * CAMM_TIMESCALE /
+                mConfig.videoTimescale;
+        for (int i = 0; i < count; i++) {
+            long time = Math.max(mLastCammTime, start + span * i / count);
+            mCamm.times[first + i] = time;
+            mLastCammTime = time;
+        }
+    }
+
+    private static int cammPacketSize(int type) {
+        switch (type) {
+            case CammTrackWriter.TYPE_ANGLE_AXIS:
+            case CammTrackWriter.TYPE_GYRO:
+            case CammTrackWriter.TYPE_ACCELERATION:
+            case CammTrackWriter.TYPE_POSITION:
+            case CammTrackWriter.TYPE_MAGNETIC_FIELD:
+                return CammTrackWriter.SIZE_VECTOR;
+            case CammTrackWriter.TYPE_EXPOSURE:
+                return CammTrackWriter.SIZE_EXPOSURE;
+            case CammTrackWriter.TYPE_LAT_LON_ALT:
+                return CammTrackWriter.SIZE_LAT_LON_ALT;
+            case CammTrackWriter.TYPE_GPS:
+                return CammTrackWriter.SIZE_GPS;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 按帧边界的特征与平均帧大小拆分AAC裸帧，选取帧大小偏离平均值最小的拆分方式
+     *
+     * @param tail 数据在文件末尾被截断，最后不完整的帧丢弃
+     */
+    private void splitAudio(long pos, long end, boolean tail) throws IOException {
+        int length = (int) (end - pos);
+        byte[] data = mReader.read(pos, length);
+        int channelCount = mConfig.audio.channelCount;
+        int average = mConfig.audioFrameBytes;
+        int maxSize = 768 * Math.max(1, channelCount) + 64;
+        // 候选的帧开始位置
+        int[] candidates = new int[64];
+        int count = 0;
+        candidates[count++] = 0;
+        for (int i = 2; i < length; i++) {
+            if (isAacFrameStart(data, i, channelCount)) {
+                if (count == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, count * 2);
+                }
+                candidates[count++] = i;
+            }
+        }
+        if ((!tail || isAacFrameEnd(data, length)) && candidates[count - 1] != length) {
+            if (count == candidates.length) {
+                candidates = Arrays.copyOf(candidates, count + 1);
+            }
+            candidates[count++] = length;
+        }
+        double[] cost = new double[count];
+        int[] previous = new int[count];
+        Arrays.fill(cost, Double.MAX_VALUE);
+        cost[0] = 0;
+        for (int j = 1; j < count; j++) {
+            for (int i = j - 1; i >= 0 && candidates[j] - candidates[i] <= maxSize; i--) {
+                if (cost[i] == Double.MAX_VALUE) {
+                    continue;
+                }
+                double deviation = (double) (candidates[j] - candidates[i] - average) / average;
+                double c = cost[i] + deviation * deviation;
+                if (c < cost[j]) {
+                    cost[j] = c;
+                    previous[j] = i;
+                }
+            }
+        }
+        int last = count - 1;
+        if (tail) {
+            // 截断的数据以最后一个可到达的帧边界结束
+            while (last > 0 && cost[last] == Double.MAX_VALUE) {
+                last--;
+            }
+        } else if (cost[last] == Double.MAX_VALUE) {
+            last = 0;
+        }
+        if (last == 0) {
+            if (!tail && length <= maxSize * 64) {
+                // 无法识别边界时按平均大小均分
+                int frames = Math.max(1, Math.round((float) length / average));
+                for (int i = 0; i < frames; i++) {
+                    long start = pos + (long) length * i / frames;
+                    long next = pos + (long) length * (i + 1) / frames;
+                    mAudio.add(start, (int) (next - start), i == 0);
+                }
+            }
+            return;
+        }
+        int[] path = new int[count];
+        int n = 0;
+        for (int j = last; j > 0; j = previous[j]) {
+            path[n++] = j;
+        }
+        int start = 0;
+        for (int k = n - 1; k >= 0; k--) {
+            int frameEnd = candidates[path[k]];
+            mAudio.add(pos + start, frameEnd - start, k == n - 1);
+            start = frameEnd;
+        }
+    }
+
+    /**
+     * AAC-LC帧以ID_END(111)结束并按字节对齐，之后的帧以SCE(000)或CPE(001)、实例号0开始
+     */
+    private static boolean isAacFrameStart(byte[] data, int i, int channelCount) {
+        // 只有立体声以CPE开始，其他声道配置以SCE开始
+        return (data[i] & 0xFF) >> 1 == (channelCount == 2 ? 0x10 : 0x00) && isAacFrameEnd(data, i);
+    }
+
+    /**
+     * i之前的数据以ID_END与补齐的0结束
+     */
+    private static boolean isAacFrameEnd(byte[] data, int i) {
+        if (i < 2) {
+            return false;
+        }
+        int window = (data[i - 2] & 0xFF) << 8 | (data[i - 1] & 0xFF);
+        if (window == 0) {
+            return false;
+        }
+        int zeros = Integer.numberOfTrailingZeros(window);
+        return zeros <= 7 && ((window >> zeros) & 7) == 7;
+    }
+
+    /**
+     * 写入moov并修正mdat大小
+     */
+    @NonNull
+    private Result finish(@NonNull FileChannel channel) throws IOException {
+        Mp4TrackFormat video = mConfig.video;
+        if (video.sampleEntry == null && video.csd.length == 0) {
+            if (mParameterSets.isEmpty()) {
+                return Result.of(STATE_FAILED, "no parameter sets, need a reference file");
+            }
+            video = Mp4TrackFormat.video(video.mime, video.width, video.height,
+                    mParameterSets.toArray(new byte[0][]));
+        }
+        long mdatSize = mDataEnd - mMdatStart;
+        Mp4BoxBuilder moov = new Mp4BoxBuilder(64 * 1024 + mVideo.count * 12 + mAudio.count * 8 + mCamm.count * 8);
+        long durationMs = writeMoov(moov, video);
+        ByteBuffer moovData = moov.flip();
+        int moovSize = moovData.remaining();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        boolean moovInFree = mFreeStart >= 0 && mFreeStart + mFreeSize == mMdatStart &&
+                (mFreeSize == moovSize || mFreeSize >= moovSize + 8);
+        if (mMdatHeaderSize == 16) {
+            header.putInt(1).put(Mp4BoxBuilder.fourcc("mdat")).putLong(mdatSize);
+        } else if (mdatSize <= 0xFFFFFFFFL) {
+            header.putInt((int) mdatSize).put(Mp4BoxBuilder.fourcc("mdat"));
+        } else if (moovInFree) {
+            // mdat为最后一个box，大小0表示到文件末尾
+            header.putInt(0).put(Mp4BoxBuilder.fourcc("mdat"));
+        } else {
+            return Result.of(STATE_FAILED, "mdat too large for 32-bit size");
+        }
+        header.flip();
+        channel.truncate(mDataEnd);
+        writeFully(channel, header, mMdatStart);
+        if (moovInFree) {
+            writeFully(channel, moovData, mFreeStart);
+            if (mFreeSize > moovSize) {
+                ByteBuffer free = ByteBuffer.allocate(8);
+                free.putInt((int) (mFreeSize - moovSize)).put(Mp4BoxBuilder.fourcc("free")).flip();
+                writeFully(channel, free, mFreeStart + moovSize);
+            }
+        } else {
+            writeFully(channel, moovData, mDataEnd);
+        }
+        channel.force(true);
+        long recovered = mVideo.bytes + mAudio.bytes + mCamm.bytes;
+        return new Result(STATE_RECOVERED, null, mVideo.count, mAudio.count, mCamm.count, durationMs,
+                recovered, mScanEnd - mDataStart - recovered, mTimeout);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @return 时长(ms)
+     */
+    private long writeMoov(Mp4BoxBuilder b, Mp4TrackFormat video) {
+        int moov = b.begin("moov");
+        int mvhd = b.position();
+        b.writeMvhd(MOVIE_TIMESCALE, 0, 4);
+        long videoDuration = (long) mVideo.count * mConfig.videoSampleDelta;
+        long durationMs = videoDuration * MOVIE_TIMESCALE / mConfig.videoTimescale;
+        int trackId = 1;
+        writeTrak(b, trackId++, video, mVideo, mConfig.videoTimescale, videoDuration, null);
+        if (mConfig.audio != null && mAudio.count > 0) {
+            long duration = (long) mAudio.count * AAC_FRAME_SAMPLES;
+            writeTrak(b, trackId++, mConfig.audio, mAudio, mConfig.audio.sampleRate, duration, null);
+            durationMs = Math.max(durationMs, duration * MOVIE_TIMESCALE / mConfig.audio.sampleRate);
+        }
+        if (mConfig.camm != null && mCamm.count > 0) {
+            long[] deltas = new long[mCamm.count];
+            for (int i = 0; i + 1 < mCamm.count; i++) {
+                deltas[i] = mCamm.times[i + 1] - mCamm.times[i];
+            }
+            deltas[mCamm.count - 1] = mCamm.count > 1 ? deltas[mCamm.count - 2] : 1;
+            long duration = mCamm.times[mCamm.count - 1] - mCamm.times[0] + deltas[mCamm.count - 1];
+            writeTrak(b, trackId, mConfig.camm, mCamm, CAMM_TIMESCALE, duration, deltas);
+        }
+        // mvhd的duration在版本0中位于box开始后24字节
+        b.putInt(mvhd + 24, (int) durationMs);
+        b.end(moov);
+        return durationMs;
+    }
+
+    /**
+     * @param deltas 各样本时长，null:固定为duration/count
+     */
+    private static void writeTrak(Mp4BoxBuilder b, int trackId, Mp4TrackFormat format, SampleTable table,
+                                  int timescale, long duration, @Nullable long[] deltas) {
+        int trak = b.begin("trak");
+        b.writeTkhd(trackId, duration * MOVIE_TIMESCALE / timescale, format);
+        int mdia = b.begin("mdia");
+        b.writeMdhd(timescale, duration);
+        b.writeHdlr(format);
+        int minf = b.begin("minf");
+        b.writeMediaHeaderAndDinf(format);
+        int stbl = b.begin("stbl");
+        b.writeStsd(format, trackId);
+        // stts
+        int stts = b.fullBox("stts", 0, 0);
+        if (deltas == null) {
+            b.putInt(1);
+            b.putInt(table.count);
+            b.putInt((int) (duration / table.count));
+        } else {
+            int countPosition = b.position();
+            b.putInt(0);
+            int entries = 0;
+            for (int i = 0; i < table.count; ) {
+                int j = i;
+                while (j < table.count && deltas[j] == deltas[i]) {
+                    j++;
+                }
+                b.putInt(j - i);
+                b.putInt((int) deltas[i]);
+                entries++;
+                i = j;
+            }
+            b.putInt(countPosition, entries);
+        }
+        b.end(stts);
+        if (format.isVideo()) {
+            int stss = b.fullBox("stss", 0, 0);
+            b.putInt(table.syncSamples.size());
+            for (int sample : table.syncSamples) {
+                b.putInt(sample);
+            }
+            b.end(stss);
+        }
+        // stsc，每块样本数变化时一项
+        int stsc = b.fullBox("stsc", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        int lastSamplesPerChunk = -1;
+        List<Integer> chunks = table.chunkFirstSamples;
+        for (int c = 0; c < chunks.size(); c++) {
+            int next = c + 1 < chunks.size() ? chunks.get(c + 1) : table.count;
+            int samplesPerChunk = next - chunks.get(c);
+            if (samplesPerChunk != lastSamplesPerChunk) {
+                b.putInt(c + 1);
+                b.putInt(samplesPerChunk);
+                b.putInt(1);
+                entries++;
+                lastSamplesPerChunk = samplesPerChunk;
+            }
+        }
+        b.putInt(countPosition, entries);
+        b.end(stsc);
+        int stsz = b.fullBox("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(table.count);
+        for (int i = 0; i < table.count; i++) {
+            b.putInt(table.sizes[i]);
+        }
+        b.end(stsz);
+        boolean co64 = table.lastEnd > 0xFFFFFFFFL;
+        int stco = b.fullBox(co64 ? "co64" : "stco", 0, 0);
+        b.putInt(chunks.size());
+        for (int first : chunks) {
+            if (co64) {
+                b.putLong(table.offsets[first]);
+            } else {
+                b.putInt((int) table.offsets[first]);
+            }
+        }
+        b.end(stco);
+        b.end(stbl);
+        b.end(minf);
+        b.end(mdia);
+        b.end(trak);
+    }
+
+    @Nullable
+    private static byte[] readTopLevelBox(@NonNull String filename, @NonNull String type) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            long size = file.length();
+            long pos = 0;
+            byte[] header = new byte[16];
+            while (pos + 8 <= size) {
+                file.seek(pos);
+                file.readFully(header, 0, 8);
+                long boxSize = u32(header, 0) & 0xFFFFFFFFL;
+                if (boxSize == 1) {
+                    file.readFully(header, 8, 8);
+                    boxSize = ByteBuffer.wrap(header, 8, 8).getLong();
+                } else if (boxSize == 0) {
+                    boxSize = size - pos;
+                }
+                if (boxSize < 8 || pos + boxSize > size) {
+                    return null;
+                }
+                if (type.equals(new String(header, 4, 4, "US-ASCII"))) {
+                    if (boxSize > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    byte[] data = new byte[(int) boxSize];
+                    file.seek(pos);
+                    file.readFully(data);
+                    return data;
+                }
+                pos += boxSize;
+            }
+        }
+        return null;
+    }
+
+    private static int findBox(byte[] data, int from, int end, String type) {
+        byte[] fourcc = Mp4BoxBuilder.fourcc(type);
+        int pos = from;
+        while (pos + 8 <= end) {
+            int size = u32(data, pos);
+            if (size < 8 || pos + size > end) {
+                return -1;
+            }
+            if (data[pos + 4] == fourcc[0] && data[pos + 5] == fourcc[1] &&
+                    data[pos + 6] == fourcc[2] && data[pos + 7] == fourcc[3]) {
+                return pos;
+            }
+            pos += size;
+        }
+        return -1;
+    }
+
+    private static int u32(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+    }
+
+    /**
+     * 按窗口只读映射文件，支持超过2GB的文件
+     */
+    private static final class MappedReader {
+        private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+        final long size;
+        private final FileChannel mChannel;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+        private long mWindowEnd;
+
+        MappedReader(@NonNull FileChannel channel) throws IOException {
+            mChannel = channel;
+            size = channel.size();
+        }
+
+        int get(long pos) throws IOException {
+            if (pos < mWindowStart || pos >= mWindowEnd) {
+                map(pos);
+            }
+            return mWindow.get((int) (pos - mWindowStart)) & 0xFF;
+        }
+
+        int u32(long pos) throws IOException {
+            if (pos >= mWindowStart && pos + 4 <= mWindowEnd) {
+                return mWindow.getInt((int) (pos - mWindowStart));
+            }
+            return get(pos) << 24 | get(pos + 1) << 16 | get(pos + 2) << 8 | get(pos + 3);
+        }
+
+        long u64(long pos) throws IOException {
+            return (u32(pos) & 0xFFFFFFFFL) << 32 | (u32(pos + 4) & 0xFFFFFFFFL);
+        }
+
+        @NonNull
+        String fourcc(long pos) throws IOException {
+            char[] chars = new char[4];
+            for (int i = 0; i < 4; i++) {
+                chars[i] = (char) get(pos + i);
+            }
+            return new String(chars);
+        }
+
+        @NonNull
+        byte[] read(long pos, int length) throws IOException {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; ) {
+                if (pos + i < mWindowStart || pos + i >= mWindowEnd) {
+                    map(pos + i);
+                }
+                int count = (int) Math.min(length - i, mWindowEnd - pos - i);
+                ByteBuffer window = mWindow.duplicate();
+                window.position((int) (pos + i - mWindowStart));
+                window.get(data, i, count);
+                i += count;
+            }
+            return data;
+        }
+
+        private void map(long pos) throws IOException {
+            if (pos < 0 || pos >= size) {
+                throw new IndexOutOfBoundsException("position " + pos + " size " + size);
+            }
+            // 向前保留一部分，向前读取少量数据时不重新映射
+            long start = Math.max(0, pos - 4096);
+            long end = Math.min(size, start + WINDOW_SIZE);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            mWindowStart = start;
+            mWindowEnd = end;
+        }
+    }
+}
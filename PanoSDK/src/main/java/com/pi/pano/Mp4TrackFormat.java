@@ -0,0 +1,94 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MP4轨道格式，对应MediaFormat，用于{@link FragmentedMp4Writer}与{@link Mp4Recovery}。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class Mp4TrackFormat {
+    static final String MIME_AVC = "video/avc";
+    static final String MIME_HEVC = "video/hevc";
+    static final String MIME_AAC = "audio/mp4a-latm";
+    static final String MIME_CAMM = "application/camm";
+
+    @NonNull
+    final String mime;
+    final int width;
+    final int height;
+    final int sampleRate;
+    final int channelCount;
+    final int bitrate;
+    /**
+     * 视频为Annex-B格式的参数集(SPS、PPS等)，音频为AudioSpecificConfig
+     */
+    @NonNull
+    final byte[][] csd;
+    /**
+     * 从其他文件读取的完整样本描述(stsd中的条目)，非null时直接写入
+     */
+    @Nullable
+    final byte[] sampleEntry;
+
+    private Mp4TrackFormat(@NonNull String mime, int width, int height, int sampleRate, int channelCount,
+                           int bitrate, @NonNull byte[][] csd, @Nullable byte[] sampleEntry) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitrate = bitrate;
+        this.csd = csd;
+        this.sampleEntry = sampleEntry;
+    }
+
+    /**
+     * @param csd 编码器输出格式中的csd-0、csd-1
+     */
+    @NonNull
+    static Mp4TrackFormat video(@NonNull String mime, int width, int height, @NonNull byte[]... csd) {
+        return new Mp4TrackFormat(mime, width, height, 0, 0, 0, csd, null);
+    }
+
+    @NonNull
+    static Mp4TrackFormat audio(int sampleRate, int channelCount, int bitrate, @NonNull byte[] csd) {
+        return new Mp4TrackFormat(MIME_AAC, 0, 0, sampleRate, channelCount, bitrate, new byte[][]{csd}, null);
+    }
+
+    @NonNull
+    static Mp4TrackFormat camm() {
+        return new Mp4TrackFormat(MIME_CAMM, 0, 0, 0, 0, 0, new byte[0][], null);
+    }
+
+    /**
+     * 使用已有的样本描述
+     *
+     * @param sampleEntry 含box头的样本描述，如avc1、mp4a
+     */
+    @NonNull
+    static Mp4TrackFormat withSampleEntry(@NonNull String mime, int width, int height, int sampleRate,
+                                          int channelCount, int bitrate, @NonNull byte[] sampleEntry) {
+        return new Mp4TrackFormat(mime, width, height, sampleRate, channelCount, bitrate, new byte[0][], sampleEntry);
+    }
+
+    boolean isVideo() {
+        return MIME_AVC.equals(mime) || MIME_HEVC.equals(mime);
+    }
+
+    boolean isHevc() {
+        return MIME_HEVC.equals(mime);
+    }
+
+    boolean isAudio() {
+        return MIME_AAC.equals(mime);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return mime + (isVideo() ? "," + width + "x" + height : "") +
+                (isAudio() ? "," + sampleRate + "Hz," + channelCount + "ch" : "");
+    }
+}
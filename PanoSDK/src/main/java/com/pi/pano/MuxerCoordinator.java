@@ -0,0 +1,242 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * 多轨道录制的封装器启动协调。
+ * 预先声明需要的轨道(视频、音频、camm)，最后一个轨道注册后立即启动封装器，不再轮询等待；
+ * 启动前编码出的样本复制到有界的缓冲中，启动后按到达顺序写入，不再丢弃。
+ * 第一个轨道注册后超过超时时间仍有轨道未注册时，以已注册的轨道启动，之后注册的轨道被忽略。
+ * <p>
+ * 本类不依赖Android，封装器通过{@link Muxer}注入。
+ *
+ * @param <F> 轨道格式类型
+ */
+class MuxerCoordinator<F> {
+
+    /**
+     * 封装器，对应MediaMuxer
+     */
+    interface Muxer<F> {
+        int addTrack(@NonNull F format);
+
+        void start();
+
+        void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                             long presentationTimeUs, int flags);
+    }
+
+    private static final class Slot {
+        final String name;
+        /**
+         * 封装器中的轨道号,-1:未注册
+         */
+        int track = -1;
+        /**
+         * 超时后未注册而被忽略
+         */
+        boolean dropped;
+
+        Slot(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class Pending {
+        final int slot;
+        final ByteBuffer buffer;
+        final int size;
+        final long presentationTimeUs;
+        final int flags;
+
+        Pending(int slot, ByteBuffer buffer, int size, long presentationTimeUs, int flags) {
+            this.slot = slot;
+            this.buffer = buffer;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    private final Muxer<F> mMuxer;
+    private final long mTimeoutNs;
+    private final long mMaxPendingBytes;
+    private final LongSupplier mClock;
+    private final SampleRemuxer.BufferPool mPool = new SampleRemuxer.BufferPool(8);
+    private final List<Slot> mSlots = new ArrayList<>();
+    private final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+    private volatile boolean mStarted;
+    private long mFirstRegisterNs = -1;
+    private long mPendingBytes;
+    private long mMaxPendingBytesUsed;
+    private int mDroppedCount;
+
+    /**
+     * @param timeoutMs       第一个轨道注册后等待其余轨道的最长时间
+     * @param maxPendingBytes 启动前最多缓存的样本字节数，超出的样本丢弃
+     */
+    MuxerCoordinator(@NonNull Muxer<F> muxer, long timeoutMs, long maxPendingBytes) {
+        this(muxer, timeoutMs, maxPendingBytes, System::nanoTime);
+    }
+
+    MuxerCoordinator(@NonNull Muxer<F> muxer, long timeoutMs, long maxPendingBytes, @NonNull LongSupplier clock) {
+        mMuxer = muxer;
+        mTimeoutNs = timeoutMs * 1000_000L;
+        mMaxPendingBytes = maxPendingBytes;
+        mClock = clock;
+    }
+
+    /**
+     * 声明需要的轨道，需在任何轨道注册前调用
+     *
+     * @return 轨道槽位，用于注册和写入
+     */
+    synchronized int declareTrack(@NonNull String name) {
+        if (mFirstRegisterNs >= 0) {
+            throw new IllegalStateException("declare track after register:" + name);
+        }
+        mSlots.add(new Slot(name));
+        return mSlots.size() - 1;
+    }
+
+    /**
+     * 注册轨道格式，所有声明的轨道都注册后启动封装器
+     *
+     * @return 封装器中的轨道号，-1:已超时启动，该轨道被忽略
+     */
+    synchronized int registerTrack(int slot, @NonNull F format) {
+        Slot s = mSlots.get(slot);
+        if (s.track != -1) {
+            return s.track;
+        }
+        if (mStarted) {
+            s.dropped = true;
+            return -1;
+        }
+        s.track = mMuxer.addTrack(format);
+        if (mFirstRegisterNs < 0) {
+            mFirstRegisterNs = mClock.getAsLong();
+        }
+        checkStartLocked(false);
+        return s.track;
+    }
+
+    /**
+     * 写入样本，封装器未启动时复制缓存
+     *
+     * @return false:样本被丢弃
+     */
+    boolean writeSample(int slot, @NonNull ByteBuffer buffer, int offset, int size,
+                        long presentationTimeUs, int flags) {
+        if (!mStarted) {
+            synchronized (this) {
+                if (!mStarted) {
+                    checkStartLocked(false);
+                }
+                if (!mStarted) {
+                    return addPendingLocked(slot, buffer, offset, size, presentationTimeUs, flags);
+                }
+            }
+        }
+        Slot s = mSlots.get(slot);
+        if (s.track == -1) {
+            return false;
+        }
+        mMuxer.writeSampleData(s.track, buffer, offset, size, presentationTimeUs, flags);
+        return true;
+    }
+
+    /**
+     * 结束录制前调用，若还未启动则以已注册的轨道启动并写入缓存的样本
+     *
+     * @return 封装器是否已启动
+     */
+    synchronized boolean finish() {
+        if (!mStarted) {
+            checkStartLocked(true);
+        }
+        return mStarted;
+    }
+
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized long getMaxPendingBytes() {
+        return mMaxPendingBytesUsed;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("MuxerCoordinator{started=").append(mStarted);
+        for (Slot slot : mSlots) {
+            sb.append(',').append(slot.name).append(':').append(slot.dropped ? "dropped" : slot.track);
+        }
+        return sb.append(",pending=").append(mPending.size())
+                .append(",maxPendingBytes=").append(mMaxPendingBytesUsed)
+                .append(",dropped=").append(mDroppedCount).append('}').toString();
+    }
+
+    private void checkStartLocked(boolean force) {
+        if (mFirstRegisterNs < 0) {
+            return;
+        }
+        boolean ready = true;
+        for (Slot slot : mSlots) {
+            if (slot.track == -1) {
+                ready = false;
+                break;
+            }
+        }
+        if (!ready && !force && mClock.getAsLong() - mFirstRegisterNs < mTimeoutNs) {
+            return;
+        }
+        for (Slot slot : mSlots) {
+            if (slot.track == -1) {
+                slot.dropped = true;
+            }
+        }
+        mMuxer.start();
+        Pending pending;
+        while ((pending = mPending.poll()) != null) {
+            Slot slot = mSlots.get(pending.slot);
+            if (slot.track != -1) {
+                mMuxer.writeSampleData(slot.track, pending.buffer, 0, pending.size,
+                        pending.presentationTimeUs, pending.flags);
+            }
+            mPool.release(pending.buffer);
+        }
+        mPendingBytes = 0;
+        // 缓存的样本全部写入后才允许直接写入，保证同一轨道的样本顺序
+        mStarted = true;
+    }
+
+    private boolean addPendingLocked(int slot, ByteBuffer buffer, int offset, int size,
+                                     long presentationTimeUs, int flags) {
+        if (mPendingBytes + size > mMaxPendingBytes) {
+            mDroppedCount++;
+            return false;
+        }
+        ByteBuffer copy = mPool.acquire(size);
+        ByteBuffer src = buffer.duplicate();
+        src.limit(offset + size);
+        src.position(offset);
+        copy.put(src);
+        copy.flip();
+        mPending.add(new Pending(slot, copy, size, presentationTimeUs, flags));
+        mPendingBytes += size;
+        mMaxPendingBytesUsed = Math.max(mMaxPendingBytesUsed, mPendingBytes);
+        return true;
+    }
+}
@@ -0,0 +1,396 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 封装器异步写入。
+ * 编码线程写入的样本复制到池化的直接内存后放入有界队列，由单独的写入线程写入封装器，
+ * 存储卡写入变慢时不会阻塞编码器输出。
+ * 缓冲池按尺寸级别复用并限制缓存的字节数，队列中的样本对象也循环使用，稳定写入时不分配对象。
+ * 队列满时按{@link Policy}处理：阻塞等待、丢弃非关键帧、或通知降低码率后阻塞等待。
+ * 写入线程出错后，之后的写入调用会抛出该错误，与同步写入时的行为一致。
+ * <p>
+ * 本类不依赖Android。
+ *
+ * @param <F> 轨道格式类型
+ */
+class MuxerWriteBehind<F> implements MuxerCoordinator.Muxer<F> {
+    /**
+     * 关键帧标记，与MediaCodec.BUFFER_FLAG_KEY_FRAME一致
+     */
+    static final int FLAG_KEY_FRAME = 1;
+    /**
+     * 编码配置标记，与MediaCodec.BUFFER_FLAG_CODEC_CONFIG一致
+     */
+    static final int FLAG_CODEC_CONFIG = 2;
+    /**
+     * 缓冲池默认最多缓存的字节数
+     */
+    static final long DEFAULT_POOL_BYTES = 16 * 1024 * 1024;
+    /**
+     * 缓冲池最小的尺寸级别，camm、音频等小样本共用
+     */
+    static final int POOL_MIN_CLASS_SIZE = 256;
+
+    /**
+     * 队列满时的处理策略
+     */
+    enum Policy {
+        /**
+         * 阻塞等待
+         */
+        BLOCK,
+        /**
+         * 丢弃可丢弃轨道的非关键帧，直到下一个关键帧；其余轨道阻塞等待
+         */
+        DROP_NON_KEY,
+        /**
+         * 通知降低码率，然后阻塞等待
+         */
+        SIGNAL_BITRATE,
+    }
+
+    /**
+     * 队列满的通知
+     */
+    interface Listener {
+        /**
+         * 在写入样本的线程回调，每次队列由未满变为满时回调一次
+         *
+         * @param depth 队列中的样本数
+         */
+        void onQueueFull(int depth);
+    }
+
+    private static final class Sample {
+        int track;
+        ByteBuffer buffer;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        long enqueueNs;
+        /**
+         * 结束标记
+         */
+        boolean eos;
+    }
+
+    private final MuxerCoordinator.Muxer<F> mMuxer;
+    private final Policy mPolicy;
+    private final ArrayBlockingQueue<Sample> mQueue;
+    /**
+     * 写入完成后回收的样本对象
+     */
+    private final ArrayBlockingQueue<Sample> mFreeSamples;
+    private final SampleRemuxer.BufferPool mPool;
+    private final Set<Integer> mDroppableTracks = new HashSet<>();
+    /**
+     * 已丢弃非关键帧、等待下一个关键帧的轨道
+     */
+    private final Set<Integer> mWaitKeyTracks = new HashSet<>();
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram("muxerWrite");
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram("muxerQueue");
+    private final Thread mThread;
+    private Listener mListener;
+    @Nullable
+    private volatile RecordTelemetry mTelemetry;
+    @Nullable
+    private volatile StorageMonitor mStorageMonitor;
+    private volatile Throwable mError;
+    private volatile boolean mClosed;
+    private volatile boolean mFull;
+    // 视频、音频编码线程会同时写入
+    private final AtomicInteger mMaxDepth = new AtomicInteger();
+    private final AtomicLong mDropCount = new AtomicLong();
+    private final AtomicLong mFullCount = new AtomicLong();
+    private final AtomicLong mBlockedNs = new AtomicLong();
+
+    /**
+     * @param capacity 队列中最多的样本数
+     */
+    MuxerWriteBehind(@NonNull MuxerCoordinator.Muxer<F> muxer, int capacity, @NonNull Policy policy) {
+        this(muxer, capacity, policy, DEFAULT_POOL_BYTES);
+    }
+
+    /**
+     * @param capacity       队列中最多的样本数
+     * @param maxPooledBytes 缓冲池最多缓存的字节数，队列中的样本不计入
+     */
+    MuxerWriteBehind(@NonNull MuxerCoordinator.Muxer<F> muxer, int capacity, @NonNull Policy policy,
+                     long maxPooledBytes) {
+        mMuxer = muxer;
+        mPolicy = policy;
+        capacity = Math.max(1, capacity);
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        // 队列中的样本加上正在复制和正在写入的各一个
+        mFreeSamples = new ArrayBlockingQueue<>(capacity + 2);
+        mPool = new SampleRemuxer.BufferPool(capacity + 2, maxPooledBytes, POOL_MIN_CLASS_SIZE);
+        mThread = new Thread(this::writeLoop, "MuxerWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 设置录像统计，记录写入耗时与丢弃的帧(可丢弃的轨道为视频)
+     */
+    void setTelemetry(@Nullable RecordTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * 设置存储监测，记录进入队列的数据量
+     */
+    void setStorageMonitor(@Nullable StorageMonitor monitor) {
+        mStorageMonitor = monitor;
+    }
+
+    /**
+     * 设置轨道在{@link Policy#DROP_NON_KEY}策略下可丢帧，一般为视频轨道
+     */
+    synchronized void setDroppable(int track, boolean droppable) {
+        if (droppable) {
+            mDroppableTracks.add(track);
+        } else {
+            mDroppableTracks.remove(track);
+        }
+    }
+
+    @Override
+    public int addTrack(@NonNull F format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                long presentationTimeUs, int flags) {
+        checkError();
+        if (mClosed) {
+            throw new IllegalStateException("write after close");
+        }
+        StorageMonitor monitor = mStorageMonitor;
+        if (monitor != null) {
+            monitor.onIncoming(size);
+        }
+        boolean keyFrame = (flags & (FLAG_KEY_FRAME | FLAG_CODEC_CONFIG)) != 0;
+        boolean droppable;
+        synchronized (this) {
+            droppable = mPolicy == Policy.DROP_NON_KEY && mDroppableTracks.contains(track);
+            if (droppable && mWaitKeyTracks.contains(track)) {
+                if (!keyFrame) {
+                    mDropCount.incrementAndGet();
+                    recordDrop();
+                    return;
+                }
+                mWaitKeyTracks.remove(track);
+            }
+        }
+        if (mQueue.remainingCapacity() == 0) {
+            onFull();
+            if (droppable && !keyFrame) {
+                synchronized (this) {
+                    mDropCount.incrementAndGet();
+                    mWaitKeyTracks.add(track);
+                }
+                recordDrop();
+                return;
+            }
+        } else {
+            mFull = false;
+        }
+        Sample sample = mFreeSamples.poll();
+        if (sample == null) {
+            sample = new Sample();
+        }
+        sample.track = track;
+        sample.size = size;
+        sample.presentationTimeUs = presentationTimeUs;
+        sample.flags = flags;
+        sample.buffer = copy(buffer, offset, size);
+        sample.enqueueNs = System.nanoTime();
+        long begin = System.nanoTime();
+        try {
+            while (!mQueue.offer(sample, 20, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            recycle(sample);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("write interrupted");
+        }
+        mBlockedNs.addAndGet(System.nanoTime() - begin);
+        mMaxDepth.accumulateAndGet(mQueue.size(), Math::max);
+    }
+
+    private void recycle(Sample sample) {
+        mPool.release(sample.buffer);
+        sample.buffer = null;
+        mFreeSamples.offer(sample);
+    }
+
+    private void recordDrop() {
+        RecordTelemetry telemetry = mTelemetry;
+        if (telemetry != null) {
+            telemetry.recordDrop(RecordTelemetry.TRACK_VIDEO, 1);
+        }
+    }
+
+    private void onFull() {
+        mFullCount.incrementAndGet();
+        if (!mFull) {
+            mFull = true;
+            Listener listener = mListener;
+            if (mPolicy == Policy.SIGNAL_BITRATE && listener != null) {
+                listener.onQueueFull(mQueue.size());
+            }
+        }
+    }
+
+    private ByteBuffer copy(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer copy = mPool.acquire(size);
+        ByteBuffer src = buffer.duplicate();
+        src.limit(offset + size);
+        src.position(offset);
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Sample sample;
+            try {
+                sample = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (sample.eos) {
+                return;
+            }
+            long begin = System.nanoTime();
+            final long queueNs = begin - sample.enqueueNs;
+            mQueueLatency.recordNs(queueNs);
+            try {
+                if (mError == null) {
+                    mMuxer.writeSampleData(sample.track, sample.buffer, 0, sample.size,
+                            sample.presentationTimeUs, sample.flags);
+                }
+            } catch (Throwable e) {
+                mError = e;
+            }
+            final long writeNs = System.nanoTime() - begin;
+            mWriteLatency.recordNs(writeNs);
+            RecordTelemetry telemetry = mTelemetry;
+            if (telemetry != null) {
+                telemetry.recordMuxerWrite(queueNs, writeNs);
+            }
+            recycle(sample);
+        }
+    }
+
+    private void checkError() {
+        Throwable error = mError;
+        if (error != null) {
+            throw new IllegalStateException(error.getMessage(), error);
+        }
+    }
+
+    /**
+     * 写入队列中剩余的样本并结束写入线程，需在封装器stop之前调用
+     */
+    void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        Sample eos = new Sample();
+        eos.eos = true;
+        try {
+            mQueue.put(eos);
+            mThread.join();
+        } catch (InterruptedException e) {
+            mThread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 当前队列中的样本数
+     */
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxDepth.get();
+    }
+
+    long getDropCount() {
+        return mDropCount.get();
+    }
+
+    /**
+     * 写入时队列已满的次数
+     */
+    long getFullCount() {
+        return mFullCount.get();
+    }
+
+    /**
+     * 写入时等待队列的总时间(ns)
+     */
+    long getBlockedNs() {
+        return mBlockedNs.get();
+    }
+
+    @NonNull
+    SampleRemuxer.BufferPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * 写入线程单个样本写入封装器的耗时
+     */
+    @NonNull
+    LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * 样本在队列中等待的时间
+     */
+    @NonNull
+    LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    @Nullable
+    Throwable getError() {
+        return mError;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "MuxerWriteBehind{policy=" + mPolicy + ",depth=" + getQueueDepth() + ",maxDepth=" + mMaxDepth +
+                ",full=" + mFullCount + ",drop=" + mDropCount + ",blocked=" + mBlockedNs.get() / 1000_000 + "ms," +
+                mWriteLatency + "," + mQueueLatency + "," + mPool + "}";
+    }
+}
@@ -0,0 +1,181 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * 按序号取结果的有界任务执行器。
+ * 任务按序号提交，在固定数量的线程中执行，提交顺序与完成顺序可以不同，结果按序号等待取得；
+ * 任一任务失败(抛出异常或返回null)时取消其余任务，未开始的不再执行，等待中的结果以失败结束。
+ * 记录每个任务的排队与执行耗时。
+ * <p>
+ * 本类不依赖Android。
+ *
+ * @param <T> 任务结果
+ */
+final class OrderedTaskExecutor<T> {
+    interface Task<T> {
+        T run() throws Exception;
+    }
+
+    private final String mName;
+    private final List<CompletableFuture<T>> mResults;
+    private final long[] mWaitNs;
+    private final long[] mRunNs;
+    private final ExecutorService mExecutor;
+    private final LongSupplier mClockNs;
+    private volatile Throwable mFailure;
+
+    /**
+     * @param count       任务数，序号为[0,count)
+     * @param concurrency 同时执行的任务数
+     */
+    OrderedTaskExecutor(@NonNull String name, int count, int concurrency, @NonNull LongSupplier clockNs) {
+        mName = name;
+        mResults = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            mResults.add(new CompletableFuture<>());
+        }
+        mWaitNs = new long[count];
+        mRunNs = new long[count];
+        Arrays.fill(mWaitNs, -1);
+        Arrays.fill(mRunNs, -1);
+        mClockNs = clockNs;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        final int threads = Math.max(1, Math.min(concurrency, count));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, name + "-" + threadIndex.getAndIncrement()));
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * 提交第index个任务
+     *
+     * @return 序号无效、已提交或已取消时返回false
+     */
+    synchronized boolean submit(int index, @NonNull Task<T> task) {
+        if (index < 0 || index >= mResults.size() || mWaitNs[index] != -1 || mFailure != null) {
+            return false;
+        }
+        final CompletableFuture<T> result = mResults.get(index);
+        final long submitNs = mClockNs.getAsLong();
+        mWaitNs[index] = 0;
+        try {
+            mExecutor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                final long begin = mClockNs.getAsLong();
+                T value = null;
+                Throwable failure = null;
+                try {
+                    value = task.run();
+                    if (value == null) {
+                        failure = new IllegalStateException(mName + " task " + index + " has no result");
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+                final long end = mClockNs.getAsLong();
+                synchronized (this) {
+                    mWaitNs[index] = begin - submitNs;
+                    mRunNs[index] = end - begin;
+                }
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                    cancel(failure);
+                } else {
+                    result.complete(value);
+                }
+            });
+        } catch (Exception e) {
+            cancel(e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 等待第index个任务的结果
+     *
+     * @throws ExecutionException    该任务失败或因其他任务失败被取消
+     * @throws TimeoutException      超时
+     * @throws InterruptedException  等待被中断
+     */
+    @NonNull
+    T await(int index, long timeoutMs) throws ExecutionException, TimeoutException, InterruptedException {
+        try {
+            final CompletableFuture<T> result = mResults.get(index);
+            return timeoutMs > 0 ? result.get(timeoutMs, TimeUnit.MILLISECONDS) : result.get();
+        } catch (CancellationException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * 取消所有未完成的任务
+     */
+    void cancel(@NonNull Throwable reason) {
+        synchronized (this) {
+            if (mFailure != null) {
+                return;
+            }
+            mFailure = reason;
+        }
+        CancellationException cancellation = new CancellationException(mName + " cancelled:" + reason);
+        cancellation.initCause(reason);
+        for (CompletableFuture<T> result : mResults) {
+            result.completeExceptionally(cancellation);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 不再提交任务，已提交的任务执行完后线程结束
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    boolean isCancelled() {
+        return mFailure != null;
+    }
+
+    /**
+     * 任务排队等待执行的耗时，-1:未执行
+     */
+    synchronized long getWaitMs(int index) {
+        return mRunNs[index] < 0 ? -1 : mWaitNs[index] / 1000_000;
+    }
+
+    /**
+     * 任务执行的耗时，-1:未执行
+     */
+    synchronized long getRunMs(int index) {
+        return mRunNs[index] < 0 ? -1 : mRunNs[index] / 1000_000;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(mName).append('{');
+        for (int i = 0; i < mResults.size(); i++) {
+            sb.append(i).append(':').append(getWaitMs(i)).append('+').append(getRunMs(i)).append("ms,");
+        }
+        return sb.append("failure=").append(mFailure).append('}').toString();
+    }
+}
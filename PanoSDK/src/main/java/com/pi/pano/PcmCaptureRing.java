@@ -0,0 +1,284 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * pcm采集环形缓冲。
+ * 独立的读取线程从{@link Source}读取pcm数据写入预分配的缓冲槽，编码线程按顺序取出，编码卡顿时不丢失麦克风数据。
+ * 时间戳由累计采样数计算，第一次读取时锚定到时钟一次，之后不受线程调度抖动影响。
+ * 单生产者(读取线程)单消费者(编码线程)，缓冲满时丢弃新读取的数据并计数，采样数仍累计，时间戳保持连续。
+ * <p>
+ * 本类不依赖Android，数据源通过{@link Source}注入。
+ */
+class PcmCaptureRing {
+    private static final String TAG = "PcmCaptureRing";
+
+    /**
+     * pcm数据源，对应AudioRecord
+     */
+    interface Source {
+        /**
+         * 阻塞读取
+         *
+         * @return 读取的字节数，小于0:出错
+         */
+        int read(@NonNull byte[] buffer, int offset, int size);
+    }
+
+    /**
+     * 取出的pcm数据，由调用者复用。数据在{@link #release()}前有效，可在原处修改
+     */
+    static final class Chunk {
+        byte[] data;
+        int size;
+        /**
+         * 第一个采样的时间戳
+         */
+        long presentationTimeUs;
+    }
+
+    private final Source mSource;
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final LongSupplier mClockUs;
+    private final int mMask;
+    private final byte[][] mSlots;
+    private final int[] mSizes;
+    private final long[] mTimestamps;
+    /**
+     * 缓冲满时读取数据的临时缓冲
+     */
+    private final byte[] mDiscard;
+    /**
+     * 下一个写入的序号，只由读取线程修改
+     */
+    private volatile long mHead;
+    /**
+     * 下一个读取的序号，只由编码线程修改
+     */
+    private volatile long mTail;
+    private volatile Thread mConsumer;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * 锚定时间，对应第0个采样
+     */
+    private volatile long mAnchorUs = -1;
+    private volatile long mFramePosition;
+    private volatile long mOverrunCount;
+    private volatile long mOverrunFrames;
+    private volatile long mUnderrunCount;
+    private volatile long mReadErrorCount;
+    private volatile long mDriftUs;
+    private volatile long mMaxDriftUs;
+
+    /**
+     * @param bufferSize    单次读取的字节数
+     * @param slotCount     缓冲槽数量，向上取整为2的幂
+     * @param sampleRate    采样率
+     * @param bytesPerFrame 一帧(所有声道一个采样)的字节数
+     * @param clockUs       锚定与漂移计算使用的时钟，需与视频时间戳一致
+     */
+    PcmCaptureRing(@NonNull Source source, int bufferSize, int slotCount, int sampleRate, int bytesPerFrame,
+                   @NonNull LongSupplier clockUs) {
+        mSource = source;
+        mSampleRate = sampleRate;
+        mBytesPerFrame = bytesPerFrame;
+        mClockUs = clockUs;
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        mMask = size - 1;
+        mSlots = new byte[size][bufferSize];
+        mSizes = new int[size];
+        mTimestamps = new long[size];
+        mDiscard = new byte[bufferSize];
+    }
+
+    /**
+     * 启动读取线程
+     */
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this::readLoop, TAG);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * 停止读取线程，数据源需在此之后停止
+     */
+    synchronized void stop() {
+        mRunning = false;
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        LockSupport.unpark(mConsumer);
+    }
+
+    private void readLoop() {
+        while (mRunning) {
+            long head = mHead;
+            boolean full = head - mTail > mMask;
+            byte[] buffer = full ? mDiscard : mSlots[(int) (head & mMask)];
+            int count = mSource.read(buffer, 0, buffer.length);
+            long nowUs = mClockUs.getAsLong();
+            if (count <= 0) {
+                if (count < 0) {
+                    mReadErrorCount++;
+                    // 避免数据源出错时空转
+                    LockSupport.parkNanos(5_000_000);
+                }
+                continue;
+            }
+            long frames = count / mBytesPerFrame;
+            long position = mFramePosition;
+            if (mAnchorUs < 0) {
+                // 刚读取完成的数据的第一个采样在读取前已采集
+                mAnchorUs = nowUs - framesToUs(frames);
+            }
+            long timestampUs = mAnchorUs + framesToUs(position);
+            mFramePosition = position + frames;
+            long drift = nowUs - (mAnchorUs + framesToUs(position + frames));
+            mDriftUs = drift;
+            if (Math.abs(drift) > Math.abs(mMaxDriftUs)) {
+                mMaxDriftUs = drift;
+            }
+            int index = (int) (head & mMask);
+            if (full) {
+                // 读取是阻塞的，读取期间消费者可能已取出数据
+                if (head - mTail > mMask) {
+                    mOverrunCount++;
+                    mOverrunFrames += frames;
+                    continue;
+                }
+                System.arraycopy(mDiscard, 0, mSlots[index], 0, count);
+            }
+            mSizes[index] = count;
+            mTimestamps[index] = timestampUs;
+            // volatile写,保证消费者看到序号时数据已写入
+            mHead = head + 1;
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000_000L / mSampleRate;
+    }
+
+    /**
+     * 查看最旧的数据但不取出，只能在消费者线程调用
+     *
+     * @param timeoutMs 没有数据时等待的最长时间
+     * @return false:超时没有数据
+     */
+    boolean peek(@NonNull Chunk out, long timeoutMs) {
+        long tail = mTail;
+        if (tail == mHead) {
+            mConsumer = Thread.currentThread();
+            long deadline = System.nanoTime() + timeoutMs * 1000_000L;
+            while (tail == mHead) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || !mRunning) {
+                    if (mRunning) {
+                        mUnderrunCount++;
+                    }
+                    return false;
+                }
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+        int index = (int) (tail & mMask);
+        out.data = mSlots[index];
+        out.size = mSizes[index];
+        out.presentationTimeUs = mTimestamps[index];
+        return true;
+    }
+
+    /**
+     * 取出{@link #peek}得到的数据，之后缓冲槽可被写入，只能在消费者线程调用
+     */
+    void release() {
+        long tail = mTail;
+        if (tail != mHead) {
+            mTail = tail + 1;
+        }
+    }
+
+    /**
+     * 丢弃所有未取出的数据，只能在消费者线程调用
+     */
+    void clear() {
+        mTail = mHead;
+    }
+
+    /**
+     * 缓冲中未取出的数据块数
+     */
+    int size() {
+        return (int) (mHead - mTail);
+    }
+
+    /**
+     * 缓冲满而丢弃的次数
+     */
+    long getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    long getOverrunFrames() {
+        return mOverrunFrames;
+    }
+
+    /**
+     * 消费者等待超时没有数据的次数
+     */
+    long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    long getReadErrorCount() {
+        return mReadErrorCount;
+    }
+
+    /**
+     * 已读取的采样数(每声道)
+     */
+    long getFramePosition() {
+        return mFramePosition;
+    }
+
+    /**
+     * 最近一次读取完成时，时钟与按采样数推算的时间之差，为正表示采样数落后于时钟
+     */
+    long getDriftUs() {
+        return mDriftUs;
+    }
+
+    /**
+     * 绝对值最大的漂移
+     */
+    long getMaxDriftUs() {
+        return mMaxDriftUs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return TAG + "{frames=" + mFramePosition + ",pending=" + size() + ",overrun=" + mOverrunCount +
+                "(" + mOverrunFrames + " frames),underrun=" + mUnderrunCount + ",readError=" + mReadErrorCount +
+                ",drift=" + mDriftUs + "us,maxDrift=" + mMaxDriftUs + "us}";
+    }
+}
@@ -11,6 +11,19 @@ import com.pi.pilot.pano.sdk.BuildConfig;
  * 拍照参数
  */
 public final class PhotoParams {
+    /**
+     * 连拍保存积压时阻塞采集，不丢弃
+     */
+    public static final int BURST_BACKLOG_BLOCK = 0;
+    /**
+     * 连拍保存积压时丢弃新采集的照片，保持采集速率
+     */
+    public static final int BURST_BACKLOG_DROP = 1;
+    /**
+     * 连拍保存积压时降级保存(不写入全景信息及exif)，积压满时阻塞采集
+     */
+    public static final int BURST_BACKLOG_DEGRADE = 2;
+
     /**
      * 拍照后将生成缩略图（缩略图会注入到exif）
      */
@@ -29,6 +42,19 @@ public final class PhotoParams {
      */
     public int hdrCount;
 
+    /**
+     * 连拍、间隔拍照的张数，0:单张拍照，hdr拍照时无效
+     */
+    public int burstCount;
+    /**
+     * 间隔拍照的间隔ms，0:连拍，以相机能达到的速率采集
+     */
+    public long burstIntervalMs;
+    /**
+     * 连拍保存积压时的处理，{@link #BURST_BACKLOG_BLOCK}、{@link #BURST_BACKLOG_DROP}或{@link #BURST_BACKLOG_DEGRADE}
+     */
+    public int burstBacklogPolicy = BURST_BACKLOG_BLOCK;
+
     public IFilenameProxy fileNameGenerator;
 
     /**
@@ -121,6 +147,13 @@ public final class PhotoParams {
         return hdrCount > 0;
     }
 
+    /**
+     * 是否是连拍或间隔拍照
+     */
+    public boolean isBurst() {
+        return burstCount > 0 && !isHdr();
+    }
+
     /**
      * hdr是否保存原文件（中间文件）
      */
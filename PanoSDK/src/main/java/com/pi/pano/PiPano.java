@@ -22,6 +22,9 @@ import com.pi.pano.error.PiErrorCode;
 import com.pi.pilot.pano.sdk.BuildConfig;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Keep
 abstract class PiPano extends HandlerThread implements Handler.Callback {
@@ -78,6 +81,10 @@ abstract class PiPano extends HandlerThread implements Handler.Callback {
      * hdr拍照需要忽略的帧数
      */
     public int mSkipFrameWithTakeHdr;
+    /**
+     * 等待忽略帧结束
+     */
+    private final List<CompletableFuture<Void>> mSkipFrameWaiters = new ArrayList<>();
 
     interface PiPanoListener {
         void onPiPanoInit(@NonNull PiPano pano);
@@ -103,6 +110,35 @@ abstract class PiPano extends HandlerThread implements Handler.Callback {
         void onPiPanoEncodeFrame(int count);
     }
 
+    /**
+     * hdr拍照忽略帧结束时完成，当前没有需要忽略的帧时立即完成
+     */
+    CompletableFuture<Void> waitSkipFrameWithTakeHdr() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (mSkipFrameWaiters) {
+            if (mSkipFrameWithTakeHdr > 0) {
+                mSkipFrameWaiters.add(future);
+                return future;
+            }
+        }
+        future.complete(null);
+        return future;
+    }
+
+    /**
+     * 忽略帧结束，在渲染线程调用
+     */
+    protected void onSkipFrameWithTakeHdrEnd() {
+        List<CompletableFuture<Void>> waiters;
+        synchronized (mSkipFrameWaiters) {
+            waiters = new ArrayList<>(mSkipFrameWaiters);
+            mSkipFrameWaiters.clear();
+        }
+        for (CompletableFuture<Void> waiter : waiters) {
+            waiter.complete(null);
+        }
+    }
+
     static {
         System.loadLibrary(Config.PIPANO_SO_NAME);
     }
@@ -0,0 +1,131 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RAW图像写入文件。
+ * 直接从图像平面的直接内存经FileChannel写入，不复制到堆内存；行跨度大于每行数据时按行聚集写入，去除行尾的填充。
+ * 可预设文件长度，写入时不再逐次扩展文件；写入后在后台线程fsync并关闭文件，调用方写入返回后即可释放图像。
+ * <p>
+ * 本类不依赖Android。
+ */
+final class RawFileWriter {
+    /**
+     * 一次聚集写入的行数
+     */
+    private static final int GATHER_ROWS = 64;
+
+    private static final ExecutorService sSyncExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "RawFileSync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RawFileWriter() {
+    }
+
+    /**
+     * 从plane当前位置开始，写入rows行，每行rowBytes字节，相邻两行开始位置相差rowStride字节；不改变plane的位置
+     *
+     * @return 写入的字节数
+     */
+    static long writeRows(@NonNull GatheringByteChannel channel, @NonNull ByteBuffer plane,
+                          int rowBytes, int rowStride, int rows) throws IOException {
+        if (rowBytes <= 0 || rows <= 0 || rowStride < rowBytes) {
+            throw new IllegalArgumentException("rowBytes:" + rowBytes + ",rowStride:" + rowStride + ",rows:" + rows);
+        }
+        final int base = plane.position();
+        // 最后一行可能没有行尾填充
+        final long required = (long) rowStride * (rows - 1) + rowBytes;
+        if (required > plane.remaining()) {
+            throw new IllegalArgumentException("plane remaining:" + plane.remaining() + " < " + required);
+        }
+        if (rowStride == rowBytes) {
+            ByteBuffer data = plane.duplicate();
+            data.limit(base + rowBytes * rows);
+            return writeFully(channel, new ByteBuffer[]{data}, 1);
+        }
+        long written = 0;
+        // 每批复用同一组行视图，不随行数分配
+        ByteBuffer[] batch = new ByteBuffer[Math.min(GATHER_ROWS, rows)];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = plane.duplicate();
+        }
+        for (int row = 0; row < rows; row += batch.length) {
+            final int count = Math.min(batch.length, rows - row);
+            for (int i = 0; i < count; i++) {
+                int start = base + (row + i) * rowStride;
+                batch[i].limit(start + rowBytes);
+                batch[i].position(start);
+            }
+            written += writeFully(channel, batch, count);
+        }
+        return written;
+    }
+
+    private static long writeFully(GatheringByteChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        long written = 0;
+        int offset = 0;
+        while (offset < count) {
+            written += channel.write(buffers, offset, count - offset);
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * 写入文件头及图像数据，返回时数据已写入文件，可释放plane
+     *
+     * @param header      文件头，可为null
+     * @param preallocate 是否预设文件长度
+     * @return fsync并关闭文件后完成，结果为文件长度
+     */
+    @NonNull
+    static CompletableFuture<Long> write(@NonNull File file, @Nullable ByteBuffer header, @NonNull ByteBuffer plane,
+                                         int rowBytes, int rowStride, int rows, boolean preallocate) throws IOException {
+        final long length = (header != null ? header.remaining() : 0) + (long) rowBytes * rows;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FileChannel channel = raf.getChannel();
+        try {
+            raf.setLength(preallocate ? length : 0);
+            if (header != null) {
+                writeFully(channel, new ByteBuffer[]{header.duplicate()}, 1);
+            }
+            writeRows(channel, plane, rowBytes, rowStride, rows);
+            if (channel.position() != length) {
+                throw new IOException("write " + channel.position() + " != " + length);
+            }
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        CompletableFuture<Long> synced = new CompletableFuture<>();
+        sSyncExecutor.execute(() -> {
+            try {
+                channel.force(true);
+                raf.close();
+                synced.complete(length);
+            } catch (IOException e) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+                synced.completeExceptionally(e);
+            }
+        });
+        return synced;
+    }
+}
@@ -0,0 +1,260 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * 录像状态统计。
+ * 记录视频编码耗时、封装写入耗时、各轨道的输入输出帧数、丢弃帧数与字节数，
+ * 并按固定周期把增量写入预分配的环形缓冲，保留最近若干周期。
+ * 记录方法不分配对象：计数使用原子数组，耗时使用{@link LatencyHistogram}，周期切换时只写入已分配的数组。
+ * 同一时间只有一个录像，录像中可通过{@link #getCurrent()}取得，供渲染线程等记录。
+ * <p>
+ * 本类不依赖Android。
+ */
+class RecordTelemetry {
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+    private static final int TRACK_COUNT = 2;
+
+    private static final int FIELD_IN = 0;
+    private static final int FIELD_OUT = 1;
+    private static final int FIELD_DROP = 2;
+    private static final int FIELD_BYTES = 3;
+    private static final int FIELD_COUNT = 4;
+
+    /**
+     * 环形缓冲每个周期的字段：各轨道计数增量，周期编码耗时p95、最大值，封装写入最大耗时
+     */
+    private static final int RING_ENCODE_P95 = TRACK_COUNT * FIELD_COUNT;
+    private static final int RING_ENCODE_MAX = RING_ENCODE_P95 + 1;
+    private static final int RING_MUXER_WRITE_MAX = RING_ENCODE_P95 + 2;
+    private static final int RING_START_NS = RING_ENCODE_P95 + 3;
+    private static final int RING_DURATION_NS = RING_ENCODE_P95 + 4;
+    private static final int RING_FIELD_COUNT = RING_ENCODE_P95 + 5;
+
+    /**
+     * 编码耗时超出该值时认为时间戳不是单调时钟，不记录
+     */
+    private static final long MAX_ENCODE_LATENCY_US = 10_000_000;
+
+    private static volatile RecordTelemetry sCurrent;
+
+    private final LongSupplier mClockNs;
+    private final long mIntervalNs;
+    private final long mStartNs;
+    private final AtomicLongArray mCounters = new AtomicLongArray(TRACK_COUNT * FIELD_COUNT);
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram("encode");
+    private final LatencyHistogram mMuxerWriteLatency = new LatencyHistogram("muxerWrite");
+    private final LatencyHistogram mMuxerQueueLatency = new LatencyHistogram("muxerQueue");
+    /**
+     * 当前周期的耗时，周期切换时清零
+     */
+    private final LatencyHistogram mIntervalEncodeLatency = new LatencyHistogram("intervalEncode");
+    private volatile long mIntervalMuxerWriteMaxUs;
+
+    private final Object mRingLock = new Object();
+    private final long[][] mRing;
+    private final long[] mLastCounters = new long[TRACK_COUNT * FIELD_COUNT];
+    private int mRingHead;
+    private int mRingCount;
+    private volatile long mIntervalStartNs;
+    private volatile long mStopNs = -1;
+
+    /**
+     * @param intervalMs 统计周期
+     * @param ringSize   保留的周期数
+     * @param clockNs    时钟，需与编码器时间戳一致(单调时钟)
+     */
+    RecordTelemetry(long intervalMs, int ringSize, @NonNull LongSupplier clockNs) {
+        mClockNs = clockNs;
+        mIntervalNs = Math.max(1, intervalMs) * 1000_000;
+        mRing = new long[Math.max(1, ringSize)][RING_FIELD_COUNT];
+        mStartNs = clockNs.getAsLong();
+        mIntervalStartNs = mStartNs;
+    }
+
+    RecordTelemetry() {
+        this(1000, 60, System::nanoTime);
+    }
+
+    /**
+     * 设置当前录像的统计，null:结束
+     */
+    static void setCurrent(@Nullable RecordTelemetry telemetry) {
+        RecordTelemetry last = sCurrent;
+        if (last != null && last != telemetry) {
+            last.stop();
+        }
+        sCurrent = telemetry;
+    }
+
+    @Nullable
+    static RecordTelemetry getCurrent() {
+        return sCurrent;
+    }
+
+    /**
+     * 帧送入编码器，视频为渲染到编码表面
+     */
+    void recordFrameIn(int track) {
+        mCounters.incrementAndGet(track * FIELD_COUNT + FIELD_IN);
+    }
+
+    /**
+     * 编码器输出一帧
+     */
+    void recordFrameOut(int track, int size) {
+        // 先结算已结束的周期，本帧计入新周期
+        roll(mClockNs.getAsLong());
+        mCounters.incrementAndGet(track * FIELD_COUNT + FIELD_OUT);
+        mCounters.addAndGet(track * FIELD_COUNT + FIELD_BYTES, size);
+    }
+
+    void recordDrop(int track, long count) {
+        mCounters.addAndGet(track * FIELD_COUNT + FIELD_DROP, count);
+    }
+
+    /**
+     * 视频编码耗时
+     *
+     * @param presentationTimeUs 编码表面的帧时间戳，与时钟一致
+     */
+    void recordEncodeLatency(long presentationTimeUs) {
+        long latencyUs = mClockNs.getAsLong() / 1000 - presentationTimeUs;
+        if (latencyUs < 0 || latencyUs > MAX_ENCODE_LATENCY_US) {
+            return;
+        }
+        mEncodeLatency.recordUs(latencyUs);
+        mIntervalEncodeLatency.recordUs(latencyUs);
+    }
+
+    void recordMuxerWrite(long queueNs, long writeNs) {
+        mMuxerQueueLatency.recordNs(queueNs);
+        mMuxerWriteLatency.recordNs(writeNs);
+        long writeUs = writeNs / 1000;
+        if (writeUs > mIntervalMuxerWriteMaxUs) {
+            mIntervalMuxerWriteMaxUs = writeUs;
+        }
+    }
+
+    /**
+     * 结束统计，之后的快照时长不再增加
+     */
+    void stop() {
+        long now = mClockNs.getAsLong();
+        roll(now);
+        mStopNs = now;
+    }
+
+    /**
+     * 到达周期结束时把本周期的增量写入环形缓冲
+     */
+    private void roll(long nowNs) {
+        if (nowNs - mIntervalStartNs < mIntervalNs || mStopNs >= 0) {
+            return;
+        }
+        synchronized (mRingLock) {
+            long start = mIntervalStartNs;
+            if (nowNs - start < mIntervalNs) {
+                return;
+            }
+            long[] slot = mRing[mRingHead];
+            for (int i = 0; i < mLastCounters.length; i++) {
+                long value = mCounters.get(i);
+                slot[i] = value - mLastCounters[i];
+                mLastCounters[i] = value;
+            }
+            synchronized (mIntervalEncodeLatency) {
+                slot[RING_ENCODE_P95] = mIntervalEncodeLatency.getPercentileUs(95);
+                slot[RING_ENCODE_MAX] = mIntervalEncodeLatency.getMaxUs();
+                mIntervalEncodeLatency.reset();
+            }
+            slot[RING_MUXER_WRITE_MAX] = mIntervalMuxerWriteMaxUs;
+            mIntervalMuxerWriteMaxUs = 0;
+            slot[RING_START_NS] = start - mStartNs;
+            slot[RING_DURATION_NS] = nowNs - start;
+            mRingHead = (mRingHead + 1) % mRing.length;
+            mRingCount = Math.min(mRingCount + 1, mRing.length);
+            // 长时间没有记录时跳过中间的周期
+            mIntervalStartNs = start + (nowNs - start) / mIntervalNs * mIntervalNs;
+        }
+    }
+
+    long getFramesIn(int track) {
+        return mCounters.get(track * FIELD_COUNT + FIELD_IN);
+    }
+
+    long getFramesOut(int track) {
+        return mCounters.get(track * FIELD_COUNT + FIELD_OUT);
+    }
+
+    long getDropped(int track) {
+        return mCounters.get(track * FIELD_COUNT + FIELD_DROP);
+    }
+
+    long getBytes(int track) {
+        return mCounters.get(track * FIELD_COUNT + FIELD_BYTES);
+    }
+
+    @NonNull
+    LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    @NonNull
+    LatencyHistogram getMuxerWriteLatency() {
+        return mMuxerWriteLatency;
+    }
+
+    /**
+     * 生成快照，可在任意线程调用
+     */
+    @NonNull
+    RecordTelemetrySnapshot snapshot() {
+        long now = mClockNs.getAsLong();
+        roll(now);
+        long stop = mStopNs;
+        long durationNs = (stop >= 0 ? stop : now) - mStartNs;
+        RecordTelemetrySnapshot.Interval[] intervals;
+        synchronized (mRingLock) {
+            intervals = new RecordTelemetrySnapshot.Interval[mRingCount];
+            for (int i = 0; i < mRingCount; i++) {
+                long[] slot = mRing[(mRingHead - mRingCount + i + mRing.length) % mRing.length];
+                long duration = Math.max(1, slot[RING_DURATION_NS]);
+                intervals[i] = new RecordTelemetrySnapshot.Interval(slot[RING_START_NS] / 1000_000, duration / 1000_000,
+                        slot[TRACK_VIDEO * FIELD_COUNT + FIELD_IN],
+                        slot[TRACK_VIDEO * FIELD_COUNT + FIELD_OUT],
+                        slot[TRACK_VIDEO * FIELD_COUNT + FIELD_DROP],
+                        bitrate(slot[TRACK_VIDEO * FIELD_COUNT + FIELD_BYTES], duration),
+                        bitrate(slot[TRACK_AUDIO * FIELD_COUNT + FIELD_BYTES], duration),
+                        slot[RING_ENCODE_P95], slot[RING_ENCODE_MAX], slot[RING_MUXER_WRITE_MAX]);
+            }
+        }
+        return new RecordTelemetrySnapshot(durationNs / 1000_000,
+                createTrack("video", TRACK_VIDEO, durationNs),
+                createTrack("audio", TRACK_AUDIO, durationNs),
+                new RecordTelemetrySnapshot.Latency(mEncodeLatency),
+                new RecordTelemetrySnapshot.Latency(mMuxerWriteLatency),
+                new RecordTelemetrySnapshot.Latency(mMuxerQueueLatency),
+                intervals);
+    }
+
+    private RecordTelemetrySnapshot.Track createTrack(String name, int track, long durationNs) {
+        return new RecordTelemetrySnapshot.Track(name, getFramesIn(track), getFramesOut(track), getDropped(track),
+                getBytes(track), bitrate(getBytes(track), Math.max(1, durationNs)));
+    }
+
+    private static long bitrate(long bytes, long durationNs) {
+        return (long) (bytes * 8 * 1e9 / durationNs);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,173 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 录像状态统计快照，见{@link RecordTelemetry}
+ */
+public final class RecordTelemetrySnapshot {
+
+    /**
+     * 轨道统计
+     */
+    public static final class Track {
+        @NonNull
+        public final String name;
+        /**
+         * 送入编码器的帧数，视频为渲染到编码表面的帧数
+         */
+        public final long framesIn;
+        /**
+         * 编码器输出的帧数
+         */
+        public final long framesOut;
+        /**
+         * 丢弃的帧数：封装队列满丢弃、封装器启动前超出缓存丢弃、音频采集缓冲满丢弃
+         */
+        public final long dropped;
+        public final long bytes;
+        /**
+         * 录像开始以来的平均码率(bps)
+         */
+        public final long bitrate;
+
+        Track(@NonNull String name, long framesIn, long framesOut, long dropped, long bytes, long bitrate) {
+            this.name = name;
+            this.framesIn = framesIn;
+            this.framesOut = framesOut;
+            this.dropped = dropped;
+            this.bytes = bytes;
+            this.bitrate = bitrate;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + "{in=" + framesIn + ",out=" + framesOut + ",dropped=" + dropped + ",bytes=" + bytes +
+                    ",bitrate=" + bitrate + "}";
+        }
+    }
+
+    /**
+     * 耗时统计，单位微秒，百分位误差不超过1/8
+     */
+    public static final class Latency {
+        @NonNull
+        public final String name;
+        public final long count;
+        public final long meanUs;
+        public final long p50Us;
+        public final long p95Us;
+        public final long p99Us;
+        public final long maxUs;
+
+        Latency(@NonNull LatencyHistogram histogram) {
+            synchronized (histogram) {
+                name = histogram.getName();
+                count = histogram.getCount();
+                meanUs = histogram.getMeanUs();
+                p50Us = histogram.getPercentileUs(50);
+                p95Us = histogram.getPercentileUs(95);
+                p99Us = histogram.getPercentileUs(99);
+                maxUs = histogram.getMaxUs();
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + "{count=" + count + ",mean=" + meanUs + "us,p50=" + p50Us + "us,p95=" + p95Us +
+                    "us,p99=" + p99Us + "us,max=" + maxUs + "us}";
+        }
+    }
+
+    /**
+     * 一个统计周期
+     */
+    public static final class Interval {
+        /**
+         * 相对录像开始的时间
+         */
+        public final long startMs;
+        public final long durationMs;
+        public final long videoFramesIn;
+        public final long videoFramesOut;
+        public final long videoDropped;
+        public final long videoBitrate;
+        public final long audioBitrate;
+        public final long encodeP95Us;
+        public final long encodeMaxUs;
+        public final long muxerWriteMaxUs;
+
+        Interval(long startMs, long durationMs, long videoFramesIn, long videoFramesOut, long videoDropped,
+                 long videoBitrate, long audioBitrate, long encodeP95Us, long encodeMaxUs, long muxerWriteMaxUs) {
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+            this.videoFramesIn = videoFramesIn;
+            this.videoFramesOut = videoFramesOut;
+            this.videoDropped = videoDropped;
+            this.videoBitrate = videoBitrate;
+            this.audioBitrate = audioBitrate;
+            this.encodeP95Us = encodeP95Us;
+            this.encodeMaxUs = encodeMaxUs;
+            this.muxerWriteMaxUs = muxerWriteMaxUs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "{" + startMs + "ms,in=" + videoFramesIn + ",out=" + videoFramesOut + ",dropped=" + videoDropped +
+                    ",bitrate=" + videoBitrate + "/" + audioBitrate + ",encodeP95=" + encodeP95Us +
+                    "us,encodeMax=" + encodeMaxUs + "us,muxerWriteMax=" + muxerWriteMaxUs + "us}";
+        }
+    }
+
+    /**
+     * 录像时长
+     */
+    public final long durationMs;
+    @NonNull
+    public final Track video;
+    @NonNull
+    public final Track audio;
+    /**
+     * 视频编码耗时：编码表面帧时间戳到编码器输出
+     */
+    @NonNull
+    public final Latency encodeLatency;
+    /**
+     * 封装器写入耗时
+     */
+    @NonNull
+    public final Latency muxerWriteLatency;
+    /**
+     * 样本在封装队列中的等待耗时
+     */
+    @NonNull
+    public final Latency muxerQueueLatency;
+    /**
+     * 最近的统计周期，从旧到新
+     */
+    @NonNull
+    public final Interval[] intervals;
+
+    RecordTelemetrySnapshot(long durationMs, @NonNull Track video, @NonNull Track audio,
+                            @NonNull Latency encodeLatency, @NonNull Latency muxerWriteLatency,
+                            @NonNull Latency muxerQueueLatency, @NonNull Interval[] intervals) {
+        this.durationMs = durationMs;
+        this.video = video;
+        this.audio = audio;
+        this.encodeLatency = encodeLatency;
+        this.muxerWriteLatency = muxerWriteLatency;
+        this.muxerQueueLatency = muxerQueueLatency;
+        this.intervals = intervals;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "RecordTelemetry{duration=" + durationMs + "ms," + video + "," + audio + "," + encodeLatency + "," +
+                muxerWriteLatency + "," + muxerQueueLatency +
+                (intervals.length > 0 ? ",last=" + intervals[intervals.length - 1] : "") + "}";
+    }
+}
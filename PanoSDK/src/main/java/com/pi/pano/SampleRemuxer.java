@@ -0,0 +1,299 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 样本转封装。
+ * 将解封装器读出的样本直接写入封装器，样本只读入一次池化的直接内存，不再额外复制，
+ * 复制大文件时也不会反复分配大块堆内存而引起GC。
+ * <p>
+ * 本类不依赖Android，解封装器与封装器通过{@link Source}、{@link Sink}注入，
+ * 可用内存中的样本源在JVM上测试。
+ */
+class SampleRemuxer {
+
+    /**
+     * 样本源，对应MediaExtractor
+     */
+    interface Source {
+        /**
+         * 读取当前样本到buffer的offset处
+         *
+         * @return 样本大小,-1:没有样本
+         */
+        int readSampleData(@NonNull ByteBuffer buffer, int offset);
+
+        long getSampleTime();
+
+        int getSampleFlags();
+
+        /**
+         * 当前样本大小
+         *
+         * @return -1:未知
+         */
+        long getSampleSize();
+
+        /**
+         * 前进到下一个样本
+         *
+         * @return false:没有更多样本
+         */
+        boolean advance();
+    }
+
+    /**
+     * 样本写入目标，对应MediaMuxer
+     */
+    interface Sink {
+        void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                             long presentationTimeUs, int flags);
+    }
+
+    /**
+     * 直接内存缓冲池。
+     * 按容量复用，取出的缓冲容量不小于请求的大小。
+     * 池中缓冲按容量索引，取出时选容量最接近的；超出数量或字节上限时丢弃最小的缓冲，大的缓冲更难重新分配。
+     * 指定最小尺寸级别时，请求的大小向上取整到尺寸级别，大小相近的样本可复用同一缓冲。
+     */
+    static final class BufferPool {
+        private final int mMaxPooled;
+        private final long mMaxPooledBytes;
+        private final int mMinClassSize;
+        private final TreeMap<Integer, ArrayDeque<ByteBuffer>> mBuffers = new TreeMap<>();
+        private int mPooledCount;
+        private long mPooledBytes;
+        private long mAllocateCount;
+        private long mAllocateBytes;
+        private long mReuseCount;
+        private long mDiscardCount;
+
+        /**
+         * @param maxPooled 最多缓存的缓冲数
+         */
+        BufferPool(int maxPooled) {
+            this(maxPooled, Long.MAX_VALUE, 0);
+        }
+
+        /**
+         * @param maxPooled      最多缓存的缓冲数
+         * @param maxPooledBytes 最多缓存的字节数
+         * @param minClassSize   最小尺寸级别，小于等于0:不取整
+         */
+        BufferPool(int maxPooled, long maxPooledBytes, int minClassSize) {
+            mMaxPooled = Math.max(1, maxPooled);
+            mMaxPooledBytes = Math.max(0, maxPooledBytes);
+            mMinClassSize = minClassSize;
+        }
+
+        /**
+         * 尺寸级别，每个2的幂区间等分为4级，取整浪费不超过25%
+         */
+        static int sizeClass(int size, int minClassSize) {
+            if (minClassSize <= 0) {
+                return size;
+            }
+            if (size <= minClassSize) {
+                return minClassSize;
+            }
+            int power = Integer.highestOneBit(size);
+            if (power == size || power < 4) {
+                return size;
+            }
+            int step = power >> 2;
+            long rounded = ((long) size + step - 1) / step * step;
+            return (int) Math.min(rounded, Integer.MAX_VALUE);
+        }
+
+        @NonNull
+        synchronized ByteBuffer acquire(int capacity) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = mBuffers.ceilingEntry(capacity);
+            if (entry != null) {
+                ByteBuffer best = removeLocked(entry);
+                mReuseCount++;
+                best.clear();
+                return best;
+            }
+            int size = sizeClass(capacity, mMinClassSize);
+            mAllocateCount++;
+            mAllocateBytes += size;
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        synchronized void release(@NonNull ByteBuffer buffer) {
+            int capacity = buffer.capacity();
+            while (mPooledCount > 0 && (mPooledCount >= mMaxPooled || mPooledBytes + capacity > mMaxPooledBytes)) {
+                Map.Entry<Integer, ArrayDeque<ByteBuffer>> smallest = mBuffers.firstEntry();
+                if (smallest.getKey() >= capacity) {
+                    break;
+                }
+                removeLocked(smallest);
+                mDiscardCount++;
+            }
+            if (mPooledCount >= mMaxPooled || mPooledBytes + capacity > mMaxPooledBytes) {
+                mDiscardCount++;
+                return;
+            }
+            ArrayDeque<ByteBuffer> buffers = mBuffers.get(capacity);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                mBuffers.put(capacity, buffers);
+            }
+            buffers.add(buffer);
+            mPooledCount++;
+            mPooledBytes += capacity;
+        }
+
+        private ByteBuffer removeLocked(Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry) {
+            ArrayDeque<ByteBuffer> buffers = entry.getValue();
+            ByteBuffer buffer = buffers.poll();
+            if (buffers.isEmpty()) {
+                mBuffers.remove(entry.getKey());
+            }
+            mPooledCount--;
+            mPooledBytes -= buffer.capacity();
+            return buffer;
+        }
+
+        synchronized long getAllocateCount() {
+            return mAllocateCount;
+        }
+
+        synchronized long getAllocateBytes() {
+            return mAllocateBytes;
+        }
+
+        synchronized long getReuseCount() {
+            return mReuseCount;
+        }
+
+        /**
+         * 因超出上限未放回池中的缓冲数
+         */
+        synchronized long getDiscardCount() {
+            return mDiscardCount;
+        }
+
+        synchronized int getPooledCount() {
+            return mPooledCount;
+        }
+
+        /**
+         * 池中缓冲占用的总字节数
+         */
+        synchronized long getPooledBytes() {
+            return mPooledBytes;
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            return "BufferPool{allocate=" + mAllocateCount + "(" + mAllocateBytes / 1024 + "KB)" +
+                    ",reuse=" + mReuseCount + ",discard=" + mDiscardCount +
+                    ",pooled=" + mPooledCount + "(" + mPooledBytes / 1024 + "KB)}";
+        }
+    }
+
+    /**
+     * 复制统计
+     */
+    static final class Stats {
+        long sampleCount;
+        long byteCount;
+        long durationNs;
+        /**
+         * 缓冲不足时的扩容次数
+         */
+        int growCount;
+        long lastTimeUs = -1;
+
+        float getBytesPerSecond() {
+            return durationNs <= 0 ? 0 : byteCount * 1e9f / durationNs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Stats{samples=" + sampleCount + ",bytes=" + byteCount +
+                    ",speed=" + (long) (getBytesPerSecond() / 1024) + "KB/s,grow=" + growCount +
+                    ",last=" + lastTimeUs + "}";
+        }
+    }
+
+    /**
+     * 没有KEY_MAX_INPUT_SIZE时的初始缓冲大小，样本大小已知时按需扩容
+     */
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * 缓冲最大值，与原来一次性分配的大小一致
+     */
+    static final int MAX_BUFFER_SIZE = 15 * 1024 * 1024;
+
+    private final BufferPool mPool;
+
+    SampleRemuxer(@NonNull BufferPool pool) {
+        mPool = pool;
+    }
+
+    @NonNull
+    BufferPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * 复制样本
+     *
+     * @param maxInputSize 轨道的KEY_MAX_INPUT_SIZE,<=0:未知，此时若样本大小也未知(API 28以下)则使用{@link #MAX_BUFFER_SIZE}
+     * @param afterUs      只复制时间戳大于此值的样本,-1:全部
+     * @param endUs        复制到时间戳不小于此值的样本为止,-1:全部
+     */
+    @NonNull
+    Stats copy(int track, @NonNull Source source, @NonNull Sink sink,
+               int maxInputSize, long afterUs, long endUs) {
+        Stats stats = new Stats();
+        long begin = System.nanoTime();
+        int size = maxInputSize > 0 ? Math.min(maxInputSize, MAX_BUFFER_SIZE) : DEFAULT_BUFFER_SIZE;
+        ByteBuffer buffer = mPool.acquire(size);
+        try {
+            do {
+                long sampleTime = source.getSampleTime();
+                if (afterUs != -1 && sampleTime <= afterUs) {
+                    continue;
+                }
+                long sampleSize = source.getSampleSize();
+                if (sampleSize < 0 && maxInputSize <= 0) {
+                    // 样本大小与轨道声明的大小都未知,只能按最大值读取
+                    sampleSize = MAX_BUFFER_SIZE;
+                }
+                if (sampleSize > buffer.capacity()) {
+                    // 实际样本超过轨道声明的大小,换更大的缓冲
+                    mPool.release(buffer);
+                    buffer = mPool.acquire((int) Math.min(MAX_BUFFER_SIZE,
+                            Math.max(sampleSize, buffer.capacity() * 2L)));
+                    stats.growCount++;
+                }
+                buffer.clear();
+                int length = source.readSampleData(buffer, 0);
+                if (length < 0) {
+                    continue;
+                }
+                sink.writeSampleData(track, buffer, 0, length, sampleTime, source.getSampleFlags());
+                stats.sampleCount++;
+                stats.byteCount += length;
+                stats.lastTimeUs = sampleTime;
+                if (endUs != -1 && sampleTime >= endUs) {
+                    break;
+                }
+            } while (source.advance());
+        } finally {
+            mPool.release(buffer);
+            stats.durationNs = System.nanoTime() - begin;
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,508 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 分段录像切换。
+ * 作为封装器接收所有轨道的样本，写入当前分段；录制中在后台预先创建下一个分段的封装器(打开文件、添加轨道、启动)，
+ * 达到大小、时长或剩余空间条件后请求关键帧，在同步轨道(视频)的下一个关键帧处切换到已准备好的分段，
+ * 编码器不停止，每个样本只写入一个分段，不丢失也不重复。
+ * 其他轨道(音频等)的样本按时间戳相对切换关键帧(边界)写入：早于边界的写入旧分段，不早于边界的写入新分段，分段在时间上不重叠。
+ * 等待切换时，时间戳晚于同步轨道已写入样本的其他轨道样本可能属于新分段，复制暂存到边界确定；
+ * 切换后旧分段保持打开，直到其他轨道都写入不早于边界的样本，或同步轨道超过边界{@link #LATE_SAMPLE_WINDOW_US}，
+ * 然后在后台结束写入，之后到达的早于边界的样本丢弃。
+ * <p>
+ * 本类不依赖Android，分段封装器通过{@link Factory}注入。
+ *
+ * @param <F> 轨道格式类型
+ */
+class SegmentRollover<F> implements MuxerCoordinator.Muxer<F> {
+    private static final String TAG = "SegmentRollover";
+
+    /**
+     * 剩余空间检查的间隔(样本时间)
+     */
+    private static final long FREE_SPACE_CHECK_INTERVAL_US = 1000_000;
+    /**
+     * 切换后旧分段等待其他轨道迟到样本的时长(同步轨道的样本时间)
+     */
+    static final long LATE_SAMPLE_WINDOW_US = 1000_000;
+    /**
+     * 等待边界时最多暂存的样本数，超过时最早的直接写入
+     */
+    private static final int MAX_HELD_SAMPLES = 256;
+
+    /**
+     * 一个分段的封装器，对应MediaMuxer
+     */
+    interface Target<F> extends MuxerCoordinator.Muxer<F> {
+        /**
+         * 结束写入并释放
+         */
+        void stop();
+
+        /**
+         * 未写入样本时丢弃，释放并删除文件
+         */
+        void abort();
+    }
+
+    interface Factory<F> {
+        /**
+         * 创建分段封装器，在后台线程调用
+         *
+         * @param index 分段序号，从0开始
+         */
+        @NonNull
+        Target<F> create(int index) throws Exception;
+    }
+
+    enum Reason {
+        SIZE,
+        DURATION,
+        /**
+         * 剩余空间不足，结束当前分段使其可播放
+         */
+        STORAGE,
+    }
+
+    interface Listener {
+        /**
+         * 需要切换分段，请求编码器尽快输出关键帧
+         */
+        void onRequestSyncFrame(@NonNull Reason reason);
+
+        /**
+         * 分段结束写入，在后台线程回调
+         *
+         * @param firstPtsUs 分段第一个样本的时间戳
+         * @param success    false:结束写入出错
+         */
+        void onSegmentFinished(int index, long firstPtsUs, long bytes, boolean success);
+
+        /**
+         * 剩余空间低于设置值，每次录制只回调一次
+         */
+        void onStorageLow(long freeBytes);
+    }
+
+    /**
+     * 切换条件，值小于等于0表示不使用该条件
+     */
+    static final class Policy {
+        long maxBytes;
+        long maxDurationUs;
+        long minFreeBytes;
+        @Nullable
+        LongSupplier freeSpace;
+
+        Policy(long maxBytes, long maxDurationUs, long minFreeBytes, @Nullable LongSupplier freeSpace) {
+            this.maxBytes = maxBytes;
+            this.maxDurationUs = maxDurationUs;
+            this.minFreeBytes = minFreeBytes;
+            this.freeSpace = freeSpace;
+        }
+    }
+
+    private static final class Segment<F> {
+        final int index;
+        final Target<F> target;
+        long firstPtsUs = -1;
+        long bytes;
+        long sampleCount;
+
+        Segment(int index, Target<F> target) {
+            this.index = index;
+            this.target = target;
+        }
+    }
+
+    /**
+     * 等待边界确定的样本，数据已复制
+     */
+    private static final class Held {
+        final int track;
+        final ByteBuffer data;
+        final long presentationTimeUs;
+        final int flags;
+
+        Held(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+
+    private final Factory<F> mFactory;
+    private final Policy mPolicy;
+    private final Listener mListener;
+    private final ExecutorService mExecutor;
+    private final List<F> mFormats = new ArrayList<>();
+    private volatile int mSyncTrack = -1;
+    private boolean mStarted;
+    private Segment<F> mCurrent;
+    /**
+     * 切换后仍接收早于边界样本的旧分段，null:已结束写入
+     */
+    private Segment<F> mPrevious;
+    /**
+     * 当前分段第一个同步样本的时间戳
+     */
+    private long mBoundaryUs = Long.MIN_VALUE;
+    /**
+     * 各轨道切换后是否已写入不早于边界的样本
+     */
+    private boolean[] mBoundaryPassed;
+    private int mTracksBeforeBoundary;
+    /**
+     * 同步轨道已写入样本的最大时间戳
+     */
+    private long mLastSyncPtsUs = -1;
+    private final List<Held> mHeld = new ArrayList<>();
+    private long mLateDropped;
+    private Future<Target<F>> mNext;
+    private int mNextIndex;
+    private Reason mPendingReason;
+    private long mLastFreeSpaceCheckUs = -1;
+    private boolean mStorageLow;
+    private int mSegmentCount;
+    private long mMaxSwitchNs;
+    private volatile Throwable mPrepareError;
+
+    SegmentRollover(@NonNull Factory<F> factory, @NonNull Policy policy, @NonNull Listener listener) {
+        mFactory = factory;
+        mPolicy = policy;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, TAG));
+    }
+
+    /**
+     * 设置同步轨道，在该轨道的关键帧处切换分段；未设置时在任意样本处切换
+     */
+    void setSyncTrack(int track) {
+        mSyncTrack = track;
+    }
+
+    @Override
+    public synchronized int addTrack(@NonNull F format) {
+        if (mStarted) {
+            throw new IllegalStateException("add track after start");
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    /**
+     * 同步创建并启动第一个分段，然后在后台准备下一个分段
+     */
+    @Override
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        Target<F> target;
+        try {
+            target = open(0);
+        } catch (Exception e) {
+            throw new IllegalStateException("create segment 0 failed:" + e.getMessage(), e);
+        }
+        mCurrent = new Segment<>(0, target);
+        mBoundaryPassed = new boolean[mFormats.size()];
+        mSegmentCount = 1;
+        mNextIndex = 1;
+        mStarted = true;
+        prepareNext();
+    }
+
+    private Target<F> open(int index) throws Exception {
+        Target<F> target = mFactory.create(index);
+        try {
+            for (F format : mFormats) {
+                target.addTrack(format);
+            }
+            target.start();
+        } catch (Exception e) {
+            target.abort();
+            throw e;
+        }
+        return target;
+    }
+
+    private void prepareNext() {
+        final int index = mNextIndex;
+        mNext = mExecutor.submit(() -> {
+            try {
+                return open(index);
+            } catch (Exception e) {
+                mPrepareError = e;
+                throw e;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                             long presentationTimeUs, int flags) {
+        if (!mStarted) {
+            throw new IllegalStateException("write before start");
+        }
+        final int syncTrack = mSyncTrack;
+        final boolean isSyncTrack = syncTrack < 0 || track == syncTrack;
+        if (mPendingReason == null && isSyncTrack) {
+            mPendingReason = checkRollover(presentationTimeUs);
+            if (mPendingReason != null) {
+                mListener.onRequestSyncFrame(mPendingReason);
+            }
+        }
+        if (!isSyncTrack) {
+            if (mPendingReason != null && mLastSyncPtsUs >= 0 && presentationTimeUs > mLastSyncPtsUs) {
+                // 可能不早于即将到来的切换关键帧，等待边界确定
+                hold(track, buffer, offset, size, presentationTimeUs, flags);
+            } else {
+                writeOther(track, buffer, offset, size, presentationTimeUs, flags);
+            }
+            return;
+        }
+        final boolean syncSample = syncTrack < 0 || (flags & MuxerWriteBehind.FLAG_KEY_FRAME) != 0;
+        if (mPendingReason != null && syncSample && mCurrent.sampleCount > 0) {
+            switchSegment(presentationTimeUs);
+        }
+        write(mCurrent, track, buffer, offset, size, presentationTimeUs, flags);
+        if (syncTrack >= 0) {
+            mLastSyncPtsUs = Math.max(mLastSyncPtsUs, presentationTimeUs);
+            releaseHeld(false);
+            if (mPrevious != null && presentationTimeUs - mBoundaryUs >= LATE_SAMPLE_WINDOW_US) {
+                finishPrevious();
+            }
+        }
+    }
+
+    private static void write(Segment<?> segment, int track, ByteBuffer buffer, int offset, int size,
+                              long presentationTimeUs, int flags) {
+        segment.target.writeSampleData(track, buffer, offset, size, presentationTimeUs, flags);
+        if (segment.firstPtsUs < 0) {
+            segment.firstPtsUs = presentationTimeUs;
+        }
+        segment.sampleCount++;
+        segment.bytes += size;
+    }
+
+    /**
+     * 按时间戳相对边界写入非同步轨道的样本
+     */
+    private void writeOther(int track, ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+        if (presentationTimeUs < mBoundaryUs) {
+            if (mPrevious != null) {
+                write(mPrevious, track, buffer, offset, size, presentationTimeUs, flags);
+            } else {
+                // 旧分段已结束写入
+                mLateDropped++;
+            }
+            return;
+        }
+        write(mCurrent, track, buffer, offset, size, presentationTimeUs, flags);
+        if (mPrevious != null && !mBoundaryPassed[track]) {
+            mBoundaryPassed[track] = true;
+            if (--mTracksBeforeBoundary == 0) {
+                finishPrevious();
+            }
+        }
+    }
+
+    private void hold(int track, ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+        if (mHeld.size() >= MAX_HELD_SAMPLES) {
+            Held oldest = mHeld.remove(0);
+            writeOther(oldest.track, oldest.data, 0, oldest.data.capacity(), oldest.presentationTimeUs, oldest.flags);
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        ByteBuffer src = buffer.duplicate();
+        src.limit(offset + size);
+        src.position(offset);
+        data.put(src);
+        mHeld.add(new Held(track, data, presentationTimeUs, flags));
+    }
+
+    /**
+     * 写入边界已确定的暂存样本：已切换，或时间戳不晚于同步轨道已写入的样本(早于之后的关键帧)
+     *
+     * @param all 写入全部暂存样本
+     */
+    private void releaseHeld(boolean all) {
+        for (int i = 0; i < mHeld.size(); ) {
+            Held held = mHeld.get(i);
+            if (all || mPendingReason == null || held.presentationTimeUs <= mLastSyncPtsUs) {
+                mHeld.remove(i);
+                writeOther(held.track, held.data, 0, held.data.capacity(), held.presentationTimeUs, held.flags);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void finishPrevious() {
+        final Segment<F> previous = mPrevious;
+        if (previous != null) {
+            mPrevious = null;
+            mExecutor.execute(() -> finishSegment(previous));
+        }
+    }
+
+    @Nullable
+    private Reason checkRollover(long presentationTimeUs) {
+        LongSupplier freeSpace = mPolicy.freeSpace;
+        if (mPolicy.minFreeBytes > 0 && freeSpace != null && !mStorageLow &&
+                (mLastFreeSpaceCheckUs < 0 || presentationTimeUs - mLastFreeSpaceCheckUs >= FREE_SPACE_CHECK_INTERVAL_US)) {
+            mLastFreeSpaceCheckUs = presentationTimeUs;
+            long free = freeSpace.getAsLong();
+            if (free < mPolicy.minFreeBytes) {
+                mStorageLow = true;
+                mListener.onStorageLow(free);
+                return Reason.STORAGE;
+            }
+        }
+        Segment<F> segment = mCurrent;
+        if (mPolicy.maxBytes > 0 && segment.bytes >= mPolicy.maxBytes) {
+            return Reason.SIZE;
+        }
+        if (mPolicy.maxDurationUs > 0 && segment.firstPtsUs >= 0 &&
+                presentationTimeUs - segment.firstPtsUs >= mPolicy.maxDurationUs) {
+            return Reason.DURATION;
+        }
+        return null;
+    }
+
+    /**
+     * 切换到已准备好的分段，未准备好时等待下一个同步样本
+     *
+     * @param boundaryUs 新分段第一个同步样本的时间戳
+     */
+    private void switchSegment(long boundaryUs) {
+        long begin = System.nanoTime();
+        Future<Target<F>> next = mNext;
+        if (!next.isDone()) {
+            return;
+        }
+        Target<F> target;
+        try {
+            target = next.get();
+        } catch (Exception e) {
+            // 准备失败，重新准备，继续写入当前分段
+            e.printStackTrace();
+            prepareNext();
+            return;
+        }
+        finishPrevious();
+        mPrevious = mCurrent;
+        mCurrent = new Segment<>(mNextIndex, target);
+        mSegmentCount++;
+        mNextIndex++;
+        mPendingReason = null;
+        mBoundaryUs = boundaryUs;
+        Arrays.fill(mBoundaryPassed, false);
+        mTracksBeforeBoundary = mBoundaryPassed.length - 1;
+        if (mSyncTrack < 0 || mTracksBeforeBoundary <= 0) {
+            finishPrevious();
+        }
+        prepareNext();
+        mMaxSwitchNs = Math.max(mMaxSwitchNs, System.nanoTime() - begin);
+    }
+
+    private void finishSegment(Segment<F> segment) {
+        boolean success = true;
+        try {
+            segment.target.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        }
+        mListener.onSegmentFinished(segment.index, segment.firstPtsUs, segment.bytes, success);
+    }
+
+    /**
+     * 结束当前分段，丢弃未使用的预备分段，等待后台的结束写入完成
+     */
+    void close() {
+        final Segment<F> current;
+        final Future<Target<F>> next;
+        synchronized (this) {
+            if (!mStarted) {
+                mExecutor.shutdown();
+                return;
+            }
+            releaseHeld(true);
+            finishPrevious();
+            mStarted = false;
+            current = mCurrent;
+            next = mNext;
+            mCurrent = null;
+            mNext = null;
+        }
+        mExecutor.execute(() -> {
+            try {
+                next.get().abort();
+            } catch (Exception ignored) {
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finishSegment(current);
+    }
+
+    /**
+     * 已创建的分段数(含当前分段)
+     */
+    synchronized int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * 下一个分段是否已准备好，切换时不需等待
+     */
+    synchronized boolean isNextSegmentReady() {
+        if (mNext == null || !mNext.isDone()) {
+            return false;
+        }
+        try {
+            mNext.get();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 旧分段结束写入后到达、早于边界而丢弃的样本数
+     */
+    synchronized long getLateDroppedCount() {
+        return mLateDropped;
+    }
+
+    @Nullable
+    Throwable getPrepareError() {
+        return mPrepareError;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return TAG + "{segments=" + mSegmentCount + ",current=" + (mCurrent == null ? -1 : mCurrent.index) +
+                ",pending=" + mPendingReason + ",lateDropped=" + mLateDropped + ",maxSwitch=" + mMaxSwitchNs / 1000 +
+                "us}";
+    }
+}
@@ -5,6 +5,8 @@ import android.media.MediaFormat;
 import androidx.annotation.NonNull;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * 视频拼接参数
@@ -67,6 +69,10 @@ public final class StitchVideoParams {
      * 注意：true:忽略后不保存中间文件，如异常下存在中间文件，开始拼接时，也会删除
      */
     public boolean ignoreTransFile = false;
+    /**
+     * 任务优先级,{@link StitchingUtil#PRIORITY_USER} 或 {@link StitchingUtil#PRIORITY_BACKGROUND}
+     */
+    public int priority = StitchingUtil.PRIORITY_USER;
 
     private StitchVideoParams(@NonNull File srcDir) {
         this.srcDir = srcDir;
@@ -91,6 +97,61 @@ public final class StitchVideoParams {
                 '}';
     }
 
+    /**
+     * 转为键值对,用于写入拼接任务日志
+     */
+    @NonNull
+    Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("srcDir", srcDir.getAbsolutePath());
+        map.put("targetDir", targetDir == null ? "" : targetDir);
+        map.put("srcFps", String.valueOf(srcFps));
+        map.put("width", String.valueOf(width));
+        map.put("height", String.valueOf(height));
+        map.put("fps", String.valueOf(fps));
+        map.put("bitrate", String.valueOf(bitrate));
+        map.put("mime", mime);
+        map.put("useFlow", String.valueOf(useFlow));
+        map.put("lensProtected", String.valueOf(lensProtected));
+        map.put("spatialAudio", String.valueOf(spatialAudio));
+        map.put("finishStitchTimeUs", String.valueOf(finishStitchTimeUs));
+        map.put("ignoreTransFile", String.valueOf(ignoreTransFile));
+        map.put("priority", String.valueOf(priority));
+        return map;
+    }
+
+    /**
+     * 从拼接任务日志的键值对恢复
+     *
+     * @return null:数据不完整
+     */
+    static StitchVideoParams fromMap(@NonNull Map<String, String> map) {
+        String srcDir = map.get("srcDir");
+        if (srcDir == null || srcDir.isEmpty()) {
+            return null;
+        }
+        try {
+            StitchVideoParams params = new StitchVideoParams(new File(srcDir));
+            String targetDir = map.get("targetDir");
+            params.targetDir = targetDir == null || targetDir.isEmpty() ? null : targetDir;
+            params.srcFps = Float.parseFloat(map.get("srcFps"));
+            params.width = Integer.parseInt(map.get("width"));
+            params.height = Integer.parseInt(map.get("height"));
+            params.fps = Integer.parseInt(map.get("fps"));
+            params.bitrate = Integer.parseInt(map.get("bitrate"));
+            params.mime = map.get("mime");
+            params.useFlow = Boolean.parseBoolean(map.get("useFlow"));
+            params.lensProtected = Boolean.parseBoolean(map.get("lensProtected"));
+            params.spatialAudio = Boolean.parseBoolean(map.get("spatialAudio"));
+            params.finishStitchTimeUs = Long.parseLong(map.get("finishStitchTimeUs"));
+            params.ignoreTransFile = Boolean.parseBoolean(map.get("ignoreTransFile"));
+            params.priority = Integer.parseInt(map.get("priority"));
+            return params;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
     /**
      * 参数创建
      */
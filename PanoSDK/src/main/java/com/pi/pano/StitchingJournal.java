@@ -0,0 +1,460 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 拼接任务日志。
+ * 以追加方式记录任务入队、状态变化和最后一个已落盘的关键帧时间戳，进程异常退出后可重放恢复任务队列。
+ * <p>
+ * 文件格式：4字节魔数，之后为连续的记录，每条记录为
+ * [int 负载长度][int crc32][byte 类型][负载]，crc32覆盖类型与负载。
+ * 重放时遇到不完整或校验失败的记录即认为是写入中断，截断该位置之后的内容。
+ * 文件超过阈值后，只保留仍有效的任务重写（压缩）。
+ * <p>
+ * 记录时立即更新内存中的任务，写入文件与fsync在日志自己的线程中进行，调用线程(如UI线程)不等待磁盘；
+ * 写入线程一次写入所有待写的记录后再fsync。需要确认已落盘时调用{@link #flush()}。
+ * <p>
+ * 本类不依赖Android。
+ */
+class StitchingJournal {
+    private static final int MAGIC = 0x50534a31; // "PSJ1"
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 9;
+    /**
+     * 单条记录负载的最大长度，超过则认为记录已损坏
+     */
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    static final byte TYPE_ENQUEUE = 1;
+    static final byte TYPE_STATE = 2;
+    static final byte TYPE_CHECKPOINT = 3;
+    static final byte TYPE_REMOVE = 4;
+
+    /**
+     * 日志中的任务
+     */
+    static final class Entry {
+        @NonNull
+        final String id;
+        @NonNull
+        final Map<String, String> params;
+        @Nullable
+        String state;
+        /**
+         * 最后一个已落盘关键帧的时间戳(us)，-1表示没有
+         */
+        long checkpointUs = -1;
+
+        Entry(@NonNull String id, @NonNull Map<String, String> params) {
+            this.id = id;
+            this.params = params;
+        }
+    }
+
+    private final File mFile;
+    /**
+     * 内存中的任务与待写记录由this保护；文件由mFileLock保护，先持有mFileLock再持有this
+     */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final List<byte[]> mPending = new ArrayList<>();
+    private final Object mFileLock = new Object();
+    private final ThreadPoolExecutor mWriter;
+    private RandomAccessFile mRaf;
+    private boolean mOpened;
+    private long mCompactThreshold = 256 * 1024;
+    /**
+     * 重放时丢弃的损坏字节数
+     */
+    private long mDiscardedBytes;
+    private long mSyncCount;
+
+    StitchingJournal(@NonNull File file) {
+        mFile = file;
+        mWriter = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "StitchingJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 设置触发压缩的文件大小
+     */
+    synchronized void setCompactThreshold(long bytes) {
+        mCompactThreshold = bytes;
+    }
+
+    synchronized long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    /**
+     * 写入线程fsync的次数
+     */
+    synchronized long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * 读取日志并恢复任务，截断末尾不完整的记录。
+     *
+     * @return 按入队顺序排列的有效任务
+     */
+    @NonNull
+    List<Entry> replay() throws IOException {
+        flush();
+        synchronized (mFileLock) {
+            synchronized (this) {
+                return replayLocked();
+            }
+        }
+    }
+
+    private List<Entry> replayLocked() throws IOException {
+        closeQuietly();
+        mOpened = false;
+        mEntries.clear();
+        mPending.clear();
+        mDiscardedBytes = 0;
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        long length = mRaf.length();
+        if (length < HEADER_SIZE || mRaf.readInt() != MAGIC) {
+            mDiscardedBytes = length;
+            mRaf.setLength(0);
+            mRaf.writeInt(MAGIC);
+            mRaf.getFD().sync();
+            mOpened = true;
+            return new ArrayList<>();
+        }
+        CRC32 crc32 = new CRC32();
+        long goodOffset = HEADER_SIZE;
+        byte[] payload = new byte[256];
+        while (goodOffset + RECORD_HEADER_SIZE <= length) {
+            mRaf.seek(goodOffset);
+            int size = mRaf.readInt();
+            int crc = mRaf.readInt();
+            byte type = mRaf.readByte();
+            if (size < 0 || size > MAX_PAYLOAD_SIZE || goodOffset + RECORD_HEADER_SIZE + size > length) {
+                break;
+            }
+            if (payload.length < size) {
+                payload = new byte[size];
+            }
+            mRaf.readFully(payload, 0, size);
+            crc32.reset();
+            crc32.update(type);
+            crc32.update(payload, 0, size);
+            if ((int) crc32.getValue() != crc) {
+                break;
+            }
+            try {
+                apply(type, new DataInputStream(new ByteArrayInputStream(payload, 0, size)));
+            } catch (IOException e) {
+                break;
+            }
+            goodOffset += RECORD_HEADER_SIZE + size;
+        }
+        if (goodOffset < length) {
+            mDiscardedBytes = length - goodOffset;
+            mRaf.setLength(goodOffset);
+            mRaf.getFD().sync();
+        }
+        mRaf.seek(goodOffset);
+        mOpened = true;
+        return new ArrayList<>(mEntries.values());
+    }
+
+    private void apply(byte type, DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        switch (type) {
+            case TYPE_ENQUEUE: {
+                int count = in.readInt();
+                Map<String, String> params = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    params.put(in.readUTF(), in.readUTF());
+                }
+                mEntries.put(id, new Entry(id, params));
+                break;
+            }
+            case TYPE_STATE: {
+                String state = in.readUTF();
+                Entry entry = mEntries.get(id);
+                if (entry != null) {
+                    entry.state = state;
+                }
+                break;
+            }
+            case TYPE_CHECKPOINT: {
+                long timestampUs = in.readLong();
+                Entry entry = mEntries.get(id);
+                if (entry != null) {
+                    entry.checkpointUs = timestampUs;
+                }
+                break;
+            }
+            case TYPE_REMOVE:
+                mEntries.remove(id);
+                break;
+            default:
+                throw new IOException("unknown record type:" + type);
+        }
+    }
+
+    @NonNull
+    synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries.values()));
+    }
+
+    @Nullable
+    synchronized Entry getEntry(@NonNull String id) {
+        return mEntries.get(id);
+    }
+
+    boolean recordEnqueue(@NonNull String id, @NonNull Map<String, String> params) {
+        return append(TYPE_ENQUEUE, id, out -> {
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue() == null ? "" : e.getValue());
+            }
+        });
+    }
+
+    boolean recordState(@NonNull String id, @NonNull String state) {
+        return append(TYPE_STATE, id, out -> out.writeUTF(state));
+    }
+
+    boolean recordCheckpoint(@NonNull String id, long timestampUs) {
+        return append(TYPE_CHECKPOINT, id, out -> out.writeLong(timestampUs));
+    }
+
+    boolean recordRemove(@NonNull String id) {
+        return append(TYPE_REMOVE, id, out -> {
+        });
+    }
+
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * 更新内存中的任务并加入待写记录，不等待写入文件
+     *
+     * @return false:日志未打开或记录编码失败
+     */
+    private boolean append(byte type, String id, PayloadWriter writer) {
+        synchronized (this) {
+            if (!mOpened) {
+                return false;
+            }
+            try {
+                byte[] record = encode(type, id, writer);
+                // 先更新内存状态，与重放逻辑保持一致
+                apply(type, new DataInputStream(new ByteArrayInputStream(record, RECORD_HEADER_SIZE,
+                        record.length - RECORD_HEADER_SIZE)));
+                mPending.add(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        mWriter.execute(this::writePending);
+        return true;
+    }
+
+    /**
+     * 在写入线程中写入所有待写的记录并fsync，超过阈值时压缩
+     */
+    private void writePending() {
+        synchronized (mFileLock) {
+            List<byte[]> records;
+            List<Entry> snapshot = null;
+            synchronized (this) {
+                if (mPending.isEmpty() || mRaf == null) {
+                    return;
+                }
+                records = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            try {
+                mRaf.seek(mRaf.length());
+                for (byte[] record : records) {
+                    mRaf.write(record);
+                }
+                mRaf.getFD().sync();
+                synchronized (this) {
+                    mSyncCount++;
+                    if (mRaf.length() > mCompactThreshold) {
+                        // 快照与已写入的记录一致，之后的记录仍在待写列表中
+                        snapshot = snapshotLocked();
+                    }
+                }
+                if (snapshot != null) {
+                    compactLocked(snapshot);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 等待之前的记录写入文件
+     */
+    void flush() {
+        try {
+            mWriter.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] encode(byte type, String id, PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(id);
+        writer.write(out);
+        out.flush();
+        byte[] payload = bos.toByteArray();
+        CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        crc32.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(type);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * 只保留有效任务重写日志，写入临时文件后重命名替换，保证任一时刻磁盘上都有完整的日志
+     */
+    void compact() throws IOException {
+        flush();
+        synchronized (mFileLock) {
+            List<Entry> snapshot;
+            synchronized (this) {
+                if (mRaf == null) {
+                    return;
+                }
+                // 待写记录已反映在内存中，压缩后不再写入
+                mPending.clear();
+                snapshot = snapshotLocked();
+            }
+            compactLocked(snapshot);
+        }
+    }
+
+    private List<Entry> snapshotLocked() {
+        List<Entry> snapshot = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            Entry copy = new Entry(entry.id, new LinkedHashMap<>(entry.params));
+            copy.state = entry.state;
+            copy.checkpointUs = entry.checkpointUs;
+            snapshot.add(copy);
+        }
+        return snapshot;
+    }
+
+    private void compactLocked(List<Entry> snapshot) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            for (Entry entry : snapshot) {
+                out.write(encode(TYPE_ENQUEUE, entry.id, o -> {
+                    o.writeInt(entry.params.size());
+                    for (Map.Entry<String, String> e : entry.params.entrySet()) {
+                        o.writeUTF(e.getKey());
+                        o.writeUTF(e.getValue() == null ? "" : e.getValue());
+                    }
+                }));
+                if (entry.state != null) {
+                    String state = entry.state;
+                    out.write(encode(TYPE_STATE, entry.id, o -> o.writeUTF(state)));
+                }
+                if (entry.checkpointUs >= 0) {
+                    long checkpointUs = entry.checkpointUs;
+                    out.write(encode(TYPE_CHECKPOINT, entry.id, o -> o.writeLong(checkpointUs)));
+                }
+            }
+            out.getFD().sync();
+        }
+        closeQuietly();
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("rename journal failed:" + tmp);
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.seek(mRaf.length());
+    }
+
+    long length() {
+        synchronized (mFileLock) {
+            try {
+                return mRaf == null ? mFile.length() : mRaf.length();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 写入待写的记录后关闭文件
+     */
+    void close() {
+        flush();
+        synchronized (mFileLock) {
+            synchronized (this) {
+                mOpened = false;
+                mPending.clear();
+            }
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (mRaf != null) {
+            try {
+                FileChannel channel = mRaf.getChannel();
+                if (channel.isOpen()) {
+                    channel.force(true);
+                }
+                mRaf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mRaf = null;
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 视频拼接流水线。
+ * 解封装(extract)、解码(decode)、渲染(render)、编码(encode)为独立的阶段，
+ * 每个阶段在自己的线程中运行，阶段之间通过有界队列连接，队列满时上游阻塞（背压）。
+ * 解封装最多领先解码{@link Config#extractAhead}帧；native解封装与解码共用同一读取位置时设为0，
+ * 下一帧在上一帧解码后才解封装，此时解封装、解码仍与渲染、编码并行。
+ * 停止条件（结束时间、出错）应在解封装阶段判断，之后的帧不会进入流水线。
+ * 解码与渲染之间另有"渲染窗口"限制同时等待渲染的帧数，
+ * 因为解码输出到SurfaceTexture的帧在被消费前不能再提交新帧，否则会丢帧。
+ * <p>
+ * 本类不依赖Android，各阶段通过接口注入。
+ */
+class StitchingPipeline {
+    private static final long WAIT_STEP_MS = 20;
+
+    /**
+     * 流水线中流转的帧信息
+     */
+    static final class Frame {
+        /**
+         * 帧序号,从0开始
+         */
+        long index;
+        /**
+         * 帧时间戳,单位微秒
+         */
+        long timestampUs;
+        /**
+         * 该帧是否需要渲染、编码
+         */
+        boolean render;
+        /**
+         * 流结束标记
+         */
+        boolean eos;
+
+        void reset() {
+            index = 0;
+            timestampUs = -1;
+            render = false;
+            eos = false;
+        }
+    }
+
+    /**
+     * 解封装阶段
+     */
+    interface Extractor {
+        /**
+         * 读取下一帧
+         *
+         * @param frame 填充帧信息
+         * @return false:没有更多帧或需要停止，已进入流水线的帧继续处理完
+         */
+        boolean extract(@NonNull Frame frame);
+    }
+
+    /**
+     * 解码阶段，按解封装的顺序调用
+     */
+    interface Decoder {
+        void decode(@NonNull Frame frame);
+    }
+
+    /**
+     * 渲染阶段
+     */
+    interface Renderer {
+        /**
+         * 等待帧渲染完成
+         *
+         * @param timeoutMs 超时时间
+         * @return false:等待超时
+         */
+        boolean awaitRendered(@NonNull Frame frame, long timeoutMs) throws InterruptedException;
+    }
+
+    /**
+     * 编码阶段
+     */
+    interface Encoder {
+        /**
+         * 帧已渲染到编码器，取出已完成的编码输出
+         *
+         * @return false:结束流水线
+         */
+        boolean encode(@NonNull Frame frame);
+
+        /**
+         * 等待下一帧时定期调用，继续取出编码输出，避免编码器输出占满后渲染阻塞
+         *
+         * @return false:结束流水线
+         */
+        default boolean idle() {
+            return true;
+        }
+    }
+
+    /**
+     * 流水线配置
+     */
+    static final class Config {
+        /**
+         * 解封装可领先解码的帧数，0:逐帧交替
+         */
+        int extractAhead = 0;
+        /**
+         * 已解码等待渲染的最大帧数
+         */
+        int renderWindow = 1;
+        /**
+         * 渲染后等待编码的队列长度
+         */
+        int encodeQueueSize = 4;
+        /**
+         * 单帧渲染超时时间
+         */
+        long renderTimeoutMs = 1000;
+    }
+
+    /**
+     * 单个阶段的统计
+     */
+    static final class StageStats {
+        final String name;
+        volatile long frameCount;
+        /**
+         * 处理耗时(ns)
+         */
+        volatile long busyNs;
+        /**
+         * 因上下游阻塞的等待耗时(ns)
+         */
+        volatile long blockedNs;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + "{count=" + frameCount +
+                    ",busy=" + busyNs / 1000_000 + "ms" +
+                    ",blocked=" + blockedNs / 1000_000 + "ms}";
+        }
+    }
+
+    private final Config mConfig;
+    private final Extractor mExtractor;
+    private final Decoder mDecoder;
+    private final Renderer mRenderer;
+    private final Encoder mEncoder;
+
+    private final BlockingQueue<Frame> mFreeQueue;
+    private final BlockingQueue<Frame> mDecodeQueue;
+    private final BlockingQueue<Frame> mRenderQueue;
+    private final BlockingQueue<Frame> mEncodeQueue;
+    private final Semaphore mRenderWindow;
+    /**
+     * 解封装许可，解码一帧后归还
+     */
+    private final Semaphore mExtractPermits;
+
+    final StageStats mExtractStats = new StageStats("extract");
+    final StageStats mDecodeStats = new StageStats("decode");
+    final StageStats mRenderStats = new StageStats("render");
+    final StageStats mEncodeStats = new StageStats("encode");
+
+    private volatile boolean mCancelled;
+    private volatile boolean mEndOfStream;
+    private volatile int mRenderTimeoutCount;
+    private volatile Throwable mError;
+    private long mStartNs;
+    private long mEndNs;
+
+    StitchingPipeline(@NonNull Config config, @NonNull Extractor extractor, @NonNull Decoder decoder,
+                      @NonNull Renderer renderer, @NonNull Encoder encoder) {
+        mConfig = config;
+        mExtractor = extractor;
+        mDecoder = decoder;
+        mRenderer = renderer;
+        mEncoder = encoder;
+        int extractAhead = Math.max(0, config.extractAhead);
+        int renderWindow = Math.max(1, config.renderWindow);
+        int encodeSize = Math.max(1, config.encodeQueueSize);
+        // 帧对象总数 = 各队列容量 + 每个阶段手中的一帧
+        int frameCount = extractAhead + 1 + renderWindow + 1 + encodeSize + 4;
+        mFreeQueue = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            mFreeQueue.add(new Frame());
+        }
+        mDecodeQueue = new ArrayBlockingQueue<>(extractAhead + 1);
+        mRenderQueue = new ArrayBlockingQueue<>(renderWindow + 1);
+        mEncodeQueue = new ArrayBlockingQueue<>(encodeSize);
+        mRenderWindow = new Semaphore(renderWindow);
+        mExtractPermits = new Semaphore(extractAhead + 1);
+    }
+
+    /**
+     * 运行流水线，阻塞至所有阶段结束
+     */
+    void run() {
+        mStartNs = System.nanoTime();
+        Thread[] threads = new Thread[]{
+                new Thread(this::extractLoop, "Stitch-extract"),
+                new Thread(this::decodeLoop, "Stitch-decode"),
+                new Thread(this::renderLoop, "Stitch-render"),
+                new Thread(this::encodeLoop, "Stitch-encode")
+        };
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                cancel();
+                for (Thread t : threads) {
+                    t.interrupt();
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mEndNs = System.nanoTime();
+    }
+
+    /**
+     * 取消流水线，各阶段在处理完手中的帧后退出
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 所有帧都已处理完成
+     */
+    boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    Throwable getError() {
+        return mError;
+    }
+
+    int getRenderTimeoutCount() {
+        return mRenderTimeoutCount;
+    }
+
+    /**
+     * 编码阶段的吞吐量(帧/秒)
+     */
+    float getThroughput() {
+        long end = mEndNs > 0 ? mEndNs : System.nanoTime();
+        long duration = end - mStartNs;
+        if (duration <= 0) {
+            return 0;
+        }
+        return mEncodeStats.frameCount * 1e9f / duration;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "StitchingPipeline{fps=" + getThroughput() +
+                "," + mExtractStats + "," + mDecodeStats + "," + mRenderStats + "," + mEncodeStats +
+                ",renderTimeout=" + mRenderTimeoutCount + "}";
+    }
+
+    /**
+     * 解封装，领先解码的帧数受解封装许可限制
+     */
+    private void extractLoop() {
+        long index = 0;
+        try {
+            while (!mCancelled) {
+                long begin = System.nanoTime();
+                boolean permitted = mExtractPermits.tryAcquire(WAIT_STEP_MS, TimeUnit.MILLISECONDS);
+                mExtractStats.blockedNs += System.nanoTime() - begin;
+                if (!permitted) {
+                    continue;
+                }
+                begin = System.nanoTime();
+                Frame frame = mFreeQueue.poll(WAIT_STEP_MS, TimeUnit.MILLISECONDS);
+                mExtractStats.blockedNs += System.nanoTime() - begin;
+                if (frame == null) {
+                    // 下游未消费完,继续等待
+                    mExtractPermits.release();
+                    continue;
+                }
+                frame.reset();
+                frame.index = index;
+                begin = System.nanoTime();
+                boolean hasFrame = mExtractor.extract(frame);
+                mExtractStats.busyNs += System.nanoTime() - begin;
+                if (!hasFrame) {
+                    frame.eos = true;
+                    put(mDecodeQueue, frame, mExtractStats);
+                    return;
+                }
+                mExtractStats.frameCount++;
+                index++;
+                put(mDecodeQueue, frame, mExtractStats);
+            }
+        } catch (Throwable e) {
+            onError(e);
+        }
+        putEos(mDecodeQueue);
+    }
+
+    private void decodeLoop() {
+        try {
+            while (true) {
+                Frame frame = take(mDecodeQueue, mDecodeStats);
+                if (frame.eos || mCancelled) {
+                    frame.eos = true;
+                    put(mRenderQueue, frame, mDecodeStats);
+                    return;
+                }
+                if (frame.render) {
+                    // 渲染窗口已满时等待，等渲染阶段释放
+                    long begin = System.nanoTime();
+                    while (!mRenderWindow.tryAcquire(WAIT_STEP_MS, TimeUnit.MILLISECONDS)) {
+                        if (mCancelled) {
+                            break;
+                        }
+                    }
+                    mDecodeStats.blockedNs += System.nanoTime() - begin;
+                    if (mCancelled) {
+                        frame.eos = true;
+                        frame.render = false;
+                        put(mRenderQueue, frame, mDecodeStats);
+                        return;
+                    }
+                }
+                long begin = System.nanoTime();
+                try {
+                    mDecoder.decode(frame);
+                } finally {
+                    mExtractPermits.release();
+                }
+                mDecodeStats.busyNs += System.nanoTime() - begin;
+                mDecodeStats.frameCount++;
+                put(mRenderQueue, frame, mDecodeStats);
+            }
+        } catch (Throwable e) {
+            onError(e);
+            putEos(mRenderQueue);
+        }
+    }
+
+    private void renderLoop() {
+        try {
+            while (true) {
+                Frame frame = take(mRenderQueue, mRenderStats);
+                if (frame.eos || mCancelled) {
+                    if (frame.render && !frame.eos) {
+                        mRenderWindow.release();
+                    }
+                    frame.eos = true;
+                    put(mEncodeQueue, frame, mRenderStats);
+                    return;
+                }
+                if (frame.render) {
+                    long begin = System.nanoTime();
+                    boolean rendered;
+                    try {
+                        rendered = mRenderer.awaitRendered(frame, mConfig.renderTimeoutMs);
+                    } finally {
+                        mRenderWindow.release();
+                    }
+                    mRenderStats.busyNs += System.nanoTime() - begin;
+                    if (!rendered) {
+                        mRenderTimeoutCount++;
+                    }
+                    mRenderStats.frameCount++;
+                }
+                put(mEncodeQueue, frame, mRenderStats);
+            }
+        } catch (Throwable e) {
+            onError(e);
+            putEos(mEncodeQueue);
+        }
+    }
+
+    private void encodeLoop() {
+        try {
+            while (true) {
+                long begin = System.nanoTime();
+                Frame frame = mEncodeQueue.poll(WAIT_STEP_MS, TimeUnit.MILLISECONDS);
+                mEncodeStats.blockedNs += System.nanoTime() - begin;
+                if (frame == null) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    begin = System.nanoTime();
+                    boolean goOn = mEncoder.idle();
+                    mEncodeStats.busyNs += System.nanoTime() - begin;
+                    if (!goOn) {
+                        cancel();
+                    }
+                    continue;
+                }
+                if (frame.eos || mCancelled) {
+                    mEndOfStream = frame.eos && !mCancelled;
+                    return;
+                }
+                begin = System.nanoTime();
+                boolean goOn = mEncoder.encode(frame);
+                mEncodeStats.busyNs += System.nanoTime() - begin;
+                mEncodeStats.frameCount++;
+                mFreeQueue.offer(frame);
+                if (!goOn) {
+                    cancel();
+                }
+            }
+        } catch (Throwable e) {
+            onError(e);
+        }
+    }
+
+    private void onError(Throwable e) {
+        if (mError == null) {
+            mError = e;
+        }
+        cancel();
+    }
+
+    private static Frame take(BlockingQueue<Frame> queue, StageStats stats) throws InterruptedException {
+        long begin = System.nanoTime();
+        Frame frame = queue.take();
+        stats.blockedNs += System.nanoTime() - begin;
+        return frame;
+    }
+
+    /**
+     * 放入下游队列，队列满时阻塞；流水线取消后放弃等待，避免下游已退出时卡死
+     */
+    private void put(BlockingQueue<Frame> queue, Frame frame, StageStats stats) throws InterruptedException {
+        long begin = System.nanoTime();
+        while (!queue.offer(frame, WAIT_STEP_MS, TimeUnit.MILLISECONDS)) {
+            if (mCancelled) {
+                break;
+            }
+        }
+        stats.blockedNs += System.nanoTime() - begin;
+    }
+
+    /**
+     * 出错时向下游投递结束标记，保证下游阶段能退出
+     */
+    private void putEos(BlockingQueue<Frame> queue) {
+        Frame frame = new Frame();
+        frame.reset();
+        frame.eos = true;
+        try {
+            queue.offer(frame, WAIT_STEP_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignore) {
+        }
+    }
+}
@@ -5,14 +5,18 @@ import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+
 import com.pi.pano.annotation.PiFileStitchFlag;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -21,6 +25,8 @@ class StitchingRecorder {
 
     public static final String FILE_STITCHING = "stitching.mp4";
     public static final String FILE_STITCHING_PAUSE = "stitching_pause.mp4";
+    static final String FILE_STITCHING_SEGMENTS = "stitching_segments.txt";
+    static final String FILE_STITCHING_SEGMENT_PREFIX = "stitching_seg_";
 
     public enum RecordState {
         RECORD_STATE_RUN,
@@ -36,57 +42,147 @@ class StitchingRecorder {
     private volatile RecordState mRecordState = RecordState.RECORD_STATE_RUN;
     private final Semaphore mSemaphore = new Semaphore(1);
     private volatile long mPauseTimeStamp = -1;
+    /**
+     * 最后写入的视频帧时间戳
+     */
+    private volatile long mLastVideoTimeStamp = -1;
+    /**
+     * 已提交的拼接分段
+     */
+    private StitchingSegments mSegments;
+    /**
+     * 本次拼接写入的分段
+     */
+    private StitchingSegments.Segment mSegment;
+    /**
+     * 编码输出格式，断点分段切换后新的封装器使用
+     */
+    private MediaFormat mVideoFormat;
+    /**
+     * 断点分段间隔，0:只在暂停时提交
+     */
+    private long mCheckpointIntervalUs;
+    private CheckpointListener mCheckpointListener;
+
+    interface CheckpointListener {
+        /**
+         * 分段已提交，在编码线程回调
+         *
+         * @param timestampUs 已落盘的最后一帧时间戳
+         */
+        void onCheckpoint(long timestampUs);
+    }
 
     StitchVideoParams params;
     private final AtomicBoolean mEndStitchByError = new AtomicBoolean();
+    /**
+     * 所有拼接任务共用的转封装缓冲池
+     */
+    private static final SampleRemuxer sRemuxer = new SampleRemuxer(new SampleRemuxer.BufferPool(4));
 
-    private final Thread mThread = new Thread() {
-        private int mFrameCount = 1;
-        private final MediaCodec.BufferInfo mEncodeBufferInfo = new MediaCodec.BufferInfo();
-
-        private void encodeOneFrame() {
-            while (true) {
-                int mOutputIndex = mVideoEncoder.dequeueOutputBuffer(mEncodeBufferInfo, 2000_000L);
-                if (mOutputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    Log.i(TAG, "Encoder INFO_TRY_AGAIN_LATER");
-                    break;
-                } else if (mOutputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (mVideoEncoderTrack == -1) {
-                        try {
-                            MediaFormat format = mVideoEncoder.getOutputFormat();
-                            mVideoEncoderTrack = mMediaMuxer.addTrack(format);
-                            mMediaMuxer.start();
-                        } catch (IllegalStateException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    Log.i(TAG, "Encoder INFO_OUTPUT_FORMAT_CHANGED");
-                } else if (mOutputIndex >= 0) {
-                    ByteBuffer buffer = mVideoEncoder.getOutputBuffer(mOutputIndex);
-                    if (mPauseTimeStamp == -1 || mEncodeBufferInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
-                        mMediaMuxer.writeSampleData(mVideoEncoderTrack, buffer, mEncodeBufferInfo);
-                    }
-                    mVideoEncoder.releaseOutputBuffer(mOutputIndex, false);
-                    if (mEncodeBufferInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
-                        mFrameCount++;
+    /**
+     * 拼接中取编码输出与停止后的收尾互斥
+     */
+    private final Object mDrainLock = new Object();
+    private final CountDownLatch mStopSignal = new CountDownLatch(1);
+    private int mFrameCount = 1;
+    private final MediaCodec.BufferInfo mEncodeBufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * 取出编码输出并写入封装器，直到没有输出
+     *
+     * @param timeoutUs 等待编码输出的超时时间
+     */
+    private void encodeOneFrame(long timeoutUs) {
+        while (true) {
+            int mOutputIndex = mVideoEncoder.dequeueOutputBuffer(mEncodeBufferInfo, timeoutUs);
+            if (mOutputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (mOutputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mVideoEncoderTrack == -1) {
+                    try {
+                        MediaFormat format = mVideoEncoder.getOutputFormat();
+                        mVideoFormat = format;
+                        mVideoEncoderTrack = mMediaMuxer.addTrack(format);
+                        mMediaMuxer.start();
+                    } catch (IllegalStateException e) {
+                        e.printStackTrace();
                     }
                 }
+                Log.i(TAG, "Encoder INFO_OUTPUT_FORMAT_CHANGED");
+            } else if (mOutputIndex >= 0) {
+                ByteBuffer buffer = mVideoEncoder.getOutputBuffer(mOutputIndex);
+                if ((mEncodeBufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 &&
+                        mSegment.shouldCheckpoint(mEncodeBufferInfo.presentationTimeUs, mCheckpointIntervalUs)) {
+                    commitCheckpoint();
+                }
+                //每个分段都是独立的文件,编码配置帧也要写入
+                mMediaMuxer.writeSampleData(mVideoEncoderTrack, buffer, mEncodeBufferInfo);
+                if ((mEncodeBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mLastVideoTimeStamp = mEncodeBufferInfo.presentationTimeUs;
+                    mSegment.onFrame(mEncodeBufferInfo.presentationTimeUs);
+                }
+                mVideoEncoder.releaseOutputBuffer(mOutputIndex, false);
+                if (mEncodeBufferInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
+                    mFrameCount++;
+                }
             }
         }
+    }
 
+    /**
+     * 提交当前分段作为断点，之后的帧写入新的分段
+     */
+    private void commitCheckpoint() {
+        if (mAudioEncoderTrack != -1) {
+            //第一个分段有音频track,写一点数据,不然mediamuxer stop会报错;完成时音频从0.mp4复制
+            MediaCodec.BufferInfo muxerBufferInfo = new MediaCodec.BufferInfo();
+            muxerBufferInfo.set(0, 1, 1, 0);
+            mMediaMuxer.writeSampleData(mAudioEncoderTrack, ByteBuffer.allocate(16), muxerBufferInfo);
+            mAudioEncoderTrack = -1;
+        }
+        mMediaMuxer.stop();
+        mMediaMuxer.release();
+        if (!mSegments.commit(mSegment)) {
+            mSegments.discard(mSegment);
+            throw new IllegalStateException("commit checkpoint segment error:" + mSegment);
+        }
+        Log.i(TAG, "checkpoint segment: " + mSegment);
+        if (mCheckpointListener != null) {
+            mCheckpointListener.onCheckpoint(mSegment.lastUs);
+        }
+        mSegment = mSegments.newSegment();
+        try {
+            mMediaMuxer = new MediaMuxer(mSegment.file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new IllegalStateException("create checkpoint segment error:" + mSegment, e);
+        }
+        mVideoEncoderTrack = mMediaMuxer.addTrack(mVideoFormat);
+        mMediaMuxer.start();
+    }
+
+    private final Thread mThread = new Thread() {
         @Override
         public void run() {
-            mEndStitchByError.set(false);
+            // 拼接中由流水线的编码阶段取编码输出,这里等待停止后取出剩余的输出
             try {
-                while (mRecordState == RecordState.RECORD_STATE_RUN) {
-                    encodeOneFrame();
-                }
-                encodeOneFrame();
-            } catch (IllegalStateException e) {
+                mStopSignal.await();
+            } catch (InterruptedException e) {
                 e.printStackTrace();
-                Log.e(TAG, "encodeOneFrame " + params.srcDir + ",error:" + e.getMessage());
-                mEndStitchByError.set(true);
-                mRecordState = RecordState.RECORD_STATE_END;
+            }
+            synchronized (mDrainLock) {
+                try {
+                    if (!mEndStitchByError.get()) {
+                        encodeOneFrame(2000_000L);
+                    }
+                } catch (IllegalStateException e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "encodeOneFrame " + params.srcDir + ",error:" + e.getMessage());
+                    mEndStitchByError.set(true);
+                }
+                if (mEndStitchByError.get()) {
+                    mRecordState = RecordState.RECORD_STATE_END;
+                }
             }
             try {
                 Log.d(TAG, "VideoEncoder release:" + mVideoEncoder);
@@ -117,23 +213,26 @@ class StitchingRecorder {
                 e.printStackTrace();
             }
             if (mEndStitchByError.get()) {
+                //出错的分段可能不完整,丢弃,之前已提交的分段保留
+                mSegments.discard(mSegment);
                 Log.w(TAG, "encoder finish : endStitchByError");
                 return;
             }
-            //如果是暂停而不是完成,那么要重命名stitching,mp4为stitching_pause.mp4
-            //如果是完成状态,那么插入全景信息
-            File from = new File(StitchingUtil.stitchingPath(params.srcDir, params.targetDir, false));
             if (mRecordState == RecordState.RECORD_STATE_PAUSE) {
-                boolean success;
+                //暂停只需提交本次的分段,不再复制之前拼接的内容
                 if (!params.ignoreTransFile) {
-                    File to = new File(StitchingUtil.stitchingPath(params.srcDir, params.targetDir, true));
-                    success = from.renameTo(to);
-                    Log.w(TAG, "stitch end save pause file :" + to + ",," + success);
+                    boolean success = mSegments.commit(mSegment);
+                    if (!success) {
+                        mSegments.discard(mSegment);
+                    }
+                    Log.w(TAG, "stitch end save pause segment :" + mSegment + ",," + success);
                 } else {
-                    success = from.delete();
-                    Log.w(TAG, "stitch end ignoreTransFile del:" + from + ",," + success);
+                    mSegments.discard(mSegment);
+                    boolean success = mSegments.deleteAll();
+                    Log.w(TAG, "stitch end ignoreTransFile del segments,," + success);
                 }
             } else {
+                //如果是完成状态,那么合并分段并插入全景信息
                 File to = new File(params.targetDir,
                         Utils.getVideoUnstitchFileSimpleName(params.srcDir) + PiFileStitchFlag.stitch + ".mp4");
                 if (!to.getParentFile().exists()) {
@@ -143,8 +242,25 @@ class StitchingRecorder {
                 if (to.exists()) {
                     to.delete();
                 }
+                File from;
+                if (mSegments.isEmpty()) {
+                    //没有暂停过,本次的分段已包含音频,直接使用
+                    from = mSegment.file;
+                } else {
+                    if (!mSegments.commit(mSegment)) {
+                        mSegments.discard(mSegment);
+                    }
+                    from = new File(StitchingUtil.stitchingPath(params.srcDir, params.targetDir, false));
+                    if (!concatSegments(from)) {
+                        //合并失败时保留分段,下次拼接可继续合并
+                        Log.e(TAG, "stitch finish concat segments error");
+                        from.delete();
+                        return;
+                    }
+                }
                 boolean result = from.renameTo(to);
                 Log.d(TAG, "stitch finish renameTo: " + result + "," + from + ",to:" + to);
+                mSegments.deleteAll();
                 PiPano.spatialMediaImpl(to.getPath(), true, params.spatialAudio,
                         StitchingUtil.mFirmware, StitchingUtil.mArtist, 1.0f);
             }
@@ -174,22 +290,75 @@ class StitchingRecorder {
     }
 
     private long copyByteBuffer(int track, MediaExtractor extractor, long endTime) {
-        long lastTimeStamp = -1;
-        MediaCodec.BufferInfo mMuxerBufferInfo = new MediaCodec.BufferInfo();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(15 * 1024 * 1024);
-        do {
-            int length = extractor.readSampleData(byteBuffer, 0);
-            if (length != -1) {
-                lastTimeStamp = extractor.getSampleTime();
-                mMuxerBufferInfo.set(0, length, extractor.getSampleTime(), extractor.getSampleFlags());
-                mMediaMuxer.writeSampleData(track, byteBuffer, mMuxerBufferInfo);
-                if (endTime != -1 && lastTimeStamp >= endTime) {
-                    return lastTimeStamp;
-                }
+        return copyByteBuffer(track, extractor, -1, endTime);
+    }
+
+    /**
+     * @param afterUs 只复制时间戳大于此值的帧,-1:全部
+     * @param endTime 复制到此时间戳为止,-1:全部
+     */
+    private long copyByteBuffer(int track, MediaExtractor extractor, long afterUs, long endTime) {
+        int maxInputSize = -1;
+        int trackIndex = extractor.getSampleTrackIndex();
+        if (trackIndex >= 0) {
+            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                maxInputSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
             }
         }
-        while (extractor.advance());
-        return lastTimeStamp;
+        SampleRemuxer.Stats stats = sRemuxer.copy(track, new ExtractorSource(extractor),
+                new MuxerSink(mMediaMuxer), maxInputSize, afterUs, endTime);
+        Log.d(TAG, "copy track " + track + ",maxInputSize:" + maxInputSize + "," + stats + "," + sRemuxer.getPool());
+        return stats.lastTimeUs;
+    }
+
+    private static final class ExtractorSource implements SampleRemuxer.Source {
+        private final MediaExtractor mExtractor;
+
+        ExtractorSource(MediaExtractor extractor) {
+            mExtractor = extractor;
+        }
+
+        @Override
+        public int readSampleData(@NonNull ByteBuffer buffer, int offset) {
+            return mExtractor.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mExtractor.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mExtractor.getSampleFlags();
+        }
+
+        @Override
+        public long getSampleSize() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? mExtractor.getSampleSize() : -1;
+        }
+
+        @Override
+        public boolean advance() {
+            return mExtractor.advance();
+        }
+    }
+
+    private static final class MuxerSink implements SampleRemuxer.Sink {
+        private final MediaMuxer mMuxer;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+        MuxerSink(MediaMuxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            mBufferInfo.set(offset, size, presentationTimeUs, flags);
+            mMuxer.writeSampleData(track, buffer, mBufferInfo);
+        }
     }
 
     Surface init(StitchVideoParams params) {
@@ -197,16 +366,31 @@ class StitchingRecorder {
         try {
             this.params = params;
             File srcDir = params.srcDir;
-            mMediaMuxer = new MediaMuxer(StitchingUtil.stitchingPath(srcDir, params.targetDir, false), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            //添加音频track
-            mAudioExtractor = new MediaExtractor();
-            mAudioEncoderTrack = addTrack(mAudioExtractor, srcDir + "/0.mp4", "audio");
-            if (mAudioEncoderTrack == -1) {
-                Log.e(TAG, "addAudioTrack has no audio");
+            mSegments = StitchingUtil.stitchingSegments(srcDir, params.targetDir);
+            mSegments.load();
+            migratePauseVideo(srcDir, params.targetDir);
+            mPauseTimeStamp = mSegments.getResumeTimestampUs();
+            mLastVideoTimeStamp = mPauseTimeStamp;
+            mSegment = mSegments.newSegment();
+            mMediaMuxer = new MediaMuxer(mSegment.file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            // 不保留中间文件时不需要断点
+            mCheckpointIntervalUs = params.ignoreTransFile ? 0 :
+                    SystemPropertiesProxy.getLong(Config.PERSIST_DEV_STITCH_CHECKPOINT_INTERVAL,
+                            Config.DEFAULT_STITCH_CHECKPOINT_INTERVAL) * 1000;
+            mVideoEncoderTrack = -1;
+            mAudioEncoderTrack = -1;
+            if (mSegments.isEmpty()) {
+                //第一个分段添加音频track,没有暂停过时可直接作为最终文件
+                mAudioExtractor = new MediaExtractor();
+                mAudioEncoderTrack = addTrack(mAudioExtractor, srcDir + "/0.mp4", "audio");
+                if (mAudioEncoderTrack == -1) {
+                    Log.e(TAG, "addAudioTrack has no audio");
+                }
             }
-            Log.d(TAG, "init,mime:" + params.mime + ",encode," + mVideoEncoder);
-            copyPauseVideo(srcDir, params.targetDir);
-            //初始化编码器
+            Log.d(TAG, "init,mime:" + params.mime + ",encode," + mVideoEncoder +
+                    ",segment:" + mSegment + ",pauseTimeStamp:" + mPauseTimeStamp);
+            //初始化编码器，先释放预先创建的录像编码器，硬件编码器实例有限
+            MediaRecorderUtil.clearVideoEncoderPool();
             mVideoEncoder = MediaCodec.createEncoderByType(params.mime);
             videoEncodeFormat = MediaFormat.createVideoFormat(params.mime, params.width, params.height);
             videoEncodeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -258,18 +442,138 @@ class StitchingRecorder {
         return null;
     }
 
-    private void copyPauseVideo(File srcFile, String targetDir) {
-        //添加之前拼接一半的视频track,如果有的话
-        MediaExtractor videoExtractor = new MediaExtractor();
+    /**
+     * 旧版本暂停时保存的是完整的stitching_pause.mp4,转为第一个分段
+     */
+    private void migratePauseVideo(File srcFile, String targetDir) {
         File pauseFile = new File(StitchingUtil.stitchingPath(srcFile, targetDir, true));
-        mVideoEncoderTrack = addTrack(videoExtractor, pauseFile.getAbsolutePath(), "video");
-        if (mVideoEncoderTrack != -1) {
-            mMediaMuxer.start();
-            mPauseTimeStamp = copyByteBuffer(mVideoEncoderTrack, videoExtractor, params.finishStitchTimeUs);
-            Log.i(TAG, "Add pause video last time stamp is: " + mPauseTimeStamp);
+        if (!pauseFile.exists()) {
+            return;
+        }
+        if (!mSegments.isEmpty()) {
+            pauseFile.delete();
+            return;
+        }
+        StitchingSegments.Segment segment = mSegments.newSegment();
+        MediaExtractor videoExtractor = new MediaExtractor();
+        try {
+            if (!pauseFile.renameTo(segment.file)) {
+                return;
+            }
+            videoExtractor.setDataSource(segment.file.getAbsolutePath());
+            for (int i = 0; i < videoExtractor.getTrackCount(); i++) {
+                String mime = videoExtractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.contains("video")) {
+                    videoExtractor.selectTrack(i);
+                    break;
+                }
+            }
+            do {
+                long sampleTime = videoExtractor.getSampleTime();
+                if (sampleTime < 0 || (params.finishStitchTimeUs != -1 && sampleTime > params.finishStitchTimeUs)) {
+                    break;
+                }
+                segment.onFrame(sampleTime);
+            } while (videoExtractor.advance());
+            Log.i(TAG, "migrate pause video: " + segment);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
             videoExtractor.release();
         }
-        pauseFile.delete();
+        if (!mSegments.commit(segment)) {
+            mSegments.discard(segment);
+        }
+    }
+
+    /**
+     * 将所有分段的视频和0.mp4中的音频合并到一个文件
+     *
+     * @return 是否合并成功
+     */
+    private boolean concatSegments(File output) {
+        StitchingSegments.ConcatPlan plan = StitchingSegments.plan(mSegments.getSegments(),
+                1000_000L / Math.max(1, params.fps), 3);
+        Log.i(TAG, "concat segments: " + plan);
+        if (plan.steps.isEmpty()) {
+            return false;
+        }
+        if (!plan.isContinuous()) {
+            Log.w(TAG, "concat segments not continuous: " + plan);
+        }
+        if (output.exists()) {
+            output.delete();
+        }
+        MediaExtractor audioExtractor = new MediaExtractor();
+        try {
+            mMediaMuxer = new MediaMuxer(output.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int videoTrack = -1;
+            for (StitchingSegments.Step step : plan.steps) {
+                MediaExtractor videoExtractor = new MediaExtractor();
+                try {
+                    if (videoTrack == -1) {
+                        videoTrack = addTrack(videoExtractor, step.segment.file.getAbsolutePath(), "video");
+                        int audioTrack = addTrack(audioExtractor, params.srcDir + "/0.mp4", "audio");
+                        mMediaMuxer.start();
+                        if (audioTrack != -1) {
+                            copyByteBuffer(audioTrack, audioExtractor, params.finishStitchTimeUs);
+                        }
+                    } else {
+                        videoExtractor.setDataSource(step.segment.file.getAbsolutePath());
+                        for (int i = 0; i < videoExtractor.getTrackCount(); i++) {
+                            String mime = videoExtractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                            if (mime != null && mime.contains("video")) {
+                                videoExtractor.selectTrack(i);
+                                break;
+                            }
+                        }
+                    }
+                    if (videoTrack == -1) {
+                        return false;
+                    }
+                    long last = copyByteBuffer(videoTrack, videoExtractor, step.afterUs, params.finishStitchTimeUs);
+                    if (params.finishStitchTimeUs != -1 && last >= params.finishStitchTimeUs) {
+                        break;
+                    }
+                } finally {
+                    videoExtractor.release();
+                }
+            }
+            mMediaMuxer.stop();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            audioExtractor.release();
+            try {
+                mMediaMuxer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 取出已完成的编码输出并写入封装器，由拼接流水线的编码阶段调用，不等待
+     *
+     * @return false:编码出错
+     */
+    boolean drainEncoder() {
+        synchronized (mDrainLock) {
+            if (mRecordState != RecordState.RECORD_STATE_RUN || mEndStitchByError.get()) {
+                return !mEndStitchByError.get();
+            }
+            try {
+                encodeOneFrame(0);
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                Log.e(TAG, "drainEncoder " + params.srcDir + ",error:" + e.getMessage());
+                mEndStitchByError.set(true);
+                return false;
+            }
+            return true;
+        }
     }
 
     public boolean start() {
@@ -281,6 +585,7 @@ class StitchingRecorder {
             return false;
         }
         mRecordState = RecordState.RECORD_STATE_RUN;
+        mEndStitchByError.set(false);
         mThread.start();
         return true;
     }
@@ -288,6 +593,7 @@ class StitchingRecorder {
     void stop(boolean isPause) {
         Log.d(TAG, "stop isPause: " + isPause + ",state:" + mRecordState);
         mRecordState = isPause ? RecordState.RECORD_STATE_PAUSE : RecordState.RECORD_STATE_END;
+        mStopSignal.countDown();
         try {
             mThread.join();
             Log.i(TAG, "pause 03");
@@ -308,10 +614,21 @@ class StitchingRecorder {
         mSemaphore.release();
     }
 
+    void setCheckpointListener(CheckpointListener listener) {
+        mCheckpointListener = listener;
+    }
+
     long getPauseTimeStamp() {
         return mPauseTimeStamp;
     }
 
+    /**
+     * 最后写入的视频帧时间戳,stop之后即为已落盘文件的结束时间
+     */
+    long getLastVideoTimeStamp() {
+        return mLastVideoTimeStamp;
+    }
+
     public boolean isEndStitchByError() {
         return mEndStitchByError.get();
     }
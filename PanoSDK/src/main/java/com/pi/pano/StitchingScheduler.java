@@ -0,0 +1,320 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 拼接任务调度器。
+ * 按优先级（数值小的优先）、同优先级按提交顺序分配任务给工作线程，
+ * 同时运行的任务数不超过编解码器实例预算。
+ * 本类不依赖Android，工作线程通过{@link #take()}获取任务，处理结束后调用{@link #finish(Job)}。
+ *
+ * @param <T> 任务类型
+ */
+class StitchingScheduler<T> {
+
+    /**
+     * 调度中的任务
+     */
+    static final class Job<T> {
+        @NonNull
+        final T task;
+        final int priority;
+        /**
+         * 提交序号，同优先级下越小越先执行
+         */
+        long seq;
+        volatile boolean running;
+
+        private float lastReportProgress = -1;
+        private long lastReportTimeMs;
+
+        Job(@NonNull T task, int priority, long seq) {
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * 由编解码器预算计算可同时运行的任务数
+     *
+     * @param encoderBudget  可用的编码器实例数
+     * @param decoderBudget  可用的解码器实例数
+     * @param decodersPerJob 单个任务需要的解码器数
+     * @return 至少为1
+     */
+    static int workerCountForBudget(int encoderBudget, int decoderBudget, int decodersPerJob) {
+        int count = encoderBudget;
+        if (decodersPerJob > 0) {
+            count = Math.min(count, decoderBudget / decodersPerJob);
+        }
+        return Math.max(1, count);
+    }
+
+    private static final Comparator<Job<?>> ORDER = (o1, o2) -> {
+        if (o1.priority != o2.priority) {
+            return Integer.compare(o1.priority, o2.priority);
+        }
+        return Long.compare(o1.seq, o2.seq);
+    };
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final PriorityQueue<Job<T>> mQueue = new PriorityQueue<>(16, ORDER);
+    private final Map<T, Job<T>> mJobs = new HashMap<>();
+    private long mTailSeq = 0;
+    private long mHeadSeq = 0;
+    private int mRunningCount;
+    private int mBudget;
+
+    /**
+     * 同一任务两次进度回调的最小间隔
+     */
+    private long mProgressIntervalMs = 200;
+    /**
+     * 进度变化超过此值时立即回调
+     */
+    private float mProgressStep = 1f;
+
+    StitchingScheduler(int budget) {
+        mBudget = Math.max(1, budget);
+    }
+
+    /**
+     * 修改同时运行的任务数，已在运行的任务不受影响
+     */
+    void setBudget(int budget) {
+        mLock.lock();
+        try {
+            mBudget = Math.max(1, budget);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getBudget() {
+        mLock.lock();
+        try {
+            return mBudget;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setProgressThrottle(long intervalMs, float step) {
+        mProgressIntervalMs = intervalMs;
+        mProgressStep = step;
+    }
+
+    /**
+     * 提交任务，任务已在队列中或正在运行时忽略
+     *
+     * @return false:任务已存在
+     */
+    boolean submit(@NonNull T task, int priority) {
+        mLock.lock();
+        try {
+            if (mJobs.containsKey(task)) {
+                return false;
+            }
+            Job<T> job = new Job<>(task, priority, mTailSeq++);
+            mJobs.put(task, job);
+            mQueue.add(job);
+            mChanged.signalAll();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 将排队中的任务移到同优先级的最前面
+     */
+    void moveToFront(@NonNull T task) {
+        mLock.lock();
+        try {
+            Job<T> job = mJobs.get(task);
+            if (job != null && !job.running && mQueue.remove(job)) {
+                job.seq = --mHeadSeq;
+                mQueue.add(job);
+                mChanged.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 取消排队中的任务，将其移出队列。
+     * 运行中的任务不受影响，由调用方通过任务自身的状态通知工作线程结束，工作线程结束后调用{@link #finish(Job)}。
+     *
+     * @return true:任务在排队中并已移除；false:任务不存在或正在运行
+     */
+    boolean cancel(@NonNull T task) {
+        mLock.lock();
+        try {
+            Job<T> job = mJobs.get(task);
+            if (job == null || job.running) {
+                return false;
+            }
+            mQueue.remove(job);
+            mJobs.remove(task);
+            mChanged.signalAll();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    boolean isRunning(@NonNull T task) {
+        mLock.lock();
+        try {
+            Job<T> job = mJobs.get(task);
+            return job != null && job.running;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    boolean isQueued(@NonNull T task) {
+        mLock.lock();
+        try {
+            Job<T> job = mJobs.get(task);
+            return job != null && !job.running;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 阻塞获取下一个可执行的任务
+     */
+    @NonNull
+    Job<T> take() throws InterruptedException {
+        mLock.lock();
+        try {
+            Job<T> job;
+            while ((job = pollLocked()) == null) {
+                mChanged.await();
+            }
+            return job;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 在超时时间内获取下一个可执行的任务
+     *
+     * @return null:超时
+     */
+    @Nullable
+    Job<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lock();
+        try {
+            Job<T> job;
+            while ((job = pollLocked()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mChanged.awaitNanos(nanos);
+            }
+            return job;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Job<T> pollLocked() {
+        if (mRunningCount >= mBudget) {
+            return null;
+        }
+        Job<T> job = mQueue.poll();
+        if (job != null) {
+            job.running = true;
+            mRunningCount++;
+        }
+        return job;
+    }
+
+    /**
+     * 工作线程处理完任务（完成、暂停或出错）后调用
+     */
+    void finish(@NonNull Job<T> job) {
+        mLock.lock();
+        try {
+            if (job.running) {
+                job.running = false;
+                mRunningCount--;
+            }
+            if (mJobs.get(job.task) == job) {
+                mJobs.remove(job.task);
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getRunningCount() {
+        mLock.lock();
+        try {
+            return mRunningCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 按执行顺序返回排队中的任务
+     */
+    @NonNull
+    List<T> getQueuedTasks() {
+        mLock.lock();
+        try {
+            List<Job<T>> jobs = new ArrayList<>(mQueue);
+            jobs.sort(ORDER);
+            List<T> tasks = new ArrayList<>(jobs.size());
+            for (Job<T> job : jobs) {
+                tasks.add(job.task);
+            }
+            return tasks;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 进度回调节流。
+     * 多个任务并行时，每个任务按相同的间隔回调，避免单个任务占满监听线程。
+     *
+     * @return true:本次进度需要回调
+     */
+    boolean shouldReportProgress(@NonNull Job<T> job, float progress, long nowMs) {
+        if (progress >= 100 ||
+                job.lastReportProgress < 0 ||
+                progress - job.lastReportProgress >= mProgressStep ||
+                nowMs - job.lastReportTimeMs >= mProgressIntervalMs) {
+            if (progress == job.lastReportProgress) {
+                return false;
+            }
+            job.lastReportProgress = progress;
+            job.lastReportTimeMs = nowMs;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,335 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 拼接分段管理。
+ * 每次开始/恢复拼接都写入一个新的分段文件，暂停时只需提交当前分段，
+ * 拼接完成后再按分段顺序一次性合并为最终文件，避免每次恢复都复制之前拼接的全部内容。
+ * 拼接过程中也定期在关键帧处提交分段，进程异常退出后从最后提交的分段继续。
+ * <p>
+ * 已提交的分段记录在索引文件中，每行一个分段：序号,首帧时间戳,末帧时间戳,帧数,文件名。
+ * 本类不依赖Android。
+ */
+class StitchingSegments {
+
+    /**
+     * 分段
+     */
+    static final class Segment {
+        final int index;
+        @NonNull
+        final File file;
+        /**
+         * 首帧时间戳(us)
+         */
+        long firstUs = -1;
+        /**
+         * 末帧时间戳(us)
+         */
+        long lastUs = -1;
+        int frameCount;
+
+        Segment(int index, @NonNull File file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        /**
+         * 记录写入的一帧
+         */
+        void onFrame(long timestampUs) {
+            if (firstUs < 0) {
+                firstUs = timestampUs;
+            }
+            if (timestampUs > lastUs) {
+                lastUs = timestampUs;
+            }
+            frameCount++;
+        }
+
+        /**
+         * 拼接中定期提交分段作为断点：分段已有帧且时长达到间隔时，在下一个关键帧处提交
+         *
+         * @param keyFrameUs 即将写入的关键帧时间戳
+         * @param intervalUs 断点间隔，不大于0时不提交
+         */
+        boolean shouldCheckpoint(long keyFrameUs, long intervalUs) {
+            return intervalUs > 0 && frameCount > 0 && keyFrameUs - firstUs >= intervalUs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Segment{" + index + "," + firstUs + "-" + lastUs + ",frames=" + frameCount + "}";
+        }
+    }
+
+    /**
+     * 合并计划中的一步
+     */
+    static final class Step {
+        @NonNull
+        final Segment segment;
+        /**
+         * 只复制时间戳大于此值的帧，用于去掉与上一分段重叠的帧
+         */
+        final long afterUs;
+
+        Step(@NonNull Segment segment, long afterUs) {
+            this.segment = segment;
+            this.afterUs = afterUs;
+        }
+    }
+
+    /**
+     * 合并计划
+     */
+    static final class ConcatPlan {
+        final List<Step> steps = new ArrayList<>();
+        /**
+         * 分段之间的间隙超过允许值的数量
+         */
+        int gapCount;
+        /**
+         * 与上一分段重叠(时间戳不递增)的分段数量
+         */
+        int overlapCount;
+        /**
+         * 最大间隙(us)
+         */
+        long maxGapUs;
+        long firstUs = -1;
+        long lastUs = -1;
+
+        /**
+         * 时间戳是否连续
+         */
+        boolean isContinuous() {
+            return gapCount == 0 && overlapCount == 0;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "ConcatPlan{steps=" + steps.size() + ",range=" + firstUs + "-" + lastUs +
+                    ",gap=" + gapCount + ",overlap=" + overlapCount + ",maxGapUs=" + maxGapUs + "}";
+        }
+    }
+
+    /**
+     * 生成合并计划，检查分段间时间戳是否连续。
+     *
+     * @param segments        已提交的分段
+     * @param frameDurationUs 一帧的时长
+     * @param maxGapFrames    允许的最大间隙帧数，超过视为不连续
+     */
+    @NonNull
+    static ConcatPlan plan(@NonNull List<Segment> segments, long frameDurationUs, int maxGapFrames) {
+        List<Segment> sorted = new ArrayList<>(segments);
+        Collections.sort(sorted, (o1, o2) -> Integer.compare(o1.index, o2.index));
+        ConcatPlan plan = new ConcatPlan();
+        long prevLastUs = -1;
+        long maxGapUs = frameDurationUs * Math.max(1, maxGapFrames);
+        for (Segment segment : sorted) {
+            if (segment.frameCount <= 0 || segment.lastUs < 0) {
+                continue;
+            }
+            if (segment.lastUs <= prevLastUs) {
+                // 整个分段都在上一分段之前，没有新内容
+                plan.overlapCount++;
+                continue;
+            }
+            if (prevLastUs >= 0) {
+                if (segment.firstUs <= prevLastUs) {
+                    plan.overlapCount++;
+                } else {
+                    long gap = segment.firstUs - prevLastUs;
+                    plan.maxGapUs = Math.max(plan.maxGapUs, gap);
+                    if (gap > maxGapUs) {
+                        plan.gapCount++;
+                    }
+                }
+            } else {
+                plan.firstUs = segment.firstUs;
+            }
+            plan.steps.add(new Step(segment, prevLastUs));
+            prevLastUs = segment.lastUs;
+        }
+        plan.lastUs = prevLastUs;
+        return plan;
+    }
+
+    private final File mIndexFile;
+    private final String mSegmentPrefix;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    /**
+     * @param indexFile     索引文件
+     * @param segmentPrefix 分段文件路径前缀,分段文件为 前缀+序号+".mp4"
+     */
+    StitchingSegments(@NonNull File indexFile, @NonNull String segmentPrefix) {
+        mIndexFile = indexFile;
+        mSegmentPrefix = segmentPrefix;
+    }
+
+    /**
+     * 读取索引，忽略文件已丢失的分段
+     *
+     * @return 已提交的分段
+     */
+    @NonNull
+    synchronized List<Segment> load() {
+        mSegments.clear();
+        if (mIndexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(mIndexFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Segment segment = parse(line);
+                    if (segment != null && segment.file.exists()) {
+                        mSegments.add(segment);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return getSegments();
+    }
+
+    @Nullable
+    private Segment parse(String line) {
+        String[] items = line.trim().split(",");
+        if (items.length < 5) {
+            return null;
+        }
+        try {
+            File dir = mIndexFile.getParentFile();
+            Segment segment = new Segment(Integer.parseInt(items[0]), new File(dir, items[4]));
+            segment.firstUs = Long.parseLong(items[1]);
+            segment.lastUs = Long.parseLong(items[2]);
+            segment.frameCount = Integer.parseInt(items[3]);
+            return segment;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    synchronized List<Segment> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    synchronized boolean isEmpty() {
+        return mSegments.isEmpty();
+    }
+
+    /**
+     * 恢复拼接的时间戳，即已提交分段的最后一帧
+     *
+     * @return -1:没有已提交的分段
+     */
+    synchronized long getResumeTimestampUs() {
+        long last = -1;
+        for (Segment segment : mSegments) {
+            last = Math.max(last, segment.lastUs);
+        }
+        return last;
+    }
+
+    /**
+     * 创建下一个分段(未提交)
+     */
+    @NonNull
+    synchronized Segment newSegment() {
+        int index = 0;
+        for (Segment segment : mSegments) {
+            index = Math.max(index, segment.index + 1);
+        }
+        File file = new File(mSegmentPrefix + index + ".mp4");
+        if (file.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        return new Segment(index, file);
+    }
+
+    /**
+     * 提交分段，分段文件需已完整写入
+     *
+     * @return false:分段为空或索引写入失败
+     */
+    synchronized boolean commit(@NonNull Segment segment) {
+        if (segment.frameCount <= 0 || !segment.file.exists()) {
+            return false;
+        }
+        mSegments.add(segment);
+        if (!writeIndex()) {
+            mSegments.remove(segment);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 丢弃未提交的分段
+     */
+    void discard(@NonNull Segment segment) {
+        if (segment.file.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * 删除所有分段及索引
+     *
+     * @return 是否全部删除成功
+     */
+    synchronized boolean deleteAll() {
+        boolean success = true;
+        for (Segment segment : mSegments) {
+            if (segment.file.exists() && !segment.file.delete()) {
+                success = false;
+            }
+        }
+        mSegments.clear();
+        if (mIndexFile.exists() && !mIndexFile.delete()) {
+            success = false;
+        }
+        return success;
+    }
+
+    /**
+     * 先写临时文件再重命名，避免写入中断导致索引损坏
+     */
+    private boolean writeIndex() {
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+            for (Segment segment : mSegments) {
+                writer.write(segment.index + "," + segment.firstUs + "," + segment.lastUs + "," +
+                        segment.frameCount + "," + segment.file.getName() + "\n");
+            }
+            writer.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return tmp.renameTo(mIndexFile);
+    }
+}
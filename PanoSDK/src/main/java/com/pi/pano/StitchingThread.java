@@ -11,6 +11,8 @@ import androidx.annotation.NonNull;
 import com.pi.pano.annotation.PiEncodeSurfaceType;
 
 import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     private final String TAG = "StitchingThread";
@@ -38,6 +40,7 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     private final Context mContext;
     private PiPano mPiPano;
     private StitchingUtil.Task mCurrentTask;
+    private StitchingScheduler.Job<StitchingUtil.Task> mCurrentJob;
     private StitchingRecorder mStitchingRecorder;
     private long mStartTime;
     private final StitchingUtil mStitchingUtil;
@@ -51,7 +54,11 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     private int mSurfaceUpdateCount = 0;
     private boolean mUseFlow;
 
-    private static final Object mDecodeLock = new Object();
+    /**
+     * 编码surface更新信号,用于拼接流水线的渲染阶段
+     */
+    private final Semaphore mRenderSignal = new Semaphore(0);
+    private final Object mNativeLock = new Object();
 
     StitchingThread(Context context, StitchingUtil stitchingUtil) {
         mContext = context;
@@ -100,6 +107,9 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
         mPiPano.setParamReCaliEnable(interval, true);
         //encorder
         mStitchingRecorder = new StitchingRecorder();
+        // 拼接中定期提交的分段即为断点,异常退出后从此继续
+        final StitchingUtil.Task task = mCurrentTask;
+        mStitchingRecorder.setCheckpointListener(timestampUs -> mStitchingUtil.recordCheckpoint(task, timestampUs));
         Surface surface = mStitchingRecorder.init(mCurrentTask.params);
         if (surface == null) {
             setErrorCode(STITCH_ERROR_RECORDER_INIT, "stitchingRecorder init error");
@@ -112,13 +122,9 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     }
 
 
-    private boolean processNextTask() {
+    private boolean processNextTask(StitchingUtil.Task task) {
         release();
-        mCurrentTask = mStitchingUtil.getNextTask();
-        if (mCurrentTask == null) {
-            Log.i(TAG, "processNextTask all files finish or pause");
-            return false;
-        }
+        mCurrentTask = task;
         if (mCurrentTask.getStitchState() == StitchingUtil.StitchState.STITCH_STATE_PAUSING) {
             return false;
         }
@@ -140,7 +146,12 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     private void release() {
         Log.i(TAG, "stitching util release");
         if (mStitchingRecorder != null) {
-            mStitchingRecorder.stop(mCurrentTask.mState == StitchingUtil.StitchState.STITCH_STATE_PAUSING);
+            boolean isPause = mCurrentTask.mState == StitchingUtil.StitchState.STITCH_STATE_PAUSING;
+            mStitchingRecorder.stop(isPause);
+            if (isPause && !mStitchingRecorder.isEndStitchByError()) {
+                // 暂停文件已落盘,记录断点
+                mStitchingUtil.recordCheckpoint(mCurrentTask, mStitchingRecorder.getLastVideoTimeStamp());
+            }
             mStitchingRecorder = null;
         }
         mStitchingNative.deleteFrameExtractor();
@@ -163,8 +174,14 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     @Override
     public void run() {
         while (true) {
-            mStitchingUtil.checkHaveNextTask();
-            if (processNextTask()) {
+            try {
+                mCurrentJob = mStitchingUtil.takeNextTask();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "take next task interrupted");
+                release();
+                return;
+            }
+            if (processNextTask(mCurrentJob.task)) {
                 StitchVideoParams params = mCurrentTask.params;
                 long during = StitchingUtil.getDuring(params.srcDir + "/0.mp4");
                 //计算上次暂停的时间,如果是拼接视频,那么直接计算上次暂停的时间
@@ -183,52 +200,114 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
                 }
                 mUseFlow = params.useFlow;
                 initFpsConfig(params);
-                while (mCurrentTask.getStitchState() == StitchingUtil.StitchState.STITCH_STATE_START) {
-                    if (!mStitchingNative.extractorOneFrame()) {
-                        //拼接完成
-                        Log.i(TAG, "Process finish video: " + params.srcDir.getName() +
-                                " take time: " + (System.currentTimeMillis() - mStartTime));
-                        mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_STOPPING);
-                        break;
-                    }
-                    if (mStitchingRecorder.isEndStitchByError()) {
-                        Log.w(TAG, "Process finish video : isEndStitchByError");
-                        mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_ERROR);
-                        break;
-                    }
-                    //只有当前的时间戳大于上次暂停的时间戳,这一帧才会被编码
-                    boolean renderEncodeFrame = mStitchingNative.getExtractorSampleTime(0) > pauseTimeStamp;
-                    mStitchingNative.decodeOneFrame(renderEncodeFrame);
-                    if (renderEncodeFrame) {
-                        synchronized (mDecodeLock) {
-                            try {
-                                mDecodeLock.wait(1000);
-                            } catch (InterruptedException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    }
-                    long curTime = mStitchingNative.getExtractorSampleTime(0);
-                    float pro = curTime * 100.0f / during;
-                    if (params.finishStitchTimeUs > 0 && curTime >= params.finishStitchTimeUs) {
-                        Log.i(TAG, "run nextTask end by endStitchTime ========> ");
-                        mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_STOPPING);
-                        break;
-                    }
-                    if (pro > mCurrentTask.mProgress) {
-                        mCurrentTask.mProgress = pro;
-                    }
-                    if (mCurrentTask.mProgress > 100) {
-                        mCurrentTask.mProgress = 100;
-                    }
-                    if (mStitchingUtil.mStitchingListener != null &&
-                            mCurrentTask.getStitchState() == StitchingUtil.StitchState.STITCH_STATE_START) {
-                        mStitchingUtil.mStitchingListener.onStitchingProgressChange(mCurrentTask);
-                    }
+                StitchingPipeline pipeline = createPipeline(params, pauseTimeStamp, during);
+                pipeline.run();
+                Log.i(TAG, "pipeline end: " + pipeline);
+                if (pipeline.getError() != null) {
+                    Log.e(TAG, "Process video error: " + pipeline.getError());
+                    mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_ERROR);
+                } else if (pipeline.isEndOfStream() &&
+                        mCurrentTask.getStitchState() == StitchingUtil.StitchState.STITCH_STATE_START) {
+                    //拼接完成
+                    Log.i(TAG, "Process finish video: " + params.srcDir.getName() +
+                            " take time: " + (System.currentTimeMillis() - mStartTime));
+                    mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_STOPPING);
                 }
                 Log.v(TAG, "process next task finally");
-                release();
             }
+            // 先释放编解码器,再归还调度名额
+            release();
+            mStitchingUtil.finishTask(mCurrentJob);
+            mCurrentJob = null;
+        }
+    }
+
+    /**
+     * 创建拼接流水线。
+     * native解封装、解码共用同一读取位置，解封装不领先解码，调用native时持有mNativeLock。
+     * 结束时间、出错在解封装时判断，之后的帧不再解码；编码阶段取出编码输出写入文件。
+     *
+     * @param pauseTimeStamp 上次暂停的时间戳,只有大于这个时间戳的帧才会被编码
+     * @param during         需要拼接的时长
+     */
+    private StitchingPipeline createPipeline(StitchVideoParams params, long pauseTimeStamp, long during) {
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        config.extractAhead = 0;
+        StitchingPipeline.Extractor extractor = frame -> {
+            if (mCurrentTask.getStitchState() != StitchingUtil.StitchState.STITCH_STATE_START) {
+                return false;
+            }
+            if (mStitchingRecorder.isEndStitchByError()) {
+                Log.w(TAG, "Process finish video : isEndStitchByError");
+                mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_ERROR);
+                return false;
+            }
+            synchronized (mNativeLock) {
+                if (!mStitchingNative.extractorOneFrame()) {
+                    return false;
+                }
+                frame.timestampUs = mStitchingNative.getExtractorSampleTime(0);
+            }
+            if (params.finishStitchTimeUs > 0 && frame.timestampUs >= params.finishStitchTimeUs) {
+                // 已在流水线中的帧继续编码,流结束后切换到停止状态
+                Log.i(TAG, "run nextTask end by endStitchTime ========> ");
+                return false;
+            }
+            frame.render = frame.timestampUs > pauseTimeStamp;
+            return true;
+        };
+        StitchingPipeline.Decoder decoder = frame -> {
+            if (frame.render) {
+                // 渲染窗口为1,清掉上一帧遗留的信号
+                mRenderSignal.drainPermits();
+            }
+            synchronized (mNativeLock) {
+                mStitchingNative.decodeOneFrame(frame.render);
+            }
+        };
+        StitchingPipeline.Renderer renderer = (frame, timeoutMs) ->
+                mRenderSignal.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        StitchingPipeline.Encoder encoder = new StitchingPipeline.Encoder() {
+            @Override
+            public boolean encode(@NonNull StitchingPipeline.Frame frame) {
+                if (!idle()) {
+                    return false;
+                }
+                reportProgress(frame.timestampUs, during);
+                return true;
+            }
+
+            @Override
+            public boolean idle() {
+                if (mCurrentTask.getStitchState() != StitchingUtil.StitchState.STITCH_STATE_START) {
+                    return false;
+                }
+                if (!mStitchingRecorder.drainEncoder()) {
+                    Log.w(TAG, "Process finish video : isEndStitchByError");
+                    mCurrentTask.changeState(StitchingUtil.StitchState.STITCH_STATE_ERROR);
+                    return false;
+                }
+                return true;
+            }
+        };
+        return new StitchingPipeline(config, extractor, decoder, renderer, encoder);
+    }
+
+    /**
+     * 更新拼接进度并通知
+     */
+    private void reportProgress(long curTime, long during) {
+        float pro = curTime * 100.0f / during;
+        if (pro > mCurrentTask.mProgress) {
+            mCurrentTask.mProgress = pro;
+        }
+        if (mCurrentTask.mProgress > 100) {
+            mCurrentTask.mProgress = 100;
+        }
+        if (mStitchingUtil.mStitchingListener != null &&
+                mCurrentTask.getStitchState() == StitchingUtil.StitchState.STITCH_STATE_START &&
+                mStitchingUtil.shouldReportProgress(mCurrentJob, mCurrentTask.mProgress)) {
+            mStitchingUtil.mStitchingListener.onStitchingProgressChange(mCurrentTask);
         }
     }
 
@@ -243,9 +322,7 @@ public class StitchingThread extends Thread implements PiPano.PiPanoListener {
     @Override
     public void onPiPanoEncoderSurfaceUpdate(@NonNull PiPano pano, long timestamp, boolean isFrameSync) {
 //        Log.i(TAG, "drawLensCorrectionFrame :" + mFpsRatio + ",count:" + mSurfaceUpdateCount + "," + timestamp);
-        synchronized (mDecodeLock) {
-            mDecodeLock.notifyAll();
-        }
+        mRenderSignal.release();
         if (isFrameSync) {
             if (mFpsRatio == -1) {
                 pano.drawLensCorrectionFrame(0x1111, true, timestamp, mUseFlow);
@@ -1,21 +1,23 @@
 package com.pi.pano;
 
 import android.content.Context;
-import android.media.MediaMetadataRetriever;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
  * 视频后处理类,用于将多个鱼眼mp4视频拼接为一个全景视频
  * 你可以多次使用addTask添加多个任务到任务队列,添加到任务队列的任务默认是STITCH_STATE_PAUSE状态,你可以
- * 使用startAllTask开始所有任务,拼接任务同时只能执行一个,因此,只有队列最顶端的任务会变为STITCH_STATE_START
- * 其它任务的状态变为STITCH_STATE_WAIT,当一个任务完成拼接后,该任务会自动从队列中移除
+ * 使用startAllTask开始所有任务,同时执行的任务数由编解码器预算决定(默认一个,见{@link #setCodecBudget}),
+ * 按优先级和队列顺序执行的任务会变为STITCH_STATE_START,其它任务的状态变为STITCH_STATE_WAIT,
+ * 当一个任务完成拼接后,该任务会自动从队列中移除
  */
 public class StitchingUtil {
     private final String TAG = "StitchingUtil";
@@ -24,6 +26,24 @@ public class StitchingUtil {
         System.loadLibrary(Config.PIPANO_SO_NAME);
     }
 
+    /**
+     * 任务优先级:用户发起的任务
+     */
+    public static final int PRIORITY_USER = 0;
+    /**
+     * 任务优先级:后台任务,在所有用户任务之后执行
+     */
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * 单个拼接任务使用的解码器数量
+     */
+    private static final int DECODER_COUNT_PER_TASK = 2;
+    /**
+     * 拼接任务日志文件名
+     */
+    private static final String JOURNAL_FILE_NAME = "stitching_journal.bin";
+
     /**
      * 拼接任务状态
      */
@@ -113,8 +133,8 @@ public class StitchingUtil {
             if (mState == StitchState.STITCH_STATE_PAUSE) {
                 changeState(StitchState.STITCH_STATE_WAIT);
             }
-            synchronized (mTaskList) {
-                mTaskList.notifyAll();
+            if (mState == StitchState.STITCH_STATE_WAIT) {
+                mScheduler.submit(this, params.priority);
             }
         }
 
@@ -126,7 +146,13 @@ public class StitchingUtil {
             if (mState == StitchState.STITCH_STATE_START ||
                     mState == StitchState.STITCH_STATE_STARTING ||
                     mState == StitchState.STITCH_STATE_WAIT) {
-                changeState(StitchState.STITCH_STATE_PAUSING);
+                if (mScheduler.cancel(this)) {
+                    // 还在排队,未开始拼接,直接暂停
+                    changeState(StitchState.STITCH_STATE_PAUSE);
+                } else {
+                    // 正在拼接,拼接线程检查到状态后结束
+                    changeState(StitchState.STITCH_STATE_PAUSING);
+                }
             }
         }
 
@@ -135,9 +161,12 @@ public class StitchingUtil {
                 if (mStitchingListener != null) {
                     mStitchingListener.onStitchingDeleteDeleting(this);
                 }
-                File pauseFile = new File(params.srcDir, "stitching_pause.mp4");
-                if (pauseFile.exists()) {
-                    if (pauseFile.delete()) {
+                File pauseFile = new File(stitchingPath(params.srcDir, params.targetDir, true));
+                StitchingSegments segments = stitchingSegments(params.srcDir, params.targetDir);
+                segments.load();
+                if (pauseFile.exists() || !segments.isEmpty()) {
+                    boolean success = !pauseFile.exists() || pauseFile.delete();
+                    if (segments.deleteAll() && success) {
                         mDeleteStitchingPauseFile = false;
                         if (null != mStitchingListener) {
                             mStitchingListener.onStitchingDeleteFinish(this);
@@ -161,6 +190,7 @@ public class StitchingUtil {
                     mTaskList.remove(this);
                 }
             }
+            mJournal.recordRemove(getJournalId());
             if (mStitchingListener != null) {
                 mStitchingListener.onStitchingStateChange(this);
             }
@@ -178,6 +208,7 @@ public class StitchingUtil {
                 mTaskList.remove(this);
                 mTaskList.addFirst(this);
             }
+            mScheduler.moveToFront(this);
             if (mStitchingListener != null) {
                 mStitchingListener.onStitchingStateChange(this);
             }
@@ -195,11 +226,22 @@ public class StitchingUtil {
             return mProgress;
         }
 
+        String getJournalId() {
+            return params.srcDir.getAbsolutePath();
+        }
+
         void changeState(StitchState state) {
             Log.i(TAG, "changeState " + mState + "=>" + state + " file:" + params.srcDir);
             mState = state;
+            if (state == StitchState.STITCH_STATE_STOP || state == StitchState.STITCH_STATE_ERROR) {
+                mJournal.recordRemove(getJournalId());
+            } else {
+                mJournal.recordState(getJournalId(), state.name());
+            }
             if (state == StitchState.STITCH_STATE_ERROR) {
-                mTaskList.remove(this);
+                synchronized (mTaskList) {
+                    mTaskList.remove(this);
+                }
             }
             if (mStitchingListener != null) {
                 mStitchingListener.onStitchingStateChange(this);
@@ -212,11 +254,84 @@ public class StitchingUtil {
     static String mFirmware;
     static String mArtist;
 
+    private final Context mContext;
+    private final StitchingScheduler<Task> mScheduler = new StitchingScheduler<>(1);
+    private final List<StitchingThread> mWorkers = new ArrayList<>();
+    private final StitchingJournal mJournal;
+
     /**
-     * 构造函数
+     * 构造函数,
+     * 会从任务日志中恢复上次进程退出前未完成的任务,排队中或拼接中的任务将从断点继续拼接
      */
     public StitchingUtil(Context context) {
-        new StitchingThread(context, this).start();
+        mContext = context;
+        MediaInfoLoader.attachDiskStore(context);
+        mJournal = new StitchingJournal(new File(context.getFilesDir(), JOURNAL_FILE_NAME));
+        restoreFromJournal();
+        ensureWorkers(mScheduler.getBudget());
+    }
+
+    private void restoreFromJournal() {
+        List<StitchingJournal.Entry> entries;
+        try {
+            entries = mJournal.replay();
+        } catch (IOException e) {
+            Log.e(TAG, "restoreFromJournal replay error:" + e.getMessage());
+            return;
+        }
+        if (mJournal.getDiscardedBytes() > 0) {
+            Log.w(TAG, "restoreFromJournal discard torn bytes:" + mJournal.getDiscardedBytes());
+        }
+        for (StitchingJournal.Entry entry : entries) {
+            StitchVideoParams params = StitchVideoParams.fromMap(entry.params);
+            Task task = params == null ? null : addStitchTaskInner(params, entry.checkpointUs, false);
+            if (task == null) {
+                Log.w(TAG, "restoreFromJournal drop task:" + entry.id);
+                mJournal.recordRemove(entry.id);
+                continue;
+            }
+            Log.i(TAG, "restoreFromJournal task:" + entry.id + ",state:" + entry.state +
+                    ",checkpoint:" + entry.checkpointUs);
+            if (StitchState.STITCH_STATE_WAIT.name().equals(entry.state) ||
+                    StitchState.STITCH_STATE_START.name().equals(entry.state) ||
+                    StitchState.STITCH_STATE_STARTING.name().equals(entry.state)) {
+                task.startStitchTask();
+            }
+        }
+    }
+
+    /**
+     * 记录任务的断点,即最后提交的分段(暂停或拼接中定期提交)的结束时间戳
+     */
+    void recordCheckpoint(Task task, long timestampUs) {
+        if (timestampUs > 0) {
+            mJournal.recordCheckpoint(task.getJournalId(), timestampUs);
+        }
+    }
+
+    /**
+     * 设置拼接可使用的编解码器实例数,决定同时拼接的任务数。
+     * 每个任务占用一个编码器和两个解码器,默认同时只拼接一个任务。
+     *
+     * @param encoderCount 编码器实例数
+     * @param decoderCount 解码器实例数
+     */
+    public void setCodecBudget(int encoderCount, int decoderCount) {
+        int count = StitchingScheduler.workerCountForBudget(encoderCount, decoderCount, DECODER_COUNT_PER_TASK);
+        Log.i(TAG, "setCodecBudget encoder:" + encoderCount + ",decoder:" + decoderCount + ",workers:" + count);
+        mScheduler.setBudget(count);
+        ensureWorkers(count);
+    }
+
+    private void ensureWorkers(int count) {
+        synchronized (mWorkers) {
+            while (mWorkers.size() < count) {
+                StitchingThread thread = new StitchingThread(mContext, this);
+                thread.setName("StitchingThread-" + mWorkers.size());
+                mWorkers.add(thread);
+                thread.start();
+            }
+        }
     }
 
     /**
@@ -245,35 +360,58 @@ public class StitchingUtil {
     }
 
     public boolean addStitchTask(@NonNull StitchVideoParams params) {
+        return addStitchTaskInner(params, -1, true) != null;
+    }
+
+    /**
+     * @param checkpointUs 任务日志中记录的断点,-1:无
+     * @param journal      是否写入任务日志
+     * @return null:参数无效
+     */
+    private Task addStitchTaskInner(@NonNull StitchVideoParams params, long checkpointUs, boolean journal) {
         if (params.width <= 0 || params.height <= 0 || params.fps <= 0 ||
                 !params.srcDir.isDirectory()) {
             Log.e(TAG, "addStitchTask params invalid: " + params);
-            return false;
+            return null;
         }
         if (!params.srcDir.exists()) {
             Log.e(TAG, "addStitchTask not exit dir: " + params.srcDir.getName());
-            return false;
+            return null;
         }
-        for (Task task : mTaskList) {
+        for (Task task : snapshotTaskList()) {
             if (task.params.srcDir.compareTo(params.srcDir) == 0) {
                 Log.e(TAG, "addStitchTask already exit dir: " + params.srcDir.getName());
-                return true;
+                return task;
             }
         }
         float progress = 0;
         File pauseFile = new File(stitchingPath(params.srcDir, params.targetDir, true));
-        if (pauseFile.exists()) {
+        StitchingSegments segments = stitchingSegments(params.srcDir, params.targetDir);
+        segments.load();
+        if (pauseFile.exists() || !segments.isEmpty()) {
             if (!params.ignoreTransFile) {
-                progress = getDuring(pauseFile.getAbsolutePath()) * 100f /
+                long pauseDuring = checkpointUs > 0 ? checkpointUs : segments.getResumeTimestampUs();
+                if (pauseDuring < 0) {
+                    pauseDuring = getDuring(pauseFile.getAbsolutePath());
+                }
+                progress = pauseDuring * 100f /
                         getDuring(new File(params.srcDir, "0.mp4").getAbsolutePath());
             } else {
                 boolean success = pauseFile.delete();
+                success &= segments.deleteAll();
                 Log.w(TAG, "addStitchTask del by ignoreTransFile :" + pauseFile + ",result:" + success);
             }
         }
         params.progress = progress;
         Log.d(TAG, "addStitchTask ==> " + params);
-        return mTaskList.add(new Task(params));
+        Task task = new Task(params);
+        synchronized (mTaskList) {
+            mTaskList.add(task);
+        }
+        if (journal) {
+            mJournal.recordEnqueue(task.getJournalId(), params.toMap());
+        }
+        return task;
     }
 
     /**
@@ -290,13 +428,16 @@ public class StitchingUtil {
      */
     public void startAllStitchTask() {
         Log.i(TAG, "startAllStitchTask");
-        for (Task task : mTaskList) {
-            if (task.getStitchState() != StitchState.STITCH_STATE_PAUSING) {
-                task.changeState(StitchState.STITCH_STATE_WAIT);
+        for (Task task : snapshotTaskList()) {
+            StitchState state = task.getStitchState();
+            if (state == StitchState.STITCH_STATE_PAUSING ||
+                    state == StitchState.STITCH_STATE_START ||
+                    state == StitchState.STITCH_STATE_STARTING ||
+                    mScheduler.isRunning(task)) {
+                continue;
             }
-        }
-        synchronized (mTaskList) {
-            mTaskList.notifyAll();
+            task.changeState(StitchState.STITCH_STATE_WAIT);
+            mScheduler.submit(task, task.params.priority);
         }
     }
 
@@ -305,12 +446,8 @@ public class StitchingUtil {
      */
     public void pauseAllStitchTask() {
         Log.i(TAG, "pauseAllStitchTask");
-        for (Task task : mTaskList) {
-            if (task.getStitchState() == StitchState.STITCH_STATE_START ||
-                    task.getStitchState() == StitchState.STITCH_STATE_STARTING ||
-                    task.getStitchState() == StitchState.STITCH_STATE_WAIT) {
-                task.changeState(StitchState.STITCH_STATE_PAUSING);
-            }
+        for (Task task : snapshotTaskList()) {
+            task.pauseStitchTask();
         }
     }
 
@@ -319,62 +456,71 @@ public class StitchingUtil {
      */
     public void deleteAllStitchTask() {
         Log.i(TAG, "deleteAllStitchTask");
-        for (Task task : mTaskList) {
+        for (Task task : snapshotTaskList()) {
             task.mDeleteStitchingPauseFile = true;
             task.deleteStitchingPauseFile();
+            mJournal.recordRemove(task.getJournalId());
         }
         pauseAllStitchTask();
-        mTaskList.clear();
+        synchronized (mTaskList) {
+            mTaskList.clear();
+        }
+    }
+
+    private List<Task> snapshotTaskList() {
+        synchronized (mTaskList) {
+            return new ArrayList<>(mTaskList);
+        }
     }
 
     static long getDuring(String filename) {
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-        try {
-            mmr.setDataSource(filename);
-            String durationStr = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            return Long.parseLong(durationStr) * 1000;
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            mmr.release();
+        MediaInfoCache.Info info = MediaInfoLoader.getCache().get(new File(filename));
+        if (info != null && info.durationUs > 0) {
+            return info.durationUs;
         }
         return 1;
     }
 
-    Task getNextTask() {
-        synchronized (mTaskList) {
-            for (Task task : mTaskList) {
-                if (task.getStitchState() == StitchState.STITCH_STATE_START ||
-                        task.getStitchState() == StitchState.STITCH_STATE_STARTING ||
-                        task.getStitchState() == StitchState.STITCH_STATE_WAIT) {
-                    return task;
-                }
-            }
-        }
-        return null;
+    /**
+     * 拼接线程阻塞获取下一个要拼接的任务
+     */
+    StitchingScheduler.Job<Task> takeNextTask() throws InterruptedException {
+        return mScheduler.take();
     }
 
-    void checkHaveNextTask() {
-        synchronized (mTaskList) {
-            while (getNextTask() == null) {
-                try {
-                    mTaskList.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * 拼接线程处理完任务后调用,释放调度名额
+     */
+    void finishTask(StitchingScheduler.Job<Task> job) {
+        mScheduler.finish(job);
+    }
+
+    boolean shouldReportProgress(StitchingScheduler.Job<Task> job, float progress) {
+        return mScheduler.shouldReportProgress(job, progress, System.currentTimeMillis());
     }
 
     static String stitchingPath(File srcFile, String targetDir, boolean pause) {
-        String stitchingPath;
+        return stitchingBasePath(srcFile, targetDir) +
+                (pause ? StitchingRecorder.FILE_STITCHING_PAUSE : StitchingRecorder.FILE_STITCHING);
+    }
+
+    /**
+     * 拼接中间文件的路径前缀
+     */
+    private static String stitchingBasePath(File srcFile, String targetDir) {
         if (TextUtils.isEmpty(targetDir)) {
-            stitchingPath = srcFile.getAbsolutePath() + File.separator;
-        } else {
-            stitchingPath = targetDir + File.separator + srcFile.getName() + "_";
+            return srcFile.getAbsolutePath() + File.separator;
         }
-        stitchingPath += pause ? StitchingRecorder.FILE_STITCHING_PAUSE : StitchingRecorder.FILE_STITCHING;
-        return stitchingPath;
+        return targetDir + File.separator + srcFile.getName() + "_";
+    }
+
+    /**
+     * 拼接分段,与拼接文件放在同一目录
+     */
+    static StitchingSegments stitchingSegments(File srcFile, String targetDir) {
+        String base = stitchingBasePath(srcFile, targetDir);
+        return new StitchingSegments(new File(base + StitchingRecorder.FILE_STITCHING_SEGMENTS),
+                base + StitchingRecorder.FILE_STITCHING_SEGMENT_PREFIX);
     }
 
 }
@@ -0,0 +1,274 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 录像存储监测。
+ * 封装器写入队列记录进入的数据量，定时检查时计算录像数据速率与录像文件实际增长的速率(落盘速率)。
+ * 封装器写入样本时只是放入内存缓冲，写入耗时不能反映存储速度，因此以文件增长衡量写入进度；
+ * 进入的数据与文件增长之差为未落盘的积压，积压超过{@link #BACKLOG_ALLOWANCE_MS}的数据量时写入已跟不上，
+ * 此时落盘速率即存储的写入能力，与数据速率之比为写入余量；没有积压时写入能力不可测，余量视为充足。
+ * 按数据速率与剩余空间预测剩余可录时长，并定期探测同步(fsync)耗时。
+ * 按{@link StoragePolicy}给出告警、降码率、停止录像的动作，余量条件需连续多次检查满足，避免瞬时抖动触发。
+ * <p>
+ * 本类不依赖Android，存储与时钟可替换，{@link #check()}可直接调用。
+ */
+final class StorageMonitor {
+    private static final String TAG = "StorageMonitor";
+
+    static final int ACTION_WARN = 0;
+    static final int ACTION_REDUCE_BITRATE = 1;
+    static final int ACTION_STOP = 2;
+
+    /**
+     * 允许的未落盘积压，按数据速率折算的时长；封装器按块交错写入，正常时也有约1秒的数据在内存中
+     */
+    static final long BACKLOG_ALLOWANCE_MS = 2000;
+    /**
+     * 速率的平滑系数，新值的权重
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    interface Storage {
+        long getUsableSpace();
+
+        /**
+         * 录像文件的总大小，即已写入存储的数据量
+         */
+        long getOutputBytes();
+
+        /**
+         * 写入并同步一小段数据
+         *
+         * @return 耗时(ns)
+         */
+        long probeSync() throws IOException;
+    }
+
+    interface Listener {
+        void onStorageAction(int action, @NonNull StorageStatus status);
+    }
+
+    /**
+     * 录像目录所在的存储
+     */
+    static final class DirectoryStorage implements Storage {
+        private static final int PROBE_SIZE = 64 * 1024;
+        private static final String PROBE_NAME = ".storage_probe";
+
+        private final File mDir;
+        private final byte[] mProbeData = new byte[PROBE_SIZE];
+
+        DirectoryStorage(@NonNull File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return mDir.getUsableSpace();
+        }
+
+        @Override
+        public long getOutputBytes() {
+            File[] files = mDir.listFiles();
+            long bytes = 0;
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile() && !PROBE_NAME.equals(file.getName())) {
+                        bytes += file.length();
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        public long probeSync() throws IOException {
+            File file = new File(mDir, PROBE_NAME);
+            long begin = System.nanoTime();
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(mProbeData);
+                out.getFD().sync();
+            } finally {
+                file.delete();
+            }
+            return System.nanoTime() - begin;
+        }
+    }
+
+    private final Storage mStorage;
+    private final StoragePolicy mPolicy;
+    private final Listener mListener;
+    private final LongSupplier mClockNs;
+    private final AtomicLong mIncomingBytes = new AtomicLong();
+    private final long[] mLastActionNs = {-1, -1, -1};
+    private long mLastCheckNs = -1;
+    private long mLastIncomingBytes;
+    private long mLastOutputBytes;
+    /**
+     * 首次检查后进入的数据与文件增长之差
+     */
+    private long mBacklogBytes;
+    private double mIncomingRate = -1;
+    private double mWriteRate = -1;
+    private long mLastProbeNs = -1;
+    private long mSyncLatencyMs = -1;
+    private int mWarnChecks;
+    private int mReduceChecks;
+    private int mStopChecks;
+    private boolean mStopRequested;
+    @Nullable
+    private volatile StorageStatus mStatus;
+    @Nullable
+    private ScheduledExecutorService mExecutor;
+
+    StorageMonitor(@NonNull Storage storage, @NonNull StoragePolicy policy, @NonNull Listener listener,
+                   @NonNull LongSupplier clockNs) {
+        mStorage = storage;
+        mPolicy = policy;
+        mListener = listener;
+        mClockNs = clockNs;
+    }
+
+    StorageMonitor(@NonNull File dir, @NonNull StoragePolicy policy, @NonNull Listener listener) {
+        this(new DirectoryStorage(dir), policy, listener, System::nanoTime);
+    }
+
+    /**
+     * 录像数据进入写入队列，包括被丢弃的帧
+     */
+    void onIncoming(int bytes) {
+        mIncomingBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 在后台线程按周期检查
+     */
+    synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+        long interval = Math.max(100, mPolicy.checkIntervalMs);
+        mExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * 最近一次检查的状态
+     */
+    @Nullable
+    StorageStatus getStatus() {
+        return mStatus;
+    }
+
+    @NonNull
+    synchronized StorageStatus check() {
+        final long now = mClockNs.getAsLong();
+        final long incoming = mIncomingBytes.get();
+        final long output = mStorage.getOutputBytes();
+        if (mLastCheckNs >= 0 && now > mLastCheckNs) {
+            final double seconds = (now - mLastCheckNs) / 1e9;
+            final long incomingDelta = incoming - mLastIncomingBytes;
+            // 文件被移走或删除时变小，不计入
+            final long outputDelta = Math.max(0, output - mLastOutputBytes);
+            mIncomingRate = smooth(mIncomingRate, incomingDelta / seconds);
+            mWriteRate = smooth(mWriteRate, outputDelta / seconds);
+            // 索引等封装开销使文件略大于样本数据
+            mBacklogBytes = Math.max(0, mBacklogBytes + incomingDelta - outputDelta);
+        }
+        mLastCheckNs = now;
+        mLastIncomingBytes = incoming;
+        mLastOutputBytes = output;
+        boolean probeFailed = false;
+        if (mPolicy.probeIntervalMs > 0 &&
+                (mLastProbeNs < 0 || now - mLastProbeNs >= mPolicy.probeIntervalMs * 1000_000)) {
+            mLastProbeNs = now;
+            try {
+                mSyncLatencyMs = mStorage.probeSync() / 1000_000;
+            } catch (IOException e) {
+                e.printStackTrace();
+                mSyncLatencyMs = -1;
+                probeFailed = true;
+            }
+        }
+        final long free = mStorage.getUsableSpace();
+        final boolean backlogged = mIncomingRate > 0 &&
+                mBacklogBytes > mIncomingRate * BACKLOG_ALLOWANCE_MS / 1000;
+        final double headroom = backlogged ? mWriteRate / mIncomingRate : Double.POSITIVE_INFINITY;
+        final long remainingMs = mIncomingRate > 0 ?
+                (long) (Math.max(0, free - mPolicy.stopFreeBytes) / mIncomingRate * 1000) : -1;
+        StorageStatus status = new StorageStatus(free, mIncomingRate < 0 ? -1 : (long) mIncomingRate,
+                mWriteRate < 0 ? -1 : (long) mWriteRate, headroom, mSyncLatencyMs, remainingMs);
+        mStatus = status;
+        evaluate(status, now, probeFailed);
+        return status;
+    }
+
+    private void evaluate(@NonNull StorageStatus status, long now, boolean probeFailed) {
+        if (mStopRequested) {
+            return;
+        }
+        mWarnChecks = status.headroom < mPolicy.warnHeadroom ? mWarnChecks + 1 : 0;
+        mReduceChecks = status.headroom < mPolicy.reduceBitrateHeadroom ? mReduceChecks + 1 : 0;
+        mStopChecks = status.headroom < mPolicy.stopHeadroom ? mStopChecks + 1 : 0;
+        if (status.freeBytes < mPolicy.stopFreeBytes ||
+                (status.remainingMs >= 0 && status.remainingMs < mPolicy.stopRemainingMs) ||
+                mStopChecks >= Math.max(1, mPolicy.stopSustainedChecks)) {
+            mStopRequested = true;
+            mListener.onStorageAction(ACTION_STOP, status);
+            return;
+        }
+        final int sustained = Math.max(1, mPolicy.sustainedChecks);
+        if (mReduceChecks >= sustained) {
+            fire(ACTION_REDUCE_BITRATE, status, now);
+        }
+        if (mWarnChecks >= sustained || probeFailed ||
+                (mPolicy.warnSyncLatencyMs > 0 && status.syncLatencyMs > mPolicy.warnSyncLatencyMs) ||
+                (status.remainingMs >= 0 && status.remainingMs < mPolicy.warnRemainingMs)) {
+            fire(ACTION_WARN, status, now);
+        }
+    }
+
+    private void fire(int action, @NonNull StorageStatus status, long now) {
+        long last = mLastActionNs[action];
+        if (last >= 0 && now - last < mPolicy.actionIntervalMs * 1000_000) {
+            return;
+        }
+        mLastActionNs[action] = now;
+        mListener.onStorageAction(action, status);
+    }
+
+    private static double smooth(double last, double value) {
+        return last < 0 ? value : last + (value - last) * RATE_SMOOTHING;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StorageStatus status = mStatus;
+        return TAG + "{" + status + ",stopRequested=" + mStopRequested + "}";
+    }
+}
@@ -0,0 +1,66 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 录像存储监测的策略，见{@link IStorageMonitorListener}。
+ * 写入余量为录像文件实际增长的速率与录像数据速率之比，只在未落盘的数据积压超过约2秒的数据量时计算，
+ * 小于1时积压在增长，写入跟不上编码输出；没有积压时余量视为充足。
+ */
+public final class StoragePolicy {
+    /**
+     * 检查周期
+     */
+    public long checkIntervalMs = 1000;
+    /**
+     * 同步(fsync)耗时的探测周期，探测时在录像目录写入并同步64KB数据，小于等于0不探测
+     */
+    public long probeIntervalMs = 10_000;
+    /**
+     * 写入余量低于该值时告警
+     */
+    public double warnHeadroom = 1.5;
+    /**
+     * 写入余量低于该值时降低视频码率
+     */
+    public double reduceBitrateHeadroom = 1.1;
+    /**
+     * 写入余量低于该值且持续{@link #stopSustainedChecks}次检查时停止录像
+     */
+    public double stopHeadroom = 0.9;
+    /**
+     * 写入余量连续低于告警、降码率阈值的检查次数
+     */
+    public int sustainedChecks = 3;
+    public int stopSustainedChecks = 15;
+    /**
+     * 同步耗时超过该值时告警
+     */
+    public long warnSyncLatencyMs = 500;
+    /**
+     * 预计剩余可录时长低于该值时告警
+     */
+    public long warnRemainingMs = 5 * 60_000;
+    /**
+     * 预计剩余可录时长低于该值时停止录像
+     */
+    public long stopRemainingMs = 20_000;
+    /**
+     * 剩余空间低于该值时停止录像，为停止录像时写入索引等保留，剩余时长按扣除该值后的空间计算
+     */
+    public long stopFreeBytes = 100L * 1024 * 1024;
+    /**
+     * 同一动作(告警、降码率)的最小间隔
+     */
+    public long actionIntervalMs = 10_000;
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "StoragePolicy{checkInterval=" + checkIntervalMs + "ms,probeInterval=" + probeIntervalMs +
+                "ms,headroom=" + warnHeadroom + "/" + reduceBitrateHeadroom + "/" + stopHeadroom +
+                ",sustainedChecks=" + sustainedChecks + "/" + stopSustainedChecks +
+                ",warnSyncLatency=" + warnSyncLatencyMs + "ms,remaining=" + warnRemainingMs + "/" +
+                stopRemainingMs + "ms,stopFreeBytes=" + stopFreeBytes + ",actionInterval=" + actionIntervalMs + "ms}";
+    }
+}
@@ -0,0 +1,53 @@
+package com.pi.pano;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * 录像存储状态，见{@link IStorageMonitorListener}
+ */
+public final class StorageStatus {
+    /**
+     * 剩余空间
+     */
+    public final long freeBytes;
+    /**
+     * 录像数据速率(编码输出)，-1:未知
+     */
+    public final long incomingBytesPerSecond;
+    /**
+     * 录像文件实际增长的速率(落盘速率)，-1:未知
+     */
+    public final long writeBytesPerSecond;
+    /**
+     * 写入余量：有未落盘的积压时为落盘速率与录像数据速率之比，没有积压时写入能力充足，为{@link Double#POSITIVE_INFINITY}
+     */
+    public final double headroom;
+    /**
+     * 最近一次同步(fsync)探测的耗时，-1:未探测或探测失败
+     */
+    public final long syncLatencyMs;
+    /**
+     * 按当前数据速率预计的剩余可录时长，-1:未知
+     */
+    public final long remainingMs;
+
+    StorageStatus(long freeBytes, long incomingBytesPerSecond, long writeBytesPerSecond, double headroom,
+                  long syncLatencyMs, long remainingMs) {
+        this.freeBytes = freeBytes;
+        this.incomingBytesPerSecond = incomingBytesPerSecond;
+        this.writeBytesPerSecond = writeBytesPerSecond;
+        this.headroom = headroom;
+        this.syncLatencyMs = syncLatencyMs;
+        this.remainingMs = remainingMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "StorageStatus{free=" + freeBytes + ",incoming=" + incomingBytesPerSecond + "B/s,write=" +
+                writeBytesPerSecond + "B/s,headroom=" + String.format(Locale.US, "%.2f", headroom) +
+                ",syncLatency=" + syncLatencyMs + "ms,remaining=" + remainingMs + "ms}";
+    }
+}
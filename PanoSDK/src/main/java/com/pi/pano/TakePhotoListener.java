@@ -1,10 +1,12 @@
 package com.pi.pano;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.pi.pano.annotation.PiPhotoFileFormat;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 拍照回调
@@ -19,6 +21,10 @@ public abstract class TakePhotoListener {
      * 拍照后生成的未拼接文件
      */
     public File mUnStitchFile;
+    /**
+     * 拍照完成的错误码，见{@link PilotSDK#takePhotoAsync}
+     */
+    final CompletableFuture<Integer> mCompletion = new CompletableFuture<>();
 
     /**
      * 拍照采集开始。
@@ -37,7 +43,34 @@ public abstract class TakePhotoListener {
     }
 
     void dispatchTakePhotoComplete(int errorCode) {
+        notifyTakePhotoComplete(errorCode);
+    }
+
+    /**
+     * 回调拍照完成，并完成{@link #mCompletion}
+     */
+    final void notifyTakePhotoComplete(int errorCode) {
         onTakePhotoComplete(errorCode);
+        mCompletion.complete(errorCode);
+    }
+
+    /**
+     * 连拍、间隔拍照中一张结束，在保存线程回调
+     *
+     * @param index     照片序号
+     * @param file      保存的文件，失败或被丢弃时为null
+     * @param errorCode 0:成功，{@link com.pi.pano.error.PiErrorCode#TAKE_PHOTO_DROPPED}:被丢弃
+     */
+    protected void onBurstShotComplete(int index, @Nullable File file, int errorCode) {
+    }
+
+    /**
+     * 连拍、间隔拍照的保存状态，每张结束后回调
+     *
+     * @param shotsPerSecond 持续拍摄速率，张/秒
+     * @param queueDepth     等待保存的张数
+     */
+    protected void onBurstStats(float shotsPerSecond, int queueDepth) {
     }
 
     /**
@@ -21,11 +21,11 @@ public abstract class TakePhotoListener2 extends TakePhotoListener {
         if (PiErrorCode.NOT_INIT == errorCode ||
                 PiErrorCode.CAMERA_NOT_OPENED == errorCode ||
                 PiErrorCode.CAMERA_SESSION_NOT_CREATE == errorCode) {
-            onTakePhotoComplete(errorCode);
+            notifyTakePhotoComplete(errorCode);
             return;
         }
         if (takeCount.incrementAndGet() >= totalTakeCount) {
-            onTakePhotoComplete(errorCode);
+            notifyTakePhotoComplete(errorCode);
         }
     }
 }
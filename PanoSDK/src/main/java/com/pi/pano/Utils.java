@@ -11,7 +11,6 @@ import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ImageReader;
 import android.media.MediaCodec;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaRecorder;
 import android.util.Log;
 import android.util.Range;
@@ -199,16 +198,9 @@ public class Utils {
     }
 
     static Size getVideoSize(String filePath) {
-        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-        try {
-            mmr.setDataSource(filePath);
-            String width = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-            String height = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-            return new Size(Integer.parseInt(width), Integer.parseInt(height));
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            mmr.release();
+        MediaInfoCache.Info info = MediaInfoLoader.getCache().get(new File(filePath));
+        if (info != null && info.width > 0 && info.height > 0) {
+            return new Size(info.width, info.height);
         }
         return null;
     }
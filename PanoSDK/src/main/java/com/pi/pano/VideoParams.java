@@ -90,6 +90,37 @@ public final class VideoParams {
      * 屏幕视频(双码流镜头--录制当前屏幕)
      */
     public boolean screenVideo;
+    /**
+     * 分段录像，单个分段的最长时长（毫秒），小于等于0不按时长分段，只对拼接录像有效
+     */
+    public long segmentDurationMs = 0;
+    /**
+     * 分段录像，单个分段的最大字节数，小于等于0不按大小分段，只对拼接录像有效
+     */
+    public long segmentMaxBytes = 0;
+    /**
+     * 分段录像，剩余存储空间低于该值时结束当前分段，小于等于0不检查
+     */
+    public long segmentMinFreeBytes = 0;
+    /**
+     * 分段录像回调
+     */
+    @Nullable
+    public IRecordSegmentListener segmentListener;
+    /**
+     * 分片MP4的分片间隔（毫秒），大于0时以分片MP4写入，录制中断时已写入的部分仍可播放；小于等于0使用MediaMuxer
+     */
+    public long fragmentDurationMs = 0;
+    /**
+     * 存储监测回调，与{@link #storagePolicy}都为null时不监测
+     */
+    @Nullable
+    public IStorageMonitorListener storageMonitorListener;
+    /**
+     * 存储监测策略，null:使用默认策略
+     */
+    @Nullable
+    public StoragePolicy storagePolicy;
 
     /**
      * 录像中camera出图分辨率、帧率
@@ -153,6 +184,18 @@ public final class VideoParams {
         basicNameInner = null;
     }
 
+    /**
+     * 以本参数录制的文件中断后的恢复配置，见{@link Mp4Recovery}；
+     * 有同一录像的完整文件(如已结束的分段)时优先使用{@link Mp4Recovery.Config#fromReference(String)}
+     */
+    @NonNull
+    public Mp4Recovery.Config getRecoveryConfig() {
+        boolean hasAudio = !useForGoogleMap && memomotionRatio == 0 && channelCount > 0;
+        return Mp4Recovery.Config.create(PiVideoEncode.h_265.equals(encode) ? Mp4TrackFormat.MIME_HEVC :
+                        Mp4TrackFormat.MIME_AVC, videoWidth, videoHeight, fps,
+                hasAudio ? channelCount : 0, useForGoogleMap);
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -175,6 +218,11 @@ public final class VideoParams {
                 ", audioEncoderExtList=" + audioEncoderExtList +
                 ", audioRecordExt=" + audioRecordExt +
                 ", saveConfig=" + saveConfig +
+                ", segmentDurationMs=" + segmentDurationMs +
+                ", segmentMaxBytes=" + segmentMaxBytes +
+                ", segmentMinFreeBytes=" + segmentMinFreeBytes +
+                ", fragmentDurationMs=" + fragmentDurationMs +
+                ", storagePolicy=" + storagePolicy +
                 ", dirPathInner='" + dirPathInner + '\'' +
                 ", basicNameInner='" + basicNameInner + '\'' +
                 '}';
@@ -60,6 +60,14 @@ public @interface PiErrorCode {
      * 拍照请求失败
      */
     int TAKE_PHOTO_CAPTURE_FAILED = 31;
+    /**
+     * 连拍、间隔拍照被取消
+     */
+    int TAKE_PHOTO_CANCELED = 32;
+    /**
+     * 连拍时保存积压，该张照片被丢弃
+     */
+    int TAKE_PHOTO_DROPPED = 33;
     /**
      * hdr拍照完毕，合成时失败
      */
@@ -77,6 +85,10 @@ public @interface PiErrorCode {
      * hdr捕获照片成功后，恢复预览失败
      */
     int HDR_PHOTO_RESTORE_PREVIEW_ERROR = 38;
+    /**
+     * hdr拍照被取消
+     */
+    int HDR_PHOTO_CANCELED = 39;
 
     /**
      * 录制视频，编码器初始化配置失败
@@ -0,0 +1,40 @@
+package com.pi.pano.ext;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 基于缓冲的音频编码扩展处理器。
+ * 直接在编码器的输入缓冲或池化的直接内存上处理，不需要复制到byte[]。
+ * 缓冲均为小端序，16位pcm可通过{@link ByteBuffer#asShortBuffer()}按采样访问。
+ * 仍可加入{@link IAudioEncoderExt}列表，旧的byte[]处理方式由默认实现转换。
+ */
+public interface IAudioBufferEncoderExt extends IAudioEncoderExt {
+
+    /**
+     * 编码处理
+     *
+     * @param in  输入的音频数据（pcm），范围为position到limit，可原地修改
+     * @param out 可写入的输出缓冲，已清空，容量不小于输入
+     * @return 处理结果所在的缓冲(in或out)，范围为position到limit；null:未处理，数据保持不变
+     */
+    @Nullable
+    ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out);
+
+    @Override
+    default int encodeProcess(byte[] inBuffer, int length, byte[] outBuffer) {
+        ByteBuffer in = ByteBuffer.wrap(inBuffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.wrap(outBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result = encodeProcess(in, out);
+        if (result == null) {
+            return -1;
+        }
+        // 旧方式处理后的数据需在outBuffer起始处
+        int size = result.remaining();
+        System.arraycopy(result == in ? inBuffer : outBuffer, result.position(), outBuffer, 0, size);
+        return size;
+    }
+}
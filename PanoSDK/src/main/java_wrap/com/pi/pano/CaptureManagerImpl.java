@@ -5,6 +5,7 @@ import android.os.HandlerThread;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.pi.pano.annotation.PiPhotoFileFormat;
 import com.pi.pano.error.PiError;
@@ -135,6 +136,35 @@ public class CaptureManagerImpl implements ICaptureManager {
         });
     }
 
+    @Override
+    public void prepareRecord(@NonNull VideoParams params) {
+        Log.d(TAG, "prepareRecord :" + params);
+        sExecutor.execute(() -> {
+            try {
+                PilotSDK.prepareVideo(params);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(TAG, "prepareRecord error :" + e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void releaseRecordEncoders() {
+        sExecutor.execute(PilotSDK::releaseVideoEncoders);
+    }
+
+    @Nullable
+    @Override
+    public RecordTelemetrySnapshot getRecordTelemetry() {
+        return PilotSDK.getRecordTelemetry();
+    }
+
+    @Override
+    public void setRecordTelemetryListener(@Nullable IRecordTelemetryListener listener, long intervalMs) {
+        PilotSDK.setRecordTelemetryListener(listener, intervalMs);
+    }
+
     @Override
     public void stopRecord(boolean continueRecord, IVideoListener listener) {
         Log.d(TAG, "stopRecord start continueRecord:" + continueRecord + "," + stopBySelf.get() + "," + listener);
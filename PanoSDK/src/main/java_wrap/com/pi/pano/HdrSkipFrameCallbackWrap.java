@@ -1,7 +1,5 @@
 package com.pi.pano;
 
-import android.os.SystemClock;
-
 import com.pi.pano.error.PiError;
 
 public class HdrSkipFrameCallbackWrap implements PiCallback {
@@ -15,15 +13,12 @@ public class HdrSkipFrameCallbackWrap implements PiCallback {
 
     @Override
     public void onSuccess() {
-        new Thread(() -> {
-            while (mPiPano.mSkipFrameWithTakeHdr > 0) {
-                SystemClock.sleep(50);
-            }
+        mPiPano.waitSkipFrameWithTakeHdr().thenRunAsync(() -> {
             if (mPiCallback != null) {
                 mPiCallback.onSuccess();
             }
             release();
-        }).start();
+        });
     }
 
     @Override
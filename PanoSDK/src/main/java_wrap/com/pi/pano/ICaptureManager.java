@@ -1,6 +1,7 @@
 package com.pi.pano;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.pi.pano.annotation.PiResolution;
 import com.pi.pano.wrap.IPhotoListener;
@@ -38,6 +39,33 @@ public interface ICaptureManager {
      */
     void startRecord(@NonNull VideoParams params, IVideoListener listener);
 
+    /**
+     * 预先创建录像编码器，缩短开始录像的耗时，参数与之后开始录像的参数一致时生效
+     *
+     * @param params 录像参数
+     */
+    void prepareRecord(@NonNull VideoParams params);
+
+    /**
+     * 释放预先创建的录像编码器
+     */
+    void releaseRecordEncoders();
+
+    /**
+     * 获取当前录像的状态统计：编码、封装耗时，各轨道帧数、丢帧数、码率。
+     * 未在录像时为最近一次录像的统计，未录像过为null
+     */
+    @Nullable
+    RecordTelemetrySnapshot getRecordTelemetry();
+
+    /**
+     * 设置录像状态统计的定时回调，录像中按周期在主线程回调
+     *
+     * @param listener   回调，null:取消
+     * @param intervalMs 回调周期
+     */
+    void setRecordTelemetryListener(@Nullable IRecordTelemetryListener listener, long intervalMs);
+
     /**
      * 停止录像
      *
@@ -36,6 +36,7 @@ public class PilotLib {
         INIT.set(true);
         PilotLib self = self();
         self.mContext = context.getApplicationContext();
+        MediaInfoLoader.attachDiskStore(self.mContext);
         self.mPreview = new PreviewManagerImpl();
         self.mCaptureManager = new CaptureManagerImpl();
         self.mPlayerManager = new PlayerManagerImpl();
@@ -1,13 +1,11 @@
 package com.pi.pano.wrap;
 
 import android.content.Context;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Surface;
@@ -17,6 +15,8 @@ import android.view.SurfaceView;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.pi.pano.MediaInfoCache;
+import com.pi.pano.MediaInfoLoader;
 import com.pi.pano.MediaPlayerSurfaceView;
 
 import java.io.File;
@@ -106,21 +106,12 @@ public class VideoPlayerView extends SurfaceView {
 
     @Nullable
     public static int[] obtainVideoSize(File file) {
-        int[] ret = null;
-        try (MediaMetadataRetriever retriever = new MediaMetadataRetriever()) {
-            retriever.setDataSource(file.getAbsolutePath());
-            String video_width = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-            String video_height = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT);
-            if (!TextUtils.isEmpty(video_width) && !TextUtils.isEmpty(video_height)) {
-                ret = new int[2];
-                ret[0] = Integer.parseInt(video_width);
-                ret[1] = Integer.parseInt(video_height);
-            }
-        } catch (Exception ex) {
-            Log.d(TAG, "obtainVideoSize,ex:" + ex);
-            ex.printStackTrace();
+        MediaInfoCache.Info info = MediaInfoLoader.getCache().get(file);
+        if (info == null || info.width <= 0 || info.height <= 0) {
+            Log.d(TAG, "obtainVideoSize,no video size:" + file);
+            return null;
         }
-        return ret;
+        return new int[]{info.width, info.height};
     }
 
     /**
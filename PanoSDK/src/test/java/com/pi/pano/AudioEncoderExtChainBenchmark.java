@@ -0,0 +1,198 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.pi.pano.ext.IAudioBufferEncoderExt;
+import com.pi.pano.ext.IAudioEncoderExt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 处理链与原byte[]交替处理方式的对比：每帧复制次数、分配字节数与耗时。
+ * 帧为4声道48kHz 16位的20ms数据。
+ */
+public class AudioEncoderExtChainBenchmark {
+    private static final int FRAME_SIZE = 48000 / 50 * 4 * 2;
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 1000;
+
+    private abstract static class Stage implements IAudioEncoderExt {
+        @Override
+        public void configure(int sampleRateInHz, int channelCount, int audioFormat) {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void onUseExtChanged(boolean used) {
+        }
+    }
+
+    /**
+     * byte[]处理：采样减半，写入outBuffer
+     */
+    private static final class ArrayHalve extends Stage {
+        @Override
+        public int encodeProcess(byte[] inBuffer, int length, byte[] outBuffer) {
+            for (int i = 0; i + 1 < length; i += 2) {
+                short sample = (short) (((inBuffer[i] & 0xff) | (inBuffer[i + 1] << 8)) >> 1);
+                outBuffer[i] = (byte) sample;
+                outBuffer[i + 1] = (byte) (sample >> 8);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * 缓冲处理：采样减半，原地处理
+     */
+    private static final class BufferHalve extends Stage implements IAudioBufferEncoderExt {
+        @Nullable
+        @Override
+        public ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+            ShortBuffer samples = in.asShortBuffer();
+            for (int i = 0; i < samples.limit(); i++) {
+                samples.put(i, (short) (samples.get(i) >> 1));
+            }
+            return in;
+        }
+    }
+
+    /**
+     * 原处理方式，与替换前AudioThread中的循环一致
+     */
+    private static final class Legacy {
+        final List<IAudioEncoderExt> stages;
+        final byte[] buffer = new byte[FRAME_SIZE];
+
+        Legacy(List<IAudioEncoderExt> stages) {
+            this.stages = stages;
+        }
+
+        int process(byte[] data, int readCount, ByteBuffer inputBuffer) {
+            byte[] in = data;
+            byte[] out = buffer;
+            byte[] dst = in;
+            for (IAudioEncoderExt encoderExt : stages) {
+                int count = encoderExt.encodeProcess(in, readCount, out);
+                if (count != -1) {
+                    readCount = count;
+                    dst = out;
+                    out = in;
+                    in = dst;
+                }
+            }
+            inputBuffer.put(dst, 0, readCount);
+            return readCount;
+        }
+
+        /**
+         * 写入编码器输入缓冲一次，另外基于缓冲的处理器经byte[]转换调用时，每次都将结果复制到outBuffer起始处
+         */
+        int copiesPerFrame() {
+            int copies = 1;
+            for (IAudioEncoderExt stage : stages) {
+                if (stage instanceof IAudioBufferEncoderExt) {
+                    copies++;
+                }
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * 之后还有byte[]处理器的基于缓冲的处理器，处理链按byte[]方式调用，每次复制一次
+     */
+    private static int adapterStages(List<IAudioEncoderExt> stages) {
+        int count = 0;
+        boolean arrayAfter = false;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (!(stages.get(i) instanceof IAudioBufferEncoderExt)) {
+                arrayAfter = true;
+            } else if (arrayAfter) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] frame() {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static void compare(String name, List<IAudioEncoderExt> stages) throws Exception {
+        byte[] data = frame();
+        ByteBuffer target = ByteBuffer.allocateDirect(FRAME_SIZE);
+        Legacy legacy = new Legacy(stages);
+        AudioEncoderExtChain chain = new AudioEncoderExtChain(stages, FRAME_SIZE);
+
+        Benchmarks.Op legacyOp = () -> {
+            target.clear();
+            legacy.process(data, FRAME_SIZE, target);
+        };
+        Benchmarks.Op chainOp = () -> {
+            target.clear();
+            chain.process(data, FRAME_SIZE, target);
+        };
+        double legacyNs = Benchmarks.nanosPerOp(WARMUP, ROUNDS, ITERATIONS, legacyOp);
+        double chainNs = Benchmarks.nanosPerOp(WARMUP, ROUNDS, ITERATIONS, chainOp);
+        double legacyAlloc = Benchmarks.allocatedBytesPerOp(ITERATIONS, legacyOp);
+        long frames = chain.getFrameCount();
+        long copies = chain.getCopyCount();
+        double chainAlloc = Benchmarks.allocatedBytesPerOp(ITERATIONS, chainOp);
+        double chainCopies = (double) (chain.getCopyCount() - copies) / (chain.getFrameCount() - frames)
+                + adapterStages(stages);
+
+        Benchmarks.report("AudioEncoderExtChain/" + name,
+                "legacy %.0fns %d copies %.0fB alloc per frame; chain %.0fns %.1f copies %.0fB alloc per frame",
+                legacyNs, legacy.copiesPerFrame(), legacyAlloc, chainNs, chainCopies, chainAlloc);
+        assertTrue(chainCopies <= legacy.copiesPerFrame());
+        if (chainAlloc >= 0 && adapterStages(stages) == 0) {
+            // 缓冲均在创建时分配，处理时不分配
+            assertTrue("chain allocates " + chainAlloc + "B per frame", chainAlloc < 16);
+        }
+    }
+
+    @Test
+    public void arrayStages() throws Exception {
+        compare("array", Arrays.asList(new ArrayHalve(), new ArrayHalve()));
+    }
+
+    @Test
+    public void bufferStages() throws Exception {
+        List<IAudioEncoderExt> stages = Arrays.asList(new BufferHalve(), new BufferHalve());
+        compare("buffer", stages);
+        AudioEncoderExtChain chain = new AudioEncoderExtChain(stages, FRAME_SIZE);
+        chain.process(frame(), FRAME_SIZE, ByteBuffer.allocateDirect(FRAME_SIZE));
+        // 原地处理的处理器只在写入编码器输入缓冲时复制一次，原方式每个处理器还需一次
+        assertEquals(1, chain.getCopyCount());
+        assertEquals(3, new Legacy(stages).copiesPerFrame());
+    }
+
+    @Test
+    public void trailingBufferStages() throws Exception {
+        compare("trailing-buffer", Arrays.asList(new ArrayHalve(), new BufferHalve(), new BufferHalve()));
+    }
+
+    @Test
+    public void interleavedStages() throws Exception {
+        // 中间的基于缓冲的处理器按byte[]方式调用，与原方式相同
+        compare("interleaved", Arrays.asList(new ArrayHalve(), new BufferHalve(), new ArrayHalve()));
+    }
+}
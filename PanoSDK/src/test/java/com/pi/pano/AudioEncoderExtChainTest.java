@@ -0,0 +1,201 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.pi.pano.ext.IAudioBufferEncoderExt;
+import com.pi.pano.ext.IAudioEncoderExt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class AudioEncoderExtChainTest {
+    private static final int MAX_SIZE = 4096;
+
+    private abstract static class ArrayStage implements IAudioEncoderExt {
+        @Override
+        public void configure(int sampleRateInHz, int channelCount, int audioFormat) {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void onUseExtChanged(boolean used) {
+        }
+    }
+
+    private abstract static class BufferStage extends ArrayStage implements IAudioBufferEncoderExt {
+    }
+
+    /**
+     * byte[]处理：每个16位采样乘2
+     */
+    private static final class ArrayGain extends ArrayStage {
+        @Override
+        public int encodeProcess(byte[] inBuffer, int length, byte[] outBuffer) {
+            for (int i = 0; i + 1 < length; i += 2) {
+                short sample = (short) ((inBuffer[i] & 0xff) | (inBuffer[i + 1] << 8));
+                sample = (short) (sample * 2);
+                outBuffer[i] = (byte) sample;
+                outBuffer[i + 1] = (byte) (sample >> 8);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * byte[]处理：不处理
+     */
+    private static final class ArraySkip extends ArrayStage {
+        @Override
+        public int encodeProcess(byte[] inBuffer, int length, byte[] outBuffer) {
+            return -1;
+        }
+    }
+
+    /**
+     * 缓冲处理：原地取反
+     */
+    private static final class BufferInvert extends BufferStage {
+        @Nullable
+        @Override
+        public ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+            for (int i = in.position(); i + 1 < in.limit(); i += 2) {
+                in.putShort(i, (short) -in.getShort(i));
+            }
+            return in;
+        }
+    }
+
+    /**
+     * 缓冲处理：双声道转单声道，输出到out
+     */
+    private static final class BufferDownmix extends BufferStage {
+        @Nullable
+        @Override
+        public ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+            while (in.remaining() >= 4) {
+                int left = in.getShort();
+                int right = in.getShort();
+                out.putShort((short) ((left + right) / 2));
+            }
+            out.flip();
+            return out;
+        }
+    }
+
+    /**
+     * 缓冲处理：去掉开头的一个采样，原地返回，数据不再从起始处开始
+     */
+    private static final class BufferTrimFront extends BufferStage {
+        @Nullable
+        @Override
+        public ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+            in.position(in.position() + 2);
+            return in;
+        }
+    }
+
+    /**
+     * 缓冲处理：不处理
+     */
+    private static final class BufferSkip extends BufferStage {
+        @Nullable
+        @Override
+        public ByteBuffer encodeProcess(@NonNull ByteBuffer in, @NonNull ByteBuffer out) {
+            in.position(in.limit());
+            return null;
+        }
+    }
+
+    private static byte[] pcm(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 7 + 3);
+        }
+        return data;
+    }
+
+    /**
+     * 原处理方式：所有处理器都按byte[]依次处理
+     */
+    private static byte[] reference(List<IAudioEncoderExt> stages, byte[] input) {
+        byte[] data = input.clone();
+        int size = data.length;
+        for (IAudioEncoderExt stage : stages) {
+            byte[] out = new byte[MAX_SIZE];
+            int count = stage.encodeProcess(data, size, out);
+            if (count != -1) {
+                data = out;
+                size = count;
+            }
+        }
+        return Arrays.copyOf(data, size);
+    }
+
+    private static void assertSameAsReference(List<IAudioEncoderExt> stages) {
+        byte[] input = pcm(2048);
+        byte[] expected = reference(stages, input);
+        AudioEncoderExtChain chain = new AudioEncoderExtChain(stages, MAX_SIZE);
+        for (int base : new int[]{0, 16}) {
+            ByteBuffer target = ByteBuffer.allocateDirect(MAX_SIZE + 64);
+            target.position(base);
+            int size = chain.process(input.clone(), input.length, target);
+            assertEquals(expected.length, size);
+            assertEquals(base + size, target.position());
+            byte[] actual = new byte[size];
+            ByteBuffer written = target.duplicate();
+            written.position(base);
+            written.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void noStagesCopiesOnce() {
+        AudioEncoderExtChain chain = new AudioEncoderExtChain(Collections.emptyList(), MAX_SIZE);
+        ByteBuffer target = ByteBuffer.allocateDirect(MAX_SIZE);
+        assertEquals(2048, chain.process(pcm(2048), 2048, target));
+        assertEquals(1, chain.getCopyCount());
+        assertEquals(2048, chain.getCopyBytes());
+    }
+
+    @Test
+    public void arrayStagesMatchReference() {
+        assertSameAsReference(Arrays.asList(new ArrayGain(), new ArraySkip(), new ArrayGain()));
+    }
+
+    @Test
+    public void bufferStagesMatchReference() {
+        assertSameAsReference(Arrays.asList(new BufferInvert(), new BufferSkip(), new BufferDownmix(),
+                new BufferTrimFront(), new BufferInvert()));
+    }
+
+    @Test
+    public void mixedStagesMatchReference() {
+        assertSameAsReference(Arrays.asList(new ArrayGain(), new BufferDownmix(), new ArrayGain(),
+                new BufferTrimFront()));
+        assertSameAsReference(Arrays.asList(new BufferTrimFront(), new ArraySkip(), new BufferInvert(),
+                new BufferDownmix()));
+    }
+
+    @Test
+    public void inPlaceBufferStagesAvoidExtraCopies() {
+        AudioEncoderExtChain chain = new AudioEncoderExtChain(
+                Arrays.asList(new BufferInvert(), new BufferInvert()), MAX_SIZE);
+        ByteBuffer target = ByteBuffer.allocateDirect(MAX_SIZE);
+        chain.process(pcm(2048), 2048, target);
+        // 只有复制到编码器输入缓冲的一次
+        assertEquals(1, chain.getCopyCount());
+        assertEquals(1, chain.getFrameCount());
+    }
+}
@@ -0,0 +1,75 @@
+package com.pi.pano;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * 基准测试的计时与分配统计。
+ * 每轮执行固定次数，取各轮中最快的一轮，减少调度与GC的干扰；结果输出到标准输出，便于在不同机器上对比。
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * 可抛出异常的单次操作
+     */
+    interface Op {
+        void run() throws Exception;
+    }
+
+    /**
+     * @return 每次操作的纳秒数(各轮最小值)
+     */
+    static double nanosPerOp(int warmup, int rounds, int iterations, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            op.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                op.run();
+            }
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return (double) best / iterations;
+    }
+
+    /**
+     * 当前线程累计分配的字节数
+     *
+     * @return 不支持统计时返回-1
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 操作已预热后，每次操作平均分配的字节数
+     *
+     * @return 不支持统计时返回-1
+     */
+    static double allocatedBytesPerOp(int iterations, Op op) throws Exception {
+        long begin = allocatedBytes();
+        if (begin < 0) {
+            return -1;
+        }
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return (double) (allocatedBytes() - begin) / iterations;
+    }
+
+    static void report(String benchmark, String format, Object... args) {
+        System.out.println("[benchmark] " + benchmark + ": " + String.format(Locale.ROOT, format, args));
+    }
+}
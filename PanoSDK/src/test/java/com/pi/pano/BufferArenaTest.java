@@ -0,0 +1,181 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BufferArenaTest {
+
+    private static ByteBuffer bytes(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void allocationIsRoundedAndLimitedByBudget() {
+        BufferArena arena = new BufferArena(4096, 1024);
+        BufferArena.Block block = arena.allocate(1500);
+        assertNotNull(block);
+        assertEquals(2048, block.capacity());
+        assertEquals(2048, arena.getAllocatedBytes());
+        assertNotNull(arena.allocate(2048));
+        assertNull(arena.allocate(1));
+        assertNull(new BufferArena(4096, 1024).allocate(4097));
+        assertEquals(4096, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferArena arena = new BufferArena(8192, 1024);
+        BufferArena.Block first = arena.allocate(2000);
+        arena.release(first);
+        assertEquals(2048, arena.getFreeBytes());
+        // 重复归还忽略
+        arena.release(first);
+        arena.release(null);
+        assertEquals(2048, arena.getFreeBytes());
+
+        BufferArena.Block second = arena.allocate(1900);
+        assertEquals(2048, second.capacity());
+        assertEquals(0, arena.getFreeBytes());
+        assertEquals(2048, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void smallRequestDoesNotTakeLargeBuffer() {
+        BufferArena arena = new BufferArena(8192, 1024);
+        arena.release(arena.allocate(4096));
+        BufferArena.Block small = arena.allocate(100);
+        assertEquals(1024, small.capacity());
+        assertEquals(4096, arena.getFreeBytes());
+        assertEquals(5120, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void freeBuffersAreDroppedToMakeRoom() {
+        BufferArena arena = new BufferArena(4096, 1024);
+        BufferArena.Block kept = arena.allocate(1024);
+        arena.release(arena.allocate(3072));
+        BufferArena.Block block = arena.allocate(1024);
+        assertEquals(1024, block.capacity());
+        assertEquals(0, arena.getFreeBytes());
+        assertEquals(2048, arena.getAllocatedBytes());
+        // 使用中的缓存不会被释放
+        assertNull(arena.allocate(3072));
+        arena.release(kept);
+        arena.release(block);
+        arena.trim();
+        assertEquals(0, arena.getAllocatedBytes());
+        assertEquals(0, arena.getFreeBytes());
+        assertNotNull(arena.allocate(4096));
+    }
+
+    @Test
+    public void putTruncatesAndDataIsReadBack() throws IOException {
+        BufferArena arena = new BufferArena(4096, 1024);
+        BufferArena.Block block = arena.allocate(1024);
+        ByteBuffer src = bytes(1500);
+        assertEquals(1024, block.put(src));
+        // 不改变源的位置
+        assertEquals(0, src.position());
+        assertEquals(1024, block.size());
+        ByteBuffer data = block.data();
+        assertEquals(0, data.position());
+        assertEquals(1024, data.limit());
+
+        byte[] expected = new byte[1024];
+        bytes(1024).get(expected);
+        byte[] actual = new byte[1024];
+        try (InputStream in = block.openStream()) {
+            assertEquals(0, in.read());
+            assertEquals(1, in.read());
+            assertEquals(10, in.skip(10));
+            assertEquals(1012, in.available());
+            // 跳过的部分不比较
+            System.arraycopy(expected, 0, actual, 0, 12);
+            int offset = 12;
+            int read;
+            while ((read = in.read(actual, offset, actual.length - offset)) > 0) {
+                offset += read;
+            }
+            assertEquals(1024, offset);
+            assertEquals(-1, in.read());
+            assertEquals(-1, in.read(new byte[4], 0, 4));
+        }
+        assertArrayEquals(expected, actual);
+
+        arena.release(block);
+        assertEquals(0, block.size());
+    }
+
+    @Test
+    public void highByteValuesAreUnsigned() throws IOException {
+        BufferArena arena = new BufferArena(1024, 1024);
+        BufferArena.Block block = arena.allocate(2);
+        block.put(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0x80}));
+        try (InputStream in = block.openStream()) {
+            assertEquals(0xff, in.read());
+            assertEquals(0x80, in.read());
+        }
+        assertTrue(arena.toString().startsWith("BufferArena{allocated=1024"));
+    }
+
+    @Test
+    public void timedAllocateWaitsForRelease() throws Exception {
+        BufferArena arena = new BufferArena(2048, 1024);
+        BufferArena.Block held = arena.allocate(2048);
+        AtomicReference<BufferArena.Block> allocated = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                allocated.set(arena.allocate(1024, 5000));
+            } catch (InterruptedException ignore) {
+            }
+            done.countDown();
+        });
+        waiter.start();
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        arena.release(held);
+        // 由归还唤醒，不等到超时
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        // 复用归还的缓存
+        assertEquals(2048, allocated.get().capacity());
+    }
+
+    @Test
+    public void timedAllocateGivesUp() throws Exception {
+        BufferArena arena = new BufferArena(2048, 1024);
+        // 单个超出预算、没有使用中的缓存时不等待
+        assertNull(arena.allocate(4096, 5000));
+        BufferArena.Block held = arena.allocate(2048);
+        long begin = System.nanoTime();
+        assertNull(arena.allocate(1024, 30));
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(30));
+        arena.release(held);
+        assertNotNull(arena.allocate(2048, 0));
+
+        Thread.currentThread().interrupt();
+        try {
+            arena.allocate(1024, 1000);
+            fail();
+        } catch (InterruptedException expected) {
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class BurstCapturePipelineTest {
+
+    /**
+     * 图像为序号，可阻塞保存以制造积压
+     */
+    private static final class FakeWriter implements BurstCapturePipeline.Writer<Integer>,
+            BurstCapturePipeline.Listener {
+        final List<Integer> recycled = new CopyOnWriteArrayList<>();
+        final List<Integer> degraded = new CopyOnWriteArrayList<>();
+        final Map<Integer, Integer> results = new ConcurrentHashMap<>();
+        final Semaphore started = new Semaphore(0);
+        volatile CountDownLatch gate;
+        volatile int failIndex = -1;
+
+        @Override
+        public int write(int index, @NonNull Integer image, boolean degraded) throws Exception {
+            started.release();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                latch.await();
+            }
+            if (degraded) {
+                this.degraded.add(index);
+            }
+            if (index == failIndex) {
+                throw new IllegalStateException("disk full");
+            }
+            return 0;
+        }
+
+        @Override
+        public void recycle(@NonNull Integer image) {
+            recycled.add(image);
+        }
+
+        @Override
+        public void onShotComplete(int index, int result, int errorCode) {
+            results.put(index, result);
+        }
+
+        void awaitResults(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (results.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, results.size());
+        }
+    }
+
+    private final FakeWriter mWriter = new FakeWriter();
+    private BurstCapturePipeline<Integer> mPipeline;
+
+    private BurstCapturePipeline<Integer> newPipeline(int threads, int capacity, BurstCapturePipeline.Policy policy) {
+        mPipeline = new BurstCapturePipeline<>(threads, capacity, policy, mWriter, System::nanoTime);
+        mPipeline.setListener(mWriter);
+        return mPipeline;
+    }
+
+    @After
+    public void tearDown() {
+        if (mPipeline != null) {
+            CountDownLatch gate = mWriter.gate;
+            if (gate != null) {
+                gate.countDown();
+            }
+            mPipeline.cancel();
+        }
+    }
+
+    @Test
+    public void allShotsAreWrittenAndRecycled() throws Exception {
+        BurstCapturePipeline<Integer> pipeline = newPipeline(2, 4, BurstCapturePipeline.Policy.BLOCK);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(pipeline.offer(i, i));
+        }
+        pipeline.close();
+        assertEquals(20, mWriter.results.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(BurstCapturePipeline.RESULT_WRITTEN, (int) mWriter.results.get(i));
+        }
+        assertEquals(20, mWriter.recycled.size());
+        assertEquals(20, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getPendingCount());
+        assertTrue(pipeline.getShotsPerSecond() > 0);
+        assertEquals(20, pipeline.getWriteLatency().getCount());
+        assertTrue(pipeline.toString().startsWith("BurstCapturePipeline{policy=BLOCK"));
+    }
+
+    @Test
+    public void dropPolicyDropsWhenQueueIsFull() throws Exception {
+        mWriter.gate = new CountDownLatch(1);
+        BurstCapturePipeline<Integer> pipeline = newPipeline(1, 1, BurstCapturePipeline.Policy.DROP);
+        assertTrue(pipeline.offer(0, 0));
+        // 写入线程正在保存第0张，第1张在队列中
+        assertTrue(mWriter.started.tryAcquire(1, TimeUnit.SECONDS));
+        assertTrue(pipeline.offer(1, 1));
+        assertFalse(pipeline.offer(2, 2));
+        assertEquals(BurstCapturePipeline.RESULT_DROPPED, (int) mWriter.results.get(2));
+        assertTrue(mWriter.recycled.contains(2));
+        assertEquals(2, pipeline.getPendingCount());
+        assertEquals(1, pipeline.getMaxQueueDepth());
+
+        mWriter.gate.countDown();
+        pipeline.close();
+        assertEquals(2, pipeline.getWrittenCount());
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(3, mWriter.recycled.size());
+    }
+
+    @Test
+    public void blockPolicyWaitsForSpace() throws Exception {
+        mWriter.gate = new CountDownLatch(1);
+        BurstCapturePipeline<Integer> pipeline = newPipeline(1, 1, BurstCapturePipeline.Policy.BLOCK);
+        pipeline.offer(0, 0);
+        assertTrue(mWriter.started.tryAcquire(1, TimeUnit.SECONDS));
+        pipeline.offer(1, 1);
+        CountDownLatch offered = new CountDownLatch(1);
+        new Thread(() -> {
+            pipeline.offer(2, 2);
+            offered.countDown();
+        }).start();
+        assertFalse(offered.await(50, TimeUnit.MILLISECONDS));
+        mWriter.gate.countDown();
+        assertTrue(offered.await(1, TimeUnit.SECONDS));
+        pipeline.close();
+        assertEquals(3, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void degradePolicyDegradesWhenBacklogged() throws Exception {
+        mWriter.gate = new CountDownLatch(1);
+        BurstCapturePipeline<Integer> pipeline = newPipeline(1, 4, BurstCapturePipeline.Policy.DEGRADE);
+        pipeline.offer(0, 0);
+        assertTrue(mWriter.started.tryAcquire(1, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            pipeline.offer(i, i);
+        }
+        mWriter.gate.countDown();
+        pipeline.close();
+        // 队列中有2张(容量的一半)后放入的降级保存
+        assertEquals(3, pipeline.getWrittenCount());
+        assertEquals(2, pipeline.getDegradedCount());
+        assertTrue(mWriter.degraded.contains(3));
+        assertTrue(mWriter.degraded.contains(4));
+        assertEquals(BurstCapturePipeline.RESULT_DEGRADED, (int) mWriter.results.get(4));
+    }
+
+    @Test
+    public void failedWriteIsReportedAndRecycled() throws Exception {
+        mWriter.failIndex = 1;
+        BurstCapturePipeline<Integer> pipeline = newPipeline(1, 4, BurstCapturePipeline.Policy.BLOCK);
+        pipeline.offer(0, 0);
+        pipeline.offer(1, 1);
+        pipeline.drop(2);
+        pipeline.close();
+        assertEquals(BurstCapturePipeline.RESULT_FAILED, (int) mWriter.results.get(1));
+        assertEquals(BurstCapturePipeline.RESULT_DROPPED, (int) mWriter.results.get(2));
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(1, pipeline.getDroppedCount());
+        // 未放入的一张没有图像可回收
+        assertEquals(2, mWriter.recycled.size());
+        assertEquals(0, pipeline.getPendingCount());
+    }
+
+    @Test
+    public void cancelDropsQueuedShots() throws Exception {
+        mWriter.gate = new CountDownLatch(1);
+        BurstCapturePipeline<Integer> pipeline = newPipeline(1, 4, BurstCapturePipeline.Policy.BLOCK);
+        for (int i = 0; i < 4; i++) {
+            pipeline.offer(i, i);
+        }
+        assertTrue(mWriter.started.tryAcquire(1, TimeUnit.SECONDS));
+        pipeline.cancel();
+        assertEquals(3, pipeline.getDroppedCount());
+        assertEquals(0, pipeline.getQueueDepth());
+        // 关闭后放入的直接丢弃
+        assertFalse(pipeline.offer(4, 4));
+        // 正在保存的一张继续完成
+        mWriter.gate.countDown();
+        mWriter.awaitResults(5);
+        assertEquals(BurstCapturePipeline.RESULT_WRITTEN, (int) mWriter.results.get(0));
+        assertEquals(5, mWriter.recycled.size());
+    }
+}
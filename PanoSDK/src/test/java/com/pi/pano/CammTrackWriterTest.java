@@ -0,0 +1,147 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CammTrackWriterTest {
+
+    private static final class Packet {
+        final ByteBuffer data;
+        final long timeUs;
+
+        Packet(ByteBuffer data, long timeUs) {
+            this.data = data;
+            this.timeUs = timeUs;
+        }
+    }
+
+    private final List<Packet> mPackets = new ArrayList<>();
+    private final CammTrackWriter mWriter = new CammTrackWriter((buffer, size, presentationTimeUs) -> {
+        ByteBuffer copy = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer src = buffer.duplicate();
+        src.position(0);
+        src.limit(size);
+        copy.put(src);
+        copy.flip();
+        mPackets.add(new Packet(copy, presentationTimeUs));
+    });
+
+    @Test
+    public void vectorPacketLayout() {
+        mWriter.writeGyro(1000, 0.5f, -1f, 2f);
+        assertEquals(1, mPackets.size());
+        ByteBuffer data = mPackets.get(0).data;
+        assertEquals(CammTrackWriter.SIZE_VECTOR, data.remaining());
+        assertEquals(0, data.getShort());
+        assertEquals(CammTrackWriter.TYPE_GYRO, data.getShort());
+        assertEquals(0.5f, data.getFloat(), 0f);
+        assertEquals(-1f, data.getFloat(), 0f);
+        assertEquals(2f, data.getFloat(), 0f);
+        assertEquals(1000, mPackets.get(0).timeUs);
+    }
+
+    @Test
+    public void eachPacketIsOneSampleWithItsType() {
+        mWriter.writeAcceleration(0, 0, 0, 9.8f);
+        mWriter.writeMagneticField(1, 1, 2, 3);
+        mWriter.writeAngleAxis(2, 1, 2, 3);
+        mWriter.writePosition(3, 1, 2, 3);
+        mWriter.writeExposure(4, 10_000, 20_000);
+        mWriter.writeLatLonAlt(5, 22.5, 114.0, 10);
+        int[] types = {CammTrackWriter.TYPE_ACCELERATION, CammTrackWriter.TYPE_MAGNETIC_FIELD,
+                CammTrackWriter.TYPE_ANGLE_AXIS, CammTrackWriter.TYPE_POSITION,
+                CammTrackWriter.TYPE_EXPOSURE, CammTrackWriter.TYPE_LAT_LON_ALT};
+        assertEquals(types.length, mPackets.size());
+        for (int i = 0; i < types.length; i++) {
+            assertEquals(types[i], mPackets.get(i).data.getShort(2));
+        }
+        assertEquals(CammTrackWriter.SIZE_EXPOSURE, mPackets.get(4).data.remaining());
+        assertEquals(20_000, mPackets.get(4).data.getInt(8));
+        assertEquals(CammTrackWriter.SIZE_LAT_LON_ALT, mPackets.get(5).data.remaining());
+        assertEquals(114.0, mPackets.get(5).data.getDouble(12), 0);
+        assertEquals(types.length, mWriter.getPacketCount());
+    }
+
+    @Test
+    public void gpsPacketLayout() {
+        mWriter.writeGps(100, 1.3e9, 3, 22.5, 114.0, 10f, 5f, 6f, 1f, 2f, 0f, 0.5f);
+        ByteBuffer data = mPackets.get(0).data;
+        assertEquals(CammTrackWriter.SIZE_GPS, data.remaining());
+        data.position(4);
+        assertEquals(1.3e9, data.getDouble(), 0);
+        assertEquals(3, data.getInt());
+        assertEquals(22.5, data.getDouble(), 0);
+        assertEquals(114.0, data.getDouble(), 0);
+        assertEquals(10f, data.getFloat(), 0f);
+        assertEquals(5f, data.getFloat(), 0f);
+        assertEquals(6f, data.getFloat(), 0f);
+        assertEquals(1f, data.getFloat(), 0f);
+        assertEquals(2f, data.getFloat(), 0f);
+        assertEquals(0f, data.getFloat(), 0f);
+        assertEquals(0.5f, data.getFloat(), 0f);
+        assertEquals(0, data.remaining());
+    }
+
+    @Test
+    public void timestampsNeverDecrease() {
+        mWriter.writeGyro(500, 0, 0, 0);
+        mWriter.writeAcceleration(400, 0, 0, 0);
+        mWriter.writeGyro(600, 0, 0, 0);
+        assertEquals(500, mPackets.get(1).timeUs);
+        assertEquals(600, mPackets.get(2).timeUs);
+        assertEquals(3L * CammTrackWriter.SIZE_VECTOR, mWriter.getByteCount());
+    }
+
+    @Test
+    public void imuSamplesInterleaveByTimestamp() {
+        ImuRingBuffer accelerometer = new ImuRingBuffer(64);
+        ImuRingBuffer gyroscope = new ImuRingBuffer(64);
+        // 加速度100Hz，陀螺仪200Hz，时间戳错开
+        for (int i = 0; i < 10; i++) {
+            accelerometer.put(1000_000_000L + i * 10_000_000L, i, 2 * i, 3 * i);
+        }
+        for (int i = 0; i < 20; i++) {
+            gyroscope.put(1002_000_000L + i * 5_000_000L, -i, 0, 0);
+        }
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        // 参考点为第60ms，对应视频时间2s
+        final long refNs = 1060_000_000L;
+        assertEquals(7 + 12, mWriter.writeImu(accelerometer, gyroscope, refNs, 2000_000, sample));
+
+        long last = Long.MIN_VALUE;
+        int gyro = 0;
+        int acceleration = 0;
+        for (Packet packet : mPackets) {
+            assertTrue(packet.timeUs > last);
+            last = packet.timeUs;
+            int type = packet.data.getShort(2);
+            if (type == CammTrackWriter.TYPE_GYRO) {
+                assertEquals(2000_000 - (refNs - (1002_000_000L + gyro * 5_000_000L)) / 1000, packet.timeUs);
+                gyro++;
+            } else {
+                assertEquals(CammTrackWriter.TYPE_ACCELERATION, type);
+                assertEquals(2000_000 - (refNs - (1000_000_000L + acceleration * 10_000_000L)) / 1000,
+                        packet.timeUs);
+                // 坐标写为(x, -z, y)
+                assertEquals(-3f * acceleration, packet.data.getFloat(8), 0f);
+                acceleration++;
+            }
+        }
+        assertEquals(CammTrackWriter.TYPE_ACCELERATION, mPackets.get(0).data.getShort(2));
+        assertEquals(CammTrackWriter.TYPE_GYRO, mPackets.get(1).data.getShort(2));
+        assertEquals(CammTrackWriter.TYPE_GYRO, mPackets.get(2).data.getShort(2));
+        assertEquals(CammTrackWriter.TYPE_ACCELERATION, mPackets.get(3).data.getShort(2));
+        // 参考点之后的样本留到下一帧
+        assertEquals(3, accelerometer.size());
+        assertEquals(8, gyroscope.size());
+        assertEquals(11, mWriter.writeImu(accelerometer, gyroscope, Long.MAX_VALUE - 1, 3000_000, sample));
+        assertEquals(0, mWriter.writeImu(accelerometer, gyroscope, Long.MAX_VALUE - 1, 3000_000, sample));
+    }
+}
@@ -0,0 +1,180 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DngHeaderBuilderTest {
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 0, 0, 0, 0, 8};
+
+    /**
+     * 文件头开始与前三个IFD条目：NewSubfileType、ImageWidth、ImageLength
+     */
+    private static final byte[] GOLDEN_PREFIX = {
+            'I', 'I', 42, 0, 8, 0, 0, 0,
+            25, 0,
+            (byte) 0xfe, 0, 4, 0, 1, 0, 0, 0, 0, 0, 0, 0,
+            0, 1, 4, 0, 1, 0, 0, 0, 4, 0, 0, 0,
+            1, 1, 4, 0, 1, 0, 0, 0, 2, 0, 0, 0,
+    };
+
+    private static final class Tag {
+        final int type;
+        final int count;
+        final int valueOffset;
+        final byte[] value;
+
+        Tag(int type, int count, int valueOffset, byte[] value) {
+            this.type = type;
+            this.count = count;
+            this.valueOffset = valueOffset;
+            this.value = value;
+        }
+
+        int intValue() {
+            ByteBuffer buffer = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+            return type == 3 ? buffer.getShort() & 0xffff : buffer.getInt();
+        }
+
+        String string() {
+            return new String(value, 0, value.length - 1, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static Map<Integer, Tag> parse(ByteBuffer header) {
+        ByteBuffer buffer = header.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('I', buffer.get(0));
+        assertEquals('I', buffer.get(1));
+        assertEquals(42, buffer.getShort(2));
+        int ifd = buffer.getInt(4);
+        int count = buffer.getShort(ifd);
+        Map<Integer, Tag> tags = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            int tag = buffer.getShort(entry) & 0xffff;
+            int type = buffer.getShort(entry + 2);
+            int valueCount = buffer.getInt(entry + 4);
+            int size = TYPE_SIZES[type] * valueCount;
+            int offset = size > 4 ? buffer.getInt(entry + 8) : entry + 8;
+            byte[] value = new byte[size];
+            ByteBuffer src = buffer.duplicate();
+            src.position(offset);
+            src.get(value);
+            tags.put(tag, new Tag(type, valueCount, offset, value));
+        }
+        // 没有下一个IFD
+        assertEquals(0, buffer.getInt(ifd + 2 + count * 12));
+        return tags;
+    }
+
+    @Test
+    public void defaultHeaderMatchesGoldenBytes() {
+        ByteBuffer header = new DngHeaderBuilder(4, 2).build();
+        assertEquals(0, header.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, header.order());
+        byte[] prefix = new byte[GOLDEN_PREFIX.length];
+        header.duplicate().get(prefix);
+        assertArrayEquals(GOLDEN_PREFIX, prefix);
+    }
+
+    @Test
+    public void tagsAreSortedAndDescribeTheImage() {
+        DngHeaderBuilder builder = new DngHeaderBuilder(4000, 3000)
+                .setCfaArrangement(DngHeaderBuilder.CFA_BGGR)
+                .setLevels(64, 4095)
+                .setCamera("Pisoftware", "Titan", "PanoSDK 1.0");
+        ByteBuffer header = builder.build();
+        Map<Integer, Tag> tags = parse(header);
+
+        List<Integer> order = new ArrayList<>(tags.keySet());
+        List<Integer> sorted = new ArrayList<>(order);
+        sorted.sort(null);
+        assertEquals(sorted, order);
+
+        assertEquals(4000, tags.get(256).intValue());
+        assertEquals(3000, tags.get(257).intValue());
+        assertEquals(16, tags.get(258).intValue());
+        assertEquals(1, tags.get(259).intValue());
+        assertEquals(32803, tags.get(262).intValue());
+        assertEquals("Pisoftware", tags.get(271).string());
+        assertEquals("Titan", tags.get(272).string());
+        assertEquals("PanoSDK 1.0", tags.get(305).string());
+        assertEquals("Pisoftware Titan", tags.get(50708).string());
+        assertEquals(3000, tags.get(278).intValue());
+        assertEquals(4000 * 3000 * 2, tags.get(279).intValue());
+        assertEquals(builder.getDataBytes(), tags.get(279).intValue());
+        assertArrayEquals(new byte[]{2, 1, 1, 0}, tags.get(33422).value);
+        assertArrayEquals(new byte[]{1, 4, 0, 0}, tags.get(50706).value);
+        assertEquals(64, tags.get(50714).intValue());
+        assertEquals(4095, tags.get(50717).intValue());
+        assertEquals(21, tags.get(50778).intValue());
+
+        // 图像数据紧接在对齐后的文件头之后
+        int stripOffset = tags.get(273).intValue();
+        assertEquals(header.limit(), stripOffset);
+        assertEquals(0, stripOffset % 16);
+        for (Tag tag : tags.values()) {
+            if (tag.value.length > 4) {
+                assertEquals(0, tag.valueOffset % 2);
+                assertTrue(tag.valueOffset + tag.value.length <= stripOffset);
+            }
+        }
+    }
+
+    @Test
+    public void rationalsUseFixedDenominator() {
+        ByteBuffer header = new DngHeaderBuilder(8, 8)
+                .setColorMatrix(new float[]{0.5f, -0.25f, 0, 0, 1, 0, 0, 0, 1.5f})
+                .setAsShotNeutral(new float[]{0.5f, 1, 0.75f})
+                .build();
+        Map<Integer, Tag> tags = parse(header);
+        Tag matrix = tags.get(50721);
+        assertEquals(10, matrix.type);
+        assertEquals(9, matrix.count);
+        ByteBuffer values = ByteBuffer.wrap(matrix.value).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(5000, values.getInt(0));
+        assertEquals(10000, values.getInt(4));
+        assertEquals(-2500, values.getInt(8));
+        assertEquals(15000, values.getInt(64));
+
+        Tag neutral = tags.get(50728);
+        assertEquals(5, neutral.type);
+        assertEquals(7500, ByteBuffer.wrap(neutral.value).order(ByteOrder.LITTLE_ENDIAN).getInt(16));
+    }
+
+    @Test
+    public void cfaPatterns() {
+        byte[][] expected = {{0, 1, 1, 2}, {1, 0, 2, 1}, {1, 2, 0, 1}, {2, 1, 1, 0}};
+        for (int arrangement = DngHeaderBuilder.CFA_RGGB; arrangement <= DngHeaderBuilder.CFA_BGGR; arrangement++) {
+            ByteBuffer header = new DngHeaderBuilder(2, 2).setCfaArrangement(arrangement).build();
+            assertArrayEquals(Arrays.toString(expected[arrangement]), expected[arrangement],
+                    parse(header).get(33422).value);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSizeIsRejected() {
+        new DngHeaderBuilder(0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCfaIsRejected() {
+        new DngHeaderBuilder(2, 2).setCfaArrangement(4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dataOverFourGigabytesIsRejected() {
+        new DngHeaderBuilder(65536, 65536).build();
+    }
+}
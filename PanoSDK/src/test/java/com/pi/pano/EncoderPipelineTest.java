@@ -0,0 +1,232 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class EncoderPipelineTest {
+
+    private static final class FakeCodec implements EncoderPipeline.Codec {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        final ByteBuffer input = ByteBuffer.allocate(64);
+
+        @Override
+        public void start() {
+            calls.add("start");
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            calls.add("signalEos");
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return input;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            calls.add("queue:" + index + ":" + presentationTimeUs + ":" + flags);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            calls.add("releaseOutput:" + index);
+        }
+
+        @Override
+        public void stop() {
+            calls.add("stop");
+        }
+
+        @Override
+        public void release() {
+            calls.add("release");
+        }
+    }
+
+    private static class RecordingSink implements EncoderPipeline.Sink<String> {
+        final List<Long> samples = Collections.synchronizedList(new ArrayList<>());
+        volatile String format;
+        volatile int eosCount;
+
+        @Override
+        public void onFormatChanged(@NonNull String format) {
+            this.format = format;
+        }
+
+        @Override
+        public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+            samples.add(presentationTimeUs);
+        }
+
+        @Override
+        public void onEndOfStream() {
+            eosCount++;
+        }
+    }
+
+    private static final ByteBuffer OUTPUT = ByteBuffer.allocate(16);
+
+    @Test
+    public void surfaceInputLifecycle() {
+        FakeCodec codec = new FakeCodec();
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("video", codec, true);
+        RecordingSink sink = new RecordingSink();
+        pipeline.addSink(sink);
+        pipeline.start();
+        assertEquals(EncoderPipeline.State.STARTED, pipeline.getState());
+        pipeline.onOutputFormatChanged("avc");
+        pipeline.onOutputBufferAvailable(0, OUTPUT, 0, 16, 0, 1);
+        pipeline.onOutputBufferAvailable(1, OUTPUT, 0, 16, 33, 0);
+        pipeline.drain(100);
+        assertEquals(EncoderPipeline.State.DRAINING, pipeline.getState());
+        pipeline.onOutputBufferAvailable(2, OUTPUT, 0, 0, 33, EncoderPipeline.FLAG_END_OF_STREAM);
+        assertTrue(pipeline.awaitEndOfStream(100));
+        assertEquals("avc", sink.format);
+        assertEquals(2, sink.samples.size());
+        assertEquals(1, sink.eosCount);
+        pipeline.release();
+        assertEquals(EncoderPipeline.State.RELEASED, pipeline.getState());
+        assertEquals(Arrays.asList("start", "releaseOutput:0", "releaseOutput:1", "signalEos", "releaseOutput:2",
+                "stop", "release"), codec.calls);
+        assertNull(pipeline.getError());
+    }
+
+    @Test
+    public void bufferInputQueuesEndOfStreamWithLastPts() {
+        FakeCodec codec = new FakeCodec();
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("audio", codec, false);
+        pipeline.start();
+        pipeline.onInputBufferAvailable(3);
+        pipeline.onInputBufferAvailable(4);
+        int index = pipeline.dequeueInputBuffer(10);
+        assertEquals(3, index);
+        pipeline.queueInputBuffer(index, 0, 64, 21_333);
+        pipeline.drain(100);
+        assertTrue(codec.calls.contains("queue:4:21333:" + EncoderPipeline.FLAG_END_OF_STREAM));
+        assertEquals(-1, pipeline.dequeueInputBuffer(0));
+    }
+
+    @Test
+    public void drainWithoutInputBufferReportsError() {
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("audio", new FakeCodec(), false);
+        AtomicReference<Throwable> reported = new AtomicReference<>();
+        pipeline.setErrorListener(reported::set);
+        pipeline.start();
+        pipeline.drain(1);
+        assertSame(pipeline.getError(), reported.get());
+        assertEquals(EncoderPipeline.State.EOS, pipeline.getState());
+        assertTrue(pipeline.awaitEndOfStream(0));
+    }
+
+    @Test
+    public void sinkErrorStopsDispatchAndStillReturnsBuffer() {
+        FakeCodec codec = new FakeCodec();
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("video", codec, true);
+        RuntimeException failure = new RuntimeException("muxer");
+        RecordingSink after = new RecordingSink();
+        pipeline.addSink(new RecordingSink() {
+            @Override
+            public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+                throw failure;
+            }
+        });
+        pipeline.addSink(after);
+        AtomicReference<Throwable> reported = new AtomicReference<>();
+        pipeline.setErrorListener(reported::set);
+        pipeline.start();
+        pipeline.onOutputBufferAvailable(0, OUTPUT, 0, 16, 0, EncoderPipeline.FLAG_END_OF_STREAM);
+        pipeline.onOutputBufferAvailable(1, OUTPUT, 0, 16, 33, 0);
+        assertSame(failure, reported.get());
+        assertTrue(after.samples.isEmpty());
+        assertEquals(0, after.eosCount);
+        assertTrue(codec.calls.contains("releaseOutput:0"));
+        assertTrue(codec.calls.contains("releaseOutput:1"));
+    }
+
+    @Test
+    public void blockedSinkDoesNotHoldTheLock() throws Exception {
+        FakeCodec codec = new FakeCodec();
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("video", codec, true);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        pipeline.addSink(new RecordingSink() {
+            @Override
+            public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        pipeline.start();
+        Thread callback = new Thread(() -> pipeline.onOutputBufferAvailable(0, OUTPUT, 0, 16, 0, 0));
+        callback.start();
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        // 分发期间其他线程可查询状态、结束编码
+        assertEquals(EncoderPipeline.State.STARTED, pipeline.getState());
+        pipeline.drain(10);
+        assertEquals(EncoderPipeline.State.DRAINING, pipeline.getState());
+        Thread releaser = new Thread(pipeline::release);
+        releaser.start();
+        releaser.join(50);
+        // 释放等待正在分发的样本
+        assertTrue(releaser.isAlive());
+        assertFalse(codec.calls.contains("stop"));
+        proceed.countDown();
+        releaser.join(1000);
+        callback.join(1000);
+        assertFalse(releaser.isAlive());
+        assertTrue(codec.calls.contains("release"));
+        // 分发期间已释放，缓冲不再归还
+        assertFalse(codec.calls.contains("releaseOutput:0"));
+    }
+
+    @Test
+    public void releaseFromSinkDoesNotDeadlock() {
+        FakeCodec codec = new FakeCodec();
+        EncoderPipeline<String> pipeline = new EncoderPipeline<>("video", codec, true);
+        pipeline.addSink(new RecordingSink() {
+            @Override
+            public void onSample(@NonNull ByteBuffer buffer, int offset, int size, long presentationTimeUs, int flags) {
+                pipeline.release();
+            }
+        });
+        pipeline.start();
+        pipeline.onOutputBufferAvailable(0, OUTPUT, 0, 16, 0, 0);
+        assertEquals(EncoderPipeline.State.RELEASED, pipeline.getState());
+    }
+
+    @Test
+    public void statsSinkSummarizesOutput() {
+        EncoderPipeline.StatsSink<String> stats = new EncoderPipeline.StatsSink<>();
+        stats.onSample(OUTPUT, 0, 1000, 0, MuxerWriteBehind.FLAG_KEY_FRAME);
+        stats.onSample(OUTPUT, 0, 1000, 500_000, 0);
+        stats.onSample(OUTPUT, 0, 1000, 1_000_000, 0);
+        assertEquals(3, stats.getSampleCount());
+        assertEquals(3000, stats.getByteCount());
+        assertTrue(stats.toString().contains("bitrate=24000"));
+        assertTrue(stats.toString().contains("keyFrames=1"));
+    }
+}
@@ -0,0 +1,285 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EncoderPoolTest {
+
+    private static final class Codec {
+        final String key;
+        final int id;
+
+        Codec(String key, int id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    private static final class FakeFactory implements EncoderPool.Factory<String, Codec> {
+        final AtomicInteger created = new AtomicInteger();
+        final List<Codec> released = new CopyOnWriteArrayList<>();
+        /**
+         * 每次创建时已释放的数量
+         */
+        final List<Integer> releasedAtCreate = new CopyOnWriteArrayList<>();
+        volatile boolean resetOk = true;
+        volatile CountDownLatch createGate;
+
+        @NonNull
+        @Override
+        public Codec create(@NonNull String key) throws Exception {
+            CountDownLatch gate = createGate;
+            if (gate != null) {
+                gate.await();
+            }
+            releasedAtCreate.add(released.size());
+            return new Codec(key, created.incrementAndGet());
+        }
+
+        @Override
+        public boolean reset(@NonNull String key, @NonNull Codec codec) {
+            return resetOk;
+        }
+
+        @Override
+        public void release(@NonNull Codec codec) {
+            released.add(codec);
+        }
+    }
+
+    /**
+     * 开销为key的长度
+     */
+    private static EncoderPool<String, Codec> newPool(FakeFactory factory, int maxIdle, long maxCost) {
+        return new EncoderPool<>(factory, maxIdle, maxCost, String::length);
+    }
+
+    private static void awaitIdle(EncoderPool<?, ?> pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getIdleCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, pool.getIdleCount());
+    }
+
+    private static void awaitReleased(FakeFactory factory, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (factory.released.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, factory.released.size());
+    }
+
+    @Test
+    public void missCreatesSynchronously() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        Codec codec = pool.acquire("a");
+        assertEquals("a", codec.key);
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getHitCount());
+    }
+
+    @Test
+    public void prewarmedEncoderIsHit() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        assertEquals(1, pool.prewarm("a", 1));
+        assertEquals(0, pool.prewarm("a", 1));
+        awaitIdle(pool, 1);
+        // 等待后台创建完成
+        Codec codec = pool.acquire("a");
+        assertEquals(1, codec.id);
+        assertEquals(0, pool.getMissCount());
+        assertEquals(1, pool.getHitCount() + pool.getWaitCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void acquireWaitsForPendingCreate() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        factory.createGate = new CountDownLatch(1);
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        pool.prewarm("a", 1);
+        new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignore) {
+            }
+            factory.createGate.countDown();
+        }).start();
+        Codec codec = pool.acquire("a");
+        assertEquals(1, codec.id);
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(0, pool.getMissCount());
+    }
+
+    @Test
+    public void missReleasesIdleEncodersOfOtherKeysFirst() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 3, 100);
+        pool.prewarm("a", 1);
+        pool.prewarm("b", 2);
+        awaitIdle(pool, 3);
+        // 等待后台创建都完成，正在创建的编码器淘汰后在创建完成时才释放
+        while (factory.created.get() < 3) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(20);
+        // 命中时不影响其他参数的空闲编码器
+        pool.acquire("b");
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(0, factory.released.size());
+
+        // 未命中时其他参数的空闲编码器在同步创建之前释放
+        factory.releasedAtCreate.clear();
+        Codec codec = pool.acquire("c");
+        assertEquals("c", codec.key);
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getEvictCount());
+        assertEquals(Collections.singletonList(2), factory.releasedAtCreate);
+    }
+
+    @Test
+    public void prewarmStaysWithinBudget() {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 4, 5);
+        // 开销2，预算5只能容纳2个
+        assertEquals(2, pool.prewarm("bb", 3));
+        assertEquals(2, pool.getIdleCount());
+        // 单个开销超出预算时不创建
+        assertEquals(0, pool.prewarm("abcdef", 1));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        pool.prewarm("a", 1);
+        pool.prewarm("b", 1);
+        awaitIdle(pool, 2);
+        // 预热已有的key只更新使用时间
+        pool.prewarm("a", 1);
+        pool.prewarm("c", 1);
+        awaitReleased(factory, 1);
+        assertEquals("b", factory.released.get(0).key);
+        assertEquals(1, pool.getEvictCount());
+        pool.acquire("a");
+        pool.acquire("c");
+        assertEquals(0, pool.getMissCount());
+    }
+
+    @Test
+    public void lowerBudgetReleasesExcessImmediately() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 3, 100);
+        pool.prewarm("a", 1);
+        pool.prewarm("b", 1);
+        pool.prewarm("c", 1);
+        awaitIdle(pool, 3);
+        awaitCreated(factory, 3);
+        pool.setBudget(1, 100);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(2, factory.released.size());
+        pool.setBudget(0, 100);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.prewarm("a", 1));
+    }
+
+    private static void awaitCreated(FakeFactory factory, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (factory.created.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, factory.created.get());
+    }
+
+    @Test
+    public void idleTimeoutReleasesUnusedEncoders() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        AtomicLong now = new AtomicLong();
+        EncoderPool<String, Codec> pool = new EncoderPool<>(factory, 2, 100, String::length, now::get);
+        pool.setIdleTimeout(TimeUnit.HOURS.toMillis(1));
+        pool.prewarm("a", 1);
+        awaitCreated(factory, 1);
+        now.addAndGet(TimeUnit.MINUTES.toNanos(30));
+        pool.prewarm("b", 1);
+        awaitCreated(factory, 2);
+        assertEquals(0, pool.trimIdle());
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(30));
+        assertEquals(1, pool.trimIdle());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals("a", factory.released.get(0).key);
+
+        now.addAndGet(TimeUnit.MINUTES.toNanos(30));
+        assertEquals(1, pool.trimIdle());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void scheduledTrimRunsInBackground() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        pool.setIdleTimeout(20);
+        pool.prewarm("a", 1);
+        awaitReleased(factory, 1);
+        assertEquals(0, pool.getIdleCount());
+        pool.setIdleTimeout(0);
+        pool.prewarm("b", 1);
+        awaitIdle(pool, 1);
+        Thread.sleep(50);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void recycledEncoderIsReused() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        Codec first = pool.acquire("a");
+        pool.recycle("a", first);
+        awaitIdle(pool, 1);
+        assertSame(first, pool.acquire("a"));
+        assertEquals(1, pool.getRecycleCount());
+
+        factory.resetOk = false;
+        pool.recycle("a", first);
+        awaitReleased(factory, 1);
+        assertEquals(0, pool.getIdleCount());
+        assertNotSame(first, pool.acquire("a"));
+    }
+
+    @Test
+    public void clearReleasesIdleAndPendingEncoders() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        factory.createGate = new CountDownLatch(1);
+        EncoderPool<String, Codec> pool = newPool(factory, 2, 100);
+        pool.prewarm("a", 1);
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+        // 正在创建的编码器完成后直接释放
+        factory.createGate.countDown();
+        awaitReleased(factory, 1);
+        assertFalse(factory.released.isEmpty());
+        factory.createGate = null;
+        pool.acquire("a");
+        assertEquals(1, pool.getMissCount());
+        assertTrue(pool.toString().startsWith("EncoderPool{"));
+    }
+}
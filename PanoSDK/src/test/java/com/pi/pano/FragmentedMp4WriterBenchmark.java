@@ -0,0 +1,159 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 分片封装的写入吞吐量，与空写入、直接写入样本数据的文件对比。
+ * 录像为30fps的H.264(每帧400KB，约100Mbps)、48kHz的AAC与每帧一个CAMM样本。
+ */
+public class FragmentedMp4WriterBenchmark {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, 0x01};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AAC_CSD = {0x12, 0x10};
+    private static final int VIDEO_FRAME_SIZE = 400 * 1024;
+    private static final int AUDIO_FRAME_SIZE = 512;
+    private static final int CAMM_SAMPLE_SIZE = 16;
+    private static final int DURATION_S = 2;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ByteBuffer mVideoFrame = ByteBuffer.allocateDirect(VIDEO_FRAME_SIZE);
+    private final ByteBuffer mAudioFrame = ByteBuffer.allocateDirect(AUDIO_FRAME_SIZE);
+    private final ByteBuffer mCammSample = ByteBuffer.allocateDirect(CAMM_SAMPLE_SIZE);
+    private final ByteBuffer mConfig = ByteBuffer.allocateDirect(SPS.length + PPS.length);
+    private long mPayloadBytes;
+
+    public FragmentedMp4WriterBenchmark() {
+        mVideoFrame.put(new byte[]{0, 0, 0, 1, 0x65});
+        for (int i = mVideoFrame.position(); i < VIDEO_FRAME_SIZE; i++) {
+            // 不含0，负载中没有起始码
+            mVideoFrame.put((byte) (i % 255 + 1));
+        }
+        mVideoFrame.clear();
+        mConfig.put(SPS).put(PPS).clear();
+    }
+
+    /**
+     * 不写入的封装器，测量生成样本本身的开销
+     */
+    private static class NullMuxer implements MuxerCoordinator.Muxer<Mp4TrackFormat> {
+        private int mTrackCount;
+
+        @Override
+        public int addTrack(@NonNull Mp4TrackFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+        }
+    }
+
+    /**
+     * 只把样本数据依次写入文件，即存储本身的写入速度
+     */
+    private static final class RawMuxer extends NullMuxer {
+        final FileChannel channel;
+
+        RawMuxer(File file) throws IOException {
+            channel = new FileOutputStream(file).getChannel();
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            ByteBuffer data = buffer.duplicate();
+            data.limit(offset + size).position(offset);
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private interface MuxerFactory {
+        MuxerCoordinator.Muxer<Mp4TrackFormat> create(File file) throws IOException;
+    }
+
+    private interface Stopper {
+        void stop(MuxerCoordinator.Muxer<Mp4TrackFormat> muxer) throws IOException;
+    }
+
+    /**
+     * 写入一段录像
+     */
+    private void record(MuxerCoordinator.Muxer<Mp4TrackFormat> muxer) {
+        int video = muxer.addTrack(Mp4TrackFormat.video(Mp4TrackFormat.MIME_AVC, 5760, 2880, SPS, PPS));
+        int audio = muxer.addTrack(Mp4TrackFormat.audio(48000, 2, 128000, AAC_CSD));
+        int camm = muxer.addTrack(Mp4TrackFormat.camm());
+        muxer.start();
+        muxer.writeSampleData(video, mConfig, 0, mConfig.capacity(), 0, MuxerWriteBehind.FLAG_CODEC_CONFIG);
+        long bytes = 0;
+        int audioFrames = 0;
+        for (int i = 0; i < DURATION_S * 30; i++) {
+            long timeUs = i * 1000_000L / 30;
+            muxer.writeSampleData(video, mVideoFrame, 0, VIDEO_FRAME_SIZE, timeUs,
+                    i % 30 == 0 ? MuxerWriteBehind.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(camm, mCammSample, 0, CAMM_SAMPLE_SIZE, timeUs, 0);
+            bytes += VIDEO_FRAME_SIZE + CAMM_SAMPLE_SIZE;
+            while (audioFrames * 1024 * 1000_000L / 48000 <= timeUs) {
+                muxer.writeSampleData(audio, mAudioFrame, 0, AUDIO_FRAME_SIZE,
+                        audioFrames * 1024 * 1000_000L / 48000, 0);
+                bytes += AUDIO_FRAME_SIZE;
+                audioFrames++;
+            }
+        }
+        mPayloadBytes = bytes;
+    }
+
+    /**
+     * @return 每段录像的纳秒数
+     */
+    private double measure(String name, MuxerFactory factory, Stopper stopper) throws Exception {
+        double ns = Benchmarks.nanosPerOp(1, ROUNDS, 1, () -> {
+            File file = new File(mFolder.getRoot(), "bench.mp4");
+            MuxerCoordinator.Muxer<Mp4TrackFormat> muxer = factory.create(file);
+            record(muxer);
+            stopper.stop(muxer);
+            if (file.exists()) {
+                assertTrue(file.delete());
+            }
+        });
+        Benchmarks.report("FragmentedMp4Writer/" + name, "%.0fms per %ds recording, %.0fMB/s",
+                ns / 1000_000, DURATION_S, mPayloadBytes / (ns / 1000_000_000) / (1024 * 1024));
+        return ns;
+    }
+
+    @Test
+    public void writeThroughput() throws Exception {
+        measure("null", file -> new NullMuxer(), muxer -> {
+        });
+        measure("raw-file", RawMuxer::new, muxer -> ((RawMuxer) muxer).channel.close());
+        double ns = measure("fmp4-file", file -> new FragmentedMp4Writer(file.getPath(), 1000_000, false),
+                muxer -> ((FragmentedMp4Writer) muxer).stop());
+        // 封装与写入应远快于实时
+        assertTrue(ns < DURATION_S * 1000_000_000L);
+    }
+}
@@ -0,0 +1,305 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, 0x01};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AAC_CSD = {0x12, 0x10};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 分片中一个轨道的样本
+     */
+    private static final class Run {
+        final int trackId;
+        final long baseTicks;
+        final int[] durations;
+        final int[] sizes;
+        final int[] flags;
+        /**
+         * 样本数据在文件中的位置
+         */
+        final long dataPosition;
+
+        Run(int trackId, long baseTicks, int count, long dataPosition) {
+            this.trackId = trackId;
+            this.baseTicks = baseTicks;
+            this.durations = new int[count];
+            this.sizes = new int[count];
+            this.flags = new int[count];
+            this.dataPosition = dataPosition;
+        }
+    }
+
+    private static final class Parsed {
+        final List<String> topLevel = new ArrayList<>();
+        final List<List<Run>> fragments = new ArrayList<>();
+        int trexCount;
+    }
+
+    private static String type(ByteBuffer buffer, int position) {
+        byte[] fourcc = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            fourcc[i] = buffer.get(position + 4 + i);
+        }
+        return new String(fourcc, StandardCharsets.US_ASCII);
+    }
+
+    private static Parsed parse(byte[] file) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        Parsed parsed = new Parsed();
+        int position = 0;
+        while (position < file.length) {
+            int size = buffer.getInt(position);
+            String type = type(buffer, position);
+            parsed.topLevel.add(type);
+            if (type.equals("moof")) {
+                parsed.fragments.add(parseMoof(buffer, position, size));
+            } else if (type.equals("moov")) {
+                parsed.trexCount = count(buffer, position + 8, position + size, "mvex", "trex");
+            }
+            assertTrue(size >= 8);
+            position += size;
+        }
+        assertEquals(file.length, position);
+        return parsed;
+    }
+
+    private static int count(ByteBuffer buffer, int from, int to, String parent, String child) {
+        int count = 0;
+        for (int p = from; p < to; p += buffer.getInt(p)) {
+            if (type(buffer, p).equals(parent)) {
+                for (int c = p + 8; c < p + buffer.getInt(p); c += buffer.getInt(c)) {
+                    if (type(buffer, c).equals(child)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static List<Run> parseMoof(ByteBuffer buffer, int moof, int moofSize) {
+        List<Run> runs = new ArrayList<>();
+        for (int traf = moof + 8; traf < moof + moofSize; traf += buffer.getInt(traf)) {
+            if (!type(buffer, traf).equals("traf")) {
+                continue;
+            }
+            int trackId = 0;
+            long baseTicks = 0;
+            for (int box = traf + 8; box < traf + buffer.getInt(traf); box += buffer.getInt(box)) {
+                String type = type(buffer, box);
+                if (type.equals("tfhd")) {
+                    // default-base-is-moof
+                    assertEquals(0x020000, buffer.getInt(box + 8) & 0xffffff);
+                    trackId = buffer.getInt(box + 12);
+                } else if (type.equals("tfdt")) {
+                    assertEquals(1, buffer.get(box + 8));
+                    baseTicks = buffer.getLong(box + 12);
+                } else if (type.equals("trun")) {
+                    int count = buffer.getInt(box + 12);
+                    Run run = new Run(trackId, baseTicks, count, moof + buffer.getInt(box + 16));
+                    for (int s = 0; s < count; s++) {
+                        run.durations[s] = buffer.getInt(box + 20 + s * 12);
+                        run.sizes[s] = buffer.getInt(box + 24 + s * 12);
+                        run.flags[s] = buffer.getInt(box + 28 + s * 12);
+                    }
+                    runs.add(run);
+                }
+            }
+        }
+        return runs;
+    }
+
+    private static int total(Parsed parsed, int trackId) {
+        int total = 0;
+        for (List<Run> fragment : parsed.fragments) {
+            for (Run run : fragment) {
+                if (run.trackId == trackId) {
+                    total += run.sizes.length;
+                }
+            }
+        }
+        return total;
+    }
+
+    private static ByteBuffer videoFrame(int index) {
+        // Annex-B，每帧一个NAL，内容为帧序号
+        return ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) (index % 30 == 0 ? 0x65 : 0x41), (byte) index, 7});
+    }
+
+    private FragmentedMp4Writer newWriter(File file) throws IOException {
+        return new FragmentedMp4Writer(file.getPath(), 1000_000, false);
+    }
+
+    @Test
+    public void fragmentsAtKeyFramesAfterInterval() throws IOException {
+        File file = mFolder.newFile("a.mp4");
+        FragmentedMp4Writer writer = newWriter(file);
+        int video = writer.addTrack(Mp4TrackFormat.video(Mp4TrackFormat.MIME_AVC, 1920, 960, SPS, PPS));
+        int audio = writer.addTrack(Mp4TrackFormat.audio(48000, 2, 128000, AAC_CSD));
+        writer.start();
+        ByteBuffer config = ByteBuffer.wrap(SPS);
+        writer.writeSampleData(video, config, 0, config.remaining(), 0, MuxerWriteBehind.FLAG_CODEC_CONFIG);
+        int audioFrames = 0;
+        for (int i = 0; i < 90; i++) {
+            long timeUs = i * 1000_000L / 30;
+            ByteBuffer frame = videoFrame(i);
+            writer.writeSampleData(video, frame, 0, frame.remaining(), timeUs,
+                    i % 30 == 0 ? MuxerWriteBehind.FLAG_KEY_FRAME : 0);
+            while (audioFrames * 1024 * 1000_000L / 48000 <= timeUs) {
+                ByteBuffer aac = ByteBuffer.wrap(new byte[]{(byte) audioFrames, 1, 2});
+                writer.writeSampleData(audio, aac, 0, 3, audioFrames * 1024 * 1000_000L / 48000, 0);
+                audioFrames++;
+            }
+        }
+        writer.stop();
+        assertEquals(3, writer.getFragmentCount());
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(bytes.length, writer.getBytesWritten());
+        Parsed parsed = parse(bytes);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"), parsed.topLevel);
+        assertEquals(2, parsed.trexCount);
+        assertEquals(90, total(parsed, 1));
+        assertEquals(audioFrames, total(parsed, 2));
+
+        // 视频分片从关键帧开始，时间单位为90000
+        for (int f = 0; f < 3; f++) {
+            Run run = parsed.fragments.get(f).get(0);
+            assertEquals(1, run.trackId);
+            assertEquals(30, run.sizes.length);
+            assertEquals(f * 30 * 3000L, run.baseTicks);
+            assertEquals(0x02000000, run.flags[0]);
+            assertEquals(0x01010000, run.flags[1]);
+            // 微秒时间戳取整，时长相差1个单位，累计不漂移
+            long duration = 0;
+            for (int d : run.durations) {
+                assertTrue(Math.abs(d - 3000) <= 1);
+                duration += d;
+            }
+            assertEquals(30 * 3000, duration, 2);
+            // 4字节长度前缀替换起始码
+            ByteBuffer data = ByteBuffer.wrap(bytes, (int) run.dataPosition, 7);
+            assertEquals(3, data.getInt());
+            assertEquals(0x65, data.get() & 0xff);
+            assertEquals(f * 30, data.get());
+        }
+    }
+
+    @Test
+    public void annexBWithSeveralNalUnits() throws IOException {
+        File file = mFolder.newFile("b.mp4");
+        FragmentedMp4Writer writer = newWriter(file);
+        int video = writer.addTrack(Mp4TrackFormat.video(Mp4TrackFormat.MIME_AVC, 640, 320, SPS, PPS));
+        writer.start();
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{9, 9, 0, 0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x06, 3, 0, 0});
+        writer.writeSampleData(video, frame, 2, frame.capacity() - 2, 0, MuxerWriteBehind.FLAG_KEY_FRAME);
+        assertEquals(0, frame.position());
+        writer.stop();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Run run = parse(bytes).fragments.get(0).get(0);
+        // 末尾的0为尾随字节，不属于NAL
+        byte[] expected = {0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x06, 3};
+        assertEquals(expected.length, run.sizes[0]);
+        assertArrayEquals(expected, Arrays.copyOfRange(bytes, (int) run.dataPosition,
+                (int) run.dataPosition + expected.length));
+    }
+
+    @Test
+    public void nonIncreasingTimestampsKeepPositiveDurations() throws IOException {
+        File file = mFolder.newFile("c.mp4");
+        FragmentedMp4Writer writer = newWriter(file);
+        int camm = writer.addTrack(Mp4TrackFormat.camm());
+        writer.start();
+        long[] times = {1000, 2000, 2000, 1500, 5000};
+        for (long time : times) {
+            ByteBuffer sample = ByteBuffer.wrap(new byte[]{0, 0, 2, 0});
+            writer.writeSampleData(camm, sample, 0, 4, time, 0);
+        }
+        writer.stop();
+        Run run = parse(Files.readAllBytes(file.toPath())).fragments.get(0).get(0);
+        assertEquals(0, run.baseTicks);
+        assertArrayEquals(new int[]{1000, 1, 1, 2998, 2998}, run.durations);
+    }
+
+    @Test
+    public void lifecycleErrors() throws IOException {
+        File file = mFolder.newFile("d.mp4");
+        FragmentedMp4Writer writer = newWriter(file);
+        try {
+            writer.start();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        int camm = writer.addTrack(Mp4TrackFormat.camm());
+        ByteBuffer sample = ByteBuffer.wrap(new byte[4]);
+        try {
+            writer.writeSampleData(camm, sample, 0, 4, 0, 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        writer.start();
+        try {
+            writer.addTrack(Mp4TrackFormat.camm());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        writer.stop();
+        writer.stop();
+        try {
+            writer.writeSampleData(camm, sample, 0, 4, 0, 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void abortDeletesFile() throws IOException {
+        File file = mFolder.newFile("e.mp4");
+        FragmentedMp4Writer writer = newWriter(file);
+        writer.addTrack(Mp4TrackFormat.camm());
+        writer.start();
+        writer.abort();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void unfinishedFileKeepsWrittenFragments() throws IOException {
+        // 不调用stop，模拟录制中断电：已写入的分片完整
+        File file = mFolder.newFile("f.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file.getPath(), 1000_000, true);
+        int video = writer.addTrack(Mp4TrackFormat.video(Mp4TrackFormat.MIME_AVC, 1920, 960, SPS, PPS));
+        writer.start();
+        for (int i = 0; i < 75; i++) {
+            ByteBuffer frame = videoFrame(i);
+            writer.writeSampleData(video, frame, 0, frame.remaining(), i * 1000_000L / 30,
+                    i % 30 == 0 ? MuxerWriteBehind.FLAG_KEY_FRAME : 0);
+        }
+        Parsed parsed = parse(Files.readAllBytes(file.toPath()));
+        assertEquals(2, parsed.fragments.size());
+        assertEquals(60, total(parsed, 1));
+        writer.abort();
+    }
+}
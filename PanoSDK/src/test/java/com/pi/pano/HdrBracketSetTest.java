@@ -0,0 +1,139 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HdrBracketSetTest {
+    private static final long TTL_NS = 1000_000_000L;
+
+    private final BufferArena mArena = new BufferArena(8 * 1024, 1024);
+    private final AtomicLong mNowNs = new AtomicLong();
+
+    private HdrBracketSet newSet(int count, long ttlNs) {
+        return new HdrBracketSet(count, ttlNs, mArena, mNowNs::get);
+    }
+
+    private BufferArena.Block block(HdrBracketSet set, int value) {
+        BufferArena.Block block = set.allocate(1024);
+        byte[] data = new byte[1024];
+        data[0] = (byte) value;
+        block.put(ByteBuffer.wrap(data));
+        return block;
+    }
+
+    @Test
+    public void orderedOnlyWhenComplete() {
+        HdrBracketSet set = newSet(3, TTL_NS);
+        assertTrue(set.addMemory(2, 300, block(set, 2)));
+        assertTrue(set.addFile(1, 200, new File("1.jpg")));
+        assertFalse(set.isComplete());
+        assertTrue(set.ordered().isEmpty());
+        assertTrue(set.addMemory(0, 100, block(set, 0)));
+        assertTrue(set.isComplete());
+
+        List<HdrBracketSet.Bracket> ordered = set.ordered();
+        assertEquals(3, ordered.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, ordered.get(i).index);
+            assertEquals((i + 1) * 100L, ordered.get(i).timestampNs);
+        }
+        assertTrue(ordered.get(0).inMemory());
+        assertFalse(ordered.get(1).inMemory());
+        assertEquals(new File("1.jpg"), ordered.get(1).file);
+        assertEquals(2, ordered.get(2).block.data().get(0));
+    }
+
+    @Test
+    public void sameIndexReplacesAndReturnsOldBlock() {
+        HdrBracketSet set = newSet(2, 0);
+        BufferArena.Block old = block(set, 1);
+        assertTrue(set.addMemory(0, 100, old));
+        BufferArena.Block replacement = block(set, 2);
+        assertTrue(set.addMemory(0, 200, replacement));
+        assertEquals(1024, mArena.getFreeBytes());
+        assertEquals(1, set.size());
+        // 以文件替换内存中的图像也归还缓存
+        assertTrue(set.addFile(0, 300, new File("0.jpg")));
+        assertEquals(2048, mArena.getFreeBytes());
+    }
+
+    @Test
+    public void invalidIndexIsRejected() {
+        HdrBracketSet set = newSet(2, 0);
+        BufferArena.Block block = block(set, 0);
+        assertFalse(set.addMemory(-1, 0, block));
+        assertFalse(set.addMemory(2, 0, block));
+        // 加入失败时由调用方归还
+        assertEquals(0, mArena.getFreeBytes());
+        mArena.release(block);
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void expiredBracketsAreDropped() {
+        HdrBracketSet set = newSet(2, TTL_NS);
+        set.addMemory(0, 0, block(set, 0));
+        mNowNs.addAndGet(TTL_NS / 2);
+        set.addMemory(1, 0, block(set, 1));
+        assertTrue(set.isComplete());
+
+        mNowNs.addAndGet(TTL_NS / 2 + 1);
+        assertEquals(1, set.size());
+        assertEquals(1024, mArena.getFreeBytes());
+        assertTrue(set.ordered().isEmpty());
+
+        mNowNs.addAndGet(TTL_NS);
+        assertEquals(1, set.expire());
+        assertEquals(0, set.size());
+        assertEquals(2048, mArena.getFreeBytes());
+    }
+
+    @Test
+    public void noTtlNeverExpires() {
+        HdrBracketSet set = newSet(1, 0);
+        set.addMemory(0, 0, block(set, 0));
+        mNowNs.addAndGet(Long.MAX_VALUE / 2);
+        assertEquals(0, set.expire());
+        assertTrue(set.isComplete());
+    }
+
+    @Test
+    public void allocateExpiresBeforeTakingFromArena() {
+        HdrBracketSet set = newSet(8, TTL_NS);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(set.addMemory(i, i, block(set, i)));
+        }
+        assertNull(set.allocate(1024));
+        mNowNs.addAndGet(TTL_NS + 1);
+        BufferArena.Block block = set.allocate(1024);
+        assertEquals(1024, block.capacity());
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void releaseReturnsAllBlocksAndRejectsNewBrackets() {
+        HdrBracketSet set = newSet(3, TTL_NS);
+        set.addMemory(0, 0, block(set, 0));
+        set.addMemory(1, 0, block(set, 1));
+        set.addFile(2, 0, new File("2.jpg"));
+        set.release();
+        assertEquals(2048, mArena.getFreeBytes());
+        assertEquals(0, set.size());
+        BufferArena.Block block = set.allocate(1024);
+        assertFalse(set.addMemory(0, 0, block));
+        assertFalse(set.addFile(0, 0, new File("0.jpg")));
+        // 重复释放无影响
+        set.release();
+        mArena.release(block);
+        assertEquals(2048, mArena.getFreeBytes());
+    }
+}
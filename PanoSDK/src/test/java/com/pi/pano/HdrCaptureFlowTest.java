@@ -0,0 +1,233 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HdrCaptureFlowTest {
+
+    /**
+     * 虚拟时钟的调度，时间只在{@link #advance(long)}时前进
+     */
+    private static final class VirtualScheduler implements HdrCaptureFlow.Scheduler {
+        final AtomicLong nowNs = new AtomicLong();
+        final List<long[]> deadlines = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public Runnable schedule(Runnable task, long delayMs) {
+            synchronized (this) {
+                deadlines.add(new long[]{nowNs.get() + TimeUnit.MILLISECONDS.toNanos(delayMs)});
+                tasks.add(task);
+            }
+            return () -> {
+                synchronized (this) {
+                    int index = tasks.indexOf(task);
+                    if (index >= 0) {
+                        tasks.remove(index);
+                        deadlines.remove(index);
+                    }
+                }
+            };
+        }
+
+        void advance(long ms) {
+            long now = nowNs.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+            List<Runnable> due = new ArrayList<>();
+            synchronized (this) {
+                for (int i = tasks.size() - 1; i >= 0; i--) {
+                    if (deadlines.get(i)[0] <= now) {
+                        due.add(tasks.remove(i));
+                        deadlines.remove(i);
+                    }
+                }
+            }
+            for (Runnable task : due) {
+                task.run();
+            }
+        }
+
+        synchronized int pending() {
+            return tasks.size();
+        }
+    }
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+
+    private HdrCaptureFlow newFlow() {
+        return new HdrCaptureFlow(mScheduler, mScheduler.nowNs::get);
+    }
+
+    private static HdrCaptureFlow.StageException failure(CompletableFuture<Integer> result) {
+        try {
+            result.get(1, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return HdrCaptureFlow.getStageException(e);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        fail("flow succeeded");
+        return null;
+    }
+
+    @Test
+    public void stagesRunInOrderAndRecordLatency() throws Exception {
+        HdrCaptureFlow flow = newFlow();
+        CompletableFuture<Integer> capture = new CompletableFuture<>();
+        CompletableFuture<Integer> save = new CompletableFuture<>();
+        List<Integer> started = new ArrayList<>();
+        flow.setStage(HdrCaptureFlow.STAGE_CAPTURE, () -> {
+            started.add(HdrCaptureFlow.STAGE_CAPTURE);
+            return capture;
+        }, 1000).setStage(HdrCaptureFlow.STAGE_SAVE, () -> {
+            started.add(HdrCaptureFlow.STAGE_SAVE);
+            return save;
+        }, 1000).setStage(HdrCaptureFlow.STAGE_INJECT, () -> {
+            started.add(HdrCaptureFlow.STAGE_INJECT);
+            return CompletableFuture.completedFuture(0);
+        }, 0);
+        CompletableFuture<Integer> result = flow.start();
+        assertSame(result, flow.start());
+        assertEquals(1, started.size());
+
+        mScheduler.advance(300);
+        capture.complete(0);
+        assertEquals(2, started.size());
+        mScheduler.advance(500);
+        save.complete(0);
+        assertEquals(0, (int) result.get(1, TimeUnit.SECONDS));
+        assertEquals(3, started.size());
+        // 未设置的阶段跳过，没有超时的阶段不调度
+        assertEquals(HdrCaptureFlow.STAGE_INJECT, (int) started.get(2));
+        assertEquals(300, flow.getLatencyMs(HdrCaptureFlow.STAGE_CAPTURE));
+        assertEquals(500, flow.getLatencyMs(HdrCaptureFlow.STAGE_SAVE));
+        assertEquals(-1, flow.getLatencyMs(HdrCaptureFlow.STAGE_MERGE));
+        assertEquals(0, mScheduler.pending());
+    }
+
+    @Test
+    public void errorCodeEndsFlowAtThatStage() {
+        HdrCaptureFlow flow = newFlow();
+        boolean[] mergeStarted = {false};
+        flow.setStage(HdrCaptureFlow.STAGE_SAVE, () -> CompletableFuture.completedFuture(7), 1000)
+                .setStage(HdrCaptureFlow.STAGE_MERGE, () -> {
+                    mergeStarted[0] = true;
+                    return CompletableFuture.completedFuture(0);
+                }, 1000);
+        HdrCaptureFlow.StageException e = failure(flow.start());
+        assertEquals(HdrCaptureFlow.STAGE_SAVE, e.stage);
+        assertEquals(HdrCaptureFlow.REASON_FAILED, e.reason);
+        assertEquals(7, e.errorCode);
+        assertFalse(mergeStarted[0]);
+        assertEquals(0, mScheduler.pending());
+    }
+
+    @Test
+    public void exceptionsAreReportedAsFailures() {
+        HdrCaptureFlow flow = newFlow();
+        IllegalStateException cause = new IllegalStateException("no camera");
+        flow.setStage(HdrCaptureFlow.STAGE_CAPTURE, () -> {
+            throw cause;
+        }, 1000);
+        HdrCaptureFlow.StageException e = failure(flow.start());
+        assertEquals(HdrCaptureFlow.STAGE_CAPTURE, e.stage);
+        assertEquals(HdrCaptureFlow.REASON_FAILED, e.reason);
+        assertSame(cause, e.getCause());
+
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalArgumentException());
+        HdrCaptureFlow second = newFlow().setStage(HdrCaptureFlow.STAGE_MERGE, () -> failed, 0);
+        assertEquals(HdrCaptureFlow.STAGE_MERGE, failure(second.start()).stage);
+    }
+
+    @Test
+    public void timeoutEndsFlowWithoutWaitingForStage() {
+        HdrCaptureFlow flow = newFlow();
+        CompletableFuture<Integer> merge = new CompletableFuture<>();
+        boolean[] injectStarted = {false};
+        flow.setStage(HdrCaptureFlow.STAGE_MERGE, () -> merge, 2000)
+                .setStage(HdrCaptureFlow.STAGE_INJECT, () -> {
+                    injectStarted[0] = true;
+                    return CompletableFuture.completedFuture(0);
+                }, 1000);
+        CompletableFuture<Integer> result = flow.start();
+        mScheduler.advance(1999);
+        assertFalse(result.isDone());
+        mScheduler.advance(1);
+        HdrCaptureFlow.StageException e = failure(result);
+        assertEquals(HdrCaptureFlow.STAGE_MERGE, e.stage);
+        assertEquals(HdrCaptureFlow.REASON_TIMEOUT, e.reason);
+        assertEquals(2000, flow.getLatencyMs(HdrCaptureFlow.STAGE_MERGE));
+        // 阶段之后返回也不再继续
+        merge.complete(0);
+        assertFalse(injectStarted[0]);
+    }
+
+    @Test
+    public void cancelEndsCurrentStage() {
+        HdrCaptureFlow flow = newFlow();
+        CompletableFuture<Integer> save = new CompletableFuture<>();
+        flow.setStage(HdrCaptureFlow.STAGE_SAVE, () -> save, 1000);
+        CompletableFuture<Integer> result = flow.start();
+        flow.cancel();
+        HdrCaptureFlow.StageException e = failure(result);
+        assertEquals(HdrCaptureFlow.STAGE_SAVE, e.stage);
+        assertEquals(HdrCaptureFlow.REASON_CANCELLED, e.reason);
+        assertTrue(save.isCompletedExceptionally());
+        assertEquals(0, mScheduler.pending());
+    }
+
+    @Test
+    public void cancellingResultCancelsFlow() {
+        HdrCaptureFlow flow = newFlow();
+        CompletableFuture<Integer> capture = new CompletableFuture<>();
+        boolean[] saveStarted = {false};
+        flow.setStage(HdrCaptureFlow.STAGE_CAPTURE, () -> capture, 1000)
+                .setStage(HdrCaptureFlow.STAGE_SAVE, () -> {
+                    saveStarted[0] = true;
+                    return new CompletableFuture<>();
+                }, 1000);
+        CompletableFuture<Integer> result = flow.start();
+        assertTrue(result.cancel(false));
+        assertTrue(capture.isCompletedExceptionally());
+        capture.complete(0);
+        assertFalse(saveStarted[0]);
+        assertEquals(HdrCaptureFlow.REASON_CANCELLED,
+                HdrCaptureFlow.getStageException(new CompletionException(
+                        new CancellationException())).reason);
+    }
+
+    @Test
+    public void blockingStageRunsOnExecutorAndTimeoutDoesNotInterrupt() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch returned = new CountDownLatch(1);
+        HdrCaptureFlow flow = newFlow().setStage(HdrCaptureFlow.STAGE_MERGE,
+                HdrCaptureFlow.blocking(r -> new Thread(r, "merge").start(), () -> {
+                    release.await();
+                    returned.countDown();
+                    return 0;
+                }), 500);
+        CompletableFuture<Integer> result = flow.start();
+        mScheduler.advance(500);
+        assertEquals(HdrCaptureFlow.REASON_TIMEOUT, failure(result).reason);
+        // 超时只是不再等待，阶段的工作继续直到返回
+        assertEquals(1, returned.getCount());
+        release.countDown();
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+        assertTrue(flow.toString().startsWith("HdrCaptureFlow{merge=500ms"));
+    }
+}
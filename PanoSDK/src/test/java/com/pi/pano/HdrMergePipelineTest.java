@@ -0,0 +1,205 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HdrMergePipelineTest {
+
+    /**
+     * 像素缓存，记录当前写入的图像序号
+     */
+    private static final class Slot {
+        volatile int index = -1;
+        volatile boolean decoding;
+    }
+
+    private static HdrMergePipeline.SlotPool<Slot> newPool(int capacity) {
+        return new HdrMergePipeline.SlotPool<>(capacity, Slot::new);
+    }
+
+    /**
+     * 所有缓存已归还时可以不等待地取出容量个缓存
+     */
+    private static void assertAllReleased(HdrMergePipeline.SlotPool<Slot> pool) throws InterruptedException {
+        int created = pool.getCreatedCount();
+        List<Slot> slots = new ArrayList<>();
+        for (int i = 0; i < pool.getCapacity(); i++) {
+            slots.add(pool.acquire());
+        }
+        assertEquals(pool.getCapacity(), slots.size());
+        for (Slot slot : slots) {
+            assertFalse(slot.decoding);
+            pool.release(slot);
+        }
+        assertTrue(created <= pool.getCapacity());
+    }
+
+    @Test(timeout = 10_000)
+    public void mergesInOrderWithinSlotBudget() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(3);
+        AtomicInteger decoding = new AtomicInteger();
+        AtomicInteger maxDecoding = new AtomicInteger();
+        Random random = new Random(7);
+        List<Integer> merged = Collections.synchronizedList(new ArrayList<>());
+        HdrMergePipeline<Slot> pipeline = new HdrMergePipeline<>(pool, 8, (index, slot) -> {
+            maxDecoding.accumulateAndGet(decoding.incrementAndGet(), Math::max);
+            slot.decoding = true;
+            Thread.sleep(random.nextInt(3));
+            slot.index = index;
+            slot.decoding = false;
+            decoding.decrementAndGet();
+            return true;
+        }, (index, slot) -> {
+            // 合成时缓存中是对应序号的图像
+            assertEquals(index, slot.index);
+            merged.add(index);
+            return 0;
+        });
+        assertEquals(HdrMergePipeline.RESULT_SUCCESS, pipeline.run(20));
+        assertEquals(20, merged.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) merged.get(i));
+        }
+        assertEquals(3, pool.getCreatedCount());
+        assertTrue(maxDecoding.get() <= 3);
+        assertAllReleased(pool);
+    }
+
+    @Test(timeout = 10_000)
+    public void fewerImagesThanSlots() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(4);
+        AtomicInteger merges = new AtomicInteger();
+        HdrMergePipeline<Slot> pipeline = new HdrMergePipeline<>(pool, 2, (index, slot) -> true,
+                (index, slot) -> {
+                    merges.incrementAndGet();
+                    return 0;
+                });
+        assertEquals(HdrMergePipeline.RESULT_SUCCESS, pipeline.run(2));
+        assertEquals(2, merges.get());
+        assertTrue(pool.getCreatedCount() <= 2);
+        assertEquals(HdrMergePipeline.RESULT_SUCCESS, pipeline.run(0));
+        assertAllReleased(pool);
+    }
+
+    @Test(timeout = 10_000)
+    public void decodeFailureStopsMerging() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(2);
+        List<Integer> merged = Collections.synchronizedList(new ArrayList<>());
+        HdrMergePipeline<Slot> pipeline = new HdrMergePipeline<>(pool, 2, (index, slot) -> index != 5,
+                (index, slot) -> {
+                    merged.add(index);
+                    return 0;
+                });
+        assertEquals(HdrMergePipeline.RESULT_DECODE_FAILED, pipeline.run(10));
+        assertEquals(5, merged.size());
+        assertAllReleased(pool);
+
+        HdrMergePipeline<Slot> throwing = new HdrMergePipeline<>(pool, 2, (index, slot) -> {
+            throw new IllegalStateException("decode " + index);
+        }, (index, slot) -> 0);
+        assertEquals(HdrMergePipeline.RESULT_DECODE_FAILED, throwing.run(3));
+        assertAllReleased(pool);
+    }
+
+    @Test(timeout = 10_000)
+    public void mergeFailureStopsMerging() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(3);
+        AtomicInteger merges = new AtomicInteger();
+        HdrMergePipeline<Slot> pipeline = new HdrMergePipeline<>(pool, 3, (index, slot) -> true,
+                (index, slot) -> {
+                    merges.incrementAndGet();
+                    if (index == 3) {
+                        throw new IllegalStateException("merge");
+                    }
+                    return index == 6 ? -1 : 0;
+                });
+        assertEquals(HdrMergePipeline.RESULT_MERGE_FAILED, pipeline.run(10));
+        assertEquals(4, merges.get());
+        assertAllReleased(pool);
+    }
+
+    @Test(timeout = 10_000)
+    public void interruptWaitsForRunningDecodesBeforeReleasing() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(2);
+        CountDownLatch decodeStarted = new CountDownLatch(2);
+        CountDownLatch finishDecode = new CountDownLatch(1);
+        AtomicBoolean releasedWhileDecoding = new AtomicBoolean();
+        HdrMergePipeline<Slot> pipeline = new HdrMergePipeline<>(pool, 2, (index, slot) -> {
+            slot.decoding = true;
+            decodeStarted.countDown();
+            // 解码不响应中断，如native解码
+            while (true) {
+                try {
+                    finishDecode.await();
+                    break;
+                } catch (InterruptedException ignore) {
+                }
+            }
+            slot.decoding = false;
+            return true;
+        }, (index, slot) -> 0);
+        AtomicInteger result = new AtomicInteger(-1);
+        Thread thread = new Thread(() -> result.set(pipeline.run(4)));
+        thread.start();
+        assertTrue(decodeStarted.await(5, TimeUnit.SECONDS));
+        thread.interrupt();
+        Thread.sleep(50);
+        // 解码中的缓存未归还
+        Thread checker = new Thread(() -> {
+            try {
+                Slot slot = pool.acquire();
+                releasedWhileDecoding.set(slot.decoding);
+                pool.release(slot);
+            } catch (InterruptedException ignore) {
+            }
+        });
+        checker.start();
+        checker.join(200);
+        assertTrue(checker.isAlive());
+        finishDecode.countDown();
+        thread.join();
+        checker.join();
+        assertFalse(releasedWhileDecoding.get());
+        assertEquals(HdrMergePipeline.RESULT_MERGE_FAILED, result.get());
+        assertAllReleased(pool);
+    }
+
+    @Test
+    public void concurrencyFromMemoryBudget() {
+        long slot = 100L * 1024 * 1024;
+        assertEquals(3, HdrMergePipeline.concurrency(400L * 1024 * 1024, slot, 100L * 1024 * 1024, 8));
+        assertEquals(8, HdrMergePipeline.concurrency(Long.MAX_VALUE / 2, slot, 0, 8));
+        assertEquals(1, HdrMergePipeline.concurrency(50L * 1024 * 1024, slot, 0, 8));
+        assertEquals(1, HdrMergePipeline.concurrency(0, slot, slot, 8));
+        assertEquals(4, HdrMergePipeline.concurrency(0, 0, 0, 4));
+    }
+
+    @Test
+    public void poolClearRecyclesEverySlot() throws Exception {
+        HdrMergePipeline.SlotPool<Slot> pool = newPool(3);
+        Slot a = pool.acquire();
+        Slot b = pool.acquire();
+        pool.release(a);
+        // 归还的缓存优先复用
+        assertTrue(a == pool.acquire());
+        pool.release(a);
+        pool.release(b);
+        List<Slot> recycled = new ArrayList<>();
+        pool.clear(recycled::add);
+        assertEquals(2, recycled.size());
+        assertEquals(0, pool.getCreatedCount());
+        assertEquals(1, newPool(0).getCapacity());
+    }
+}
@@ -0,0 +1,119 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ImuRingBufferTest {
+
+    private static void fill(ImuRingBuffer buffer, int count, long stepNs) {
+        for (int i = 0; i < count; i++) {
+            buffer.put(i * stepNs, i, i * 2, i * 3);
+        }
+    }
+
+    @Test
+    public void capacityIsAtLeastRequested() {
+        assertEquals(511, new ImuRingBuffer(400).capacity());
+        assertEquals(1023, new ImuRingBuffer(512).capacity());
+        assertTrue(new ImuRingBuffer(0).capacity() >= 1);
+    }
+
+    @Test
+    public void pollReturnsSamplesInOrderUpToTimestamp() {
+        ImuRingBuffer buffer = new ImuRingBuffer(16);
+        fill(buffer, 5, 10);
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(buffer.poll(20, sample));
+            assertEquals(i * 10, sample.timestamp);
+            assertEquals(i * 2, sample.y, 0f);
+        }
+        assertFalse(buffer.poll(20, sample));
+        assertEquals(2, buffer.size());
+    }
+
+    @Test
+    public void overflowCountedExactlyWhenUnreadSampleIsLost() {
+        ImuRingBuffer buffer = new ImuRingBuffer(8);
+        int capacity = buffer.capacity();
+        fill(buffer, capacity, 1);
+        // 刚好填满可读窗口，没有样本丢失
+        assertEquals(0, buffer.getOverflowCount());
+        assertEquals(capacity, buffer.size());
+        buffer.put(capacity, 0, 0, 0);
+        assertEquals(1, buffer.getOverflowCount());
+        assertEquals(capacity, buffer.size());
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        assertTrue(buffer.poll(Long.MAX_VALUE, sample));
+        assertEquals(1, sample.timestamp);
+    }
+
+    @Test
+    public void findNearestAndDropOlder() {
+        ImuRingBuffer buffer = new ImuRingBuffer(16);
+        fill(buffer, 10, 100);
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        assertTrue(buffer.find(340, false, sample));
+        assertEquals(300, sample.timestamp);
+        assertTrue(buffer.find(360, false, sample));
+        assertEquals(400, sample.timestamp);
+        // 早于360的样本除前一个外已丢弃
+        assertEquals(7, buffer.size());
+    }
+
+    @Test
+    public void findInterpolatesBetweenNeighbours() {
+        ImuRingBuffer buffer = new ImuRingBuffer(16);
+        fill(buffer, 4, 100);
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        assertTrue(buffer.find(125, true, sample));
+        assertEquals(125, sample.timestamp);
+        assertEquals(1.25f, sample.x, 1e-4f);
+        assertEquals(3.75f, sample.z, 1e-4f);
+    }
+
+    @Test
+    public void findClampsOutsideRange() {
+        ImuRingBuffer buffer = new ImuRingBuffer(16);
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        assertFalse(buffer.find(0, true, sample));
+        fill(buffer, 4, 100);
+        assertTrue(buffer.find(-50, true, sample));
+        assertEquals(0, sample.timestamp);
+        assertTrue(buffer.find(10_000, true, sample));
+        assertEquals(300, sample.timestamp);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void consumerNeverSeesTornSamples() throws Exception {
+        ImuRingBuffer buffer = new ImuRingBuffer(64);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 200_000; i++) {
+                buffer.put(i, i, i, i);
+            }
+            done.set(true);
+        });
+        producer.start();
+        ImuRingBuffer.Sample sample = new ImuRingBuffer.Sample();
+        long last = -1;
+        long bad = 0;
+        while (!done.get() || buffer.size() > 0) {
+            if (buffer.poll(Long.MAX_VALUE, sample)) {
+                if (sample.timestamp <= last || sample.x != sample.z || (long) sample.y != sample.timestamp) {
+                    bad++;
+                }
+                last = sample.timestamp;
+            }
+        }
+        producer.join();
+        assertEquals(0, bad);
+    }
+}
@@ -0,0 +1,115 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram("empty");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanUs());
+        assertEquals(0, histogram.getPercentileUs(99));
+        assertEquals("empty", histogram.getName());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram("small");
+        for (int us = 1; us <= 10; us++) {
+            histogram.recordUs(us);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getMeanUs());
+        assertEquals(5, histogram.getPercentileUs(50));
+        assertEquals(9, histogram.getPercentileUs(90));
+        assertEquals(10, histogram.getPercentileUs(100));
+        assertEquals(1, histogram.getPercentileUs(0));
+        assertEquals(10, histogram.getMaxUs());
+    }
+
+    @Test
+    public void percentilesWithinOneEighthOfExact() {
+        LatencyHistogram histogram = new LatencyHistogram("random");
+        Random random = new Random(42);
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            // 对数分布，覆盖微秒到秒
+            values[i] = (long) Math.pow(10, random.nextDouble() * 6);
+            histogram.recordUs(values[i]);
+        }
+        Arrays.sort(values);
+        for (float percentile : new float[]{50, 90, 95, 99, 99.9f}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100.0) - 1];
+            long reported = histogram.getPercentileUs(percentile);
+            assertTrue(percentile + ":" + reported + "<" + exact, reported >= exact);
+            assertTrue(percentile + ":" + reported + ">" + exact, reported <= exact + exact / 8 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getPercentileUs(100));
+    }
+
+    @Test
+    public void nanosecondsAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram("ns");
+        histogram.recordNs(2_500_000);
+        histogram.recordUs(-5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(2500, histogram.getMaxUs());
+        assertEquals(0, histogram.getPercentileUs(50));
+        assertEquals(1250, histogram.getMeanUs());
+    }
+
+    @Test
+    public void hugeValuesLandInLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram("huge");
+        histogram.recordUs(Long.MAX_VALUE / 2);
+        histogram.recordUs(1L << 45);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMaxUs());
+        assertTrue(histogram.getPercentileUs(50) >= 1L << 39);
+    }
+
+    @Test
+    public void mergeAndReset() {
+        LatencyHistogram a = new LatencyHistogram("a");
+        LatencyHistogram b = new LatencyHistogram("b");
+        for (int i = 0; i < 100; i++) {
+            a.recordUs(10);
+            b.recordUs(1000);
+        }
+        a.merge(b);
+        assertEquals(200, a.getCount());
+        assertEquals(505, a.getMeanUs());
+        assertEquals(10, a.getPercentileUs(50));
+        assertEquals(1000, a.getPercentileUs(51));
+        assertEquals(100, b.getCount());
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getMaxUs());
+        assertTrue(a.toString().startsWith("a{count=0"));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram("concurrent");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.recordUs(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(9999, histogram.getMaxUs());
+    }
+}
@@ -0,0 +1,216 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MediaInfoCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 以文件长度作为时长的解析器，记录解析次数
+     */
+    private static final class CountingLoader implements MediaInfoCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public MediaInfoCache.Info load(File file) {
+            loads.incrementAndGet();
+            if (file.getName().endsWith(".bad")) {
+                return null;
+            }
+            return new MediaInfoCache.Info(file, file.length() * 1000, 5760, 2880, 30f, 2, true);
+        }
+    }
+
+    private File media(String name, int length) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        return file;
+    }
+
+    @Test
+    public void secondGetIsServedFromCache() throws IOException {
+        CountingLoader loader = new CountingLoader();
+        MediaInfoCache cache = new MediaInfoCache(8, loader);
+        File file = media("a.mp4", 10);
+        MediaInfoCache.Info first = cache.get(file);
+        MediaInfoCache.Info second = cache.get(file);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(10_000, second.durationUs);
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void changedFileIsReloaded() throws IOException {
+        CountingLoader loader = new CountingLoader();
+        MediaInfoCache cache = new MediaInfoCache(8, loader);
+        File file = media("a.mp4", 10);
+        cache.get(file);
+        media("a.mp4", 20);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        assertNull(cache.peek(file));
+        assertEquals(20_000, cache.get(file).durationUs);
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void missingOrUnparsableFileIsNotCached() throws IOException {
+        CountingLoader loader = new CountingLoader();
+        MediaInfoCache cache = new MediaInfoCache(8, loader);
+        assertNull(cache.get(new File(mFolder.getRoot(), "none.mp4")));
+        assertEquals(0, loader.loads.get());
+        File bad = media("c.bad", 4);
+        assertNull(cache.get(bad));
+        assertNull(cache.get(bad));
+        assertEquals(2, loader.loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        MediaInfoCache cache = new MediaInfoCache(2, new CountingLoader());
+        File a = media("a.mp4", 1);
+        File b = media("b.mp4", 2);
+        File c = media("c.mp4", 3);
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.peek(a));
+        assertNull(cache.peek(b));
+        assertNotNull(cache.peek(c));
+    }
+
+    @Test
+    public void invalidateDirOnlyDropsFilesInside() throws IOException {
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader());
+        File dir = mFolder.newFolder("dir");
+        File inside = new File(dir, "in.mp4");
+        assertTrue(inside.createNewFile());
+        File sibling = media("dir2.mp4", 1);
+        cache.get(inside);
+        cache.get(sibling);
+        cache.invalidateDir(dir);
+        assertNull(cache.peek(inside));
+        assertNotNull(cache.peek(sibling));
+        cache.invalidate(sibling);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void diskStoreSurvivesRestart() throws IOException {
+        File store = new File(mFolder.getRoot(), "media_info_cache.bin");
+        File a = media("a.mp4", 10);
+        File b = media("b.mp4", 20);
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader());
+        cache.setDiskStore(store);
+        assertEquals(2, cache.prefetch(Arrays.asList(a, b)));
+        assertTrue(store.exists());
+
+        CountingLoader loader = new CountingLoader();
+        MediaInfoCache reopened = new MediaInfoCache(8, loader);
+        reopened.setDiskStore(store);
+        MediaInfoCache.Info info = reopened.get(b);
+        assertEquals(0, loader.loads.get());
+        assertEquals(20_000, info.durationUs);
+        assertEquals(5760, info.width);
+        assertEquals(2880, info.height);
+        assertEquals(30f, info.fps, 0f);
+        assertEquals(2, info.trackCount);
+        assertTrue(info.hasAudio);
+    }
+
+    @Test
+    public void saveThresholdWritesInBackground() throws IOException {
+        File store = new File(mFolder.getRoot(), "media_info_cache.bin");
+        List<Runnable> saves = new ArrayList<>();
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader(), saves::add);
+        cache.setDiskStore(store);
+        cache.setSaveThreshold(2);
+        cache.get(media("a.mp4", 1));
+        assertTrue(saves.isEmpty());
+        cache.get(media("b.mp4", 2));
+        // 调用线程不写入磁盘，等待写入时的变更合并到同一次写入
+        assertFalse(store.exists());
+        cache.get(media("c.mp4", 3));
+        assertEquals(1, saves.size());
+        saves.remove(0).run();
+        assertEquals(3, MediaInfoCache.read(store).size());
+        cache.get(media("d.mp4", 4));
+        cache.get(media("e.mp4", 5));
+        assertEquals(1, saves.size());
+    }
+
+    @Test
+    public void queriesDoNotWaitForBackgroundSave() throws Exception {
+        File store = new File(mFolder.getRoot(), "media_info_cache.bin");
+        CountDownLatch saveStarted = new CountDownLatch(1);
+        CountDownLatch releaseSave = new CountDownLatch(1);
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader(), task -> new Thread(() -> {
+            saveStarted.countDown();
+            try {
+                releaseSave.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            task.run();
+        }).start());
+        cache.setDiskStore(store);
+        cache.setSaveThreshold(1);
+        File a = media("a.mp4", 1);
+        cache.get(a);
+        assertTrue(saveStarted.await(1, TimeUnit.SECONDS));
+        // 后台写入进行中，查询与新的解析不受影响
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(media("b.mp4", 2)));
+        releaseSave.countDown();
+        // 与后台写入互斥，按顺序写入
+        cache.flush();
+        assertEquals(2, MediaInfoCache.read(store).size());
+    }
+
+    @Test
+    public void corruptStoreIsDiscarded() throws IOException {
+        File store = media("media_info_cache.bin", 16);
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader());
+        cache.setDiskStore(store);
+        assertEquals(0, cache.size());
+        assertFalse(store.exists());
+    }
+
+    @Test
+    public void prefetchDirSkipsCachedAndFilteredFiles() throws IOException {
+        MediaInfoCache cache = new MediaInfoCache(8, new CountingLoader());
+        File a = media("a.mp4", 1);
+        media("b.mp4", 2);
+        media("c.jpg", 3);
+        cache.get(a);
+        assertEquals(1, cache.prefetchDir(mFolder.getRoot(), f -> f.getName().endsWith(".mp4")));
+        assertEquals(2, cache.size());
+    }
+}
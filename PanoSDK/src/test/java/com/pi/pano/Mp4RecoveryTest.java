@@ -0,0 +1,329 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class Mp4RecoveryTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, 0x01};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 按MediaMuxer的布局生成未结束的文件：ftyp、预留moov的free、大小未写入的mdat，之后按块交错写入样本
+     */
+    private static final class Recording {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int videoFrames;
+        int audioFrames;
+        int cammPackets;
+        /**
+         * 每帧结束的文件位置
+         */
+        final List<Integer> videoEnds = new ArrayList<>();
+        final List<Integer> audioEnds = new ArrayList<>();
+        final List<Integer> cammEnds = new ArrayList<>();
+
+        Recording(int freeSize) {
+            box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII));
+            box("free", new byte[freeSize - 8]);
+            // 大小为0，录制中未写入
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write('m');
+            out.write('d');
+            out.write('a');
+            out.write('t');
+        }
+
+        void box(String type, byte[] payload) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(8 + payload.length).put(type.getBytes(StandardCharsets.US_ASCII));
+            out.write(header.array(), 0, 8);
+            out.write(payload, 0, payload.length);
+        }
+
+        private void nal(byte[] nal) {
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(nal.length);
+            out.write(length.array(), 0, 4);
+            out.write(nal, 0, nal.length);
+        }
+
+        /**
+         * 长度前缀的AVC帧，关键帧带SPS、PPS
+         */
+        Recording video(int count) {
+            for (int i = 0; i < count; i++) {
+                boolean key = videoFrames % 30 == 0;
+                if (key) {
+                    nal(SPS);
+                    nal(PPS);
+                }
+                byte[] slice = new byte[key ? 600 : 150 + videoFrames % 7];
+                Arrays.fill(slice, (byte) 0x55);
+                slice[0] = (byte) (key ? 0x65 : 0x41);
+                // first_mb_in_slice为0
+                slice[1] = (byte) 0x88;
+                nal(slice);
+                videoFrames++;
+                videoEnds.add(out.size());
+            }
+            return this;
+        }
+
+        /**
+         * 立体声AAC裸帧：以CPE开始，以ID_END与补齐的0结束
+         */
+        Recording audio(int count) {
+            for (int i = 0; i < count; i++) {
+                byte[] frame = new byte[330 + audioFrames % 20];
+                Arrays.fill(frame, (byte) 0x55);
+                frame[0] = 0x21;
+                frame[frame.length - 1] = (byte) 0xe0;
+                out.write(frame, 0, frame.length);
+                audioFrames++;
+                audioEnds.add(out.size());
+            }
+            return this;
+        }
+
+        Recording gyro(int count) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer packet = ByteBuffer.allocate(CammTrackWriter.SIZE_VECTOR).order(ByteOrder.LITTLE_ENDIAN);
+                packet.putShort((short) 0).putShort((short) CammTrackWriter.TYPE_GYRO);
+                packet.putFloat(0.25f).putFloat(-1.5f).putFloat(i);
+                out.write(packet.array(), 0, packet.capacity());
+                cammPackets++;
+                cammEnds.add(out.size());
+            }
+            return this;
+        }
+
+        /**
+         * 写入被截断的帧，恢复时丢弃
+         */
+        Recording truncatedVideo() {
+            ByteBuffer header = ByteBuffer.allocate(6).putInt(400).put((byte) 0x41).put((byte) 0x88);
+            out.write(header.array(), 0, 6);
+            out.write(new byte[100], 0, 100);
+            return this;
+        }
+
+        File write(File file) throws IOException {
+            Files.write(file.toPath(), out.toByteArray());
+            return file;
+        }
+    }
+
+    /**
+     * 在offset之前已完整写入的帧数
+     */
+    private static int countBefore(List<Integer> ends, int offset) {
+        int count = 0;
+        for (int end : ends) {
+            if (end <= offset) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<String> topLevelBoxes(File file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<String> types = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= data.limit()) {
+            int size = data.getInt(position);
+            types.add(new String(data.array(), position + 4, 4, StandardCharsets.US_ASCII));
+            assertTrue(size >= 8);
+            position += size;
+        }
+        assertEquals(data.limit(), position);
+        return types;
+    }
+
+    private static Mp4Recovery.Config avcConfig(int audioChannelCount, boolean camm) {
+        return Mp4Recovery.Config.create(Mp4TrackFormat.MIME_AVC, 1920, 960, 30, audioChannelCount, camm);
+    }
+
+    @Test
+    public void recoversInterleavedVideoAndAudioInPlace() throws IOException {
+        Recording recording = new Recording(16 * 1024);
+        for (int chunk = 0; chunk < 6; chunk++) {
+            recording.video(10).audio(14);
+        }
+        File file = recording.truncatedVideo().write(mFolder.newFile("a.mp4"));
+
+        Mp4Recovery.Result result = Mp4Recovery.recover(file.getPath(), null, avcConfig(2, false), 0, null);
+        assertEquals(result.toString(), Mp4Recovery.STATE_RECOVERED, result.state);
+        assertEquals(60, result.videoFrames);
+        assertEquals(84, result.audioFrames);
+        assertEquals(2000, result.durationMs);
+        assertEquals(106, result.discardedBytes);
+        assertFalse(result.timeout);
+        // moov写入mdat前的free，截断的帧被移除
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), topLevelBoxes(file));
+
+        Mp4Recovery.Result again = Mp4Recovery.recover(file.getPath(), null, avcConfig(2, false), 0, null);
+        assertEquals(Mp4Recovery.STATE_NOT_NEEDED, again.state);
+    }
+
+    @Test
+    public void recoversToSeparateFileAndAppendsMoov() throws IOException {
+        // free太小，moov追加到文件末尾
+        Recording recording = new Recording(16);
+        recording.video(30).audio(42).video(30).audio(42);
+        File input = recording.write(mFolder.newFile("b.mp4"));
+        byte[] original = Files.readAllBytes(input.toPath());
+        File output = new File(mFolder.getRoot(), "b_recovered.mp4");
+
+        List<Long> progress = new ArrayList<>();
+        Mp4Recovery.Result result = Mp4Recovery.recover(input.getPath(), output.getPath(), avcConfig(2, false), 0,
+                (scanned, total) -> progress.add(scanned));
+        assertEquals(Mp4Recovery.STATE_RECOVERED, result.state);
+        assertEquals(60, result.videoFrames);
+        assertEquals(84, result.audioFrames);
+        assertEquals(0, result.discardedBytes);
+        assertFalse(progress.isEmpty());
+        assertArrayEquals(original, Files.readAllBytes(input.toPath()));
+        assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), topLevelBoxes(output));
+    }
+
+    @Test
+    public void cammPacketsBetweenVideoChunks() throws IOException {
+        Recording recording = new Recording(16 * 1024);
+        recording.video(15).gyro(40).video(15).gyro(40).video(15);
+        File file = recording.write(mFolder.newFile("c.mp4"));
+        Mp4Recovery.Result result = Mp4Recovery.recover(file.getPath(), null, avcConfig(0, true), 0, null);
+        assertEquals(result.toString(), Mp4Recovery.STATE_RECOVERED, result.state);
+        assertEquals(45, result.videoFrames);
+        assertEquals(80, result.cammPackets);
+        assertEquals(0, result.audioFrames);
+        assertEquals(1500, result.durationMs);
+    }
+
+    @Test
+    public void referenceConfigFromFragmentedFile() throws IOException {
+        File reference = mFolder.newFile("ref.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(reference.getPath(), 1000_000, false);
+        byte[] sps = new byte[4 + SPS.length];
+        sps[3] = 1;
+        System.arraycopy(SPS, 0, sps, 4, SPS.length);
+        byte[] pps = new byte[4 + PPS.length];
+        pps[3] = 1;
+        System.arraycopy(PPS, 0, pps, 4, PPS.length);
+        writer.addTrack(Mp4TrackFormat.video(Mp4TrackFormat.MIME_AVC, 1920, 960, sps, pps));
+        writer.addTrack(Mp4TrackFormat.audio(48000, 2, 128000, new byte[]{0x11, (byte) 0x90}));
+        writer.start();
+        writer.stop();
+
+        Mp4Recovery.Config config = Mp4Recovery.Config.fromReference(reference.getPath());
+        assertEquals(1920, config.video.width);
+        assertEquals(960, config.video.height);
+        assertEquals(2, config.audio.channelCount);
+        assertEquals(48000, config.audio.sampleRate);
+        assertEquals(90000, config.videoTimescale);
+        assertEquals(3000, config.videoSampleDelta);
+
+        // 没有参数集的帧也能以参考文件的样本描述恢复
+        Recording recording = new Recording(16 * 1024);
+        recording.videoFrames = 1;
+        recording.video(29).audio(40);
+        File file = recording.write(mFolder.newFile("d.mp4"));
+        Mp4Recovery.Result result = Mp4Recovery.recover(file.getPath(), null, config, 0, null);
+        assertEquals(result.toString(), Mp4Recovery.STATE_RECOVERED, result.state);
+        assertEquals(29, result.videoFrames);
+    }
+
+    @Test
+    public void completeOrInvalidFiles() throws IOException {
+        Recording recording = new Recording(16 * 1024);
+        recording.video(10);
+        File file = recording.write(mFolder.newFile("e.mp4"));
+        assertEquals(Mp4Recovery.STATE_RECOVERED,
+                Mp4Recovery.recover(file.getPath(), null, avcConfig(0, false), 0, null).state);
+        assertEquals(Mp4Recovery.STATE_NOT_NEEDED,
+                Mp4Recovery.recover(file.getPath(), null, avcConfig(0, false), 0, null).state);
+
+        Recording noMdat = new Recording(16);
+        noMdat.out.reset();
+        noMdat.box("ftyp", new byte[8]);
+        File noMdatFile = noMdat.write(mFolder.newFile("f.mp4"));
+        assertEquals(Mp4Recovery.STATE_FAILED,
+                Mp4Recovery.recover(noMdatFile.getPath(), null, avcConfig(0, false), 0, null).state);
+
+        // 生成的配置需要从mdat中找到参数集
+        Recording noParameterSets = new Recording(16 * 1024);
+        noParameterSets.videoFrames = 1;
+        noParameterSets.video(10);
+        File noParameterSetsFile = noParameterSets.write(mFolder.newFile("g.mp4"));
+        Mp4Recovery.Result result = Mp4Recovery.recover(noParameterSetsFile.getPath(), null, avcConfig(0, false),
+                0, null);
+        assertEquals(Mp4Recovery.STATE_FAILED, result.state);
+    }
+
+    /**
+     * 在随机位置截断完整写入的文件，恢复的帧数应等于截断位置之前完整写入的帧数，之后的数据全部丢弃
+     */
+    private void assertRandomTruncations(Recording recording, Mp4Recovery.Config config, long seed)
+            throws IOException {
+        byte[] complete = recording.out.toByteArray();
+        int firstFrameEnd = recording.videoEnds.get(0);
+        Random random = new Random(seed);
+        for (int i = 0; i < 100; i++) {
+            int offset = firstFrameEnd + random.nextInt(complete.length - firstFrameEnd + 1);
+            File file = new File(mFolder.getRoot(), "t" + seed + "_" + i + ".mp4");
+            Files.write(file.toPath(), Arrays.copyOf(complete, offset));
+            Mp4Recovery.Result result = Mp4Recovery.recover(file.getPath(), null, config, 0, null);
+            String message = "offset " + offset + ":" + result;
+            assertEquals(message, Mp4Recovery.STATE_RECOVERED, result.state);
+            assertEquals(message, countBefore(recording.videoEnds, offset), result.videoFrames);
+            assertEquals(message, countBefore(recording.audioEnds, offset), result.audioFrames);
+            assertEquals(message, countBefore(recording.cammEnds, offset), result.cammPackets);
+            int lastEnd = recording.videoEnds.get(result.videoFrames - 1);
+            if (result.audioFrames > 0) {
+                lastEnd = Math.max(lastEnd, recording.audioEnds.get(result.audioFrames - 1));
+            }
+            if (result.cammPackets > 0) {
+                lastEnd = Math.max(lastEnd, recording.cammEnds.get(result.cammPackets - 1));
+            }
+            assertEquals(message, offset - lastEnd, result.discardedBytes);
+        }
+    }
+
+    @Test
+    public void randomTruncationRecoversAllCompleteFrames() throws IOException {
+        Recording recording = new Recording(16 * 1024);
+        for (int chunk = 0; chunk < 8; chunk++) {
+            recording.video(15).audio(21);
+        }
+        assertRandomTruncations(recording, avcConfig(2, false), 20240518);
+
+        Recording camm = new Recording(16 * 1024);
+        for (int chunk = 0; chunk < 8; chunk++) {
+            camm.video(15).gyro(30);
+        }
+        assertRandomTruncations(camm, avcConfig(0, true), 20240519);
+    }
+}
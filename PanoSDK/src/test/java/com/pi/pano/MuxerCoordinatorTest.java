@@ -0,0 +1,148 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MuxerCoordinatorTest {
+
+    /**
+     * 记录调用顺序的封装器，启动前写入视为错误
+     */
+    static final class FakeMuxer implements MuxerCoordinator.Muxer<String> {
+        final List<String> tracks = new ArrayList<>();
+        final List<String> writes = new ArrayList<>();
+        boolean started;
+
+        @Override
+        public int addTrack(@NonNull String format) {
+            if (started) {
+                throw new IllegalStateException("add track after start");
+            }
+            tracks.add(format);
+            return tracks.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            if (!started) {
+                throw new IllegalStateException("write before start");
+            }
+            writes.add(track + ":" + presentationTimeUs + ":" + buffer.get(offset));
+        }
+    }
+
+    private static ByteBuffer sample(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(0, (byte) value);
+        return buffer;
+    }
+
+    @Test
+    public void startsWhenLastTrackRegisters() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 3000, 1024);
+        int video = coordinator.declareTrack("video");
+        int audio = coordinator.declareTrack("audio");
+        assertEquals(0, coordinator.registerTrack(video, "h264"));
+        assertFalse(coordinator.isStarted());
+        assertTrue(coordinator.writeSample(video, sample(1), 0, 16, 0, 1));
+        assertEquals(1, coordinator.registerTrack(audio, "aac"));
+        assertTrue(coordinator.isStarted());
+        assertTrue(coordinator.writeSample(audio, sample(2), 0, 16, 10, 0));
+        assertEquals(2, muxer.writes.size());
+        assertEquals("0:0:1", muxer.writes.get(0));
+        assertEquals("1:10:2", muxer.writes.get(1));
+    }
+
+    @Test
+    public void pendingSamplesAreCopied() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 3000, 1024);
+        int video = coordinator.declareTrack("video");
+        int audio = coordinator.declareTrack("audio");
+        coordinator.registerTrack(video, "h264");
+        ByteBuffer reused = sample(7);
+        coordinator.writeSample(video, reused, 0, 16, 0, 1);
+        // 编码器复用输出缓冲
+        reused.put(0, (byte) 9);
+        coordinator.registerTrack(audio, "aac");
+        assertEquals("0:0:7", muxer.writes.get(0));
+    }
+
+    @Test
+    public void timeoutStartsWithRegisteredTracksAndDropsLateOnes() {
+        FakeMuxer muxer = new FakeMuxer();
+        AtomicLong now = new AtomicLong();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 100, 1024, now::get);
+        int video = coordinator.declareTrack("video");
+        int camm = coordinator.declareTrack("camm");
+        coordinator.registerTrack(video, "h264");
+        coordinator.writeSample(video, sample(1), 0, 16, 0, 1);
+        now.set(100_000_000L);
+        assertTrue(coordinator.writeSample(video, sample(2), 0, 16, 33, 0));
+        assertTrue(coordinator.isStarted());
+        assertEquals(-1, coordinator.registerTrack(camm, "camm"));
+        assertFalse(coordinator.writeSample(camm, sample(3), 0, 16, 40, 0));
+        assertEquals(1, muxer.tracks.size());
+        assertEquals(2, muxer.writes.size());
+        assertTrue(coordinator.toString().contains("camm:dropped"));
+    }
+
+    @Test
+    public void pendingBytesAreBounded() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 3000, 40);
+        int video = coordinator.declareTrack("video");
+        coordinator.declareTrack("audio");
+        coordinator.registerTrack(video, "h264");
+        assertTrue(coordinator.writeSample(video, sample(1), 0, 16, 0, 1));
+        assertTrue(coordinator.writeSample(video, sample(2), 0, 16, 33, 0));
+        assertFalse(coordinator.writeSample(video, sample(3), 0, 16, 66, 0));
+        assertEquals(1, coordinator.getDroppedCount());
+        assertEquals(32, coordinator.getMaxPendingBytes());
+    }
+
+    @Test
+    public void finishForcesStartWithPendingSamples() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 3000, 1024);
+        int video = coordinator.declareTrack("video");
+        coordinator.declareTrack("audio");
+        coordinator.registerTrack(video, "h264");
+        coordinator.writeSample(video, sample(1), 0, 16, 0, 1);
+        assertTrue(coordinator.finish());
+        assertEquals(1, muxer.writes.size());
+    }
+
+    @Test
+    public void finishWithoutAnyTrackDoesNotStart() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(muxer, 3000, 1024);
+        coordinator.declareTrack("video");
+        assertFalse(coordinator.finish());
+        assertFalse(muxer.started);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void declareAfterRegisterIsRejected() {
+        MuxerCoordinator<String> coordinator = new MuxerCoordinator<>(new FakeMuxer(), 3000, 1024);
+        coordinator.registerTrack(coordinator.declareTrack("video"), "h264");
+        coordinator.declareTrack("audio");
+    }
+}
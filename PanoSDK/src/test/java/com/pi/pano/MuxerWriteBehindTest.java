@@ -0,0 +1,211 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MuxerWriteBehindTest {
+
+    /**
+     * 可暂停的封装器，记录写入的样本
+     */
+    private static final class GatedMuxer implements MuxerCoordinator.Muxer<String> {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch gate;
+        volatile RuntimeException error;
+
+        GatedMuxer(boolean open) {
+            gate = new CountDownLatch(open ? 0 : 1);
+        }
+
+        @Override
+        public int addTrack(@NonNull String format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+            writes.add(track + ":" + presentationTimeUs + ":" + buffer.get(offset) + ":" + size);
+        }
+    }
+
+    private static ByteBuffer sample(int value, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size + 4);
+        buffer.put(4, (byte) value);
+        return buffer;
+    }
+
+    @Test
+    public void writesAllSamplesInOrderFromCopies() {
+        GatedMuxer muxer = new GatedMuxer(true);
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 4, MuxerWriteBehind.Policy.BLOCK);
+        ByteBuffer reused = sample(0, 100);
+        for (int i = 0; i < 50; i++) {
+            reused.put(4, (byte) i);
+            writer.writeSampleData(i % 2, reused, 4, 100, i, 0);
+        }
+        writer.close();
+        assertEquals(50, muxer.writes.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals((i % 2) + ":" + i + ":" + i + ":100", muxer.writes.get(i));
+        }
+        assertTrue(writer.getMaxQueueDepth() <= 4);
+    }
+
+    @Test
+    public void buffersAreReusedWithinByteBudget() {
+        GatedMuxer muxer = new GatedMuxer(true);
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 8, MuxerWriteBehind.Policy.BLOCK, 64 * 1024);
+        for (int i = 0; i < 500; i++) {
+            // 大小相近的样本落在同一尺寸级别
+            writer.writeSampleData(0, sample(i, 1000 + i % 200), 4, 1000 + i % 200, i, 0);
+        }
+        writer.close();
+        SampleRemuxer.BufferPool pool = writer.getPool();
+        assertTrue(pool.getAllocateCount() <= 20);
+        assertTrue(pool.getPooledBytes() <= 64 * 1024);
+    }
+
+    @Test
+    public void dropNonKeyUntilNextKeyFrameWhenFull() throws Exception {
+        GatedMuxer muxer = new GatedMuxer(false);
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 2, MuxerWriteBehind.Policy.DROP_NON_KEY);
+        writer.setDroppable(0, true);
+        // 第一个样本被写入线程取出并阻塞，再放满队列
+        writer.writeSampleData(0, sample(0, 8), 4, 8, 0, MuxerWriteBehind.FLAG_KEY_FRAME);
+        while (writer.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        writer.writeSampleData(0, sample(1, 8), 4, 8, 1, 0);
+        writer.writeSampleData(0, sample(2, 8), 4, 8, 2, 0);
+        writer.writeSampleData(0, sample(3, 8), 4, 8, 3, 0);
+        assertEquals(1, writer.getDropCount());
+        assertEquals(1, writer.getFullCount());
+        muxer.gate.countDown();
+        // 队列有空间后仍丢弃非关键帧，直到下一个关键帧
+        writer.writeSampleData(0, sample(4, 8), 4, 8, 4, 0);
+        writer.writeSampleData(0, sample(5, 8), 4, 8, 5, MuxerWriteBehind.FLAG_KEY_FRAME);
+        writer.close();
+        assertEquals(2, writer.getDropCount());
+        assertEquals(4, muxer.writes.size());
+        assertEquals("0:5:5:8", muxer.writes.get(3));
+    }
+
+    @Test
+    public void signalBitrateNotifiesOncePerFullEpisode() throws Exception {
+        GatedMuxer muxer = new GatedMuxer(false);
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 1, MuxerWriteBehind.Policy.SIGNAL_BITRATE);
+        AtomicInteger signals = new AtomicInteger();
+        writer.setListener(depth -> signals.incrementAndGet());
+        writer.writeSampleData(0, sample(0, 8), 4, 8, 0, 0);
+        while (writer.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        writer.writeSampleData(0, sample(1, 8), 4, 8, 1, 0);
+        Thread blocked = new Thread(() -> writer.writeSampleData(0, sample(2, 8), 4, 8, 2, 0));
+        blocked.start();
+        Thread.sleep(30);
+        muxer.gate.countDown();
+        blocked.join();
+        writer.close();
+        assertEquals(1, signals.get());
+        assertEquals(3, muxer.writes.size());
+        assertTrue(writer.getBlockedNs() > 0);
+    }
+
+    @Test
+    public void writerErrorIsRethrownToCaller() throws Exception {
+        GatedMuxer muxer = new GatedMuxer(true);
+        muxer.error = new IllegalStateException("disk full");
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 4, MuxerWriteBehind.Policy.BLOCK);
+        writer.writeSampleData(0, sample(0, 8), 4, 8, 0, 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (writer.getError() == null && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        try {
+            writer.writeSampleData(0, sample(1, 8), 4, 8, 1, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void concurrentWritersKeepCountersConsistent() throws Exception {
+        GatedMuxer muxer = new GatedMuxer(true);
+        MuxerWriteBehind<String> writer = new MuxerWriteBehind<>(muxer, 2, MuxerWriteBehind.Policy.BLOCK);
+        Thread[] threads = new Thread[3];
+        for (int t = 0; t < threads.length; t++) {
+            final int track = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    writer.writeSampleData(track, sample(i, 16), 4, 16, i, 0);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+        assertEquals(6000, muxer.writes.size());
+        assertTrue(writer.getMaxQueueDepth() <= 2);
+        assertFalse(writer.getFullCount() < 0);
+        assertEquals(0, writer.getDropCount());
+    }
+
+    @Test
+    public void sizeClassesRoundUpByQuarterPowers() {
+        assertEquals(256, SampleRemuxer.BufferPool.sizeClass(16, 256));
+        assertEquals(1024, SampleRemuxer.BufferPool.sizeClass(1024, 256));
+        assertEquals(1280, SampleRemuxer.BufferPool.sizeClass(1025, 256));
+        assertEquals(1536, SampleRemuxer.BufferPool.sizeClass(1400, 256));
+        assertEquals(2048, SampleRemuxer.BufferPool.sizeClass(1900, 256));
+        assertEquals(1025, SampleRemuxer.BufferPool.sizeClass(1025, 0));
+    }
+
+    @Test
+    public void poolDropsSmallestBuffersOverByteBudget() {
+        SampleRemuxer.BufferPool pool = new SampleRemuxer.BufferPool(16, 4096, 256);
+        ByteBuffer small = pool.acquire(1000);
+        ByteBuffer middle = pool.acquire(2000);
+        ByteBuffer large = pool.acquire(3000);
+        pool.release(small);
+        pool.release(middle);
+        assertEquals(1024 + 2048, pool.getPooledBytes());
+        pool.release(large);
+        // 放入3072字节的缓冲需丢弃1024与2048两个更小的缓冲
+        assertEquals(3072, pool.getPooledBytes());
+        assertEquals(1, pool.getPooledCount());
+        assertEquals(2, pool.getDiscardCount());
+        assertEquals(3072, pool.acquire(500).capacity());
+    }
+}
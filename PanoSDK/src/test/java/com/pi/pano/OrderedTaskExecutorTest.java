@@ -0,0 +1,157 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OrderedTaskExecutorTest {
+
+    private static OrderedTaskExecutor<Integer> newExecutor(int count, int concurrency) {
+        return new OrderedTaskExecutor<>("test", count, concurrency, System::nanoTime);
+    }
+
+    @Test
+    public void resultsAreTakenByIndexWhateverTheCompletionOrder() throws Exception {
+        OrderedTaskExecutor<Integer> executor = newExecutor(3, 3);
+        CountDownLatch firstGate = new CountDownLatch(1);
+        CountDownLatch lastDone = new CountDownLatch(1);
+        assertTrue(executor.submit(0, () -> {
+            firstGate.await();
+            return 0;
+        }));
+        assertTrue(executor.submit(1, () -> 10));
+        assertTrue(executor.submit(2, () -> {
+            lastDone.countDown();
+            return 20;
+        }));
+        assertTrue(lastDone.await(1, TimeUnit.SECONDS));
+        assertEquals(20, (int) executor.await(2, 1000));
+        try {
+            executor.await(0, 20);
+            fail("task 0 is blocked");
+        } catch (TimeoutException expected) {
+        }
+        firstGate.countDown();
+        assertEquals(0, (int) executor.await(0, 1000));
+        assertEquals(10, (int) executor.await(1, 0));
+        assertTrue(executor.getRunMs(0) >= 0);
+        assertTrue(executor.getWaitMs(1) >= 0);
+        executor.shutdown();
+    }
+
+    @Test
+    public void invalidOrRepeatedSubmitIsRejected() throws Exception {
+        OrderedTaskExecutor<Integer> executor = newExecutor(2, 1);
+        assertFalse(executor.submit(-1, () -> 1));
+        assertFalse(executor.submit(2, () -> 1));
+        assertTrue(executor.submit(0, () -> 1));
+        assertFalse(executor.submit(0, () -> 2));
+        assertEquals(1, (int) executor.await(0, 1000));
+        assertEquals(-1, executor.getRunMs(1));
+        assertEquals(-1, executor.getWaitMs(1));
+        executor.shutdown();
+    }
+
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        final int count = 8;
+        OrderedTaskExecutor<Integer> executor = newExecutor(count, 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            executor.submit(i, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(5);
+                running.decrementAndGet();
+                return index;
+            });
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) executor.await(i, 2000));
+        }
+        assertTrue(maxRunning.get() <= 2);
+        executor.shutdown();
+    }
+
+    @Test
+    public void failureCancelsTheRest() throws Exception {
+        OrderedTaskExecutor<Integer> executor = newExecutor(3, 1);
+        IllegalStateException failure = new IllegalStateException("stitch failed");
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        executor.submit(0, () -> {
+            gate.await();
+            throw failure;
+        });
+        executor.submit(1, () -> ran.incrementAndGet());
+        gate.countDown();
+        try {
+            executor.await(0, 1000);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        // 等待中的结果以失败结束，未开始的任务不再执行
+        try {
+            executor.await(1, 1000);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CancellationException);
+            assertSame(failure, e.getCause().getCause());
+        }
+        assertTrue(executor.isCancelled());
+        assertFalse(executor.submit(2, () -> 2));
+        assertEquals(0, ran.get());
+        assertTrue(executor.toString().contains("failure=" + failure));
+    }
+
+    @Test
+    public void nullResultIsFailure() throws Exception {
+        OrderedTaskExecutor<Integer> executor = newExecutor(2, 2);
+        executor.submit(1, () -> null);
+        try {
+            executor.await(1, 1000);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            executor.await(0, 1000);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CancellationException);
+        }
+    }
+
+    @Test
+    public void externalCancelEndsWaiting() throws Exception {
+        OrderedTaskExecutor<Integer> executor = newExecutor(1, 1);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                executor.await(0, 0);
+            } catch (Exception e) {
+                thrown.set(e);
+            }
+        });
+        waiter.start();
+        executor.cancel(new InterruptedException("aborted"));
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+        assertTrue(thrown.get() instanceof ExecutionException);
+        assertTrue(executor.isCancelled());
+    }
+}
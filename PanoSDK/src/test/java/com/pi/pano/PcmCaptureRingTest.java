@@ -0,0 +1,154 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PcmCaptureRingTest {
+    private static final int SAMPLE_RATE = 48000;
+    /**
+     * 16bit双声道
+     */
+    private static final int BYTES_PER_FRAME = 4;
+    /**
+     * 1024帧，约21.333ms
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * 按测试给出的大小返回数据，第n次读取的数据全部为n
+     */
+    private static final class ScriptedSource implements PcmCaptureRing.Source {
+        final LinkedBlockingQueue<Integer> reads = new LinkedBlockingQueue<>();
+        final AtomicLong readCount = new AtomicLong();
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int size) {
+            Integer count;
+            try {
+                count = reads.poll(5, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            if (count == null) {
+                return 0;
+            }
+            if (count > 0) {
+                long n = readCount.incrementAndGet();
+                for (int i = 0; i < count; i++) {
+                    buffer[offset + i] = (byte) n;
+                }
+            }
+            return count;
+        }
+
+        void awaitConsumed() throws InterruptedException {
+            while (!reads.isEmpty()) {
+                Thread.sleep(1);
+            }
+            // 等待最后一次读取写入缓冲槽
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void timestampsFollowSampleCountFromAnchor() throws Exception {
+        ScriptedSource source = new ScriptedSource();
+        AtomicLong clock = new AtomicLong(1_000_000);
+        PcmCaptureRing ring = new PcmCaptureRing(source, BUFFER_SIZE, 8, SAMPLE_RATE, BYTES_PER_FRAME, clock::get);
+        ring.start();
+        source.reads.add(BUFFER_SIZE);
+        source.reads.add(BUFFER_SIZE);
+        source.reads.add(BUFFER_SIZE / 2);
+        PcmCaptureRing.Chunk chunk = new PcmCaptureRing.Chunk();
+        long[] expected = {1_000_000 - 21_333, 1_000_000, 1_000_000 + 21_333};
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(ring.peek(chunk, 1000));
+            assertEquals(expected[i], chunk.presentationTimeUs);
+            assertEquals(i + 1, chunk.data[0]);
+            ring.release();
+        }
+        assertEquals(1024 * 2 + 512, ring.getFramePosition());
+        // 时钟未前进，采样数超前于时钟
+        assertTrue(ring.getDriftUs() < 0);
+        ring.stop();
+    }
+
+    @Test
+    public void overrunDropsNewDataButKeepsTimeline() throws Exception {
+        ScriptedSource source = new ScriptedSource();
+        PcmCaptureRing ring = new PcmCaptureRing(source, BUFFER_SIZE, 2, SAMPLE_RATE, BYTES_PER_FRAME, () -> 0);
+        ring.start();
+        for (int i = 0; i < 5; i++) {
+            source.reads.add(BUFFER_SIZE);
+        }
+        source.awaitConsumed();
+        assertEquals(2, ring.size());
+        assertEquals(3, ring.getOverrunCount());
+        assertEquals(3 * 1024, ring.getOverrunFrames());
+        assertEquals(5 * 1024, ring.getFramePosition());
+        PcmCaptureRing.Chunk chunk = new PcmCaptureRing.Chunk();
+        assertTrue(ring.peek(chunk, 0));
+        assertEquals(1, chunk.data[0]);
+        ring.release();
+        assertTrue(ring.peek(chunk, 0));
+        assertEquals(2, chunk.data[0]);
+        ring.clear();
+        assertEquals(0, ring.size());
+        source.reads.add(BUFFER_SIZE);
+        assertTrue(ring.peek(chunk, 1000));
+        // 丢弃的数据仍占用时间，下一块时间戳连续
+        assertEquals(6, chunk.data[0]);
+        assertEquals(chunk.presentationTimeUs, 5 * 1024 * 1000_000L / SAMPLE_RATE - 21_333);
+        ring.stop();
+    }
+
+    @Test
+    public void peekTimesOutAsUnderrun() {
+        ScriptedSource source = new ScriptedSource();
+        PcmCaptureRing ring = new PcmCaptureRing(source, BUFFER_SIZE, 4, SAMPLE_RATE, BYTES_PER_FRAME, () -> 0);
+        ring.start();
+        assertFalse(ring.peek(new PcmCaptureRing.Chunk(), 10));
+        assertEquals(1, ring.getUnderrunCount());
+        ring.stop();
+        assertFalse(ring.peek(new PcmCaptureRing.Chunk(), 10));
+        assertEquals(1, ring.getUnderrunCount());
+    }
+
+    @Test
+    public void readErrorsAreCountedAndSkipped() throws Exception {
+        ScriptedSource source = new ScriptedSource();
+        PcmCaptureRing ring = new PcmCaptureRing(source, BUFFER_SIZE, 4, SAMPLE_RATE, BYTES_PER_FRAME, () -> 0);
+        ring.start();
+        source.reads.add(-3);
+        source.reads.add(BUFFER_SIZE);
+        PcmCaptureRing.Chunk chunk = new PcmCaptureRing.Chunk();
+        assertTrue(ring.peek(chunk, 1000));
+        assertEquals(1, ring.getReadErrorCount());
+        assertEquals(BUFFER_SIZE, chunk.size);
+        ring.stop();
+    }
+
+    @Test
+    public void stopWakesWaitingConsumer() throws Exception {
+        ScriptedSource source = new ScriptedSource();
+        PcmCaptureRing ring = new PcmCaptureRing(source, BUFFER_SIZE, 4, SAMPLE_RATE, BYTES_PER_FRAME, () -> 0);
+        ring.start();
+        long begin = System.nanoTime();
+        Thread consumer = new Thread(() -> ring.peek(new PcmCaptureRing.Chunk(), 5000));
+        consumer.start();
+        Thread.sleep(20);
+        ring.stop();
+        consumer.join(2000);
+        assertFalse(consumer.isAlive());
+        assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(2));
+    }
+}
@@ -0,0 +1,111 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RAW保存的耗时与分配，与原先复制到byte[]再写入的方式对比。
+ * 图像为8112x3040的16位RAW_SENSOR，耗时为调用方等待的时间，不含后台fsync。
+ */
+public class RawFileWriterBenchmark {
+    private static final int WIDTH = 8112;
+    private static final int HEIGHT = 3040;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private interface Shot {
+        /**
+         * @return 后台完成的写入，没有时为null
+         */
+        CompletableFuture<Long> save(File file) throws IOException;
+    }
+
+    private static ByteBuffer plane(int rowStride) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int i = 0; i < plane.capacity(); i += 4096) {
+            plane.put(i, (byte) i);
+        }
+        return plane;
+    }
+
+    /**
+     * 原保存方式：整个平面复制到byte[]，经缓冲流写入，包含行尾填充
+     */
+    private static CompletableFuture<Long> legacySave(File file, ByteBuffer plane) throws IOException {
+        ByteBuffer buffer = plane.duplicate();
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            byte[] byteBuffer = new byte[buffer.remaining()];
+            buffer.get(byteBuffer);
+            output.write(byteBuffer);
+        }
+        return null;
+    }
+
+    /**
+     * @return 每张的最短纳秒数与平均分配的字节数
+     */
+    private long[] measure(String name, Shot shot) throws Exception {
+        File file = new File(mFolder.getRoot(), "bench.raw");
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        // 第一次为预热
+        for (int round = 0; round <= ROUNDS; round++) {
+            long allocBegin = Benchmarks.allocatedBytes();
+            long begin = System.nanoTime();
+            CompletableFuture<Long> synced = shot.save(file);
+            long ns = System.nanoTime() - begin;
+            long allocEnd = Benchmarks.allocatedBytes();
+            if (synced != null) {
+                synced.get(10, TimeUnit.SECONDS);
+            }
+            if (round > 0) {
+                best = Math.min(best, ns);
+                allocated += allocBegin < 0 ? 0 : allocEnd - allocBegin;
+            }
+            assertTrue(file.delete());
+        }
+        long bytesPerShot = Benchmarks.allocatedBytes() < 0 ? -1 : allocated / ROUNDS;
+        Benchmarks.report("RawFileWriter/" + name, "%.1fms %.1fKB alloc per shot", best / 1e6, bytesPerShot / 1024.0);
+        return new long[]{best, bytesPerShot};
+    }
+
+    private void compare(String name, int rowStride) throws Exception {
+        ByteBuffer plane = plane(rowStride);
+        DngHeaderBuilder header = new DngHeaderBuilder(WIDTH, HEIGHT)
+                .setCamera("bench", "bench", "bench");
+        assertEquals(WIDTH * 2, header.getRowBytes());
+        long[] legacy = measure(name + "/legacy", file -> legacySave(file, plane));
+        long[] direct = measure(name + "/direct", file -> RawFileWriter.write(file, header.build(), plane,
+                header.getRowBytes(), rowStride, HEIGHT, true));
+        if (legacy[1] >= 0) {
+            // 原方式每张分配整个平面，直接写入只有文件与缓冲视图等对象
+            assertTrue(legacy[1] >= (long) rowStride * HEIGHT);
+            assertTrue("direct allocates " + direct[1] + "B per shot", direct[1] < 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void packedRows() throws Exception {
+        compare("packed", WIDTH * 2);
+    }
+
+    @Test
+    public void paddedRows() throws Exception {
+        compare("padded", WIDTH * 2 + 64);
+    }
+}
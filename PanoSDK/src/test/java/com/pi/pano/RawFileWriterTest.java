@@ -0,0 +1,206 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class RawFileWriterTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 每次最多写入maxWrite字节的通道，模拟部分写入
+     */
+    private static final class ChunkedChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int maxWrite;
+        int calls;
+
+        ChunkedChannel(int maxWrite) {
+            this.maxWrite = maxWrite;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            calls++;
+            long written = 0;
+            for (int i = offset; i < offset + length && written < maxWrite; i++) {
+                ByteBuffer src = srcs[i];
+                int count = (int) Math.min(src.remaining(), maxWrite - written);
+                byte[] data = new byte[count];
+                src.get(data);
+                out.write(data, 0, count);
+                written += count;
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 带行尾填充的平面，填充为0xee，最后一行没有填充
+     */
+    private static ByteBuffer plane(int rowBytes, int rowStride, int rows, boolean direct) {
+        int size = rowStride * (rows - 1) + rowBytes;
+        ByteBuffer plane = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            plane.put(i, i % rowStride < rowBytes ? (byte) (i / rowStride + i % rowStride) : (byte) 0xee);
+        }
+        return plane;
+    }
+
+    private static byte[] packed(int rowBytes, int rows) {
+        byte[] data = new byte[rowBytes * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int i = 0; i < rowBytes; i++) {
+                data[row * rowBytes + i] = (byte) (row + i);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void contiguousRowsAreWrittenAsIs() throws IOException {
+        ByteBuffer plane = plane(16, 16, 4, false);
+        ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        assertEquals(64, RawFileWriter.writeRows(channel, plane, 16, 16, 4));
+        assertArrayEquals(packed(16, 4), channel.out.toByteArray());
+        assertEquals(1, channel.calls);
+        assertEquals(0, plane.position());
+    }
+
+    @Test
+    public void rowPaddingIsRemovedAcrossBatches() throws IOException {
+        // 超过一次聚集写入的行数，最后一批不满
+        final int rows = 150;
+        ByteBuffer plane = plane(20, 32, rows, true);
+        ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        assertEquals(20L * rows, RawFileWriter.writeRows(channel, plane, 20, 32, rows));
+        assertArrayEquals(packed(20, rows), channel.out.toByteArray());
+        assertEquals(3, channel.calls);
+    }
+
+    @Test
+    public void partialWritesAreContinued() throws IOException {
+        ByteBuffer plane = plane(10, 12, 8, false);
+        ChunkedChannel channel = new ChunkedChannel(7);
+        assertEquals(80, RawFileWriter.writeRows(channel, plane, 10, 12, 8));
+        assertArrayEquals(packed(10, 8), channel.out.toByteArray());
+        assertTrue(channel.calls >= 80 / 7);
+    }
+
+    @Test
+    public void writeStartsAtPlanePosition() throws IOException {
+        ByteBuffer plane = ByteBuffer.allocate(4 + 12 * 2);
+        plane.position(4);
+        plane.slice().put(plane(10, 12, 2, false));
+        ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        RawFileWriter.writeRows(channel, plane, 10, 12, 2);
+        assertArrayEquals(packed(10, 2), channel.out.toByteArray());
+        assertEquals(4, plane.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void strideSmallerThanRowIsRejected() throws IOException {
+        RawFileWriter.writeRows(new ChunkedChannel(1), ByteBuffer.allocate(64), 16, 8, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortPlaneIsRejected() throws IOException {
+        RawFileWriter.writeRows(new ChunkedChannel(1), ByteBuffer.allocate(63), 16, 16, 4);
+    }
+
+    @Test
+    public void dngFileIsHeaderFollowedByPackedRows() throws Exception {
+        final int width = 64;
+        final int height = 48;
+        DngHeaderBuilder builder = new DngHeaderBuilder(width, height);
+        ByteBuffer header = builder.build();
+        final int rowBytes = builder.getRowBytes();
+        ByteBuffer plane = plane(rowBytes, rowBytes + 32, height, true);
+        File file = mFolder.newFile("a.dng");
+        // 已存在的内容被覆盖
+        Files.write(file.toPath(), new byte[100_000]);
+
+        long length = RawFileWriter.write(file, header, plane, rowBytes, rowBytes + 32, height, true)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(header.limit() + builder.getDataBytes(), length);
+        assertEquals(0, header.position());
+        byte[] content = Files.readAllBytes(file.toPath());
+        assertEquals(length, content.length);
+        byte[] headerBytes = new byte[header.limit()];
+        header.duplicate().get(headerBytes);
+        assertArrayEquals(headerBytes, Arrays.copyOf(content, headerBytes.length));
+        assertArrayEquals(packed(rowBytes, height), Arrays.copyOfRange(content, headerBytes.length, content.length));
+    }
+
+    @Test
+    public void writeWithoutHeaderOrPreallocation() throws Exception {
+        ByteBuffer plane = plane(100, 100, 10, false);
+        File file = mFolder.newFile("b.raw");
+        Files.write(file.toPath(), new byte[5000]);
+        assertEquals(1000L, (long) RawFileWriter.write(file, null, plane, 100, 100, 10, false)
+                .get(5, TimeUnit.SECONDS));
+        assertArrayEquals(packed(100, 10), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void largeDirectPlaneIsWrittenWithoutCopy() throws Exception {
+        // 4K的16位RAW，行跨度按64字节对齐
+        final int width = 4000;
+        final int height = 3000;
+        final int rowBytes = width * DngHeaderBuilder.BYTES_PER_SAMPLE;
+        final int rowStride = (rowBytes + 63) / 64 * 64;
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * (height - 1) + rowBytes);
+        for (int row = 0; row < height; row++) {
+            plane.put(row * rowStride, (byte) row);
+            plane.put(row * rowStride + rowBytes - 1, (byte) ~row);
+        }
+        DngHeaderBuilder builder = new DngHeaderBuilder(width, height);
+        ByteBuffer header = builder.build();
+        File file = mFolder.newFile("c.dng");
+        for (int i = 0; i < 3; i++) {
+            long length = RawFileWriter.write(file, header, plane, rowBytes, rowStride, height, true)
+                    .get(30, TimeUnit.SECONDS);
+            assertEquals(header.limit() + builder.getDataBytes(), length);
+        }
+        assertEquals(header.limit() + builder.getDataBytes(), file.length());
+        byte[] content = Files.readAllBytes(file.toPath());
+        for (int row = 0; row < height; row += 499) {
+            int start = header.limit() + row * rowBytes;
+            assertEquals((byte) row, content[start]);
+            assertEquals((byte) ~row, content[start + rowBytes - 1]);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 录像统计热路径的耗时与分配：直方图记录，以及每帧的输入、输出、编码耗时与封装写入记录。
+ * 热路径不应分配对象。
+ */
+public class RecordTelemetryBenchmark {
+    private static final int WARMUP = 20_000;
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 100_000;
+
+    private static void assertNoAllocation(String name, double bytesPerOp) {
+        if (bytesPerOp >= 0) {
+            assertTrue(name + " allocates " + bytesPerOp + "B per op", bytesPerOp < 1);
+        }
+    }
+
+    @Test
+    public void histogramRecord() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram("bench");
+        long[] value = {0};
+        Benchmarks.Op op = () -> {
+            // 覆盖线性区间与多个2的幂区间
+            value[0] = (value[0] * 6364136223846793005L + 1442695040888963407L);
+            histogram.recordUs((value[0] >>> 40) & 0xfffff);
+        };
+        double ns = Benchmarks.nanosPerOp(WARMUP, ROUNDS, ITERATIONS, op);
+        double alloc = Benchmarks.allocatedBytesPerOp(ITERATIONS, op);
+        double percentileNs = Benchmarks.nanosPerOp(1000, ROUNDS, 10_000, () -> histogram.getPercentileUs(99));
+        Benchmarks.report("LatencyHistogram", "record %.1fns %.2fB alloc per op; p99 %.0fns", ns, alloc, percentileNs);
+        assertNoAllocation("LatencyHistogram.recordUs", alloc);
+    }
+
+    @Test
+    public void telemetryFrame() throws Exception {
+        long[] nowNs = {0};
+        // 每次读取时钟前进0.1ms，每秒一个周期，测量中包含周期结算
+        RecordTelemetry telemetry = new RecordTelemetry(1000, 60, () -> nowNs[0] += 100_000);
+        Benchmarks.Op op = () -> {
+            telemetry.recordFrameIn(RecordTelemetry.TRACK_VIDEO);
+            telemetry.recordEncodeLatency(nowNs[0] / 1000 - 16_000);
+            telemetry.recordFrameOut(RecordTelemetry.TRACK_VIDEO, 200_000);
+            telemetry.recordMuxerWrite(50_000, 300_000);
+        };
+        double ns = Benchmarks.nanosPerOp(WARMUP, ROUNDS, ITERATIONS, op);
+        double alloc = Benchmarks.allocatedBytesPerOp(ITERATIONS, op);
+        double snapshotNs = Benchmarks.nanosPerOp(100, ROUNDS, 1000, telemetry::snapshot);
+        Benchmarks.report("RecordTelemetry", "frame %.1fns %.2fB alloc per frame; snapshot %.0fns", ns, alloc,
+                snapshotNs);
+        assertNoAllocation("RecordTelemetry frame", alloc);
+        assertEquals(60, telemetry.snapshot().intervals.length);
+    }
+}
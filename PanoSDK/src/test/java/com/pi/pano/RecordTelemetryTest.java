@@ -0,0 +1,91 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RecordTelemetryTest {
+    private static final long MS = 1000_000;
+
+    @Test
+    public void countsFramesDropsAndBitrate() {
+        AtomicLong now = new AtomicLong(5_000 * MS);
+        RecordTelemetry telemetry = new RecordTelemetry(1000, 4, now::get);
+        for (int i = 0; i < 30; i++) {
+            telemetry.recordFrameIn(RecordTelemetry.TRACK_VIDEO);
+            telemetry.recordFrameOut(RecordTelemetry.TRACK_VIDEO, 1000);
+        }
+        telemetry.recordDrop(RecordTelemetry.TRACK_VIDEO, 2);
+        telemetry.recordFrameOut(RecordTelemetry.TRACK_AUDIO, 500);
+        now.addAndGet(500 * MS);
+        RecordTelemetrySnapshot snapshot = telemetry.snapshot();
+        assertEquals(500, snapshot.durationMs);
+        assertEquals(30, snapshot.video.framesIn);
+        assertEquals(30, snapshot.video.framesOut);
+        assertEquals(2, snapshot.video.dropped);
+        assertEquals(30_000, snapshot.video.bytes);
+        assertEquals(480_000, snapshot.video.bitrate);
+        assertEquals(500, snapshot.audio.bytes);
+        assertEquals(0, snapshot.intervals.length);
+    }
+
+    @Test
+    public void intervalsKeepOnlyTheLatestDeltas() {
+        AtomicLong now = new AtomicLong();
+        RecordTelemetry telemetry = new RecordTelemetry(1000, 3, now::get);
+        for (int second = 0; second < 5; second++) {
+            for (int i = 0; i <= second; i++) {
+                telemetry.recordFrameIn(RecordTelemetry.TRACK_VIDEO);
+                telemetry.recordFrameOut(RecordTelemetry.TRACK_VIDEO, 125);
+            }
+            now.addAndGet(1000 * MS);
+        }
+        RecordTelemetrySnapshot snapshot = telemetry.snapshot();
+        assertEquals(3, snapshot.intervals.length);
+        // 周期在下一周期的第一帧到达时结算，该帧计入下一周期
+        assertEquals(2000, snapshot.intervals[0].startMs);
+        assertEquals(3, snapshot.intervals[0].videoFramesOut);
+        assertEquals(4, snapshot.intervals[1].videoFramesOut);
+        assertEquals(5, snapshot.intervals[2].videoFramesOut);
+        assertEquals(5000, snapshot.intervals[2].videoBitrate);
+        assertEquals(15, snapshot.video.framesOut);
+    }
+
+    @Test
+    public void encodeLatencyIgnoresForeignClock() {
+        AtomicLong now = new AtomicLong(1000 * MS);
+        RecordTelemetry telemetry = new RecordTelemetry(1000, 2, now::get);
+        telemetry.recordEncodeLatency(1000_000 - 20_000);
+        // 时间戳在未来或相差过大，不是同一时钟
+        telemetry.recordEncodeLatency(2000_000);
+        telemetry.recordEncodeLatency(-100_000_000);
+        telemetry.recordMuxerWrite(3 * MS, 2 * MS);
+        now.addAndGet(1000 * MS);
+        RecordTelemetrySnapshot snapshot = telemetry.snapshot();
+        assertEquals(1, snapshot.encodeLatency.count);
+        assertEquals(20_000, snapshot.encodeLatency.maxUs);
+        assertEquals(2000, snapshot.muxerWriteLatency.maxUs);
+        assertEquals(3000, snapshot.muxerQueueLatency.maxUs);
+        assertEquals(1, snapshot.intervals.length);
+        assertEquals(20_000, snapshot.intervals[0].encodeMaxUs);
+        assertEquals(2000, snapshot.intervals[0].muxerWriteMaxUs);
+    }
+
+    @Test
+    public void stopFreezesDurationAndReplacesCurrent() {
+        AtomicLong now = new AtomicLong();
+        RecordTelemetry first = new RecordTelemetry(1000, 2, now::get);
+        RecordTelemetry.setCurrent(first);
+        assertSame(first, RecordTelemetry.getCurrent());
+        now.addAndGet(300 * MS);
+        RecordTelemetry.setCurrent(new RecordTelemetry(1000, 2, now::get));
+        now.addAndGet(10_000 * MS);
+        assertEquals(300, first.snapshot().durationMs);
+        RecordTelemetry.setCurrent(null);
+        assertNull(RecordTelemetry.getCurrent());
+    }
+}
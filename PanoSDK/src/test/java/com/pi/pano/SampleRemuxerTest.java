@@ -0,0 +1,165 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SampleRemuxerTest {
+
+    /**
+     * 内存中的样本源，缓冲不足时与MediaExtractor一样抛出异常
+     */
+    private static final class MemorySource implements SampleRemuxer.Source {
+        private final List<byte[]> mSamples = new ArrayList<>();
+        private final boolean mSizeKnown;
+        private int mIndex;
+
+        MemorySource(boolean sizeKnown, int... sizes) {
+            mSizeKnown = sizeKnown;
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] sample = new byte[sizes[i]];
+                for (int j = 0; j < sample.length; j++) {
+                    sample[j] = (byte) (i + j);
+                }
+                mSamples.add(sample);
+            }
+        }
+
+        @Override
+        public int readSampleData(@NonNull ByteBuffer buffer, int offset) {
+            if (mIndex >= mSamples.size()) {
+                return -1;
+            }
+            byte[] sample = mSamples.get(mIndex);
+            if (buffer.capacity() - offset < sample.length) {
+                throw new IllegalArgumentException("buffer too small:" + buffer.capacity() + "<" + sample.length);
+            }
+            buffer.position(offset);
+            buffer.put(sample);
+            return sample.length;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mIndex < mSamples.size() ? mIndex * 1000L : -1;
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return mIndex % 30 == 0 ? 1 : 0;
+        }
+
+        @Override
+        public long getSampleSize() {
+            return mSizeKnown && mIndex < mSamples.size() ? mSamples.get(mIndex).length : -1;
+        }
+
+        @Override
+        public boolean advance() {
+            return ++mIndex < mSamples.size();
+        }
+    }
+
+    private static final class RecordingSink implements SampleRemuxer.Sink {
+        final List<byte[]> samples = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        final List<Integer> flags = new ArrayList<>();
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            byte[] data = new byte[size];
+            ByteBuffer src = buffer.duplicate();
+            src.position(offset);
+            src.get(data);
+            samples.add(data);
+            times.add(presentationTimeUs);
+            this.flags.add(flags);
+        }
+    }
+
+    @Test
+    public void copiesAllSamplesWithTimesAndFlags() {
+        MemorySource source = new MemorySource(true, 100, 200, 300);
+        RecordingSink sink = new RecordingSink();
+        SampleRemuxer.Stats stats = new SampleRemuxer(new SampleRemuxer.BufferPool(2))
+                .copy(0, source, sink, 1024, -1, -1);
+        assertEquals(3, stats.sampleCount);
+        assertEquals(600, stats.byteCount);
+        assertEquals(2000, stats.lastTimeUs);
+        assertEquals(3, sink.samples.size());
+        assertEquals(2000L, (long) sink.times.get(2));
+        assertEquals(1, (int) sink.flags.get(0));
+        MemorySource expected = new MemorySource(true, 100, 200, 300);
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            int length = expected.readSampleData(buffer, 0);
+            byte[] data = new byte[length];
+            buffer.flip();
+            buffer.get(data);
+            assertArrayEquals(data, sink.samples.get(i));
+            expected.advance();
+        }
+    }
+
+    @Test
+    public void afterAndEndLimitTheRange() {
+        MemorySource source = new MemorySource(true, 10, 10, 10, 10, 10, 10);
+        RecordingSink sink = new RecordingSink();
+        SampleRemuxer.Stats stats = new SampleRemuxer(new SampleRemuxer.BufferPool(2))
+                .copy(0, source, sink, 64, 1000, 4000);
+        assertEquals(3, stats.sampleCount);
+        assertEquals(2000L, (long) sink.times.get(0));
+        assertEquals(4000L, stats.lastTimeUs);
+    }
+
+    @Test
+    public void growsWhenKnownSampleExceedsDeclaredSize() {
+        MemorySource source = new MemorySource(true, 100, 5000, 100);
+        SampleRemuxer.Stats stats = new SampleRemuxer(new SampleRemuxer.BufferPool(2))
+                .copy(0, source, new RecordingSink(), 1024, -1, -1);
+        assertEquals(3, stats.sampleCount);
+        assertEquals(1, stats.growCount);
+    }
+
+    @Test
+    public void unknownSizesFallBackToMaxBuffer() {
+        // API 28以下取不到样本大小，且轨道没有KEY_MAX_INPUT_SIZE
+        int big = SampleRemuxer.DEFAULT_BUFFER_SIZE * 3;
+        MemorySource source = new MemorySource(false, 1000, big, 1000);
+        SampleRemuxer.BufferPool pool = new SampleRemuxer.BufferPool(2);
+        SampleRemuxer.Stats stats = new SampleRemuxer(pool).copy(0, source, new RecordingSink(), -1, -1, -1);
+        assertEquals(3, stats.sampleCount);
+        assertEquals(big + 2000, stats.byteCount);
+    }
+
+    @Test
+    public void declaredSizeIsTrustedWhenSampleSizeUnknown() {
+        MemorySource source = new MemorySource(false, 1000, 2000);
+        SampleRemuxer.BufferPool pool = new SampleRemuxer.BufferPool(2);
+        SampleRemuxer.Stats stats = new SampleRemuxer(pool).copy(0, source, new RecordingSink(), 4096, -1, -1);
+        assertEquals(2, stats.sampleCount);
+        assertEquals(0, stats.growCount);
+        assertEquals(4096, pool.getAllocateBytes());
+    }
+
+    @Test
+    public void buffersAreReusedAcrossCopies() {
+        SampleRemuxer.BufferPool pool = new SampleRemuxer.BufferPool(2);
+        SampleRemuxer remuxer = new SampleRemuxer(pool);
+        for (int i = 0; i < 5; i++) {
+            remuxer.copy(0, new MemorySource(true, 100, 200), new RecordingSink(), 4096, -1, -1);
+        }
+        assertEquals(1, pool.getAllocateCount());
+        assertEquals(4, pool.getReuseCount());
+        assertTrue(pool.getPooledBytes() >= 4096);
+    }
+}
@@ -0,0 +1,323 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SegmentRolloverTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final ByteBuffer DATA = ByteBuffer.allocate(1000);
+
+    private static final class FakeTarget implements SegmentRollover.Target<String> {
+        final int index;
+        final List<String> tracks = new ArrayList<>();
+        final List<Long> samples = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean started;
+        volatile boolean stopped;
+        volatile boolean aborted;
+
+        FakeTarget(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int addTrack(@NonNull String format) {
+            tracks.add(format);
+            return tracks.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer buffer, int offset, int size,
+                                    long presentationTimeUs, int flags) {
+            samples.add(presentationTimeUs * 10 + track);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+
+    private static final class Recorder implements SegmentRollover.Factory<String>, SegmentRollover.Listener {
+        final List<FakeTarget> targets = Collections.synchronizedList(new ArrayList<>());
+        final List<SegmentRollover.Reason> requests = new ArrayList<>();
+        final List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        volatile int failIndex = -1;
+        volatile long storageLow = -1;
+
+        @NonNull
+        @Override
+        public SegmentRollover.Target<String> create(int index) throws Exception {
+            if (index == failIndex) {
+                failIndex = -1;
+                throw new Exception("open failed:" + index);
+            }
+            FakeTarget target = new FakeTarget(index);
+            targets.add(target);
+            return target;
+        }
+
+        @Override
+        public void onRequestSyncFrame(@NonNull SegmentRollover.Reason reason) {
+            requests.add(reason);
+        }
+
+        @Override
+        public void onSegmentFinished(int index, long firstPtsUs, long bytes, boolean success) {
+            finished.add(index + ":" + firstPtsUs + ":" + bytes + ":" + success);
+        }
+
+        @Override
+        public void onStorageLow(long freeBytes) {
+            storageLow = freeBytes;
+        }
+
+        void awaitFinished(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (finished.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, finished.size());
+        }
+
+        FakeTarget await(int index) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (targets) {
+                    for (FakeTarget target : targets) {
+                        if (target.index == index && target.started) {
+                            return target;
+                        }
+                    }
+                }
+                Thread.sleep(1);
+            }
+            throw new AssertionError("segment " + index + " not prepared");
+        }
+    }
+
+    private static SegmentRollover<String> start(Recorder recorder, SegmentRollover.Policy policy) {
+        SegmentRollover<String> rollover = new SegmentRollover<>(recorder, policy, recorder);
+        assertEquals(VIDEO, rollover.addTrack("video"));
+        assertEquals(AUDIO, rollover.addTrack("audio"));
+        rollover.setSyncTrack(VIDEO);
+        rollover.start();
+        return rollover;
+    }
+
+    private static void awaitNextReady(SegmentRollover<String> rollover) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!rollover.isNextSegmentReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(rollover.isNextSegmentReady());
+    }
+
+    private static void write(SegmentRollover<String> rollover, int track, long ptsUs, boolean key) {
+        rollover.writeSampleData(track, DATA, 0, 1000, ptsUs, key ? MuxerWriteBehind.FLAG_KEY_FRAME : 0);
+    }
+
+    @Test
+    public void switchesAtNextKeyFrameAfterDuration() throws Exception {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 1_000_000, 0, null));
+        FakeTarget first = recorder.targets.get(0);
+        FakeTarget second = recorder.await(1);
+        assertEquals(Arrays.asList("video", "audio"), first.tracks);
+        write(rollover, VIDEO, 0, true);
+        write(rollover, AUDIO, 500_000, false);
+        write(rollover, VIDEO, 1_000_000, false);
+        assertEquals(Collections.singletonList(SegmentRollover.Reason.DURATION), recorder.requests);
+        // 非关键帧与音频仍写入当前分段
+        write(rollover, AUDIO, 1_010_000, false);
+        write(rollover, VIDEO, 1_033_333, true);
+        write(rollover, AUDIO, 1_040_000, false);
+        assertEquals(4, first.samples.size());
+        assertEquals(2, second.samples.size());
+        assertEquals(10_333_330L, (long) second.samples.get(0));
+        recorder.await(2);
+        rollover.close();
+        assertTrue(first.stopped);
+        assertTrue(second.stopped);
+        assertTrue(recorder.targets.get(2).aborted);
+        assertTrue(recorder.finished.contains("0:0:4000:true"));
+        assertTrue(recorder.finished.contains("1:1033333:2000:true"));
+        assertEquals(2, rollover.getSegmentCount());
+    }
+
+    @Test
+    public void lateAudioIsWrittenToPreviousSegment() throws Exception {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 1_000_000, 0, null));
+        FakeTarget first = recorder.targets.get(0);
+        FakeTarget second = recorder.await(1);
+        awaitNextReady(rollover);
+        write(rollover, VIDEO, 0, true);
+        write(rollover, AUDIO, 0, false);
+        write(rollover, VIDEO, 1_000_000, false);
+        write(rollover, VIDEO, 1_033_333, true);
+        assertEquals(2, rollover.getSegmentCount());
+        // 音频落后于视频，切换后到达的早于边界的样本仍写入旧分段
+        write(rollover, AUDIO, 1_010_000, false);
+        write(rollover, AUDIO, 1_030_000, false);
+        assertTrue(recorder.finished.isEmpty());
+        write(rollover, AUDIO, 1_040_000, false);
+        // 所有轨道都越过边界后旧分段结束写入
+        recorder.awaitFinished(1);
+        assertEquals("0:0:5000:true", recorder.finished.get(0));
+        assertEquals(Arrays.asList(0L, 1L, 10_000_000L, 10_100_001L, 10_300_001L), first.samples);
+        assertEquals(Arrays.asList(10_333_330L, 10_400_001L), second.samples);
+        assertTrue(first.stopped);
+        rollover.close();
+    }
+
+    @Test
+    public void leadingAudioIsHeldUntilBoundary() throws Exception {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 1_000_000, 0, null));
+        FakeTarget first = recorder.targets.get(0);
+        FakeTarget second = recorder.await(1);
+        awaitNextReady(rollover);
+        write(rollover, VIDEO, 0, true);
+        write(rollover, VIDEO, 1_000_000, false);
+        // 音频领先于视频，等待切换时暂存
+        write(rollover, AUDIO, 1_020_000, false);
+        assertEquals(2, first.samples.size());
+        // 未切换：不晚于视频的暂存样本确定早于之后的关键帧
+        write(rollover, VIDEO, 1_033_333, false);
+        assertEquals(Arrays.asList(0L, 10_000_000L, 10_333_330L, 10_200_001L), first.samples);
+        write(rollover, AUDIO, 1_050_000, false);
+        write(rollover, AUDIO, 1_090_000, false);
+        write(rollover, VIDEO, 1_066_666, true);
+        assertEquals(2, rollover.getSegmentCount());
+        assertEquals(10_500_001L, (long) first.samples.get(4));
+        assertEquals(Arrays.asList(10_666_660L, 10_900_001L), second.samples);
+        recorder.awaitFinished(1);
+        rollover.close();
+        assertEquals(0, rollover.getLateDroppedCount());
+    }
+
+    @Test
+    public void previousSegmentIsFinishedAfterLateWindow() throws Exception {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 1_000_000, 0, null));
+        FakeTarget first = recorder.targets.get(0);
+        FakeTarget second = recorder.await(1);
+        awaitNextReady(rollover);
+        write(rollover, VIDEO, 0, true);
+        write(rollover, VIDEO, 1_000_000, true);
+        assertEquals(2, rollover.getSegmentCount());
+        // 音频一直没有到达
+        write(rollover, VIDEO, 1_000_000 + SegmentRollover.LATE_SAMPLE_WINDOW_US - 1, false);
+        assertTrue(recorder.finished.isEmpty());
+        write(rollover, VIDEO, 1_000_000 + SegmentRollover.LATE_SAMPLE_WINDOW_US, false);
+        recorder.awaitFinished(1);
+        write(rollover, AUDIO, 900_000, false);
+        assertEquals(1, rollover.getLateDroppedCount());
+        write(rollover, AUDIO, 1_950_000, false);
+        assertEquals(1, first.samples.size());
+        assertEquals(4, second.samples.size());
+        rollover.close();
+    }
+
+    @Test
+    public void sizeLimitRequestsSyncFrameOnce() throws Exception {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(3000, 0, 0, null));
+        recorder.await(1);
+        for (int i = 0; i < 6; i++) {
+            write(rollover, VIDEO, i * 33_333L, i == 0);
+        }
+        assertEquals(1, recorder.requests.size());
+        assertEquals(SegmentRollover.Reason.SIZE, recorder.requests.get(0));
+        assertEquals(1, rollover.getSegmentCount());
+        write(rollover, VIDEO, 6 * 33_333L, true);
+        assertEquals(2, rollover.getSegmentCount());
+        rollover.close();
+    }
+
+    @Test
+    public void unpreparedSegmentDefersSwitch() throws Exception {
+        Recorder recorder = new Recorder();
+        recorder.failIndex = 1;
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(1000, 0, 0, null));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (rollover.getPrepareError() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertNotNull(rollover.getPrepareError());
+        write(rollover, VIDEO, 0, true);
+        // 准备失败：继续写当前分段并重新准备
+        write(rollover, VIDEO, 33_333, true);
+        assertEquals(1, rollover.getSegmentCount());
+        recorder.await(1);
+        write(rollover, VIDEO, 66_666, true);
+        assertEquals(2, rollover.getSegmentCount());
+        rollover.close();
+        assertEquals(2, recorder.targets.get(0).samples.size());
+    }
+
+    @Test
+    public void lowStorageEndsSegmentAndNotifiesOnce() throws Exception {
+        Recorder recorder = new Recorder();
+        AtomicLong free = new AtomicLong(1_000_000);
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 0, 500_000, free::get));
+        recorder.await(1);
+        write(rollover, VIDEO, 0, true);
+        free.set(100_000);
+        // 未到检查间隔
+        write(rollover, VIDEO, 500_000, false);
+        assertEquals(-1, recorder.storageLow);
+        write(rollover, VIDEO, 1_000_000, false);
+        assertEquals(100_000, recorder.storageLow);
+        assertEquals(Collections.singletonList(SegmentRollover.Reason.STORAGE), recorder.requests);
+        write(rollover, VIDEO, 1_033_333, true);
+        write(rollover, VIDEO, 3_000_000, true);
+        assertEquals(1, recorder.requests.size());
+        assertEquals(2, rollover.getSegmentCount());
+        rollover.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addTrackAfterStartIsRejected() {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = start(recorder, new SegmentRollover.Policy(0, 0, 0, null));
+        try {
+            rollover.addTrack("camm");
+        } finally {
+            rollover.close();
+        }
+    }
+
+    @Test
+    public void closeBeforeStartOnlyShutsDown() {
+        Recorder recorder = new Recorder();
+        SegmentRollover<String> rollover = new SegmentRollover<>(recorder,
+                new SegmentRollover.Policy(0, 0, 0, null), recorder);
+        rollover.close();
+        assertTrue(recorder.targets.isEmpty());
+        assertTrue(recorder.finished.isEmpty());
+    }
+}
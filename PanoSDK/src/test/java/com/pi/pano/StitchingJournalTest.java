@@ -0,0 +1,217 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StitchingJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static Map<String, String> params(String value) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("srcDir", value);
+        params.put("fps", "30");
+        return params;
+    }
+
+    private File journalFile() {
+        return new File(mFolder.getRoot(), "journal/stitching_journal.bin");
+    }
+
+    @Test
+    public void replayRestoresEnqueueStateAndCheckpoint() throws IOException {
+        StitchingJournal journal = new StitchingJournal(journalFile());
+        assertTrue(journal.replay().isEmpty());
+        journal.recordEnqueue("a", params("/a"));
+        journal.recordEnqueue("b", params("/b"));
+        journal.recordState("a", "STITCH_STATE_START");
+        journal.recordCheckpoint("a", 3_000_000);
+        journal.recordRemove("b");
+        journal.close();
+
+        StitchingJournal reopened = new StitchingJournal(journalFile());
+        List<StitchingJournal.Entry> entries = reopened.replay();
+        assertEquals(1, entries.size());
+        StitchingJournal.Entry entry = entries.get(0);
+        assertEquals("a", entry.id);
+        assertEquals("/a", entry.params.get("srcDir"));
+        assertEquals("STITCH_STATE_START", entry.state);
+        assertEquals(3_000_000, entry.checkpointUs);
+        assertEquals(0, reopened.getDiscardedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void appendUpdatesMemoryBeforeDiskWrite() throws IOException {
+        StitchingJournal journal = new StitchingJournal(journalFile());
+        journal.replay();
+        journal.recordEnqueue("a", params("/a"));
+        journal.recordState("a", "STITCH_STATE_WAIT");
+        // 内存状态立即可见，无需等待写入线程
+        assertEquals("STITCH_STATE_WAIT", journal.getEntry("a").state);
+        journal.flush();
+        assertTrue(journal.getSyncCount() >= 1);
+        assertTrue(journal.getSyncCount() <= 2);
+        journal.close();
+    }
+
+    @Test
+    public void appendBeforeReplayIsRejected() {
+        StitchingJournal journal = new StitchingJournal(journalFile());
+        assertFalse(journal.recordEnqueue("a", params("/a")));
+        assertNull(journal.getEntry("a"));
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        File file = journalFile();
+        StitchingJournal journal = new StitchingJournal(file);
+        journal.replay();
+        journal.recordEnqueue("a", params("/a"));
+        journal.recordState("a", "STITCH_STATE_START");
+        journal.close();
+        long goodLength = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(goodLength);
+            // 写入中断：只有记录头的一部分
+            raf.write(new byte[]{0, 0, 0, 20, 1, 2});
+        }
+
+        StitchingJournal reopened = new StitchingJournal(file);
+        List<StitchingJournal.Entry> entries = reopened.replay();
+        assertEquals(1, entries.size());
+        assertEquals("STITCH_STATE_START", entries.get(0).state);
+        assertEquals(6, reopened.getDiscardedBytes());
+        assertEquals(goodLength, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void corruptRecordStopsReplay() throws IOException {
+        File file = journalFile();
+        StitchingJournal journal = new StitchingJournal(file);
+        journal.replay();
+        journal.recordEnqueue("a", params("/a"));
+        journal.flush();
+        long firstEnd = journal.length();
+        journal.recordState("a", "STITCH_STATE_START");
+        journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // 破坏第二条记录的负载，crc校验失败
+            raf.seek(file.length() - 1);
+            raf.write(0x7f);
+        }
+
+        StitchingJournal reopened = new StitchingJournal(file);
+        List<StitchingJournal.Entry> entries = reopened.replay();
+        assertEquals(1, entries.size());
+        assertNull(entries.get(0).state);
+        assertEquals(firstEnd, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void badMagicResetsJournal() throws IOException {
+        File file = journalFile();
+        assertTrue(file.getParentFile().mkdirs());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0x12345678);
+            raf.writeInt(1);
+        }
+        StitchingJournal journal = new StitchingJournal(file);
+        assertTrue(journal.replay().isEmpty());
+        assertEquals(8, journal.getDiscardedBytes());
+        assertEquals(4, file.length());
+        journal.close();
+    }
+
+    @Test
+    public void compactKeepsOnlyLiveTasks() throws IOException {
+        File file = journalFile();
+        StitchingJournal journal = new StitchingJournal(file);
+        journal.replay();
+        for (int i = 0; i < 50; i++) {
+            journal.recordEnqueue("t" + i, params("/t" + i));
+            journal.recordState("t" + i, "STITCH_STATE_WAIT");
+            if (i % 10 != 0) {
+                journal.recordRemove("t" + i);
+            }
+        }
+        journal.recordCheckpoint("t0", 1000);
+        journal.flush();
+        long before = journal.length();
+        journal.compact();
+        assertTrue(journal.length() < before);
+        journal.recordState("t10", "STITCH_STATE_START");
+        journal.close();
+
+        StitchingJournal reopened = new StitchingJournal(file);
+        List<StitchingJournal.Entry> entries = reopened.replay();
+        assertEquals(5, entries.size());
+        assertEquals("t0", entries.get(0).id);
+        assertEquals(1000, entries.get(0).checkpointUs);
+        assertEquals("STITCH_STATE_START", reopened.getEntry("t10").state);
+        reopened.close();
+    }
+
+    @Test
+    public void thresholdTriggersCompactionOnWriterThread() throws IOException {
+        File file = journalFile();
+        StitchingJournal journal = new StitchingJournal(file);
+        journal.replay();
+        journal.setCompactThreshold(512);
+        for (int i = 0; i < 200; i++) {
+            journal.recordEnqueue("t", params("/t"));
+            journal.recordState("t", "STITCH_STATE_START");
+            journal.recordCheckpoint("t", i);
+        }
+        journal.flush();
+        assertTrue(journal.length() <= 512);
+        journal.close();
+
+        StitchingJournal reopened = new StitchingJournal(file);
+        List<StitchingJournal.Entry> entries = reopened.replay();
+        assertEquals(Collections.singletonList("t"), Collections.singletonList(entries.get(0).id));
+        assertEquals(199, entries.get(0).checkpointUs);
+        assertEquals("STITCH_STATE_START", entries.get(0).state);
+        reopened.close();
+    }
+
+    @Test
+    public void concurrentAppendsAreAllPersisted() throws Exception {
+        File file = journalFile();
+        StitchingJournal journal = new StitchingJournal(file);
+        journal.replay();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 100;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    journal.recordEnqueue("t" + (base + i), params("/" + (base + i)));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        journal.close();
+        StitchingJournal reopened = new StitchingJournal(file);
+        assertEquals(400, reopened.replay().size());
+        reopened.close();
+    }
+}
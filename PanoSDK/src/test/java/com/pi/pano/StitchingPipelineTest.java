@@ -0,0 +1,311 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StitchingPipelineTest {
+
+    private static StitchingPipeline.Extractor frames(int count, long pauseTimeStamp) {
+        AtomicInteger next = new AtomicInteger();
+        return frame -> {
+            int i = next.getAndIncrement();
+            if (i >= count) {
+                return false;
+            }
+            frame.timestampUs = i * 1000L;
+            frame.render = frame.timestampUs > pauseTimeStamp;
+            return true;
+        };
+    }
+
+    @Test
+    public void encodesAllRenderedFramesInOrder() {
+        List<Long> encoded = Collections.synchronizedList(new ArrayList<>());
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frames(50, -1),
+                frame -> {
+                }, (frame, timeoutMs) -> true, frame -> encoded.add(frame.timestampUs));
+        pipeline.run();
+        assertTrue(pipeline.isEndOfStream());
+        assertNull(pipeline.getError());
+        assertEquals(50, encoded.size());
+        for (int i = 0; i < encoded.size(); i++) {
+            assertEquals(i * 1000L, (long) encoded.get(i));
+        }
+    }
+
+    @Test
+    public void extractAndDecodeRunInLockstep() {
+        // native解封装与解码共用一个读取位置，下一帧解封装前必须已解码上一帧
+        AtomicInteger extracted = new AtomicInteger();
+        AtomicInteger decoded = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        StitchingPipeline.Extractor source = frames(200, 50_000);
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frame -> {
+            if (extracted.get() != decoded.get()) {
+                violations.incrementAndGet();
+            }
+            boolean hasFrame = source.extract(frame);
+            if (hasFrame) {
+                extracted.incrementAndGet();
+            }
+            return hasFrame;
+        }, frame -> {
+            if (decoded.incrementAndGet() != extracted.get()) {
+                violations.incrementAndGet();
+            }
+        }, (frame, timeoutMs) -> true, frame -> true);
+        pipeline.run();
+        assertTrue(pipeline.isEndOfStream());
+        assertEquals(0, violations.get());
+        assertEquals(200, decoded.get());
+    }
+
+    @Test
+    public void extractAndDecodeRunOnSeparateThreads() {
+        Set<String> extractThreads = Collections.synchronizedSet(new HashSet<>());
+        Set<String> decodeThreads = Collections.synchronizedSet(new HashSet<>());
+        StitchingPipeline.Extractor source = frames(10, -1);
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frame -> {
+            extractThreads.add(Thread.currentThread().getName());
+            return source.extract(frame);
+        }, frame -> decodeThreads.add(Thread.currentThread().getName()), (frame, timeoutMs) -> true, frame -> true);
+        pipeline.run();
+        assertEquals(Collections.singleton("Stitch-extract"), extractThreads);
+        assertEquals(Collections.singleton("Stitch-decode"), decodeThreads);
+        assertEquals(10, pipeline.mExtractStats.frameCount);
+        assertEquals(10, pipeline.mDecodeStats.frameCount);
+    }
+
+    @Test
+    public void extractAheadRunsWhileDecoding() throws Exception {
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        config.extractAhead = 2;
+        AtomicInteger extracted = new AtomicInteger();
+        CountDownLatch decodeGate = new CountDownLatch(1);
+        StitchingPipeline.Extractor source = frames(20, -1);
+        StitchingPipeline pipeline = new StitchingPipeline(config, frame -> {
+            boolean hasFrame = source.extract(frame);
+            if (hasFrame) {
+                extracted.incrementAndGet();
+            }
+            return hasFrame;
+        }, frame -> {
+            try {
+                decodeGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, (frame, timeoutMs) -> true, frame -> true);
+        Thread runner = new Thread(pipeline::run);
+        runner.start();
+        // 解码卡在第0帧时，解封装领先2帧后等待
+        long deadline = System.currentTimeMillis() + 1000;
+        while (extracted.get() < 3 && System.currentTimeMillis() < deadline) {
+            sleep(1);
+        }
+        sleep(50);
+        assertEquals(3, extracted.get());
+        decodeGate.countDown();
+        runner.join(2000);
+        assertTrue(pipeline.isEndOfStream());
+        assertEquals(20, extracted.get());
+    }
+
+    @Test
+    public void stopAtExtractionFinishesFramesInFlight() {
+        // 结束时间在解封装时判断，之后的帧不解码，已进入流水线的帧全部编码
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        config.renderTimeoutMs = 5;
+        StitchingPipeline.Extractor source = frames(100, -1);
+        AtomicInteger decoded = new AtomicInteger();
+        List<Long> encoded = Collections.synchronizedList(new ArrayList<>());
+        StitchingPipeline pipeline = new StitchingPipeline(config,
+                frame -> source.extract(frame) && frame.timestampUs < 10_000, frame -> decoded.incrementAndGet(), (frame, timeoutMs) -> {
+            Thread.sleep(2);
+            return true;
+        }, frame -> encoded.add(frame.timestampUs));
+        pipeline.run();
+        assertTrue(pipeline.isEndOfStream());
+        assertEquals(10, decoded.get());
+        assertEquals(10, encoded.size());
+        assertEquals(9_000L, (long) encoded.get(9));
+    }
+
+    @Test
+    public void encoderIdleRunsWhileWaitingForFrames() {
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        AtomicInteger idle = new AtomicInteger();
+        AtomicInteger encoded = new AtomicInteger();
+        StitchingPipeline pipeline = new StitchingPipeline(config, frames(3, -1), frame -> {
+        }, (frame, timeoutMs) -> {
+            Thread.sleep(100);
+            return true;
+        }, new StitchingPipeline.Encoder() {
+            @Override
+            public boolean encode(@NonNull StitchingPipeline.Frame frame) {
+                encoded.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public boolean idle() {
+                idle.incrementAndGet();
+                return true;
+            }
+        });
+        pipeline.run();
+        assertTrue(pipeline.isEndOfStream());
+        assertEquals(3, encoded.get());
+        assertTrue(idle.get() >= 3);
+    }
+
+    @Test
+    public void encoderIdleFailureCancelsPipeline() {
+        AtomicInteger decoded = new AtomicInteger();
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frames(1000, -1),
+                frame -> decoded.incrementAndGet(), (frame, timeoutMs) -> {
+            Thread.sleep(50);
+            return true;
+        }, new StitchingPipeline.Encoder() {
+            @Override
+            public boolean encode(@NonNull StitchingPipeline.Frame frame) {
+                return true;
+            }
+
+            @Override
+            public boolean idle() {
+                return false;
+            }
+        });
+        pipeline.run();
+        assertTrue(pipeline.isCancelled());
+        assertFalse(pipeline.isEndOfStream());
+        assertTrue(decoded.get() < 10);
+    }
+
+    @Test
+    public void stagesOverlap() {
+        // 各阶段耗时5ms，串行需要20ms/帧；解封装与渲染、编码与下一帧的解码并行
+        int count = 20;
+        StitchingPipeline.Extractor source = frames(count, -1);
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frame -> {
+            sleep(5);
+            return source.extract(frame);
+        }, frame -> sleep(5), (frame, timeoutMs) -> {
+            Thread.sleep(5);
+            return true;
+        }, frame -> {
+            sleep(5);
+            return true;
+        });
+        long begin = System.nanoTime();
+        pipeline.run();
+        long elapsedMs = (System.nanoTime() - begin) / 1000_000;
+        assertTrue(pipeline.isEndOfStream());
+        assertTrue("elapsed " + elapsedMs + "ms", elapsedMs < count * 20 * 3 / 4);
+        assertTrue(pipeline.mEncodeStats.busyNs > 0 && pipeline.mExtractStats.busyNs > 0);
+    }
+
+    @Test
+    public void skippedFramesAreDecodedButNotRendered() {
+        AtomicInteger rendered = new AtomicInteger();
+        AtomicInteger decoded = new AtomicInteger();
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frames(20, 9_000),
+                frame -> decoded.incrementAndGet(), (frame, timeoutMs) -> {
+            rendered.incrementAndGet();
+            return true;
+        }, frame -> true);
+        pipeline.run();
+        assertEquals(20, decoded.get());
+        assertEquals(10, rendered.get());
+    }
+
+    @Test
+    public void renderWindowLimitsFramesAwaitingRender() {
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        config.renderWindow = 1;
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Semaphore rendered = new Semaphore(0);
+        StitchingPipeline pipeline = new StitchingPipeline(config, frames(30, -1), frame -> {
+            int n = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(n, Math::max);
+            // 模拟GL线程在解码后异步完成渲染
+            new Thread(() -> {
+                sleep(1);
+                inFlight.decrementAndGet();
+                rendered.release();
+            }).start();
+        }, (frame, timeoutMs) -> rendered.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS), frame -> true);
+        pipeline.run();
+        assertTrue(pipeline.isEndOfStream());
+        assertEquals(1, maxInFlight.get());
+        assertEquals(0, pipeline.getRenderTimeoutCount());
+    }
+
+    @Test
+    public void renderTimeoutIsCountedAndFrameStillEncoded() {
+        StitchingPipeline.Config config = new StitchingPipeline.Config();
+        config.renderTimeoutMs = 1;
+        AtomicInteger encoded = new AtomicInteger();
+        StitchingPipeline pipeline = new StitchingPipeline(config, frames(3, -1), frame -> {
+        }, (frame, timeoutMs) -> false, frame -> {
+            encoded.incrementAndGet();
+            return true;
+        });
+        pipeline.run();
+        assertEquals(3, pipeline.getRenderTimeoutCount());
+        assertEquals(3, encoded.get());
+    }
+
+    @Test
+    public void encoderStopEndsPipelineWithoutEos() {
+        AtomicInteger encoded = new AtomicInteger();
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frames(1000, -1),
+                frame -> {
+                }, (frame, timeoutMs) -> true, frame -> encoded.incrementAndGet() < 10);
+        pipeline.run();
+        assertTrue(pipeline.isCancelled());
+        assertFalse(pipeline.isEndOfStream());
+        assertEquals(10, encoded.get());
+    }
+
+    @Test
+    public void decoderErrorIsReported() {
+        RuntimeException error = new RuntimeException("decode");
+        StitchingPipeline pipeline = new StitchingPipeline(new StitchingPipeline.Config(), frames(100, -1),
+                frame -> {
+                    if (frame.index == 5) {
+                        throw error;
+                    }
+                }, (frame, timeoutMs) -> true, frame -> true);
+        pipeline.run();
+        assertSame(error, pipeline.getError());
+        assertFalse(pipeline.isEndOfStream());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
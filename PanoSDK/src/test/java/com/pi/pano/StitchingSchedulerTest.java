@@ -0,0 +1,169 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StitchingSchedulerTest {
+
+    @Test
+    public void ordersByPriorityThenSubmission() throws Exception {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.submit("a", 1);
+        scheduler.submit("b", 0);
+        scheduler.submit("c", 1);
+        scheduler.submit("d", 0);
+        assertEquals(Arrays.asList("b", "d", "a", "c"), scheduler.getQueuedTasks());
+        for (String expected : new String[]{"b", "d", "a", "c"}) {
+            StitchingScheduler.Job<String> job = scheduler.poll(0, TimeUnit.MILLISECONDS);
+            assertEquals(expected, job.task);
+            scheduler.finish(job);
+        }
+    }
+
+    @Test
+    public void duplicateSubmitIsIgnored() {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        assertTrue(scheduler.submit("a", 0));
+        assertFalse(scheduler.submit("a", 0));
+        assertEquals(1, scheduler.getQueuedTasks().size());
+    }
+
+    @Test
+    public void moveToFrontWithinPriority() {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.submit("a", 0);
+        scheduler.submit("b", 0);
+        scheduler.submit("c", 1);
+        scheduler.moveToFront("b");
+        scheduler.moveToFront("c");
+        assertEquals(Arrays.asList("b", "a", "c"), scheduler.getQueuedTasks());
+    }
+
+    @Test
+    public void budgetLimitsRunningJobs() throws Exception {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(2);
+        scheduler.submit("a", 0);
+        scheduler.submit("b", 0);
+        scheduler.submit("c", 0);
+        StitchingScheduler.Job<String> a = scheduler.take();
+        scheduler.take();
+        assertNull(scheduler.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(2, scheduler.getRunningCount());
+        scheduler.finish(a);
+        assertEquals("c", scheduler.take().task);
+    }
+
+    @Test
+    public void raisingBudgetWakesWaitingWorker() throws Exception {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.submit("a", 0);
+        scheduler.submit("b", 0);
+        scheduler.take();
+        CountDownLatch taken = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            try {
+                scheduler.take();
+                taken.countDown();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        worker.start();
+        assertFalse(taken.await(20, TimeUnit.MILLISECONDS));
+        scheduler.setBudget(2);
+        assertTrue(taken.await(1, TimeUnit.SECONDS));
+        worker.join();
+    }
+
+    @Test
+    public void cancelOnlyDequeues() throws Exception {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.submit("a", 0);
+        scheduler.submit("b", 0);
+        StitchingScheduler.Job<String> running = scheduler.take();
+        assertFalse(scheduler.cancel("a"));
+        assertTrue(scheduler.isRunning("a"));
+        assertTrue(scheduler.cancel("b"));
+        assertFalse(scheduler.isQueued("b"));
+        assertFalse(scheduler.cancel("missing"));
+        scheduler.finish(running);
+        assertFalse(scheduler.isRunning("a"));
+        assertNull(scheduler.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void finishedTaskCanBeResubmitted() throws Exception {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.submit("a", 0);
+        StitchingScheduler.Job<String> job = scheduler.take();
+        assertFalse(scheduler.submit("a", 0));
+        scheduler.finish(job);
+        assertTrue(scheduler.submit("a", 0));
+        assertSame("a", scheduler.take().task);
+    }
+
+    @Test
+    public void concurrentWorkersNeverExceedBudget() throws Exception {
+        final int budget = 3;
+        StitchingScheduler<Integer> scheduler = new StitchingScheduler<>(budget);
+        for (int i = 0; i < 60; i++) {
+            scheduler.submit(i, i % 3);
+        }
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        Thread[] workers = new Thread[6];
+        for (int w = 0; w < workers.length; w++) {
+            workers[w] = new Thread(() -> {
+                try {
+                    StitchingScheduler.Job<Integer> job;
+                    while ((job = scheduler.poll(50, TimeUnit.MILLISECONDS)) != null) {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(1);
+                        running.decrementAndGet();
+                        done.incrementAndGet();
+                        scheduler.finish(job);
+                    }
+                } catch (InterruptedException ignore) {
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(60, done.get());
+        assertTrue(maxRunning.get() <= budget);
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void workerCountForBudget() {
+        assertEquals(2, StitchingScheduler.workerCountForBudget(2, 8, 2));
+        assertEquals(1, StitchingScheduler.workerCountForBudget(4, 2, 2));
+        assertEquals(1, StitchingScheduler.workerCountForBudget(0, 0, 2));
+        assertEquals(3, StitchingScheduler.workerCountForBudget(3, 0, 0));
+    }
+
+    @Test
+    public void progressIsThrottledPerJob() {
+        StitchingScheduler<String> scheduler = new StitchingScheduler<>(1);
+        scheduler.setProgressThrottle(200, 1f);
+        StitchingScheduler.Job<String> job = new StitchingScheduler.Job<>("a", 0, 0);
+        assertTrue(scheduler.shouldReportProgress(job, 0.1f, 0));
+        assertFalse(scheduler.shouldReportProgress(job, 0.5f, 100));
+        assertTrue(scheduler.shouldReportProgress(job, 1.2f, 110));
+        assertTrue(scheduler.shouldReportProgress(job, 1.3f, 400));
+        assertFalse(scheduler.shouldReportProgress(job, 1.3f, 800));
+        assertTrue(scheduler.shouldReportProgress(job, 100f, 801));
+    }
+}
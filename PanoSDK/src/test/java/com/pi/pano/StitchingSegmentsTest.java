@@ -0,0 +1,175 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class StitchingSegmentsTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private StitchingSegments newSegments() {
+        File dir = mFolder.getRoot();
+        return new StitchingSegments(new File(dir, "stitching_segments.txt"),
+                new File(dir, "stitching_seg_").getPath());
+    }
+
+    private static void write(StitchingSegments.Segment segment, long fromUs, long toUs, long stepUs)
+            throws IOException {
+        assertTrue(segment.file.createNewFile() || segment.file.exists());
+        for (long t = fromUs; t <= toUs; t += stepUs) {
+            segment.onFrame(t);
+        }
+    }
+
+    @Test
+    public void checkpointOnlyAtIntervalWithFrames() {
+        StitchingSegments.Segment segment = new StitchingSegments.Segment(0, new File("x"));
+        assertFalse(segment.shouldCheckpoint(0, 1_000_000));
+        segment.onFrame(500_000);
+        assertFalse(segment.shouldCheckpoint(1_400_000, 1_000_000));
+        assertTrue(segment.shouldCheckpoint(1_500_000, 1_000_000));
+        assertFalse(segment.shouldCheckpoint(9_000_000, 0));
+    }
+
+    @Test
+    public void resumeFromLastCommittedCheckpointAfterCrash() throws IOException {
+        StitchingSegments segments = newSegments();
+        segments.load();
+        // 拼接中提交两个断点分段
+        StitchingSegments.Segment first = segments.newSegment();
+        write(first, 0, 966_666, 33_333);
+        assertTrue(segments.commit(first));
+        StitchingSegments.Segment second = segments.newSegment();
+        write(second, 1_000_000, 1_966_666, 33_333);
+        assertTrue(segments.commit(second));
+        // 写入中的分段未提交时进程退出
+        StitchingSegments.Segment torn = segments.newSegment();
+        write(torn, 2_000_000, 2_500_000, 33_333);
+
+        StitchingSegments reloaded = newSegments();
+        reloaded.load();
+        assertEquals(2, reloaded.getSegments().size());
+        assertEquals(second.lastUs, reloaded.getResumeTimestampUs());
+        // 未提交的分段文件在下次创建分段时被覆盖
+        StitchingSegments.Segment next = reloaded.newSegment();
+        assertEquals(torn.index, next.index);
+        assertFalse(next.file.exists());
+    }
+
+    private static StitchingSegments.Segment segment(int index, long firstUs, long lastUs, int frames) {
+        StitchingSegments.Segment segment = new StitchingSegments.Segment(index, new File("seg" + index));
+        segment.firstUs = firstUs;
+        segment.lastUs = lastUs;
+        segment.frameCount = frames;
+        return segment;
+    }
+
+    @Test
+    public void planContinuousSegmentsInIndexOrder() {
+        StitchingSegments.ConcatPlan plan = StitchingSegments.plan(Arrays.asList(
+                segment(1, 1_000_000, 1_966_666, 30),
+                segment(0, 0, 966_666, 30)), 33_333, 3);
+        assertTrue(plan.isContinuous());
+        assertEquals(2, plan.steps.size());
+        assertEquals(0, plan.steps.get(0).segment.index);
+        assertEquals(-1, plan.steps.get(0).afterUs);
+        assertEquals(966_666, plan.steps.get(1).afterUs);
+        assertEquals(0, plan.firstUs);
+        assertEquals(1_966_666, plan.lastUs);
+    }
+
+    @Test
+    public void planSkipsOverlapAndEmptySegments() {
+        // 恢复时从关键帧开始，与上一分段有重叠；重叠部分由afterUs过滤
+        StitchingSegments.ConcatPlan plan = StitchingSegments.plan(Arrays.asList(
+                segment(0, 0, 966_666, 30),
+                segment(1, 500_000, 1_966_666, 45),
+                segment(2, -1, -1, 0),
+                segment(3, 100_000, 900_000, 25)), 33_333, 3);
+        assertEquals(2, plan.steps.size());
+        assertEquals(2, plan.overlapCount);
+        assertEquals(966_666, plan.steps.get(1).afterUs);
+        assertFalse(plan.isContinuous());
+    }
+
+    @Test
+    public void planReportsGaps() {
+        StitchingSegments.ConcatPlan plan = StitchingSegments.plan(Arrays.asList(
+                segment(0, 0, 966_666, 30),
+                segment(1, 1_000_000, 2_000_000, 28),
+                segment(2, 2_500_000, 3_000_000, 16)), 33_333, 3);
+        assertEquals(3, plan.steps.size());
+        assertEquals(1, plan.gapCount);
+        assertEquals(500_000, plan.maxGapUs);
+    }
+
+    @Test
+    public void planOfNothingIsEmpty() {
+        StitchingSegments.ConcatPlan plan = StitchingSegments.plan(
+                Collections.<StitchingSegments.Segment>emptyList(), 33_333, 3);
+        assertTrue(plan.steps.isEmpty());
+        assertEquals(-1, plan.lastUs);
+    }
+
+    @Test
+    public void commitRejectsEmptyOrMissingSegment() throws IOException {
+        StitchingSegments segments = newSegments();
+        segments.load();
+        StitchingSegments.Segment empty = segments.newSegment();
+        assertTrue(empty.file.createNewFile());
+        assertFalse(segments.commit(empty));
+        StitchingSegments.Segment missing = segments.newSegment();
+        missing.onFrame(0);
+        assertTrue(missing.file.delete() || !missing.file.exists());
+        assertFalse(segments.commit(missing));
+        assertTrue(segments.isEmpty());
+        assertEquals(-1, segments.getResumeTimestampUs());
+    }
+
+    @Test
+    public void loadIgnoresSegmentsWhoseFileIsGone() throws IOException {
+        StitchingSegments segments = newSegments();
+        segments.load();
+        StitchingSegments.Segment first = segments.newSegment();
+        write(first, 0, 100_000, 33_333);
+        assertTrue(segments.commit(first));
+        StitchingSegments.Segment second = segments.newSegment();
+        write(second, 133_333, 200_000, 33_333);
+        assertTrue(segments.commit(second));
+        assertEquals(1, second.index);
+        assertTrue(second.file.delete());
+
+        StitchingSegments reloaded = newSegments();
+        assertEquals(1, reloaded.load().size());
+        assertEquals(first.lastUs, reloaded.getResumeTimestampUs());
+    }
+
+    @Test
+    public void deleteAllRemovesFilesAndIndex() throws IOException {
+        StitchingSegments segments = newSegments();
+        segments.load();
+        StitchingSegments.Segment first = segments.newSegment();
+        write(first, 0, 100_000, 33_333);
+        assertTrue(segments.commit(first));
+        StitchingSegments.Segment pending = segments.newSegment();
+        write(pending, 133_333, 200_000, 33_333);
+        segments.discard(pending);
+        assertFalse(pending.file.exists());
+
+        assertTrue(segments.deleteAll());
+        assertFalse(first.file.exists());
+        assertTrue(segments.isEmpty());
+        assertTrue(newSegments().load().isEmpty());
+        assertEquals(0, newSegments().newSegment().index);
+    }
+}
@@ -0,0 +1,223 @@
+package com.pi.pano;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StorageMonitorTest {
+    private static final long MB = 1024 * 1024;
+    private static final long SECOND_NS = 1000_000_000L;
+
+    private static final class FakeStorage implements StorageMonitor.Storage {
+        long freeBytes = 10_000 * MB;
+        long syncNs = 10_000_000;
+        boolean probeFails;
+        int probes;
+        long outputBytes;
+        /**
+         * 封装器缓冲中还未写入文件的数据
+         */
+        long buffered;
+
+        @Override
+        public long getUsableSpace() {
+            return freeBytes;
+        }
+
+        @Override
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        @Override
+        public long probeSync() throws IOException {
+            probes++;
+            if (probeFails) {
+                throw new IOException("probe");
+            }
+            return syncNs;
+        }
+    }
+
+    private final FakeStorage mStorage = new FakeStorage();
+    private final AtomicLong mNow = new AtomicLong();
+    private final List<Integer> mActions = new ArrayList<>();
+    private final StoragePolicy mPolicy = new StoragePolicy();
+
+    private StorageMonitor newMonitor() {
+        return new StorageMonitor(mStorage, mPolicy, new StorageMonitor.Listener() {
+            @Override
+            public void onStorageAction(int action, @NonNull StorageStatus status) {
+                mActions.add(action);
+            }
+        }, mNow::get);
+    }
+
+    /**
+     * 经过1秒：录像产生incoming字节，存储每秒最多写入writeRate字节，写不完的留在封装器缓冲中
+     */
+    private StorageStatus second(StorageMonitor monitor, long incoming, long writeRate) {
+        mNow.addAndGet(SECOND_NS);
+        monitor.onIncoming((int) incoming);
+        mStorage.buffered += incoming;
+        long written = Math.min(mStorage.buffered, writeRate);
+        mStorage.buffered -= written;
+        mStorage.outputBytes += written;
+        return monitor.check();
+    }
+
+    private int count(int action) {
+        int count = 0;
+        for (int a : mActions) {
+            if (a == action) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void healthyStorageReportsRatesAndRemainingTime() {
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        StorageStatus status = second(monitor, 10 * MB, 100 * MB);
+        assertEquals(10 * MB, status.incomingBytesPerSecond);
+        // 落盘速率为文件实际增长的速率，没有积压时写入能力充足
+        assertEquals(10 * MB, status.writeBytesPerSecond);
+        assertEquals(Double.POSITIVE_INFINITY, status.headroom, 0);
+        assertEquals(10, status.syncLatencyMs);
+        // 扣除停止时保留的空间
+        assertEquals((10_000 - 100) / 10 * 1000, status.remainingMs);
+        assertTrue(mActions.isEmpty());
+    }
+
+    @Test
+    public void growingBacklogWarnsThenReducesBitrate() {
+        mPolicy.probeIntervalMs = 0;
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        for (int i = 0; i < 3; i++) {
+            second(monitor, 10 * MB, 100 * MB);
+        }
+        // 短暂的写入停顿，积压未超过2秒的数据量
+        second(monitor, 10 * MB, 0);
+        second(monitor, 10 * MB, 0);
+        assertEquals(Double.POSITIVE_INFINITY, monitor.getStatus().headroom, 0);
+        second(monitor, 10 * MB, 100 * MB);
+        assertTrue(mActions.isEmpty());
+        // 存储只能写入数据速率的一半，第5秒积压超过20MB
+        for (int i = 0; i < 4; i++) {
+            second(monitor, 10 * MB, 5 * MB);
+        }
+        assertEquals(Double.POSITIVE_INFINITY, monitor.getStatus().headroom, 0);
+        second(monitor, 10 * MB, 5 * MB);
+        assertTrue(monitor.getStatus().headroom < mPolicy.reduceBitrateHeadroom);
+        assertTrue(mActions.isEmpty());
+        second(monitor, 10 * MB, 5 * MB);
+        second(monitor, 10 * MB, 5 * MB);
+        assertEquals(1, count(StorageMonitor.ACTION_WARN));
+        assertEquals(1, count(StorageMonitor.ACTION_REDUCE_BITRATE));
+        assertEquals(0, count(StorageMonitor.ACTION_STOP));
+        assertTrue(monitor.getStatus().writeBytesPerSecond < 8 * MB);
+    }
+
+    @Test
+    public void actionsAreThrottledByInterval() {
+        mPolicy.probeIntervalMs = 0;
+        mPolicy.actionIntervalMs = 3000;
+        mPolicy.stopSustainedChecks = 1000;
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        for (int i = 0; i < 15; i++) {
+            second(monitor, 10 * MB, 5 * MB);
+        }
+        // 第5秒起积压超出，第7、10、13秒
+        assertEquals(3, count(StorageMonitor.ACTION_REDUCE_BITRATE));
+    }
+
+    @Test
+    public void lowFreeSpaceStopsOnce() {
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        second(monitor, 10 * MB, 100 * MB);
+        mStorage.freeBytes = 99 * MB;
+        second(monitor, 10 * MB, 100 * MB);
+        second(monitor, 10 * MB, 100 * MB);
+        assertEquals(1, count(StorageMonitor.ACTION_STOP));
+        assertEquals(1, mActions.size());
+    }
+
+    @Test
+    public void shortRemainingTimeStops() {
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        // 扣除保留空间后可录约10秒
+        mStorage.freeBytes = 200 * MB;
+        StorageStatus status = second(monitor, 10 * MB, 100 * MB);
+        assertEquals(10_000, status.remainingMs);
+        assertEquals(1, count(StorageMonitor.ACTION_STOP));
+    }
+
+    @Test
+    public void noOutputGrowthIsZeroHeadroom() {
+        // 封装器写入样本只放入内存缓冲，文件不增长时按没有写入计算
+        mPolicy.probeIntervalMs = 0;
+        mPolicy.stopSustainedChecks = 3;
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        for (int i = 0; i < 4; i++) {
+            second(monitor, 10 * MB, 0);
+        }
+        assertEquals(0, count(StorageMonitor.ACTION_STOP));
+        second(monitor, 10 * MB, 0);
+        assertEquals(0, monitor.getStatus().writeBytesPerSecond);
+        assertEquals(0, monitor.getStatus().headroom, 0);
+        assertEquals(1, count(StorageMonitor.ACTION_STOP));
+    }
+
+    @Test
+    public void removedOutputFilesAreNotNegativeProgress() {
+        mPolicy.probeIntervalMs = 0;
+        StorageMonitor monitor = newMonitor();
+        monitor.check();
+        second(monitor, 10 * MB, 100 * MB);
+        // 分段文件移走后继续写入
+        mStorage.outputBytes = 0;
+        StorageStatus status = second(monitor, 10 * MB, 100 * MB);
+        assertEquals(Double.POSITIVE_INFINITY, status.headroom, 0);
+        status = second(monitor, 10 * MB, 100 * MB);
+        assertEquals(Double.POSITIVE_INFINITY, status.headroom, 0);
+        assertTrue(mActions.isEmpty());
+    }
+
+    @Test
+    public void slowOrFailedSyncProbeWarns() {
+        mPolicy.probeIntervalMs = 5000;
+        StorageMonitor monitor = newMonitor();
+        mStorage.syncNs = 800_000_000;
+        monitor.check();
+        assertEquals(1, count(StorageMonitor.ACTION_WARN));
+        assertEquals(800, monitor.getStatus().syncLatencyMs);
+        // 探测周期内不再探测，同一告警受最小间隔限制
+        for (int i = 0; i < 4; i++) {
+            second(monitor, MB, 100 * MB);
+        }
+        assertEquals(1, mStorage.probes);
+        assertEquals(1, count(StorageMonitor.ACTION_WARN));
+        mStorage.syncNs = 1_000_000;
+        mStorage.probeFails = true;
+        mPolicy.actionIntervalMs = 0;
+        second(monitor, MB, 100 * MB);
+        assertEquals(2, mStorage.probes);
+        assertEquals(-1, monitor.getStatus().syncLatencyMs);
+        assertEquals(2, count(StorageMonitor.ACTION_WARN));
+    }
+}